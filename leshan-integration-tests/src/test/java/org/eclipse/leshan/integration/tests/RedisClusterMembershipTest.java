@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.integration.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.leshan.server.cluster.ConsistentHashRing;
+import org.eclipse.leshan.server.cluster.RedisClusterMembership;
+import org.eclipse.leshan.server.cluster.RedisLeaderElection;
+import org.eclipse.leshan.server.cluster.RedisPoolConnectionProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+public class RedisClusterMembershipTest {
+
+    private static final String MEMBERS_KEY = "LESHAN_MEMBERS";
+    private static final String LEADER_KEY = "LESHAN_LEADER";
+    private static final long HEARTBEAT_PERIOD = 100;
+    private static final long MEMBER_TIMEOUT = 300;
+
+    private final BlockingQueue<String> timedOut = new LinkedBlockingQueue<>();
+    private volatile boolean failing = false;
+
+    private Pool<Jedis> pool;
+    private RedisLeaderElection leaderElection;
+    private RedisClusterMembership membership;
+
+    @Before
+    public void start() {
+        pool = RedisIntegrationTestHelper.createJedisPool();
+        try (Jedis j = pool.getResource()) {
+            j.del(MEMBERS_KEY, LEADER_KEY);
+            // an instance which stopped without leaving the cluster
+            j.zadd(MEMBERS_KEY, System.currentTimeMillis() - 2 * MEMBER_TIMEOUT, "dead");
+        }
+        RedisPoolConnectionProvider redis = new RedisPoolConnectionProvider(pool);
+        leaderElection = new RedisLeaderElection(redis, "live", 600);
+        membership = new RedisClusterMembership(redis, "live", HEARTBEAT_PERIOD, MEMBER_TIMEOUT, leaderElection);
+        membership.addTimeoutListener(new RedisClusterMembership.TimeoutListener() {
+            @Override
+            public void memberTimedOut(String instanceUID, ConsistentHashRing ring) {
+                timedOut.add(instanceUID);
+                if (failing) {
+                    throw new IllegalStateException("reclaim failed");
+                }
+            }
+        });
+    }
+
+    @After
+    public void stop() {
+        membership.stop();
+        leaderElection.stop();
+        pool.destroy();
+    }
+
+    @Test
+    public void leader_forgets_a_timed_out_member_once_handled() throws InterruptedException {
+        leaderElection.start();
+        membership.start();
+
+        assertEquals("dead", timedOut.poll(2, TimeUnit.SECONDS));
+        Thread.sleep(3 * HEARTBEAT_PERIOD);
+        assertNull(getScore("dead"));
+        assertNull(timedOut.poll(3 * HEARTBEAT_PERIOD, TimeUnit.MILLISECONDS));
+        assertNotNull(getScore("live"));
+    }
+
+    @Test
+    public void timed_out_member_is_kept_until_handled() throws InterruptedException {
+        failing = true;
+        leaderElection.start();
+        membership.start();
+
+        // notified again at each heartbeat until the listener succeeds
+        assertEquals("dead", timedOut.poll(2, TimeUnit.SECONDS));
+        assertEquals("dead", timedOut.poll(2, TimeUnit.SECONDS));
+        assertNotNull(getScore("dead"));
+
+        failing = false;
+        timedOut.clear();
+        assertEquals("dead", timedOut.poll(2, TimeUnit.SECONDS));
+        Thread.sleep(3 * HEARTBEAT_PERIOD);
+        assertNull(getScore("dead"));
+    }
+
+    @Test
+    public void timed_out_member_is_not_handled_without_the_lead() throws InterruptedException {
+        try (Jedis j = pool.getResource()) {
+            j.set(LEADER_KEY, "another");
+        }
+        leaderElection.start();
+        membership.start();
+
+        assertNull(timedOut.poll(5 * HEARTBEAT_PERIOD, TimeUnit.MILLISECONDS));
+        assertNotNull(getScore("dead"));
+    }
+
+    private Double getScore(String member) {
+        try (Jedis j = pool.getResource()) {
+            return j.zscore(MEMBERS_KEY, member);
+        }
+    }
+}
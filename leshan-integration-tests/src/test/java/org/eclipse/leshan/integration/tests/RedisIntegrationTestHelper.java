@@ -57,10 +57,7 @@ public class RedisIntegrationTestHelper extends IntegrationTestHelper {
         });
 
         // Create redis store
-        String redisURI = System.getenv("REDIS_URI");
-        if (redisURI == null)
-            redisURI = "";
-        Pool<Jedis> jedis = new JedisPool(redisURI);
+        Pool<Jedis> jedis = createJedisPool();
         builder.setRegistrationStore(new RedisRegistrationStore(jedis));
 
         // Build server !
@@ -91,4 +88,14 @@ public class RedisIntegrationTestHelper extends IntegrationTestHelper {
             }
         });
     }
+
+    /**
+     * @return a pool of connections to the Redis server given by the REDIS_URI environment variable
+     */
+    public static Pool<Jedis> createJedisPool() {
+        String redisURI = System.getenv("REDIS_URI");
+        if (redisURI == null)
+            redisURI = "";
+        return new JedisPool(redisURI);
+    }
 }
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.integration.tests;
+
+import static org.junit.Assert.*;
+
+import org.eclipse.leshan.server.cluster.RedisLeaderElection;
+import org.eclipse.leshan.server.cluster.RedisPoolConnectionProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+public class RedisLeaderElectionTest {
+
+    private static final String LEADER_KEY = "LESHAN_LEADER";
+    private static final long LEASE_TIME = 600;
+
+    private Pool<Jedis> pool;
+    private RedisLeaderElection first;
+    private RedisLeaderElection second;
+
+    @Before
+    public void start() {
+        pool = RedisIntegrationTestHelper.createJedisPool();
+        try (Jedis j = pool.getResource()) {
+            j.del(LEADER_KEY);
+        }
+        first = new RedisLeaderElection(new RedisPoolConnectionProvider(pool), "first", LEASE_TIME);
+        second = new RedisLeaderElection(new RedisPoolConnectionProvider(pool), "second", LEASE_TIME);
+    }
+
+    @After
+    public void stop() {
+        first.stop();
+        second.stop();
+        pool.destroy();
+    }
+
+    @Test
+    public void only_one_instance_is_leader() throws InterruptedException {
+        first.start();
+        assertTrue(waitForLeader(first, LEASE_TIME));
+        second.start();
+
+        // the second instance keeps failing to acquire the lease renewed by the first one
+        Thread.sleep(2 * LEASE_TIME);
+        assertTrue(first.isLeader());
+        assertFalse(second.isLeader());
+        assertEquals("first", getLeader());
+    }
+
+    @Test
+    public void lead_is_taken_over_when_the_lease_is_not_renewed() throws InterruptedException {
+        // a leader which stopped without releasing its lease
+        try (Jedis j = pool.getResource()) {
+            j.set(LEADER_KEY, "crashed", "NX", "PX", LEASE_TIME);
+        }
+        long start = System.currentTimeMillis();
+        second.start();
+
+        assertTrue(waitForLeader(second, 2 * LEASE_TIME));
+        assertTrue(System.currentTimeMillis() - start >= LEASE_TIME / 2);
+        assertEquals("second", getLeader());
+    }
+
+    @Test
+    public void lead_is_released_on_stop() throws InterruptedException {
+        first.start();
+        assertTrue(waitForLeader(first, LEASE_TIME));
+        second.start();
+
+        first.stop();
+        assertFalse(first.isLeader());
+        // taken before the end of the lease released by the first instance
+        assertTrue(waitForLeader(second, LEASE_TIME / 2));
+        assertEquals("second", getLeader());
+    }
+
+    @Test
+    public void stop_does_not_release_the_lease_of_another_instance() throws InterruptedException {
+        first.start();
+        assertTrue(waitForLeader(first, LEASE_TIME));
+        second.start();
+
+        second.stop();
+        assertTrue(first.isLeader());
+        assertEquals("first", getLeader());
+    }
+
+    private boolean waitForLeader(RedisLeaderElection election, long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (!election.isLeader()) {
+            if (System.currentTimeMillis() > end) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private String getLeader() {
+        try (Jedis j = pool.getResource()) {
+            return j.get(LEADER_KEY);
+        }
+    }
+}
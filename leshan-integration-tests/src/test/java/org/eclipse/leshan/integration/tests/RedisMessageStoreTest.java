@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.integration.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.server.cluster.RedisMessageStore;
+import org.eclipse.leshan.server.queue.QueuedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+public class RedisMessageStoreTest {
+
+    private static final String ENDPOINT = "queued-endpoint";
+
+    private Pool<Jedis> pool;
+    private RedisMessageStore store;
+    private RedisMessageStore otherStore;
+
+    @Before
+    public void start() {
+        pool = RedisIntegrationTestHelper.createJedisPool();
+        store = new RedisMessageStore(pool);
+        otherStore = new RedisMessageStore(pool);
+        store.removeAll(ENDPOINT);
+    }
+
+    @After
+    public void stop() {
+        store.removeAll(ENDPOINT);
+        pool.destroy();
+    }
+
+    @Test
+    public void request_deleted_by_another_store_is_not_deleted_again() {
+        store.add(newRequest("1"));
+        store.add(newRequest("2"));
+        store.add(newRequest("3"));
+
+        // both instances send the first request
+        assertEquals("1", store.retrieveFirst(ENDPOINT).getRequestTicket());
+        assertEquals("1", otherStore.retrieveFirst(ENDPOINT).getRequestTicket());
+
+        store.deleteFirst(ENDPOINT);
+        otherStore.deleteFirst(ENDPOINT);
+
+        assertEquals(2, store.getQueueSize(ENDPOINT));
+        assertEquals("2", store.retrieveFirst(ENDPOINT).getRequestTicket());
+    }
+
+    @Test
+    public void expiration_is_stored_with_the_request() {
+        store.add(newRequest("1", 1234L));
+        store.add(newRequest("2"));
+
+        List<QueuedRequest> requests = otherStore.retrieveFirst(ENDPOINT, 2);
+        assertEquals(1234L, requests.get(0).getExpiration());
+        assertEquals(0L, requests.get(1).getExpiration());
+    }
+
+    @Test
+    public void retrieved_requests_are_deleted_in_order() {
+        for (int i = 1; i <= 4; i++) {
+            store.add(newRequest(String.valueOf(i)));
+        }
+
+        assertEquals(3, store.retrieveFirst(ENDPOINT, 3).size());
+        assertEquals(2, otherStore.retrieveFirst(ENDPOINT, 2).size());
+        otherStore.deleteFirst(ENDPOINT);
+
+        // the first request was deleted by the other store, the second one is not deleted in its place
+        store.deleteFirst(ENDPOINT);
+        assertEquals(3, store.getQueueSize(ENDPOINT));
+        assertEquals("2", store.retrieveFirst(ENDPOINT).getRequestTicket());
+        store.deleteFirst(ENDPOINT);
+        assertEquals("3", store.retrieveFirst(ENDPOINT).getRequestTicket());
+    }
+
+    @Test
+    public void each_request_is_deleted_once_by_concurrent_stores() throws InterruptedException {
+        int nbRequests = 200;
+        List<QueuedRequest> requests = new ArrayList<>();
+        for (int i = 0; i < nbRequests; i++) {
+            requests.add(newRequest(String.valueOf(i)));
+        }
+        store.addAll(requests);
+
+        // each store sends and deletes the head it retrieved: a request deleted without being retrieved is lost
+        final Set<String> sent = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final CountDownLatch done = new CountDownLatch(2);
+        for (final RedisMessageStore s : new RedisMessageStore[] { store, otherStore }) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        QueuedRequest first = s.retrieveFirst(ENDPOINT);
+                        while (first != null) {
+                            s.deleteFirst(ENDPOINT);
+                            sent.add(first.getRequestTicket());
+                            first = s.retrieveFirst(ENDPOINT);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, store.getQueueSize(ENDPOINT));
+        assertEquals(nbRequests, sent.size());
+    }
+
+    private static QueuedRequest newRequest(String ticket) {
+        return newRequest(ticket, 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static QueuedRequest newRequest(final String ticket, final long expiration) {
+        DownlinkRequest<?> read = new ReadRequest(3, 0, Integer.parseInt(ticket) % 20);
+        final DownlinkRequest<LwM2mResponse> request = (DownlinkRequest<LwM2mResponse>) read;
+        return new QueuedRequest() {
+            @Override
+            public String getRequestTicket() {
+                return ticket;
+            }
+
+            @Override
+            public String getEndpoint() {
+                return ENDPOINT;
+            }
+
+            @Override
+            public long getExpiration() {
+                return expiration;
+            }
+
+            @Override
+            public DownlinkRequest<LwM2mResponse> getDownlinkRequest() {
+                return request;
+            }
+        };
+    }
+}
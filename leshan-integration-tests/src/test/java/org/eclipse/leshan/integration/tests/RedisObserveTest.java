@@ -15,9 +15,39 @@
  *******************************************************************************/
 package org.eclipse.leshan.integration.tests;
 
+import static org.junit.Assert.*;
+
+import java.util.Set;
+
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.core.observation.Observation;
+import org.eclipse.leshan.core.request.ObserveRequest;
+import org.eclipse.leshan.core.response.ObserveResponse;
+import org.eclipse.leshan.server.client.Client;
+import org.junit.Test;
+
 public class RedisObserveTest extends ObserveTest {
 
     public RedisObserveTest() {
         helper = new RedisIntegrationTestHelper();
     }
+
+    @Test
+    public void can_cancel_observations() throws InterruptedException {
+        Client registration = helper.getCurrentRegistration();
+        ObserveResponse resourceObservation = helper.server.send(registration, new ObserveRequest(3, 0, 15));
+        assertEquals(ResponseCode.CONTENT, resourceObservation.getCode());
+        ObserveResponse instanceObservation = helper.server.send(registration, new ObserveRequest(3, 0));
+        assertEquals(ResponseCode.CONTENT, instanceObservation.getCode());
+
+        // cancel a single observation
+        helper.server.getObservationRegistry().cancelObservation(resourceObservation.getObservation());
+        Set<Observation> observations = helper.server.getObservationRegistry().getObservations(registration);
+        assertEquals(1, observations.size());
+        assertEquals(instanceObservation.getObservation().getPath(), observations.iterator().next().getPath());
+
+        // cancel the observations of a path
+        assertEquals(1, helper.server.getObservationRegistry().cancelObservations(registration, "/3/0"));
+        assertTrue(helper.server.getObservationRegistry().getObservations(registration).isEmpty());
+    }
 }
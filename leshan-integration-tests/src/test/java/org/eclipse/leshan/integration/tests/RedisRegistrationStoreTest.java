@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.integration.tests;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.leshan.server.californium.impl.CoapRequestBuilder;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.cluster.RedisRegistrationStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+public class RedisRegistrationStoreTest {
+
+    private static final String ENDPOINT = "store-endpoint";
+    private static final String REGISTRATION_ID = "store-regId";
+
+    private Pool<Jedis> pool;
+    private RedisRegistrationStore store;
+
+    @Before
+    public void start() {
+        pool = RedisIntegrationTestHelper.createJedisPool();
+        store = new RedisRegistrationStore(pool);
+        store.addRegistration(new Client.Builder(REGISTRATION_ID, ENDPOINT, InetAddress.getLoopbackAddress(), 5683,
+                new InetSocketAddress(5683)).build());
+    }
+
+    @After
+    public void stop() {
+        store.removeRegistration(REGISTRATION_ID);
+        pool.destroy();
+    }
+
+    @Test
+    public void replaced_observation_is_indexed_once() {
+        byte[] token = new byte[] { 1, 2, 3, 4 };
+        store.add(givenAnObservation(token, "/3/0/13"));
+        // e.g. a token collision
+        store.add(givenAnObservation(token, "/3/0/14"));
+
+        assertEquals(1, store.getObservations(REGISTRATION_ID).size());
+
+        store.remove(token);
+        assertTrue(store.getObservations(REGISTRATION_ID).isEmpty());
+    }
+
+    private static org.eclipse.californium.core.observe.Observation givenAnObservation(byte[] token, String path) {
+        Request request = Request.newGet();
+        request.setToken(token);
+        request.getOptions().setUriPath(path);
+        request.setObserve();
+        Map<String, String> context = new HashMap<>();
+        context.put(CoapRequestBuilder.CTX_ENDPOINT, ENDPOINT);
+        context.put(CoapRequestBuilder.CTX_REGID, REGISTRATION_ID);
+        context.put(CoapRequestBuilder.CTX_LWM2M_PATH, path);
+        request.setUserContext(context);
+        return new org.eclipse.californium.core.observe.Observation(request, null);
+    }
+}
@@ -15,9 +15,157 @@
  *******************************************************************************/
 package org.eclipse.leshan.integration.tests;
 
+import static org.eclipse.leshan.integration.tests.IntegrationTestHelper.LIFETIME;
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Set;
+
+import org.eclipse.leshan.ResponseCode;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.observation.Observation;
+import org.eclipse.leshan.core.request.ObserveRequest;
+import org.eclipse.leshan.core.response.ObserveResponse;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.cluster.RedisRegistrationStore;
+import org.eclipse.leshan.server.cluster.serialization.ClientSerDes;
+import org.eclipse.leshan.server.registration.Deregistration;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
 public class RedisRegistrationTest extends RegistrationTest {
 
     public RedisRegistrationTest() {
         helper = new RedisIntegrationTestHelper();
     }
+
+    @Test
+    public void register_observe_update_keeps_observations() throws InterruptedException {
+        helper.client.start();
+        helper.waitForRegistration(1);
+        observe(new ObserveRequest(3, 0));
+
+        // the update script extends the expiration of the observation keys
+        assertTrue(helper.waitForUpdate(LIFETIME));
+        Set<Observation> observations = getObservations(helper.getCurrentRegistration());
+        assertEquals(1, observations.size());
+        assertEquals(new LwM2mPath(3, 0), observations.iterator().next().getPath());
+    }
+
+    @Test
+    public void register_observe_reregister_removes_observations() throws InterruptedException {
+        helper.client.start();
+        helper.waitForRegistration(1);
+        observe(new ObserveRequest(3, 0));
+        observe(new ObserveRequest(3, 0, 15));
+        Client first = helper.getCurrentRegistration();
+        assertEquals(2, getObservations(first).size());
+
+        // register again without de-registration
+        helper.client.stop(false);
+        helper.resetLatch();
+        helper.client.start();
+        assertTrue(helper.waitForRegistration(1));
+
+        Client second = helper.getCurrentRegistration();
+        assertNotEquals(first.getRegistrationId(), second.getRegistrationId());
+        assertTrue(getObservations(first).isEmpty());
+        assertTrue(getObservations(second).isEmpty());
+    }
+
+    @Test
+    public void register_observe_cancel_all_observations() throws InterruptedException {
+        helper.client.start();
+        helper.waitForRegistration(1);
+        observe(new ObserveRequest(3, 0));
+        observe(new ObserveRequest(3, 0, 15));
+
+        Client registration = helper.getCurrentRegistration();
+        assertEquals(2, helper.server.getObservationRegistry().cancelObservations(registration));
+        assertTrue(getObservations(registration).isEmpty());
+        assertEquals(0, helper.server.getObservationRegistry().cancelObservations(registration));
+    }
+
+    @Test
+    public void register_observe_expire() throws InterruptedException {
+        helper.client.start();
+        helper.waitForRegistration(1);
+        observe(new ObserveRequest(3, 0));
+        Client registration = helper.getCurrentRegistration();
+
+        // stop without de-registration: the cleaner (run every 10s) removes the registration once expired
+        helper.client.stop(false);
+        assertTrue(helper.waitForDeregistration(LIFETIME + 15));
+        helper.assertClientNotRegisterered();
+        assertTrue(getObservations(registration).isEmpty());
+    }
+
+    @Test
+    public void reregister_with_the_same_registration_id() {
+        Pool<Jedis> pool = RedisIntegrationTestHelper.createJedisPool();
+        RedisRegistrationStore store = new RedisRegistrationStore(pool);
+        Client registration = newRegistration();
+        try {
+            assertNull(store.addRegistration(registration));
+            Deregistration deregistration = store.addRegistration(registration);
+            assertEquals(registration.getRegistrationId(), deregistration.getRegistration().getRegistrationId());
+
+            // the registration id index is kept
+            assertNotNull(store.getRegistration(registration.getRegistrationId()));
+        } finally {
+            store.removeRegistration(registration.getRegistrationId());
+            pool.destroy();
+        }
+    }
+
+    @Test
+    public void legacy_registration_is_migrated() throws InterruptedException {
+        Pool<Jedis> pool = RedisIntegrationTestHelper.createJedisPool();
+        Client registration = newRegistration();
+        byte[] legacyKey = ("EP#REG#" + registration.getEndpoint()).getBytes();
+        try (Jedis j = pool.getResource()) {
+            j.set(legacyKey, ClientSerDes.bSerialize(registration));
+            j.set("REGID#EP#" + registration.getRegistrationId(), registration.getEndpoint());
+        }
+
+        RedisRegistrationStore store = new RedisRegistrationStore(pool);
+        store.start();
+        try {
+            // migrated in background
+            Client migrated = null;
+            for (int i = 0; i < 50 && migrated == null; i++) {
+                Thread.sleep(100);
+                migrated = store.getRegistrationByEndpoint(registration.getEndpoint());
+            }
+            assertNotNull(migrated);
+            assertEquals(registration.getRegistrationId(), migrated.getRegistrationId());
+            assertNotNull(store.getRegistration(registration.getRegistrationId()));
+            try (Jedis j = pool.getResource()) {
+                assertFalse(j.exists(legacyKey));
+            }
+        } finally {
+            store.removeRegistration(registration.getRegistrationId());
+            store.stop();
+            pool.destroy();
+        }
+    }
+
+    private Client newRegistration() {
+        String endpoint = "redis-test-" + IntegrationTestHelper.r.nextInt(Integer.MAX_VALUE);
+        InetAddress address = InetAddress.getLoopbackAddress();
+        return new Client.Builder("reg-" + endpoint, endpoint, address, 5683, new InetSocketAddress(address, 5683))
+                .lifeTimeInSec(60L).build();
+    }
+
+    private void observe(ObserveRequest request) throws InterruptedException {
+        ObserveResponse response = helper.server.send(helper.getCurrentRegistration(), request);
+        assertEquals(ResponseCode.CONTENT, response.getCode());
+    }
+
+    private Set<Observation> getObservations(Client registration) {
+        return helper.server.getObservationRegistry().getObservations(registration);
+    }
 }
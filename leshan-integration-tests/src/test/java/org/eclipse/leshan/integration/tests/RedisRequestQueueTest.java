@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.integration.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.leshan.server.cluster.RedisPoolConnectionProvider;
+import org.eclipse.leshan.server.cluster.RedisRequestQueue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+public class RedisRequestQueueTest {
+
+    private static final String INSTANCE_UID = "queue-test";
+    private static final String OTHER_UID = "queue-test-other";
+    private static final long VISIBILITY_TIMEOUT = 500;
+
+    private final BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> dropped = new LinkedBlockingQueue<>();
+    private volatile boolean acknowledging = true;
+
+    private Pool<Jedis> pool;
+    private RedisRequestQueue queue;
+
+    @Before
+    public void start() {
+        pool = RedisIntegrationTestHelper.createJedisPool();
+        try (Jedis j = pool.getResource()) {
+            j.del("LESHAN_REQ#Q#{" + INSTANCE_UID + "}", "LESHAN_REQ#PENDING#{" + INSTANCE_UID + "}",
+                    "LESHAN_REQ#INFLIGHT#{" + INSTANCE_UID + "}", "LESHAN_REQ#DELIVERIES#{" + INSTANCE_UID + "}",
+                    RedisRequestQueue.getQueueKey(OTHER_UID));
+        }
+    }
+
+    @After
+    public void stop() {
+        if (queue != null) {
+            queue.stop();
+        }
+        pool.destroy();
+    }
+
+    @Test
+    public void acknowledged_message_is_delivered_once() throws InterruptedException {
+        startQueue(3);
+        enqueue("m1");
+
+        assertEquals("m1", delivered.poll(2, TimeUnit.SECONDS));
+        assertNull(delivered.poll(3 * VISIBILITY_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(queue.getMessages().isEmpty());
+    }
+
+    @Test
+    public void message_is_delivered_again_after_the_visibility_timeout() throws InterruptedException {
+        acknowledging = false;
+        startQueue(3);
+        enqueue("m1");
+
+        assertEquals("m1", delivered.poll(2, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("m1"), queue.getMessages());
+
+        // not acknowledged: delivered again once its visibility deadline is over
+        long start = System.currentTimeMillis();
+        assertEquals("m1", delivered.poll(5 * VISIBILITY_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - start >= VISIBILITY_TIMEOUT / 2);
+
+        queue.ack(Collections.singletonList("m1"));
+        assertTrue(queue.getMessages().isEmpty());
+        assertNull(delivered.poll(3 * VISIBILITY_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void message_is_dropped_after_max_deliveries() throws InterruptedException {
+        acknowledging = false;
+        startQueue(2);
+        enqueue("m1");
+
+        assertEquals("m1", delivered.poll(2, TimeUnit.SECONDS));
+        assertEquals("m1", delivered.poll(5 * VISIBILITY_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals("m1", dropped.poll(5 * VISIBILITY_TIMEOUT, TimeUnit.MILLISECONDS));
+
+        assertTrue(queue.getMessages().isEmpty());
+        assertNull(delivered.poll(3 * VISIBILITY_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void messages_are_delivered_in_order() throws InterruptedException {
+        startQueue(3);
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            messages.add("m" + i);
+            enqueue("m" + i);
+        }
+
+        List<String> received = new ArrayList<>();
+        while (received.size() < messages.size()) {
+            String message = delivered.poll(2, TimeUnit.SECONDS);
+            assertNotNull(message);
+            received.add(message);
+        }
+        assertEquals(messages, received);
+    }
+
+    @Test
+    public void messages_of_a_stopped_instance_are_moved() throws InterruptedException {
+        acknowledging = false;
+        startQueue(3);
+        enqueue("m1");
+        assertEquals("m1", delivered.poll(2, TimeUnit.SECONDS));
+        queue.stop();
+        enqueue("m2");
+
+        // the in-flight and the queued messages are moved, without consuming the queue
+        RedisRequestQueue stopped = new RedisRequestQueue(new RedisPoolConnectionProvider(pool), INSTANCE_UID);
+        List<String> messages = stopped.getMessages();
+        assertEquals(2, messages.size());
+        for (String message : messages) {
+            stopped.moveTo(message, OTHER_UID);
+        }
+
+        assertTrue(stopped.getMessages().isEmpty());
+        try (Jedis j = pool.getResource()) {
+            assertEquals(2, j.llen(RedisRequestQueue.getQueueKey(OTHER_UID)).longValue());
+            assertFalse(j.exists("LESHAN_REQ#DELIVERIES#{" + INSTANCE_UID + "}"));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void queue_of_another_instance_cannot_be_consumed() {
+        new RedisRequestQueue(new RedisPoolConnectionProvider(pool), OTHER_UID).start();
+    }
+
+    private void startQueue(int maxDeliveries) {
+        queue = new RedisRequestQueue(new RedisPoolConnectionProvider(pool), INSTANCE_UID,
+                new RedisRequestQueue.Listener() {
+                    @Override
+                    public void onMessages(List<String> messages) {
+                        delivered.addAll(messages);
+                        if (acknowledging) {
+                            queue.ack(messages);
+                        }
+                    }
+
+                    @Override
+                    public void onDropped(String message) {
+                        dropped.add(message);
+                    }
+                }, 5, VISIBILITY_TIMEOUT, maxDeliveries);
+        queue.start();
+    }
+
+    private void enqueue(String message) {
+        try (Jedis j = pool.getResource()) {
+            RedisRequestQueue.enqueue(j, INSTANCE_UID, message);
+        }
+    }
+}
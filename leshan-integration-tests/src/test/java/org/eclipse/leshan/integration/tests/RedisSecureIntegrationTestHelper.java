@@ -29,7 +29,6 @@ import org.eclipse.leshan.server.cluster.RedisSecurityRegistry;
 import org.eclipse.leshan.server.model.StaticModelProvider;
 
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
 import redis.clients.util.Pool;
 
 public class RedisSecureIntegrationTestHelper extends SecureIntegrationTestHelper {
@@ -44,10 +43,7 @@ public class RedisSecureIntegrationTestHelper extends SecureIntegrationTestHelpe
         builder.setLocalSecureAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
 
         // Create redis store
-        String redisURI = System.getenv("REDIS_URI");
-        if (redisURI == null)
-            redisURI = "";
-        Pool<Jedis> jedis = new JedisPool(redisURI);
+        Pool<Jedis> jedis = RedisIntegrationTestHelper.createJedisPool();
         builder.setRegistrationStore(new RedisRegistrationStore(jedis));
         builder.setSecurityRegistry(new RedisSecurityRegistry(jedis, null, null));
 
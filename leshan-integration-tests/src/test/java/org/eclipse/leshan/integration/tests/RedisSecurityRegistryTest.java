@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.integration.tests;
+
+import static org.junit.Assert.*;
+
+import org.eclipse.leshan.server.cluster.RedisPoolConnectionProvider;
+import org.eclipse.leshan.server.cluster.RedisSecurityRegistry;
+import org.eclipse.leshan.server.cluster.serialization.SecurityInfoSerDes;
+import org.eclipse.leshan.server.security.NonUniqueSecurityInfoException;
+import org.eclipse.leshan.server.security.SecurityInfo;
+import org.eclipse.leshan.util.Hex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+public class RedisSecurityRegistryTest {
+
+    private static final String ENDPOINT = "cached-endpoint";
+    private static final String IDENTITY = "cached-identity";
+    // the time during which an unknown endpoint or identity is cached
+    private static final long NEGATIVE_CACHE_TTL = 5000;
+    private static final long CACHE_SIZE = 64 * 1024;
+
+    private Pool<Jedis> pool;
+    private RedisSecurityRegistry registry;
+    private RedisSecurityRegistry otherRegistry;
+
+    @Before
+    public void start() throws InterruptedException {
+        pool = RedisIntegrationTestHelper.createJedisPool();
+        registry = new RedisSecurityRegistry(new RedisPoolConnectionProvider(pool), CACHE_SIZE, null, null);
+        otherRegistry = new RedisSecurityRegistry(new RedisPoolConnectionProvider(pool), CACHE_SIZE, null, null);
+        registry.remove(ENDPOINT);
+        registry.start();
+        otherRegistry.start();
+        // the cache is only used once the invalidation channel is subscribed
+        Thread.sleep(500);
+    }
+
+    @After
+    public void stop() {
+        registry.remove(ENDPOINT);
+        registry.stop();
+        otherRegistry.stop();
+        pool.destroy();
+    }
+
+    @Test
+    public void unknown_endpoint_is_cached_until_it_expires() throws InterruptedException {
+        assertNull(registry.getByEndpoint(ENDPOINT));
+
+        // stored without invalidation, as if the invalidation was missed
+        try (Jedis j = pool.getResource()) {
+            j.set(("SEC#EP#" + ENDPOINT).getBytes(), SecurityInfoSerDes.serialize(newSecurityInfo(IDENTITY)));
+        }
+        assertNull(registry.getByEndpoint(ENDPOINT));
+
+        Thread.sleep(NEGATIVE_CACHE_TTL + 100);
+        SecurityInfo info = registry.getByEndpoint(ENDPOINT);
+        assertNotNull(info);
+        assertEquals(IDENTITY, info.getIdentity());
+    }
+
+    @Test
+    public void added_security_info_is_invalidated_in_the_other_registries()
+            throws InterruptedException, NonUniqueSecurityInfoException {
+        assertNull(registry.getByEndpoint(ENDPOINT));
+        assertNull(registry.getByIdentity(IDENTITY));
+
+        otherRegistry.add(newSecurityInfo(IDENTITY));
+
+        // well before the end of the negative cache
+        assertTrue(waitForEndpoint(ENDPOINT, true, 1000));
+        SecurityInfo info = registry.getByIdentity(IDENTITY);
+        assertNotNull(info);
+        assertEquals(ENDPOINT, info.getEndpoint());
+    }
+
+    @Test
+    public void modified_security_info_is_invalidated_in_the_other_registries()
+            throws InterruptedException, NonUniqueSecurityInfoException {
+        otherRegistry.add(newSecurityInfo(IDENTITY));
+        assertNotNull(registry.getByIdentity(IDENTITY));
+        assertNotNull(registry.getByEndpoint(ENDPOINT));
+
+        // the previous identity is invalidated too
+        otherRegistry.add(newSecurityInfo("other-identity"));
+        assertTrue(waitForIdentity(IDENTITY, false, 1000));
+        assertEquals("other-identity", registry.getByEndpoint(ENDPOINT).getIdentity());
+    }
+
+    @Test
+    public void removed_security_info_is_invalidated_in_the_other_registries()
+            throws InterruptedException, NonUniqueSecurityInfoException {
+        otherRegistry.add(newSecurityInfo(IDENTITY));
+        assertNotNull(registry.getByEndpoint(ENDPOINT));
+        assertNotNull(registry.getByIdentity(IDENTITY));
+
+        otherRegistry.remove(ENDPOINT);
+
+        assertTrue(waitForEndpoint(ENDPOINT, false, 1000));
+        assertTrue(waitForIdentity(IDENTITY, false, 1000));
+    }
+
+    private static SecurityInfo newSecurityInfo(String identity) {
+        return SecurityInfo.newPreSharedKeyInfo(ENDPOINT, identity, Hex.decodeHex("73656372657450534b".toCharArray()));
+    }
+
+    private boolean waitForEndpoint(String endpoint, boolean known, long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while ((registry.getByEndpoint(endpoint) != null) != known) {
+            if (System.currentTimeMillis() > end) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private boolean waitForIdentity(String identity, boolean known, long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while ((registry.getByIdentity(identity) != null) != known) {
+            if (System.currentTimeMillis() > end) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
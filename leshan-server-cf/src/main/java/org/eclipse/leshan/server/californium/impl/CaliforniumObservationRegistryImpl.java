@@ -88,8 +88,9 @@ public class CaliforniumObservationRegistryImpl implements CaliforniumObservatio
     public void addObservation(Observation observation) {
         // cancel any other observation for the same path and registration id.
         // delegate this to the observation store to avoid race conditions on add/cancel?
-        for (Observation obs : getObservations(observation.getRegistrationId())) {
-            if (observation.getPath().equals(obs.getPath()) && !Arrays.equals(observation.getId(), obs.getId())) {
+        for (Observation obs : registrationStore.getObservations(observation.getRegistrationId(),
+                observation.getPath())) {
+            if (!Arrays.equals(observation.getId(), obs.getId())) {
                 cancelObservation(obs);
             }
         }
@@ -181,14 +182,8 @@ public class CaliforniumObservationRegistryImpl implements CaliforniumObservatio
         if (registrationId == null || resourcePath == null)
             return Collections.emptySet();
 
-        Set<Observation> result = new HashSet<Observation>();
-        LwM2mPath lwPath = new LwM2mPath(resourcePath);
-        for (Observation obs : getObservations(registrationId)) {
-            if (lwPath.equals(obs.getPath())) {
-                result.add(obs);
-            }
-        }
-        return result;
+        return new HashSet<Observation>(
+                registrationStore.getObservations(registrationId, new LwM2mPath(resourcePath)));
     }
 
     @Override
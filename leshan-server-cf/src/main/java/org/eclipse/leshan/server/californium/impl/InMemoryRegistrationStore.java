@@ -17,157 +17,296 @@ package org.eclipse.leshan.server.californium.impl;
 
 import static org.eclipse.leshan.server.californium.impl.CoapRequestBuilder.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.network.Exchange.KeyToken;
-import org.eclipse.californium.core.network.serialization.DataParser;
-import org.eclipse.californium.core.network.serialization.DataSerializer;
-import org.eclipse.californium.core.network.serialization.UdpDataParser;
-import org.eclipse.californium.core.network.serialization.UdpDataSerializer;
 import org.eclipse.californium.elements.CorrelationContext;
-import org.eclipse.californium.elements.RawData;
 import org.eclipse.leshan.core.node.LwM2mPath;
 import org.eclipse.leshan.core.observation.Observation;
 import org.eclipse.leshan.server.Startable;
 import org.eclipse.leshan.server.Stoppable;
 import org.eclipse.leshan.server.californium.CaliforniumRegistrationStore;
 import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientFilter;
+import org.eclipse.leshan.server.client.ClientPage;
 import org.eclipse.leshan.server.client.ClientUpdate;
 import org.eclipse.leshan.server.registration.Deregistration;
 import org.eclipse.leshan.server.registration.ExpirationListener;
+import org.eclipse.leshan.util.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * An in memory store for registration and observation.
+ * <p>
+ * Registrations and observations are kept in concurrent maps, so lookups never block. Modifications are serialized
+ * per endpoint using a fixed set of striped locks, so registrations, updates and observations of different devices can
+ * be handled in parallel.
+ * <p>
+ * When created with a persistence directory, the store is durable: each modification is appended to a journal and
+ * compacted snapshots are written periodically, so registrations and observations are reloaded on {@link #start()}
+ * and clients do not need to register again after a server restart.
  */
 public class InMemoryRegistrationStore implements CaliforniumRegistrationStore, Startable, Stoppable {
     private final Logger LOG = LoggerFactory.getLogger(InMemoryRegistrationStore.class);
 
-    // Data structure
-    private final Map<String /* end-point */, Client> regsByEp = new HashMap<>();
-    private Map<KeyToken, org.eclipse.californium.core.observe.Observation> obsByToken = new HashMap<>();
-    private Map<String, List<KeyToken>> tokensByRegId = new HashMap<>();
+    private static final int DEFAULT_LOCK_STRIPES = 64;
+    private static final long DEFAULT_SNAPSHOT_PERIOD = 300; // in seconds
 
-    // Request serializer to persist observation
-    private static final DataSerializer serializer = new UdpDataSerializer();
+    // Data structure
+    // sorted by end-point, so the registrations can be listed page by page
+    private final ConcurrentNavigableMap<String /* end-point */, Client> regsByEp = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String /* registration id */, Client> regsByRegId = new ConcurrentHashMap<>();
+    private final ConcurrentMap<InetSocketAddress /* peer address */, Client> regsByAddr = new ConcurrentHashMap<>();
+    // registrations sorted by expiration time, so only the expired ones are visited on clean-up
+    private final NavigableSet<Expiration> expirations = new ConcurrentSkipListSet<>();
+    private final ConcurrentMap<KeyToken, org.eclipse.californium.core.observe.Observation> obsByToken =
+            new ConcurrentHashMap<>();
+    // observation tokens indexed by registration id then by observed path
+    private final ConcurrentMap<String, ConcurrentMap<LwM2mPath, Set<KeyToken>>> tokensByRegIdAndPath =
+            new ConcurrentHashMap<>();
+
+    // Locks used to serialize modifications of a given endpoint
+    private final Lock[] locks;
+
+    // Journal of the modifications, null if the store is not durable
+    private final RegistrationJournal journal;
+    private final long snapshotPeriod;
+    // the journal was replayed, the store content can be persisted
+    private volatile boolean loaded;
 
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    
     // Listener use to notify when a registration expires
     private ExpirationListener expirationListener;
 
+    public InMemoryRegistrationStore() {
+        this(DEFAULT_LOCK_STRIPES);
+    }
+
+    /**
+     * @param lockStripes the number of locks shared by the endpoints.
+     */
+    public InMemoryRegistrationStore(int lockStripes) {
+        this(lockStripes, null, DEFAULT_SNAPSHOT_PERIOD);
+    }
+
+    /**
+     * Creates a durable store.
+     *
+     * @param persistenceDirectory the directory where the journal and the snapshots are written.
+     */
+    public InMemoryRegistrationStore(File persistenceDirectory) {
+        this(DEFAULT_LOCK_STRIPES, persistenceDirectory, DEFAULT_SNAPSHOT_PERIOD);
+    }
+
+    /**
+     * @param lockStripes the number of locks shared by the endpoints.
+     * @param persistenceDirectory the directory where the journal and the snapshots are written, or <code>null</code>
+     *        to keep the registrations in memory only.
+     * @param snapshotPeriod the time in seconds between two snapshots.
+     */
+    public InMemoryRegistrationStore(int lockStripes, File persistenceDirectory, long snapshotPeriod) {
+        Validate.isTrue(lockStripes > 0, "lockStripes must be positive");
+        Validate.isTrue(snapshotPeriod > 0, "snapshotPeriod must be positive");
+        locks = new Lock[lockStripes];
+        for (int i = 0; i < lockStripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.journal = persistenceDirectory == null ? null : new RegistrationJournal(persistenceDirectory);
+        this.snapshotPeriod = snapshotPeriod;
+    }
+
+    private Lock getLock(String endpoint) {
+        return locks[(endpoint.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
     /* *************** Leshan Registration API **************** */
 
     @Override
     public Deregistration addRegistration(Client registration) {
+        Lock lock = getLock(registration.getEndpoint());
         try {
-            lock.writeLock().lock();
+            lock.lock();
 
-            Client registrationRemoved = regsByEp.put(registration.getEndpoint(), registration);
-            if (registrationRemoved != null) {
-                Collection<Observation> observationsRemoved = unsafeRemoveAllObservations(registrationRemoved.getRegistrationId());
-                return new Deregistration(registrationRemoved, observationsRemoved);
+            Deregistration deregistration = unsafeAddRegistration(registration);
+            if (journal != null) {
+                journal.registrationAdded(registration);
             }
+            return deregistration;
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
+        }
+    }
+
+    private Deregistration unsafeAddRegistration(Client registration) {
+        Client registrationRemoved = regsByEp.put(registration.getEndpoint(), registration);
+        if (registrationRemoved != null) {
+            regsByRegId.remove(registrationRemoved.getRegistrationId());
+            unsafeRemoveAddressIndex(registrationRemoved);
+            expirations.remove(new Expiration(registrationRemoved));
+        }
+        regsByRegId.put(registration.getRegistrationId(), registration);
+        regsByAddr.put(toSocketAddress(registration), registration);
+        expirations.add(new Expiration(registration));
+        if (registrationRemoved != null) {
+            Collection<Observation> observationsRemoved = unsafeRemoveAllObservations(registrationRemoved.getRegistrationId());
+            return new Deregistration(registrationRemoved, observationsRemoved);
         }
         return null;
     }
 
     @Override
     public Client updateRegistration(ClientUpdate update) {
+        Client registration = regsByRegId.get(update.getRegistrationId());
+        if (registration == null) {
+            return null;
+        }
+
+        Lock lock = getLock(registration.getEndpoint());
         try {
-            lock.writeLock().lock();
+            lock.lock();
 
-            Client registration = getRegistration(update.getRegistrationId());
+            // the registration may have been modified before we get the lock
+            registration = regsByRegId.get(update.getRegistrationId());
             if (registration == null) {
                 return null;
             } else {
                 Client registrationUpdated = update.updateClient(registration);
-                regsByEp.put(registrationUpdated.getEndpoint(), registrationUpdated);
+                unsafeUpdateRegistration(registration, registrationUpdated);
+                if (journal != null) {
+                    journal.registrationUpdated(registrationUpdated);
+                }
                 return registrationUpdated;
             }
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
         }
     }
 
+    private void unsafeUpdateRegistration(Client registration, Client registrationUpdated) {
+        regsByEp.put(registrationUpdated.getEndpoint(), registrationUpdated);
+        regsByRegId.put(registrationUpdated.getRegistrationId(), registrationUpdated);
+        // the peer address may have changed (e.g. NAT rebinding)
+        unsafeRemoveAddressIndex(registration);
+        regsByAddr.put(toSocketAddress(registrationUpdated), registrationUpdated);
+        // reschedule the expiration
+        expirations.remove(new Expiration(registration));
+        expirations.add(new Expiration(registrationUpdated));
+    }
+
     @Override
     public Client getRegistration(String registrationId) {
-        try {
-            lock.readLock().lock();
-
-            if (registrationId != null) {
-                for (Client registration : regsByEp.values()) {
-                    if (registrationId.equals(registration.getRegistrationId())) {
-                        return registration;
-                    }
-                }
-            }
+        if (registrationId == null) {
             return null;
-        } finally {
-            lock.readLock().unlock();
         }
+        return regsByRegId.get(registrationId);
     }
 
     @Override
     public Client getRegistrationByEndpoint(String endpoint) {
-        try {
-            lock.readLock().lock();
-            return regsByEp.get(endpoint);
-        } finally {
-            lock.readLock().unlock();
-        }
+        return regsByEp.get(endpoint);
     }
 
     @Override
     public Collection<Client> getRegistrationByAdress(InetSocketAddress address) {
-        // TODO needed to remove getAllRegistration()
-        return null;
+        Client registration = regsByAddr.get(address);
+        if (registration == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(registration);
     }
 
     @Override
     public Collection<Client> getAllRegistration() {
-        try {
-            lock.readLock().lock();
-            return Collections.unmodifiableCollection(regsByEp.values());
-        } finally {
-            lock.readLock().unlock();
-        }
+        return Collections.unmodifiableCollection(new ArrayList<>(regsByEp.values()));
+    }
 
+    @Override
+    public ClientPage getRegistrations(String cursor, int pageSize, ClientFilter filter) {
+        // the cursor is the last end-point visited
+        Map<String, Client> remaining = cursor == null ? regsByEp : regsByEp.tailMap(cursor, false);
+        Collection<Client> registrations = new ArrayList<>();
+        String lastEndpoint = null;
+        int visited = 0;
+        for (Iterator<Client> it = remaining.values().iterator(); it.hasNext();) {
+            if (visited == pageSize) {
+                return new ClientPage(registrations, lastEndpoint);
+            }
+            Client registration = it.next();
+            // the expired registrations are not removed yet
+            if (registration.isAlive() && (filter == null || filter.accept(registration))) {
+                registrations.add(registration);
+            }
+            lastEndpoint = registration.getEndpoint();
+            visited++;
+        }
+        return new ClientPage(registrations, null);
     }
 
     @Override
     public Deregistration removeRegistration(String registrationId) {
+        Client registration = getRegistration(registrationId);
+        if (registration == null) {
+            return null;
+        }
+
+        Lock lock = getLock(registration.getEndpoint());
         try {
-            lock.writeLock().lock();
+            lock.lock();
 
-            Client registration = getRegistration(registrationId);
-            if (registration != null) {
-                Collection<Observation> observationsRemoved = unsafeRemoveAllObservations(registration.getRegistrationId());
-                regsByEp.remove(registration.getEndpoint());
-                return new Deregistration(registration, observationsRemoved);
+            Deregistration deregistration = unsafeRemoveRegistration(registrationId);
+            if (deregistration != null && journal != null) {
+                journal.registrationRemoved(registrationId);
             }
-            return null;
+            return deregistration;
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
         }
     }
 
+    private Deregistration unsafeRemoveRegistration(String registrationId) {
+        Client registration = regsByRegId.remove(registrationId);
+        if (registration != null) {
+            Collection<Observation> observationsRemoved = unsafeRemoveAllObservations(registration.getRegistrationId());
+            regsByEp.remove(registration.getEndpoint());
+            unsafeRemoveAddressIndex(registration);
+            expirations.remove(new Expiration(registration));
+            return new Deregistration(registration, observationsRemoved);
+        }
+        return null;
+    }
+
+    private InetSocketAddress toSocketAddress(Client registration) {
+        return new InetSocketAddress(registration.getAddress(), registration.getPort());
+    }
+
+    private void unsafeRemoveAddressIndex(Client registration) {
+        // another registration may have been made from this address since, clients are equal if they have the same
+        // endpoint.
+        regsByAddr.remove(toSocketAddress(registration), registration);
+    }
+
     /* *************** Leshan Observation API **************** */
 
     @Override
@@ -178,63 +317,92 @@ public class InMemoryRegistrationStore implements CaliforniumRegistrationStore,
 
     @Override
     public Observation removeObservation(String registrationId, byte[] observationId) {
+        Client registration = getRegistration(registrationId);
+        if (registration == null) {
+            return null;
+        }
+
+        Lock lock = getLock(registration.getEndpoint());
         try {
-            lock.writeLock().lock();
+            lock.lock();
 
-            Observation observation = build(unsafeGetObservation(new KeyToken(observationId)));
+            Observation observation = build(obsByToken.get(new KeyToken(observationId)));
             if (observation != null && registrationId.equals(observation.getRegistrationId())) {
                 // TODO remove API should returns the observation removed
                 unsafeRemoveObservation(observationId);
+                if (journal != null) {
+                    journal.observationRemoved(observationId);
+                }
                 return observation;
             }
             return null;
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
         }
     }
 
     @Override
     public Observation getObservation(String registrationId, byte[] observationId) {
-        try {
-            lock.readLock().lock();
-            Observation observation = build(unsafeGetObservation(new KeyToken(observationId)));
-            if (observation != null && registrationId.equals(observation.getRegistrationId())) {
-                return observation;
-            }
-            return null;
-        } finally {
-            lock.readLock().unlock();
+        Observation observation = build(obsByToken.get(new KeyToken(observationId)));
+        if (observation != null && registrationId.equals(observation.getRegistrationId())) {
+            return observation;
         }
+        return null;
     }
 
     @Override
     public Collection<Observation> getObservations(String registrationId) {
-        try {
-            lock.readLock().lock();
+        Collection<Observation> result = new ArrayList<>();
+        Map<LwM2mPath, Set<KeyToken>> tokensByPath = tokensByRegIdAndPath.get(registrationId);
+        if (tokensByPath != null) {
+            for (Set<KeyToken> tokens : tokensByPath.values()) {
+                addObservations(result, tokens);
+            }
+        }
+        return result;
+    }
 
-            Collection<Observation> result = new ArrayList<>();
-            List<KeyToken> tokens = tokensByRegId.get(registrationId);
+    @Override
+    public Collection<Observation> getObservations(String registrationId, LwM2mPath path) {
+        Collection<Observation> result = new ArrayList<>();
+        Map<LwM2mPath, Set<KeyToken>> tokensByPath = tokensByRegIdAndPath.get(registrationId);
+        if (tokensByPath != null) {
+            Set<KeyToken> tokens = tokensByPath.get(path);
             if (tokens != null) {
-                for (KeyToken token : tokens) {
-                    Observation obs = build(unsafeGetObservation(token));
-                    if (obs != null) {
-                        result.add(obs);
-                    }
-                }
+                addObservations(result, tokens);
+            }
+        }
+        return result;
+    }
+
+    private void addObservations(Collection<Observation> result, Set<KeyToken> tokens) {
+        for (KeyToken token : tokens) {
+            Observation obs = build(obsByToken.get(token));
+            if (obs != null) {
+                result.add(obs);
             }
-            return result;
-        } finally {
-            lock.readLock().unlock();
         }
     }
 
     @Override
     public Collection<Observation> removeObservations(String registrationId) {
+        Client registration = getRegistration(registrationId);
+        if (registration == null) {
+            // observations are removed with their registration
+            return Collections.emptyList();
+        }
+
+        Lock lock = getLock(registration.getEndpoint());
         try {
-            lock.writeLock().lock();
-            return unsafeRemoveAllObservations(registrationId);
+            lock.lock();
+
+            Collection<Observation> removed = unsafeRemoveAllObservations(registrationId);
+            if (!removed.isEmpty() && journal != null) {
+                journal.observationsRemoved(registrationId);
+            }
+            return removed;
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
         }
     }
 
@@ -243,18 +411,26 @@ public class InMemoryRegistrationStore implements CaliforniumRegistrationStore,
     @Override
     public void add(org.eclipse.californium.core.observe.Observation obs) {
         if (obs != null) {
+            Client registration = validateObservation(obs);
+
+            Lock lock = getLock(registration.getEndpoint());
             try {
-                lock.writeLock().lock();
+                lock.lock();
 
-                validateObservation(obs);
+                // the registration may have been removed before we get the lock
+                String registrationId = registration.getRegistrationId();
+                if (!regsByRegId.containsKey(registrationId)) {
+                    throw new IllegalStateException("no registration for this Id");
+                }
 
-                String registrationId = extractRegistrationId(obs);
-                KeyToken token = new KeyToken(obs.getRequest().getToken());
-                org.eclipse.californium.core.observe.Observation previousObservation = obsByToken.put(token, obs);
-                if (!tokensByRegId.containsKey(registrationId)) {
-                    tokensByRegId.put(registrationId, new ArrayList<KeyToken>());
+                // keep our own copy so later modifications of the request by the caller are not visible
+                org.eclipse.californium.core.observe.Observation copy = shallowClone(obs);
+                copy.getRequest().setUserContext(
+                        Collections.unmodifiableMap(new HashMap<>(obs.getRequest().getUserContext())));
+                org.eclipse.californium.core.observe.Observation previousObservation = unsafeAddObservation(copy);
+                if (journal != null) {
+                    journal.observationAdded(copy);
                 }
-                tokensByRegId.get(registrationId).add(token);
 
                 // log any collisions
                 if (previousObservation != null) {
@@ -263,58 +439,107 @@ public class InMemoryRegistrationStore implements CaliforniumRegistrationStore,
                             previousObservation.getRequest(), obs.getRequest());
                 }
             } finally {
-                lock.writeLock().unlock();
+                lock.unlock();
             }
         }
     }
 
     @Override
     public org.eclipse.californium.core.observe.Observation get(byte[] token) {
-        try {
-            lock.readLock().lock();
-            return unsafeGetObservation(new KeyToken(token));
-        } finally {
-            lock.readLock().unlock();
+        org.eclipse.californium.core.observe.Observation obs = obsByToken.get(new KeyToken(token));
+        if (obs != null) {
+            // Californium may modify the request of the returned observation
+            return shallowClone(obs);
         }
+        return null;
     }
 
     @Override
     public void setContext(byte[] token, CorrelationContext ctx) {
-        try {
-            lock.writeLock().lock();
-
-            org.eclipse.californium.core.observe.Observation obs = obsByToken.get(new KeyToken(token));
-            if (obs != null) {
-                obsByToken.put(new KeyToken(token),
-                        new org.eclipse.californium.core.observe.Observation(obs.getRequest(), ctx));
+        KeyToken kToken = new KeyToken(token);
+        org.eclipse.californium.core.observe.Observation obs;
+        do {
+            obs = obsByToken.get(kToken);
+            if (obs == null) {
+                return;
             }
-        } finally {
-            lock.writeLock().unlock();
-        }
+            // retry if the observation was replaced or removed meanwhile
+        } while (!obsByToken.replace(kToken, obs, new org.eclipse.californium.core.observe.Observation(
+                obs.getRequest(), ctx)));
     }
 
     @Override
     public void remove(byte[] token) {
+        org.eclipse.californium.core.observe.Observation obs = obsByToken.get(new KeyToken(token));
+        if (obs == null) {
+            return;
+        }
+
+        Client registration = getRegistration(extractRegistrationId(obs));
+        if (registration == null) {
+            // registration removed meanwhile, so are its observations
+            obsByToken.remove(new KeyToken(token), obs);
+            return;
+        }
+
+        Lock lock = getLock(registration.getEndpoint());
         try {
-            lock.writeLock().lock();
+            lock.lock();
+
             unsafeRemoveObservation(token);
+            if (journal != null) {
+                journal.observationRemoved(token);
+            }
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
         }
     }
 
     /* *************** Observation utility functions **************** */
 
-    private org.eclipse.californium.core.observe.Observation unsafeGetObservation(KeyToken token) {
-        org.eclipse.californium.core.observe.Observation obs = obsByToken.get(token);
-            if (obs != null) {
-                RawData serialize = serializer.serializeRequest(obs.getRequest(), null);
-                DataParser parser = new UdpDataParser();
-                Request newRequest = (Request) parser.parseMessage(serialize);
-                newRequest.setUserContext(obs.getRequest().getUserContext());
-                return new org.eclipse.californium.core.observe.Observation(newRequest, obs.getContext());
-            }
-            return null;
+    /**
+     * Create a copy of the observation sharing the immutable parts of its request (token, payload, user context).
+     * <p>
+     * This is much cheaper than serializing and parsing the request back and still protects the stored observation
+     * from modifications of the returned one.
+     */
+    private static org.eclipse.californium.core.observe.Observation shallowClone(
+            org.eclipse.californium.core.observe.Observation observation) {
+        Request request = observation.getRequest();
+        Request clonedRequest = new Request(request.getCode(), request.getType());
+        clonedRequest.setMID(request.getMID());
+        clonedRequest.setToken(request.getToken());
+        // the option set is copied by setOptions()
+        clonedRequest.setOptions(request.getOptions());
+        if (request.getPayloadSize() > 0) {
+            clonedRequest.setPayload(request.getPayload());
+        }
+        clonedRequest.setUserContext(request.getUserContext());
+        return new org.eclipse.californium.core.observe.Observation(clonedRequest, observation.getContext());
+    }
+
+    private org.eclipse.californium.core.observe.Observation unsafeAddObservation(
+            org.eclipse.californium.core.observe.Observation obs) {
+        String registrationId = extractRegistrationId(obs);
+        KeyToken token = new KeyToken(obs.getRequest().getToken());
+        org.eclipse.californium.core.observe.Observation previousObservation = obsByToken.put(token, obs);
+        if (previousObservation != null) {
+            unsafeRemoveFromIndex(token, previousObservation);
+        }
+
+        ConcurrentMap<LwM2mPath, Set<KeyToken>> tokensByPath = tokensByRegIdAndPath.get(registrationId);
+        if (tokensByPath == null) {
+            tokensByPath = new ConcurrentHashMap<>();
+            tokensByRegIdAndPath.put(registrationId, tokensByPath);
+        }
+        LwM2mPath path = extractPath(obs);
+        Set<KeyToken> tokens = tokensByPath.get(path);
+        if (tokens == null) {
+            tokens = Collections.newSetFromMap(new ConcurrentHashMap<KeyToken, Boolean>());
+            tokensByPath.put(path, tokens);
+        }
+        tokens.add(token);
+        return previousObservation;
     }
 
     private void unsafeRemoveObservation(byte[] observationId) {
@@ -322,30 +547,49 @@ public class InMemoryRegistrationStore implements CaliforniumRegistrationStore,
         org.eclipse.californium.core.observe.Observation removed = obsByToken.remove(kToken);
 
         if (removed != null) {
-            String registrationId = extractRegistrationId(removed);
-            List<KeyToken> tokens = tokensByRegId.get(registrationId);
-            tokens.remove(kToken);
-            if (tokens.isEmpty()) {
-                tokensByRegId.remove(registrationId);
+            unsafeRemoveFromIndex(kToken, removed);
+        }
+    }
+
+    private void unsafeRemoveFromIndex(KeyToken token, org.eclipse.californium.core.observe.Observation observation) {
+        String registrationId = extractRegistrationId(observation);
+        Map<LwM2mPath, Set<KeyToken>> tokensByPath = tokensByRegIdAndPath.get(registrationId);
+        if (tokensByPath != null) {
+            LwM2mPath path = extractPath(observation);
+            Set<KeyToken> tokens = tokensByPath.get(path);
+            if (tokens != null) {
+                tokens.remove(token);
+                if (tokens.isEmpty()) {
+                    tokensByPath.remove(path);
+                    if (tokensByPath.isEmpty()) {
+                        tokensByRegIdAndPath.remove(registrationId);
+                    }
+                }
             }
         }
     }
 
     private Collection<Observation> unsafeRemoveAllObservations(String registrationId) {
         Collection<Observation> removed = new ArrayList<>();
-        List<KeyToken> tokens = tokensByRegId.get(registrationId);
-        if (tokens != null) {
-            for (KeyToken token : tokens) {
-                Observation observationRemoved = build(obsByToken.remove(token));
-                if (observationRemoved != null) {
-                    removed.add(observationRemoved);
+        Map<LwM2mPath, Set<KeyToken>> tokensByPath = tokensByRegIdAndPath.remove(registrationId);
+        if (tokensByPath != null) {
+            for (Set<KeyToken> tokens : tokensByPath.values()) {
+                for (KeyToken token : tokens) {
+                    Observation observationRemoved = build(obsByToken.remove(token));
+                    if (observationRemoved != null) {
+                        removed.add(observationRemoved);
+                    }
                 }
             }
         }
-        tokensByRegId.remove(registrationId);
         return removed;
     }
 
+    /* Retrieve the observed path from the request context */
+    private LwM2mPath extractPath(org.eclipse.californium.core.observe.Observation observation) {
+        return new LwM2mPath(observation.getRequest().getUserContext().get(CoapRequestBuilder.CTX_LWM2M_PATH));
+    }
+
     /* Retrieve the registrationId from the request context */
     private String extractRegistrationId(org.eclipse.californium.core.observe.Observation observation) {
         return observation.getRequest().getUserContext().get(CoapRequestBuilder.CTX_REGID);
@@ -377,14 +621,17 @@ public class InMemoryRegistrationStore implements CaliforniumRegistrationStore,
         return new Observation(cfObs.getRequest().getToken(), regId, new LwM2mPath(lwm2mPath), context);
     }
 
-    private void validateObservation(org.eclipse.californium.core.observe.Observation observation) {
+    private Client validateObservation(org.eclipse.californium.core.observe.Observation observation) {
         if (!observation.getRequest().getUserContext().containsKey(CoapRequestBuilder.CTX_REGID))
             throw new IllegalStateException("missing registrationId info in the request context");
         if (!observation.getRequest().getUserContext().containsKey(CoapRequestBuilder.CTX_LWM2M_PATH))
             throw new IllegalStateException("missing lwm2m path info in the request context");
-        if (getRegistration(observation.getRequest().getUserContext().get(CoapRequestBuilder.CTX_REGID)) == null) {
+        Client registration = getRegistration(
+                observation.getRequest().getUserContext().get(CoapRequestBuilder.CTX_REGID));
+        if (registration == null) {
             throw new IllegalStateException("no registration for this Id");
         }
+        return registration;
     }
 
     /* *************** Expiration handling **************** */
@@ -396,16 +643,34 @@ public class InMemoryRegistrationStore implements CaliforniumRegistrationStore,
 
     /**
      * start the registration store, will start regular cleanup of dead registrations.
+     * <p>
+     * A durable store first reloads the registrations and observations from its persistence directory.
      */
     @Override
     public void start() {
-        // every 2 seconds clean the registration list
-        // TODO re-consider clean-up interval: wouldn't 5 minutes do as well?
+        if (journal != null) {
+            try {
+                journal.load(new Replayer());
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to load the registrations", e);
+            }
+            loaded = true;
+            schedExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    snapshot();
+                }
+            }, snapshotPeriod, snapshotPeriod, TimeUnit.SECONDS);
+        }
+
+        // every 2 seconds remove the expired registrations, only those ones are visited.
         schedExecutor.scheduleAtFixedRate(new Cleaner(), 2, 2, TimeUnit.SECONDS);
     }
 
     /**
      * Stop the underlying cleanup of the registrations.
+     * <p>
+     * A durable store writes a last snapshot, so the next start does not have to replay the journal.
      */
     @Override
     public void stop() {
@@ -415,6 +680,95 @@ public class InMemoryRegistrationStore implements CaliforniumRegistrationStore,
         } catch (InterruptedException e) {
             LOG.warn("Clean up registration thread was interrupted.", e);
         }
+
+        if (journal != null) {
+            // a store which was not loaded is empty, its snapshot would replace the persisted registrations
+            if (loaded) {
+                snapshot();
+            }
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOG.error("Unable to close the registration journal", e);
+            }
+        }
+    }
+
+    /* *************** Persistence **************** */
+
+    /**
+     * Writes a snapshot of the store and deletes the journal segments it covers.
+     */
+    private void snapshot() {
+        Collection<Client> registrations;
+        Collection<org.eclipse.californium.core.observe.Observation> observations;
+        long firstSegment;
+
+        // take every lock to get a consistent view of the store, this only copies references
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+        try {
+            registrations = new ArrayList<>(regsByEp.values());
+            observations = new ArrayList<>(obsByToken.values());
+            firstSegment = journal.roll();
+        } catch (IOException e) {
+            LOG.error("Unable to start a new journal segment", e);
+            return;
+        } finally {
+            for (Lock lock : locks) {
+                lock.unlock();
+            }
+        }
+
+        try {
+            journal.writeSnapshot(firstSegment, registrations, observations);
+        } catch (IOException e) {
+            LOG.error("Unable to write the registrations snapshot", e);
+        }
+    }
+
+    /**
+     * Applies the content of the journal, called on start before any other access to the store.
+     */
+    private class Replayer implements RegistrationJournal.Replayer {
+
+        @Override
+        public void registrationAdded(Client registration) {
+            unsafeAddRegistration(registration);
+        }
+
+        @Override
+        public void registrationUpdated(Client registration) {
+            Client previous = regsByRegId.get(registration.getRegistrationId());
+            if (previous != null) {
+                unsafeUpdateRegistration(previous, registration);
+            }
+        }
+
+        @Override
+        public void registrationRemoved(String registrationId) {
+            unsafeRemoveRegistration(registrationId);
+        }
+
+        @Override
+        public void observationAdded(org.eclipse.californium.core.observe.Observation observation) {
+            if (regsByRegId.containsKey(extractRegistrationId(observation))) {
+                observation.getRequest().setUserContext(
+                        Collections.unmodifiableMap(observation.getRequest().getUserContext()));
+                unsafeAddObservation(observation);
+            }
+        }
+
+        @Override
+        public void observationRemoved(byte[] token) {
+            unsafeRemoveObservation(token);
+        }
+
+        @Override
+        public void observationsRemoved(String registrationId) {
+            unsafeRemoveAllObservations(registrationId);
+        }
     }
 
     private final ScheduledExecutorService schedExecutor = Executors.newScheduledThreadPool(1);
@@ -424,23 +778,79 @@ public class InMemoryRegistrationStore implements CaliforniumRegistrationStore,
         @Override
         public void run() {
             try {
-                lock.readLock().lock();
-
-                for (Client client : getAllRegistration()) {
-                    synchronized (client) {
-                        if (!client.isAlive()) {
-                            // force de-registration
-                            Deregistration removedRegistration = removeRegistration(client.getRegistrationId());
-                            expirationListener.registrationExpired(removedRegistration.getRegistration(),
-                                    removedRegistration.getObservations());
+                Collection<Deregistration> expired = new ArrayList<>();
+                long now = System.currentTimeMillis();
+                for (Expiration expiration : expirations) {
+                    if (expiration.time > now)
+                        break;
+
+                    Client registration = getRegistration(expiration.registrationId);
+                    if (registration == null) {
+                        expirations.remove(expiration);
+                        continue;
+                    }
+
+                    Lock lock = getLock(registration.getEndpoint());
+                    try {
+                        lock.lock();
+
+                        // the registration may have been updated before we get the lock
+                        registration = getRegistration(expiration.registrationId);
+                        if (registration != null && !registration.isAlive()) {
+                            expired.add(unsafeRemoveRegistration(expiration.registrationId));
+                            if (journal != null) {
+                                journal.registrationRemoved(expiration.registrationId);
+                            }
+                        } else {
+                            expirations.remove(expiration);
                         }
+                    } finally {
+                        lock.unlock();
                     }
                 }
+
+                // notify outside of the locks
+                for (Deregistration removedRegistration : expired) {
+                    expirationListener.registrationExpired(removedRegistration.getRegistration(),
+                            removedRegistration.getObservations());
+                }
             } catch (Exception e) {
                 LOG.warn("Unexcepted Exception while registration cleaning", e);
-            } finally {
-                lock.readLock().unlock();
             }
         }
     }
+
+    /**
+     * The expiration time of a registration, ordered by time then by registration id.
+     */
+    private static class Expiration implements Comparable<Expiration> {
+        private final long time;
+        private final String registrationId;
+
+        public Expiration(Client registration) {
+            this.time = registration.getExpirationTimeStamp();
+            this.registrationId = registration.getRegistrationId();
+        }
+
+        @Override
+        public int compareTo(Expiration o) {
+            int cmp = Long.compare(time, o.time);
+            if (cmp != 0)
+                return cmp;
+            return registrationId.compareTo(o.registrationId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (time ^ (time >>> 32)) + registrationId.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Expiration))
+                return false;
+            Expiration other = (Expiration) obj;
+            return time == other.time && registrationId.equals(other.registrationId);
+        }
+    }
 }
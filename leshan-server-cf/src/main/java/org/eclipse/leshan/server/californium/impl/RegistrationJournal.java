@@ -0,0 +1,646 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.californium.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.serialization.DataParser;
+import org.eclipse.californium.core.network.serialization.DataSerializer;
+import org.eclipse.californium.core.network.serialization.UdpDataParser;
+import org.eclipse.californium.core.network.serialization.UdpDataSerializer;
+import org.eclipse.californium.core.observe.Observation;
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.leshan.LinkObject;
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.util.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists the content of an {@link InMemoryRegistrationStore} in a directory.
+ * <p>
+ * Each modification of the store is appended to a journal segment file. From time to time the whole content of the
+ * store is written in a snapshot file and the journal segments it covers are deleted. On start-up the snapshot and the
+ * remaining segments are replayed.
+ * <p>
+ * Each record carries a CRC of its type and content: a segment is truncated at its first record which was not
+ * completely written, e.g. on a crash.
+ * <p>
+ * Registrations and observations are written in a compact binary format, the CoAP request of an observation is stored
+ * using the Californium UDP serialization. The security context of observations is not persisted.
+ */
+class RegistrationJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RegistrationJournal.class);
+
+    private static final int SNAPSHOT_MAGIC = 0x4C53_4E50; // "LSNP"
+    private static final int SEGMENT_MAGIC = 0x4C4A_4E4C; // "LJNL"
+    private static final byte VERSION = 2;
+
+    // magic and version
+    private static final int SEGMENT_HEADER_SIZE = 5;
+    // magic, version and first segment
+    private static final int SNAPSHOT_HEADER_SIZE = 13;
+    // type, content length and CRC
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final int LOAD_BUFFER_SIZE = 64 * 1024;
+
+    private static final String SNAPSHOT_FILE = "registrations.snapshot";
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // journal record types
+    private static final byte REGISTRATION_ADDED = 1;
+    private static final byte REGISTRATION_UPDATED = 2;
+    private static final byte REGISTRATION_REMOVED = 3;
+    private static final byte OBSERVATION_ADDED = 4;
+    private static final byte OBSERVATION_REMOVED = 5;
+    private static final byte OBSERVATIONS_REMOVED = 6;
+
+    // link attribute value types
+    private static final byte INT_VALUE = 0;
+    private static final byte STRING_VALUE = 1;
+
+    private static final DataSerializer serializer = new UdpDataSerializer();
+    private static final DataParser parser = new UdpDataParser();
+
+    /**
+     * Receives the content of the journal on load.
+     */
+    interface Replayer {
+
+        void registrationAdded(Client registration);
+
+        void registrationUpdated(Client registration);
+
+        void registrationRemoved(String registrationId);
+
+        void observationAdded(Observation observation);
+
+        void observationRemoved(byte[] token);
+
+        void observationsRemoved(String registrationId);
+    }
+
+    private final File directory;
+
+    // serialize the snapshot writings
+    private final Object snapshotLock = new Object();
+
+    // records waiting to be written, appended under pendingLock so that their order matches their mark
+    private final Object pendingLock = new Object();
+    private final Queue<byte[]> pending = new ArrayDeque<>();
+    private long appended; // number of records appended
+    private long written; // number of records written in a segment, guarded by this
+
+    private long currentSegment;
+    private FileOutputStream segmentFile;
+    private DataOutputStream segmentOut;
+
+    RegistrationJournal(File directory) {
+        this.directory = directory;
+    }
+
+    /* *************** Loading **************** */
+
+    /**
+     * Replays the last snapshot and the journal segments written after it, then opens a new segment for the next
+     * modifications.
+     */
+    synchronized void load(Replayer replayer) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create directory %s", directory));
+        }
+
+        long firstSegment = 0;
+        int nbRegistrations = 0;
+        File snapshot = new File(directory, SNAPSHOT_FILE);
+        if (snapshot.exists()) {
+            try (FileInputStream file = new FileInputStream(snapshot)) {
+                long size = file.getChannel().size();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(file, LOAD_BUFFER_SIZE));
+                if (size < SNAPSHOT_HEADER_SIZE || in.readInt() != SNAPSHOT_MAGIC || in.readByte() != VERSION) {
+                    throw new IOException(String.format("Unsupported snapshot file %s", snapshot));
+                }
+                firstSegment = in.readLong();
+                // the snapshot is synced before it replaces the previous one, it is never partially written
+                long offset = SNAPSHOT_HEADER_SIZE;
+                while (offset < size) {
+                    Record record = readRecord(in, size - offset);
+                    if (record == null) {
+                        throw new IOException(String.format("Corrupted snapshot file %s at %d", snapshot, offset));
+                    }
+                    if (record.type == REGISTRATION_ADDED) {
+                        nbRegistrations++;
+                    }
+                    replay(record, replayer);
+                    offset += record.size();
+                }
+            }
+        }
+
+        long lastSegment = firstSegment - 1;
+        int nbRecords = 0;
+        for (Entry<Long, File> segment : listSegments().entrySet()) {
+            if (segment.getKey() < firstSegment) {
+                // already part of the snapshot
+                delete(segment.getValue());
+            } else {
+                nbRecords += replaySegment(segment.getValue(), replayer);
+                lastSegment = segment.getKey();
+            }
+        }
+        LOG.info("{} registrations and {} journal records loaded from {}", nbRegistrations, nbRecords, directory);
+
+        openSegment(lastSegment + 1);
+    }
+
+    private int replaySegment(File segment, Replayer replayer) throws IOException {
+        // read through the channel, as a mapped file could not be truncated or deleted while the mapping is alive
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw"); FileChannel channel = file.getChannel()) {
+            long size = channel.size();
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), LOAD_BUFFER_SIZE));
+            if (size < SEGMENT_HEADER_SIZE || in.readInt() != SEGMENT_MAGIC || in.readByte() != VERSION) {
+                LOG.warn("Ignoring invalid journal segment {}", segment);
+                return 0;
+            }
+
+            int nbRecords = 0;
+            long offset = SEGMENT_HEADER_SIZE;
+            while (offset < size) {
+                Record record = readRecord(in, size - offset);
+                if (record == null) {
+                    // the end of the segment was not completely written, e.g. a zero-filled tail or a torn write
+                    LOG.warn("Journal segment {} is truncated after {} records", segment, nbRecords);
+                    channel.truncate(offset);
+                    break;
+                }
+                replay(record, replayer);
+                offset += record.size();
+                nbRecords++;
+            }
+            return nbRecords;
+        }
+    }
+
+    private static void replay(Record record, Replayer replayer) throws IOException {
+        ByteBuffer content = ByteBuffer.wrap(record.content);
+        switch (record.type) {
+        case REGISTRATION_ADDED:
+            replayer.registrationAdded(readClient(content));
+            break;
+        case REGISTRATION_UPDATED:
+            replayer.registrationUpdated(readClient(content));
+            break;
+        case REGISTRATION_REMOVED:
+            replayer.registrationRemoved(new String(record.content, Charsets.UTF_8));
+            break;
+        case OBSERVATION_ADDED:
+            replayer.observationAdded(readObservation(content));
+            break;
+        case OBSERVATION_REMOVED:
+            replayer.observationRemoved(record.content);
+            break;
+        case OBSERVATIONS_REMOVED:
+            replayer.observationsRemoved(new String(record.content, Charsets.UTF_8));
+            break;
+        default:
+            throw new IllegalStateException("Unexpected record type " + record.type);
+        }
+    }
+
+    private static class Record {
+        private final byte type;
+        private final byte[] content;
+
+        private Record(byte type, byte[] content) {
+            this.type = type;
+            this.content = content;
+        }
+
+        private int size() {
+            return RECORD_HEADER_SIZE + content.length;
+        }
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @param remaining the number of bytes left in the file
+     * @return the record, or <code>null</code> if it was not completely written: its content is truncated, its CRC
+     *         does not match or its type is unknown
+     */
+    private static Record readRecord(DataInputStream in, long remaining) throws IOException {
+        if (remaining < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        byte type = in.readByte();
+        int length = in.readInt();
+        int expectedCrc = in.readInt();
+        if (length < 0 || length > remaining - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        byte[] content = new byte[length];
+        in.readFully(content);
+        if (crc(type, content) != expectedCrc || type < REGISTRATION_ADDED || type > OBSERVATIONS_REMOVED) {
+            return null;
+        }
+        return new Record(type, content);
+    }
+
+    private static byte[] encodeRecord(byte type, byte[] content) {
+        return ByteBuffer.allocate(RECORD_HEADER_SIZE + content.length).put(type).putInt(content.length)
+                .putInt(crc(type, content)).put(content).array();
+    }
+
+    private static int crc(byte type, byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(content);
+        return (int) crc.getValue();
+    }
+
+    private SortedMap<Long, File> listSegments() {
+        SortedMap<Long, File> segments = new TreeMap<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.put(Long.parseLong(
+                                name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())),
+                                file);
+                    } catch (NumberFormatException e) {
+                        LOG.warn("Ignoring unexpected file {}", file);
+                    }
+                }
+            }
+        }
+        return segments;
+    }
+
+    /* *************** Journal **************** */
+
+    void registrationAdded(Client registration) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writeClient(new DataOutputStream(bytes), registration);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(REGISTRATION_ADDED, bytes.toByteArray());
+    }
+
+    void registrationUpdated(Client registration) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writeClient(new DataOutputStream(bytes), registration);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(REGISTRATION_UPDATED, bytes.toByteArray());
+    }
+
+    void registrationRemoved(String registrationId) {
+        append(REGISTRATION_REMOVED, registrationId.getBytes(Charsets.UTF_8));
+    }
+
+    void observationAdded(Observation observation) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writeObservation(new DataOutputStream(bytes), observation);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        append(OBSERVATION_ADDED, bytes.toByteArray());
+    }
+
+    void observationRemoved(byte[] token) {
+        append(OBSERVATION_REMOVED, token);
+    }
+
+    void observationsRemoved(String registrationId) {
+        append(OBSERVATIONS_REMOVED, registrationId.getBytes(Charsets.UTF_8));
+    }
+
+    /**
+     * Appends a record to the journal. The concurrent appends are written and handed to the OS together: the first
+     * caller writes the records of the others, which only wait for it (the file is only synced on roll and close).
+     */
+    private void append(byte type, byte[] record) {
+        byte[] entry = encodeRecord(type, record);
+        long mark;
+        synchronized (pendingLock) {
+            pending.add(entry);
+            mark = ++appended;
+        }
+        write(mark);
+    }
+
+    private synchronized void write(long mark) {
+        if (written < mark) {
+            writePending();
+        }
+    }
+
+    /**
+     * Writes all the pending records in the current segment.
+     */
+    private void writePending() {
+        int nbRecords = 0;
+        try {
+            while (true) {
+                byte[] entry;
+                synchronized (pendingLock) {
+                    entry = pending.poll();
+                }
+                if (entry == null) {
+                    break;
+                }
+                nbRecords++;
+                if (segmentOut != null) {
+                    segmentOut.write(entry);
+                }
+            }
+            if (segmentOut != null) {
+                segmentOut.flush();
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to write in journal segment {}", currentSegment, e);
+        } finally {
+            // records are dropped when the journal is not loaded or already closed
+            written += nbRecords;
+        }
+    }
+
+    private void openSegment(long segment) throws IOException {
+        currentSegment = segment;
+        segmentFile = new FileOutputStream(segmentFile(segment), true);
+        segmentOut = new DataOutputStream(new BufferedOutputStream(segmentFile));
+        segmentOut.writeInt(SEGMENT_MAGIC);
+        segmentOut.writeByte(VERSION);
+        segmentOut.flush();
+    }
+
+    private void closeSegment() throws IOException {
+        if (segmentOut != null) {
+            segmentOut.flush();
+            segmentFile.getFD().sync();
+            segmentOut.close();
+            segmentOut = null;
+        }
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, String.format("%s%019d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Starts a new journal segment.
+     * <p>
+     * Must be called while no modification of the store can happen, the content of the store at that time can then be
+     * written with {@link #writeSnapshot(long, Collection, Collection)}.
+     *
+     * @return the new segment, the first one which is not covered by the current content of the store.
+     */
+    synchronized long roll() throws IOException {
+        if (segmentOut == null) {
+            // rolling would make the next snapshot replace the current one with an empty content
+            throw new IOException("Journal is not loaded");
+        }
+        writePending();
+        closeSegment();
+        openSegment(currentSegment + 1);
+        return currentSegment;
+    }
+
+    /**
+     * Writes a new snapshot and deletes the journal segments it covers.
+     *
+     * @param firstSegment the first segment to replay after this snapshot (see {@link #roll()})
+     */
+    void writeSnapshot(long firstSegment, Collection<Client> registrations, Collection<Observation> observations)
+            throws IOException {
+        synchronized (snapshotLock) {
+            File tmp = new File(directory, SNAPSHOT_FILE + ".tmp");
+            try (FileOutputStream file = new FileOutputStream(tmp)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeByte(VERSION);
+                out.writeLong(firstSegment);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                for (Client registration : registrations) {
+                    bytes.reset();
+                    writeClient(new DataOutputStream(bytes), registration);
+                    out.write(encodeRecord(REGISTRATION_ADDED, bytes.toByteArray()));
+                }
+                for (Observation observation : observations) {
+                    bytes.reset();
+                    writeObservation(new DataOutputStream(bytes), observation);
+                    out.write(encodeRecord(OBSERVATION_ADDED, bytes.toByteArray()));
+                }
+                out.flush();
+                file.getFD().sync();
+            }
+            Files.move(tmp.toPath(), new File(directory, SNAPSHOT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            for (Entry<Long, File> segment : listSegments().headMap(firstSegment).entrySet()) {
+                delete(segment.getValue());
+            }
+            LOG.debug("Snapshot of {} registrations written in {}", registrations.size(), directory);
+        }
+    }
+
+    synchronized void close() throws IOException {
+        writePending();
+        closeSegment();
+    }
+
+    private static void delete(File file) {
+        if (!file.delete()) {
+            LOG.warn("Unable to delete {}", file);
+        }
+    }
+
+    /* *************** Encoding **************** */
+
+    private static void writeClient(DataOutputStream out, Client c) throws IOException {
+        writeString(out, c.getRegistrationId());
+        writeString(out, c.getEndpoint());
+        writeBytes(out, c.getAddress().getAddress());
+        out.writeInt(c.getPort());
+        InetSocketAddress regAddress = c.getRegistrationEndpointAddress();
+        writeBytes(out, regAddress.isUnresolved() ? null : regAddress.getAddress().getAddress());
+        writeString(out, regAddress.getHostString());
+        out.writeInt(regAddress.getPort());
+        out.writeLong(c.getRegistrationDate().getTime());
+        out.writeLong(c.getLastUpdate().getTime());
+        out.writeLong(c.getLifeTimeInSec());
+        writeString(out, c.getSmsNumber());
+        writeString(out, c.getLwM2mVersion());
+        writeString(out, c.getBindingMode().name());
+
+        LinkObject[] links = c.getObjectLinks();
+        out.writeInt(links == null ? 0 : links.length);
+        if (links != null) {
+            for (LinkObject link : links) {
+                writeString(out, link.getUrl());
+                out.writeInt(link.getAttributes().size());
+                for (Entry<String, Object> attr : link.getAttributes().entrySet()) {
+                    writeString(out, attr.getKey());
+                    if (attr.getValue() instanceof Integer) {
+                        out.writeByte(INT_VALUE);
+                        out.writeInt((Integer) attr.getValue());
+                    } else {
+                        out.writeByte(STRING_VALUE);
+                        writeString(out, attr.getValue().toString());
+                    }
+                }
+            }
+        }
+        writeMap(out, c.getAdditionalRegistrationAttributes());
+    }
+
+    private static Client readClient(ByteBuffer buf) throws IOException {
+        String registrationId = readString(buf);
+        String endpoint = readString(buf);
+        InetAddress address = InetAddress.getByAddress(readBytes(buf));
+        int port = buf.getInt();
+        // rebuilt without any name resolution
+        byte[] regIp = readBytes(buf);
+        String regHost = readString(buf);
+        int regPort = buf.getInt();
+        InetSocketAddress regAddress = regIp == null ? InetSocketAddress.createUnresolved(regHost, regPort)
+                : new InetSocketAddress(InetAddress.getByAddress(regHost, regIp), regPort);
+
+        Client.Builder b = new Client.Builder(registrationId, endpoint, address, port, regAddress);
+        b.registrationDate(new Date(buf.getLong()));
+        b.lastUpdate(new Date(buf.getLong()));
+        b.lifeTimeInSec(buf.getLong());
+        b.smsNumber(readString(buf));
+        b.lwM2mVersion(readString(buf));
+        b.bindingMode(BindingMode.valueOf(readString(buf)));
+
+        LinkObject[] links = new LinkObject[buf.getInt()];
+        for (int i = 0; i < links.length; i++) {
+            String url = readString(buf);
+            int nbAttributes = buf.getInt();
+            Map<String, Object> attributes = new HashMap<>();
+            for (int j = 0; j < nbAttributes; j++) {
+                String key = readString(buf);
+                if (buf.get() == INT_VALUE) {
+                    attributes.put(key, buf.getInt());
+                } else {
+                    attributes.put(key, readString(buf));
+                }
+            }
+            links[i] = new LinkObject(url, attributes);
+        }
+        b.objectLinks(links);
+        b.additionalRegistrationAttributes(readMap(buf));
+        return b.build();
+    }
+
+    private static void writeObservation(DataOutputStream out, Observation observation) throws IOException {
+        writeBytes(out, serializer.serializeRequest(observation.getRequest()).bytes);
+        writeMap(out, observation.getRequest().getUserContext());
+    }
+
+    private static Observation readObservation(ByteBuffer buf) {
+        Request request = (Request) parser.parseMessage(new RawData(readBytes(buf), null, 0));
+        request.setUserContext(readMap(buf));
+        // TODO handle security context
+        return new Observation(request, null);
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map == null ? 0 : map.size());
+        if (map != null) {
+            for (Entry<String, String> e : map.entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+            }
+        }
+    }
+
+    private static Map<String, String> readMap(ByteBuffer buf) {
+        int size = buf.getInt();
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(readString(buf), readString(buf));
+        }
+        return map;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s == null ? null : s.getBytes(Charsets.UTF_8));
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = readBytes(buf);
+        return bytes == null ? null : new String(bytes, Charsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.californium.impl;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import com.sun.management.ThreadMXBean;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.serialization.DataParser;
+import org.eclipse.californium.core.network.serialization.DataSerializer;
+import org.eclipse.californium.core.network.serialization.UdpDataParser;
+import org.eclipse.californium.core.network.serialization.UdpDataSerializer;
+import org.eclipse.californium.core.observe.Observation;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientUpdate;
+
+/**
+ * Measures the update path of the {@link InMemoryRegistrationStore} for growing numbers of registrations, its
+ * throughput under concurrent updates and the allocations of the observation lookup.
+ * <p>
+ * The lookup of a registration by id is compared to the scan of every registration done before the store indexed them
+ * by id. The concurrent updates are run with a single lock, as the store-wide lock used before, and with the default
+ * lock stripes: their figures are only meaningful on a machine with at least as many cores as threads. The lookup of
+ * an observation by token is compared to the copy of its request by serializing and parsing it, done before the store
+ * shallow-cloned the observations.
+ * <p>
+ * This is a plain timing loop, not a JMH benchmark: the figures are only meant to compare the operations on the same
+ * JVM. Run it from the test classpath with a large enough heap, e.g.:
+ * 
+ * <pre>
+ * cd leshan-server-cf
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -Xmx4g -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+ *     org.eclipse.leshan.server.californium.impl.InMemoryRegistrationStoreBenchmark [iterations]
+ * </pre>
+ */
+public class InMemoryRegistrationStoreBenchmark {
+
+    private static final int ROUNDS = 3;
+    private static final int[] REGISTRATIONS = { 10000, 100000, 1000000 };
+    private static final int[] THREADS = { 1, 8, 32 };
+    private static final int CONTENTION_REGISTRATIONS = 10000;
+
+    // prevents the JIT from removing the benchmarked code
+    private static long sink;
+
+    private interface Operation {
+        void run(int i);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        InetAddress address = InetAddress.getByName("10.17.0.3");
+
+        System.out.println(String.format("%d iterations, best of %d rounds", iterations, ROUNDS));
+        measureUpdates(iterations, address);
+        System.out.println();
+        measureContention(iterations, address);
+        System.out.println();
+        measureObservationLookup(iterations, address);
+        System.out.println("(" + sink + ")");
+    }
+
+    private static void measureUpdates(int iterations, final InetAddress address) {
+        System.out.println("| Registrations | Update (us) | Get by id (us) | Scan by id (us) |");
+        System.out.println("|---|---|---|---|");
+        for (final int nbRegistrations : REGISTRATIONS) {
+            final InMemoryRegistrationStore store = new InMemoryRegistrationStore();
+            final Map<String, Client> regsByEp = new HashMap<>();
+            for (int i = 0; i < nbRegistrations; i++) {
+                Client registration = givenAClient(i, address);
+                store.addRegistration(registration);
+                regsByEp.put(registration.getEndpoint(), registration);
+            }
+
+            double update = measure(new Operation() {
+                @Override
+                public void run(int i) {
+                    int id = i % nbRegistrations;
+                    sink += store.updateRegistration(new ClientUpdate("id" + id, address, 5683 + id % 1000, 86400L,
+                            null, null, null)).getPort();
+                }
+            }, iterations);
+            double get = measure(new Operation() {
+                @Override
+                public void run(int i) {
+                    sink += store.getRegistration("id" + i % nbRegistrations).getPort();
+                }
+            }, iterations);
+            // the scan is linear, keep its duration bounded
+            double scan = measure(new Operation() {
+                @Override
+                public void run(int i) {
+                    String registrationId = "id" + i % nbRegistrations;
+                    for (Client registration : regsByEp.values()) {
+                        if (registrationId.equals(registration.getRegistrationId())) {
+                            sink += registration.getPort();
+                            break;
+                        }
+                    }
+                }
+            }, Math.max(10, (int) (iterations * 100L / nbRegistrations)));
+            System.out.println(String.format("| %d | %.2f | %.2f | %.2f |", nbRegistrations, update, get, scan));
+        }
+    }
+
+    private static void measureContention(int iterations, InetAddress address) throws InterruptedException {
+        System.out.println(String.format("%d registrations updated concurrently", CONTENTION_REGISTRATIONS));
+        System.out.println("| Threads | 1 lock (updates/ms) | 64 stripes (updates/ms) |");
+        System.out.println("|---|---|---|");
+        for (int nbThreads : THREADS) {
+            System.out.println(String.format("| %d | %.0f | %.0f |", nbThreads,
+                    measureConcurrentUpdates(1, nbThreads, iterations, address),
+                    measureConcurrentUpdates(64, nbThreads, iterations, address)));
+        }
+    }
+
+    /**
+     * @return the best number of updates per millisecond, each thread updates its own registrations
+     */
+    private static double measureConcurrentUpdates(int lockStripes, int nbThreads, final int iterations,
+            final InetAddress address) throws InterruptedException {
+        final InMemoryRegistrationStore store = new InMemoryRegistrationStore(lockStripes);
+        for (int i = 0; i < CONTENTION_REGISTRATIONS; i++) {
+            store.addRegistration(givenAClient(i, address));
+        }
+
+        final int updatesPerThread = iterations / nbThreads;
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[nbThreads];
+            for (int t = 0; t < nbThreads; t++) {
+                final int thread = t;
+                final int nbThreadRegistrations = CONTENTION_REGISTRATIONS / nbThreads;
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        long threadSink = 0;
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (int i = 0; i < updatesPerThread; i++) {
+                            int id = thread * nbThreadRegistrations + i % nbThreadRegistrations;
+                            threadSink += store.updateRegistration(new ClientUpdate("id" + id, address,
+                                    5683 + id % 1000, 86400L, null, null, null)).getPort();
+                        }
+                        synchronized (InMemoryRegistrationStoreBenchmark.class) {
+                            sink += threadSink;
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            best = Math.min(best, System.nanoTime() - begin);
+        }
+        return (double) updatesPerThread * nbThreads / best * 1000000;
+    }
+
+    private static void measureObservationLookup(int iterations, InetAddress address) {
+        final InMemoryRegistrationStore store = new InMemoryRegistrationStore();
+        store.addRegistration(givenAClient(0, address));
+        final Observation observation = givenAnObservation("id0");
+        store.add(observation);
+
+        final byte[] token = observation.getRequest().getToken();
+        final DataSerializer serializer = new UdpDataSerializer();
+        final DataParser parser = new UdpDataParser();
+        Operation get = new Operation() {
+            @Override
+            public void run(int i) {
+                sink += store.get(token).getRequest().getOptions().getObserve();
+            }
+        };
+        Operation serializeAndParse = new Operation() {
+            @Override
+            public void run(int i) {
+                Request request = observation.getRequest();
+                Request copy = (Request) parser.parseMessage(serializer.serializeRequest(request));
+                copy.setUserContext(request.getUserContext());
+                sink += new Observation(copy, observation.getContext()).getRequest().getOptions().getObserve();
+            }
+        };
+
+        System.out.println("| Observation lookup | Allocated (bytes) | Time (us) |");
+        System.out.println("|---|---|---|");
+        System.out.println(String.format("| get(token) | %d | %.2f |", measureAllocations(get, iterations),
+                measure(get, iterations)));
+        System.out.println(String.format("| serialize and parse | %d | %.2f |",
+                measureAllocations(serializeAndParse, iterations), measure(serializeAndParse, iterations)));
+    }
+
+    /**
+     * @return the number of bytes allocated by an operation, measured after warming up the JIT
+     */
+    private static long measureAllocations(Operation operation, int iterations) {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < iterations; i++) {
+            operation.run(i);
+        }
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            operation.run(i);
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - before) / iterations;
+    }
+
+    /**
+     * @return the best average time of an operation in microseconds, the first rounds warm up the JIT
+     */
+    private static double measure(Operation operation, int iterations) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                operation.run(i);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1000.0 / iterations;
+    }
+
+    private static Observation givenAnObservation(String registrationId) {
+        Request request = Request.newGet();
+        request.setMID(12);
+        request.setToken(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        request.getOptions().setUriPath("3/0/13");
+        request.setObserve();
+
+        Map<String, String> context = new HashMap<>();
+        context.put(CoapRequestBuilder.CTX_REGID, registrationId);
+        context.put(CoapRequestBuilder.CTX_LWM2M_PATH, "/3/0/13");
+        request.setUserContext(context);
+        return new Observation(request, null);
+    }
+
+    private static Client givenAClient(int id, InetAddress address) {
+        return new Client.Builder("id" + id, "urn:endpoint" + id, address, 5683 + id % 1000,
+                InetSocketAddress.createUnresolved("localhost", 5683)).lifeTimeInSec(86400L).build();
+    }
+}
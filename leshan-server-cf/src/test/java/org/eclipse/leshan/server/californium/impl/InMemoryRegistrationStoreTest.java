@@ -0,0 +1,564 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.californium.impl;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.observation.Observation;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientFilter;
+import org.eclipse.leshan.server.client.ClientPage;
+import org.eclipse.leshan.server.client.ClientUpdate;
+import org.eclipse.leshan.server.registration.Deregistration;
+import org.eclipse.leshan.server.registration.ExpirationListener;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class InMemoryRegistrationStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    InMemoryRegistrationStore store;
+    InetAddress address;
+    int port = 23452;
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        address = InetAddress.getLocalHost();
+        store = new InMemoryRegistrationStore();
+    }
+
+    @Test
+    public void get_registration_by_id() {
+        Client registration = givenASimpleClient("regId", "urn:endpoint");
+        store.addRegistration(registration);
+
+        Assert.assertSame(registration, store.getRegistration("regId"));
+        Assert.assertNull(store.getRegistration("unknownId"));
+        Assert.assertNull(store.getRegistration(null));
+    }
+
+    @Test
+    public void new_registration_replaces_previous_id() {
+        store.addRegistration(givenASimpleClient("oldId", "urn:endpoint"));
+        Client registration = givenASimpleClient("newId", "urn:endpoint");
+
+        Deregistration deregistration = store.addRegistration(registration);
+
+        Assert.assertEquals("oldId", deregistration.getRegistration().getRegistrationId());
+        Assert.assertNull(store.getRegistration("oldId"));
+        Assert.assertSame(registration, store.getRegistration("newId"));
+    }
+
+    @Test
+    public void update_registration_is_visible_by_id() {
+        store.addRegistration(givenASimpleClient("regId", "urn:endpoint"));
+
+        Client updated = store
+                .updateRegistration(new ClientUpdate("regId", address, port + 1, 60L, null, null, null));
+
+        Assert.assertSame(updated, store.getRegistration("regId"));
+        Assert.assertSame(updated, store.getRegistrationByEndpoint("urn:endpoint"));
+        Assert.assertEquals(port + 1, store.getRegistration("regId").getPort());
+    }
+
+    @Test
+    public void remove_registration_by_id() {
+        store.addRegistration(givenASimpleClient("regId", "urn:endpoint"));
+
+        Deregistration deregistration = store.removeRegistration("regId");
+
+        Assert.assertEquals("urn:endpoint", deregistration.getRegistration().getEndpoint());
+        Assert.assertNull(store.getRegistration("regId"));
+        Assert.assertNull(store.getRegistrationByEndpoint("urn:endpoint"));
+        Assert.assertNull(store.removeRegistration("regId"));
+    }
+
+    @Test
+    public void get_registration_by_address() {
+        Client registration = givenASimpleClient("regId", "urn:endpoint");
+        store.addRegistration(registration);
+
+        Assert.assertEquals(Collections.singletonList(registration),
+                store.getRegistrationByAdress(new InetSocketAddress(address, port)));
+        Assert.assertTrue(store.getRegistrationByAdress(new InetSocketAddress(address, port + 1)).isEmpty());
+    }
+
+    @Test
+    public void update_registration_moves_address_index() {
+        store.addRegistration(givenASimpleClient("regId", "urn:endpoint"));
+
+        Client updated = store
+                .updateRegistration(new ClientUpdate("regId", address, port + 1, null, null, null, null));
+
+        Assert.assertTrue(store.getRegistrationByAdress(new InetSocketAddress(address, port)).isEmpty());
+        Assert.assertEquals(Collections.singletonList(updated),
+                store.getRegistrationByAdress(new InetSocketAddress(address, port + 1)));
+    }
+
+    @Test
+    public void remove_registration_keeps_address_of_other_client() {
+        store.addRegistration(givenASimpleClient("regId", "urn:endpoint"));
+        store.updateRegistration(new ClientUpdate("regId", address, port + 1, null, null, null, null));
+        // another client now uses the first address
+        Client other = givenASimpleClient("otherId", "urn:other");
+        store.addRegistration(other);
+
+        store.removeRegistration("regId");
+
+        Assert.assertTrue(store.getRegistrationByAdress(new InetSocketAddress(address, port + 1)).isEmpty());
+        Assert.assertEquals(Collections.singletonList(other),
+                store.getRegistrationByAdress(new InetSocketAddress(address, port)));
+    }
+
+    @Test
+    public void only_expired_registrations_are_removed() throws InterruptedException {
+        final CountDownLatch expired = new CountDownLatch(1);
+        final List<Client> expiredRegistrations = new CopyOnWriteArrayList<>();
+        store.setExpirationListener(new ExpirationListener() {
+            @Override
+            public void registrationExpired(Client registration, Collection<Observation> observation) {
+                expiredRegistrations.add(registration);
+                expired.countDown();
+            }
+        });
+        store.addRegistration(givenASimpleClient("expiredId", "urn:expired", 0L));
+        store.addRegistration(givenASimpleClient("aliveId", "urn:alive", 3600L));
+
+        store.start();
+        try {
+            Assert.assertTrue(expired.await(5, TimeUnit.SECONDS));
+        } finally {
+            store.stop();
+        }
+
+        Assert.assertEquals(1, expiredRegistrations.size());
+        Assert.assertEquals("expiredId", expiredRegistrations.get(0).getRegistrationId());
+        Assert.assertNull(store.getRegistration("expiredId"));
+        Assert.assertNotNull(store.getRegistration("aliveId"));
+    }
+
+    @Test
+    public void concurrent_registrations_of_different_endpoints() throws InterruptedException {
+        final int nbClients = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < nbClients; i++) {
+            final int clientId = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    store.addRegistration(new Client.Builder("id" + clientId, "urn:endpoint" + clientId, address,
+                            port + clientId, InetSocketAddress.createUnresolved("localhost", 5683)).build());
+                    store.updateRegistration(new ClientUpdate("id" + clientId, address, port + nbClients + clientId,
+                            null, null, null, null));
+                }
+            });
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(nbClients, store.getAllRegistration().size());
+        for (int i = 0; i < nbClients; i++) {
+            Assert.assertEquals("urn:endpoint" + i, store.getRegistration("id" + i).getEndpoint());
+            Assert.assertTrue(store.getRegistrationByAdress(new InetSocketAddress(address, port + i)).isEmpty());
+            Assert.assertEquals(1,
+                    store.getRegistrationByAdress(new InetSocketAddress(address, port + nbClients + i)).size());
+        }
+    }
+
+    @Test
+    public void list_registrations_page_by_page() {
+        for (int i = 0; i < 250; i++) {
+            store.addRegistration(givenASimpleClient("id" + i, "urn:endpoint" + i));
+        }
+
+        Set<String> endpoints = new HashSet<>();
+        int nbPages = 0;
+        ClientPage page = null;
+        do {
+            page = store.getRegistrations(page == null ? null : page.getNextCursor(), 100, null);
+            Assert.assertTrue(page.getClients().size() <= 100);
+            for (Client client : page.getClients()) {
+                Assert.assertTrue(endpoints.add(client.getEndpoint()));
+            }
+            nbPages++;
+        } while (!page.isLast());
+
+        Assert.assertEquals(250, endpoints.size());
+        Assert.assertEquals(3, nbPages);
+    }
+
+    @Test
+    public void list_registrations_with_filter() {
+        for (int i = 0; i < 10; i++) {
+            store.addRegistration(givenASimpleClient("id" + i, "urn:endpoint" + i));
+        }
+
+        ClientPage page = store.getRegistrations(null, 100, new ClientFilter() {
+            @Override
+            public boolean accept(Client client) {
+                return client.getEndpoint().endsWith("3");
+            }
+        });
+
+        Assert.assertTrue(page.isLast());
+        Assert.assertEquals(1, page.getClients().size());
+        Assert.assertEquals("urn:endpoint3", page.getClients().iterator().next().getEndpoint());
+    }
+
+    @Test
+    public void expired_registrations_are_not_listed() {
+        store.addRegistration(givenASimpleClient("expiredId", "urn:expired", 0L));
+        store.addRegistration(givenASimpleClient("aliveId", "urn:alive", 3600L));
+
+        ClientPage page = store.getRegistrations(null, 100, null);
+
+        Assert.assertTrue(page.isLast());
+        Assert.assertEquals(1, page.getClients().size());
+        Assert.assertEquals("urn:alive", page.getClients().iterator().next().getEndpoint());
+    }
+
+    @Test
+    public void all_registrations_are_a_snapshot() {
+        store.addRegistration(givenASimpleClient("id1", "urn:endpoint1"));
+        Collection<Client> registrations = store.getAllRegistration();
+
+        store.addRegistration(givenASimpleClient("id2", "urn:endpoint2"));
+        store.removeRegistration("id1");
+
+        Assert.assertEquals(1, registrations.size());
+        Assert.assertEquals("urn:endpoint1", registrations.iterator().next().getEndpoint());
+    }
+
+    @Test
+    public void get_observation_by_token() {
+        store.addRegistration(givenASimpleClient("regId", "urn:endpoint"));
+        byte[] token = CaliforniumTestSupport.createToken();
+        store.add(givenAnObservation(token, "regId"));
+
+        org.eclipse.californium.core.observe.Observation obs = store.get(token);
+
+        Assert.assertArrayEquals(token, obs.getRequest().getToken());
+        Assert.assertEquals("3/0/1", obs.getRequest().getOptions().getUriPathString());
+        Assert.assertEquals("regId", obs.getRequest().getUserContext().get(CoapRequestBuilder.CTX_REGID));
+        Assert.assertEquals("regId", store.getObservation("regId", token).getRegistrationId());
+    }
+
+    @Test
+    public void get_observations_by_path() {
+        store.addRegistration(givenASimpleClient("regId", "urn:endpoint"));
+        byte[] token1 = CaliforniumTestSupport.createToken();
+        byte[] token2 = CaliforniumTestSupport.createToken();
+        store.add(givenAnObservation(token1, "regId", "/3/0/1"));
+        store.add(givenAnObservation(token2, "regId", "/3/0/2"));
+
+        Collection<Observation> observations = store.getObservations("regId", new LwM2mPath("/3/0/1"));
+        Assert.assertEquals(1, observations.size());
+        Assert.assertArrayEquals(token1, observations.iterator().next().getId());
+        Assert.assertEquals(2, store.getObservations("regId").size());
+
+        store.removeObservation("regId", token1);
+        Assert.assertTrue(store.getObservations("regId", new LwM2mPath("/3/0/1")).isEmpty());
+        Assert.assertEquals(1, store.getObservations("regId", new LwM2mPath("/3/0/2")).size());
+
+        store.removeRegistration("regId");
+        Assert.assertTrue(store.getObservations("regId", new LwM2mPath("/3/0/2")).isEmpty());
+    }
+
+    @Test
+    public void returned_observation_does_not_modify_the_stored_one() {
+        store.addRegistration(givenASimpleClient("regId", "urn:endpoint"));
+        byte[] token = CaliforniumTestSupport.createToken();
+        org.eclipse.californium.core.observe.Observation added = givenAnObservation(token, "regId");
+        store.add(added);
+
+        added.getRequest().getOptions().setUriPath("/4/0");
+        store.get(token).getRequest().getOptions().setUriPath("/5/0");
+
+        org.eclipse.californium.core.observe.Observation obs = store.get(token);
+        Assert.assertNotSame(obs.getRequest(), store.get(token).getRequest());
+        Assert.assertEquals("3/0/1", obs.getRequest().getOptions().getUriPathString());
+    }
+
+    @Test
+    public void durable_store_is_reloaded_from_snapshot() throws IOException {
+        InMemoryRegistrationStore durableStore = new InMemoryRegistrationStore(folder.getRoot());
+        durableStore.start();
+        durableStore.addRegistration(givenASimpleClient("regId", "urn:endpoint"));
+        durableStore.addRegistration(givenASimpleClient("removedId", "urn:removed"));
+        durableStore.updateRegistration(new ClientUpdate("regId", address, port + 1, null, null, null, null));
+        durableStore.removeRegistration("removedId");
+        byte[] token = CaliforniumTestSupport.createToken();
+        durableStore.add(givenAnObservation(token, "regId"));
+        durableStore.stop();
+
+        InMemoryRegistrationStore reloadedStore = new InMemoryRegistrationStore(folder.getRoot());
+        reloadedStore.start();
+        try {
+            assertReloaded(reloadedStore, token);
+        } finally {
+            reloadedStore.stop();
+        }
+    }
+
+    @Test
+    public void durable_store_is_reloaded_from_journal() throws IOException {
+        InMemoryRegistrationStore durableStore = new InMemoryRegistrationStore(folder.getRoot());
+        durableStore.start();
+        try {
+            durableStore.addRegistration(givenASimpleClient("regId", "urn:endpoint"));
+            durableStore.addRegistration(givenASimpleClient("removedId", "urn:removed"));
+            durableStore.updateRegistration(new ClientUpdate("regId", address, port + 1, null, null, null, null));
+            durableStore.removeRegistration("removedId");
+            byte[] token = CaliforniumTestSupport.createToken();
+            durableStore.add(givenAnObservation(token, "regId"));
+
+            // reload without stopping the first store, as after a crash
+            InMemoryRegistrationStore reloadedStore = new InMemoryRegistrationStore(folder.getRoot());
+            reloadedStore.start();
+            try {
+                assertReloaded(reloadedStore, token);
+            } finally {
+                reloadedStore.stop();
+            }
+        } finally {
+            durableStore.stop();
+        }
+    }
+
+    @Test
+    public void stopping_a_durable_store_which_was_not_started_keeps_its_content() throws IOException {
+        InMemoryRegistrationStore durableStore = new InMemoryRegistrationStore(folder.getRoot());
+        durableStore.start();
+        durableStore.addRegistration(givenASimpleClient("regId", "urn:endpoint"));
+        durableStore.updateRegistration(new ClientUpdate("regId", address, port + 1, null, null, null, null));
+        byte[] token = CaliforniumTestSupport.createToken();
+        durableStore.add(givenAnObservation(token, "regId"));
+        durableStore.addRegistration(givenASimpleClient("removedId", "urn:removed"));
+        durableStore.removeRegistration("removedId");
+        durableStore.stop();
+
+        // e.g. the clean up of a server which failed to start
+        new InMemoryRegistrationStore(folder.getRoot()).stop();
+
+        InMemoryRegistrationStore reloadedStore = new InMemoryRegistrationStore(folder.getRoot());
+        reloadedStore.start();
+        try {
+            assertReloaded(reloadedStore, token);
+        } finally {
+            reloadedStore.stop();
+        }
+    }
+
+    @Test
+    public void concurrent_registrations_are_all_journaled() throws Exception {
+        final InMemoryRegistrationStore durableStore = new InMemoryRegistrationStore(folder.getRoot());
+        durableStore.start();
+        final int nbClients = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < nbClients; i++) {
+            final int clientId = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    durableStore.addRegistration(givenASimpleClient("id" + clientId, "urn:endpoint" + clientId));
+                    durableStore.updateRegistration(new ClientUpdate("id" + clientId, address, port + clientId, null,
+                            null, null, null));
+                }
+            });
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        // reload without stopping the first store, from the journal only
+        InMemoryRegistrationStore reloadedStore = new InMemoryRegistrationStore(folder.getRoot());
+        reloadedStore.start();
+        try {
+            Assert.assertEquals(nbClients, reloadedStore.getAllRegistration().size());
+            for (int i = 0; i < nbClients; i++) {
+                Assert.assertEquals(port + i, reloadedStore.getRegistration("id" + i).getPort());
+            }
+        } finally {
+            reloadedStore.stop();
+            durableStore.stop();
+        }
+    }
+
+    @Test
+    public void durable_store_is_reloaded_from_a_journal_with_a_zero_filled_tail() throws IOException {
+        InMemoryRegistrationStore durableStore = new InMemoryRegistrationStore(folder.getRoot());
+        durableStore.start();
+        try {
+            durableStore.addRegistration(givenASimpleClient("regId", "urn:endpoint"));
+            durableStore.addRegistration(givenASimpleClient("removedId", "urn:removed"));
+            durableStore.updateRegistration(new ClientUpdate("regId", address, port + 1, null, null, null, null));
+            durableStore.removeRegistration("removedId");
+            byte[] token = CaliforniumTestSupport.createToken();
+            durableStore.add(givenAnObservation(token, "regId"));
+
+            // e.g. the file system extended the segment but its content was never written
+            File segment = lastSegment();
+            long size = segment.length();
+            try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+                file.setLength(size + 4096);
+            }
+
+            InMemoryRegistrationStore reloadedStore = new InMemoryRegistrationStore(folder.getRoot());
+            reloadedStore.start();
+            try {
+                assertReloaded(reloadedStore, token);
+                Assert.assertEquals(size, segment.length());
+            } finally {
+                reloadedStore.stop();
+            }
+        } finally {
+            durableStore.stop();
+        }
+    }
+
+    @Test
+    public void durable_store_is_reloaded_up_to_a_torn_journal_record() throws IOException {
+        InMemoryRegistrationStore durableStore = new InMemoryRegistrationStore(folder.getRoot());
+        durableStore.start();
+        try {
+            durableStore.addRegistration(givenASimpleClient("regId", "urn:endpoint"));
+            File segment = lastSegment();
+            long size = segment.length();
+            durableStore.addRegistration(givenASimpleClient("tornId", "urn:torn"));
+
+            // the last record was only partially written: its CRC does not match anymore
+            try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+                file.seek(file.length() - 1);
+                byte last = file.readByte();
+                file.seek(file.length() - 1);
+                file.writeByte(last + 1);
+            }
+
+            InMemoryRegistrationStore reloadedStore = new InMemoryRegistrationStore(folder.getRoot());
+            reloadedStore.start();
+            try {
+                Client registration = reloadedStore.getRegistration("regId");
+                Assert.assertEquals("urn:endpoint", registration.getEndpoint());
+                Assert.assertEquals(InetSocketAddress.createUnresolved("localhost", 5683),
+                        registration.getRegistrationEndpointAddress());
+                Assert.assertNull(reloadedStore.getRegistration("tornId"));
+                Assert.assertEquals(size, segment.length());
+            } finally {
+                reloadedStore.stop();
+            }
+        } finally {
+            durableStore.stop();
+        }
+    }
+
+    @Test
+    public void durable_store_reloads_a_resolved_registration_address() throws IOException {
+        InMemoryRegistrationStore durableStore = new InMemoryRegistrationStore(folder.getRoot());
+        durableStore.start();
+        InetSocketAddress regAddress = new InetSocketAddress(InetAddress.getByAddress("lwm2m", address.getAddress()),
+                5683);
+        durableStore.addRegistration(new Client.Builder("regId", "urn:endpoint", address, port, regAddress).build());
+        durableStore.stop();
+
+        InMemoryRegistrationStore reloadedStore = new InMemoryRegistrationStore(folder.getRoot());
+        reloadedStore.start();
+        try {
+            InetSocketAddress reloaded = reloadedStore.getRegistration("regId").getRegistrationEndpointAddress();
+            Assert.assertEquals(regAddress, reloaded);
+            Assert.assertEquals("lwm2m", reloaded.getHostString());
+        } finally {
+            reloadedStore.stop();
+        }
+    }
+
+    private File lastSegment() {
+        File[] segments = folder.getRoot().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("journal-");
+            }
+        });
+        Arrays.sort(segments);
+        return segments[segments.length - 1];
+    }
+
+    private void assertReloaded(InMemoryRegistrationStore reloadedStore, byte[] token) {
+        Client registration = reloadedStore.getRegistration("regId");
+        Assert.assertEquals("urn:endpoint", registration.getEndpoint());
+        Assert.assertEquals(port + 1, registration.getPort());
+        Assert.assertEquals(Collections.singletonList(registration),
+                reloadedStore.getRegistrationByAdress(new InetSocketAddress(address, port + 1)));
+        Assert.assertNull(reloadedStore.getRegistration("removedId"));
+        Assert.assertEquals(1, reloadedStore.getAllRegistration().size());
+
+        org.eclipse.californium.core.observe.Observation obs = reloadedStore.get(token);
+        Assert.assertArrayEquals(token, obs.getRequest().getToken());
+        Assert.assertEquals("3/0/1", obs.getRequest().getOptions().getUriPathString());
+        Assert.assertEquals(1, reloadedStore.getObservations("regId").size());
+    }
+
+    private org.eclipse.californium.core.observe.Observation givenAnObservation(byte[] token, String registrationId) {
+        return givenAnObservation(token, registrationId, "/3/0/1");
+    }
+
+    private org.eclipse.californium.core.observe.Observation givenAnObservation(byte[] token, String registrationId,
+            String path) {
+        Request coapRequest = Request.newGet();
+        coapRequest.setToken(token);
+        coapRequest.getOptions().setUriPath(path);
+        coapRequest.setObserve();
+        Map<String, String> context = new HashMap<>();
+        context.put(CoapRequestBuilder.CTX_REGID, registrationId);
+        context.put(CoapRequestBuilder.CTX_LWM2M_PATH, path);
+        coapRequest.setUserContext(context);
+        return new org.eclipse.californium.core.observe.Observation(coapRequest, null);
+    }
+
+    private Client givenASimpleClient(String registrationId, String endpoint) {
+        return givenASimpleClient(registrationId, endpoint, null);
+    }
+
+    private Client givenASimpleClient(String registrationId, String endpoint, Long lifetime) {
+        Client.Builder builder = new Client.Builder(registrationId, endpoint, address, port,
+                InetSocketAddress.createUnresolved("localhost", 5683));
+        return builder.lifeTimeInSec(lifetime).build();
+    }
+}
@@ -16,12 +16,15 @@
 package org.eclipse.leshan.server.cluster;
 
 import java.net.URI;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.eclipse.leshan.core.node.codec.DefaultLwM2mNodeDecoder;
 import org.eclipse.leshan.server.californium.LeshanServerBuilder;
 import org.eclipse.leshan.server.californium.impl.LeshanServer;
@@ -30,8 +33,10 @@ import org.eclipse.leshan.server.model.StandardModelProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Protocol;
 import redis.clients.util.Pool;
 
 /**
@@ -46,6 +51,12 @@ public class LeshanClusterServer {
     private final static String USAGE = "java -jar leshan-server-cluster.jar [OPTION]";
     private final static String FOOTER = "All options could be passed using environment variables.(using long option name in uppercase)";
 
+    // maximum size of the local cache of registrations and observations
+    private final static long NEAR_CACHE_SIZE = 32 * 1024 * 1024;
+
+    // maximum size of the local cache of security info
+    private final static long SECURITY_CACHE_SIZE = 4 * 1024 * 1024;
+
     public static void main(String[] args) {
         // Define options for command line tools
         Options options = new Options();
@@ -58,6 +69,19 @@ public class LeshanClusterServer {
         options.addOption("slp", "coapsport", true, "Sets the local secure CoAP port.\nDefault: 5684.");
         options.addOption("r", "redis", true,
                 "Sets the location of the Redis database. The URL is in the format of: 'redis://:password@hostname:port/db_number'\n\nDefault: 'redis://localhost:6379'.");
+        options.addOption("rc", "rediscluster", true,
+                "Uses a Redis Cluster instead of a single Redis database. The value is a comma separated list of 'hostname:port' cluster nodes used to discover the cluster.");
+        options.addOption("rb", "rebalance", false,
+                "Hands the endpoints of this instance over to their owner on the consistent hash ring when the members of the cluster change. Devices using DTLS then need a new handshake.\n  Default: disabled, the endpoints only move when an instance shuts down.");
+        options.addOption("pt", "publisherthreads", true,
+                "Sets the number of threads publishing the responses and notifications on Redis.\n  Default: "
+                        + RedisPublisher.DEFAULT_THREADS + ".");
+        options.addOption("pc", "publishercapacity", true,
+                "Sets the number of messages waiting to be published by each thread, the callers wait when it is reached.\n  Default: "
+                        + RedisPublisher.DEFAULT_CAPACITY + ".");
+        options.addOption("pb", "publisherbatch", true,
+                "Sets the maximum number of messages published in a single Redis pipeline.\n  Default: "
+                        + RedisPublisher.DEFAULT_BATCH_SIZE + ".");
         HelpFormatter formatter = new HelpFormatter();
         formatter.setOptionComparator(null);
 
@@ -129,20 +153,58 @@ public class LeshanClusterServer {
             redisUrl = cl.getOptionValue("r");
         }
 
+        // rebalance the endpoints when the members change
+        boolean rebalance = cl.hasOption("rb");
+
+        // publication of the responses and notifications
+        int publisherThreads = RedisPublisher.DEFAULT_THREADS;
+        if (cl.hasOption("pt")) {
+            publisherThreads = Integer.parseInt(cl.getOptionValue("pt"));
+        }
+        int publisherCapacity = RedisPublisher.DEFAULT_CAPACITY;
+        if (cl.hasOption("pc")) {
+            publisherCapacity = Integer.parseInt(cl.getOptionValue("pc"));
+        }
+        int publisherBatchSize = RedisPublisher.DEFAULT_BATCH_SIZE;
+        if (cl.hasOption("pb")) {
+            publisherBatchSize = Integer.parseInt(cl.getOptionValue("pb"));
+        }
+
         try {
-            createAndStartServer(clusterInstanceId, localAddress, localPort, secureLocalAddress,
-                    secureLocalPort, redisUrl);
+            if (cl.hasOption("rc")) {
+                Set<HostAndPort> nodes = new HashSet<>();
+                for (String node : cl.getOptionValue("rc").split(",")) {
+                    String[] hostAndPort = node.trim().split(":");
+                    nodes.add(new HostAndPort(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+                }
+                RedisClusterConnectionProvider redis = new RedisClusterConnectionProvider(nodes,
+                        new GenericObjectPoolConfig(), Protocol.DEFAULT_TIMEOUT);
+                redis.start();
+                createAndStartServer(clusterInstanceId, localAddress, localPort, secureLocalAddress, secureLocalPort,
+                        redis, rebalance, publisherThreads, publisherCapacity, publisherBatchSize);
+            } else {
+                createAndStartServer(clusterInstanceId, localAddress, localPort, secureLocalAddress,
+                        secureLocalPort, redisUrl, rebalance, publisherThreads, publisherCapacity, publisherBatchSize);
+            }
         }catch (Exception e) {
             LOG.error("Jetty stopped with unexcepted error ...", e);
         }
     }
 
     public static void createAndStartServer(String clusterInstanceId, String localAddress, int localPort,
-            String secureLocalAddress, int secureLocalPort, String redisUrl) throws Exception {
+            String secureLocalAddress, int secureLocalPort, String redisUrl, boolean rebalance, int publisherThreads,
+            int publisherCapacity, int publisherBatchSize) throws Exception {
         // Create Redis connector.
         // TODO: support sentinel pool and make pool configurable
         Pool<Jedis> jedis = new JedisPool(new URI(redisUrl));
+        createAndStartServer(clusterInstanceId, localAddress, localPort, secureLocalAddress, secureLocalPort,
+                new RedisPoolConnectionProvider(jedis), rebalance, publisherThreads, publisherCapacity,
+                publisherBatchSize);
+    }
 
+    public static void createAndStartServer(String clusterInstanceId, String localAddress, int localPort,
+            String secureLocalAddress, int secureLocalPort, RedisConnectionProvider redis, boolean rebalance,
+            int publisherThreads, int publisherCapacity, int publisherBatchSize) throws Exception {
         // Prepare LWM2M server.
         LeshanServerBuilder builder = new LeshanServerBuilder();
         builder.setLocalAddress(localAddress, localPort);
@@ -153,23 +215,59 @@ public class LeshanClusterServer {
         LwM2mModelProvider modelProvider = new StandardModelProvider();
         builder.setObjectModelProvider(modelProvider);
 
-        RedisRegistrationStore registrationStore = new RedisRegistrationStore(jedis);
+        final RedisLeaderElection leaderElection = new RedisLeaderElection(redis, clusterInstanceId);
+        RedisRegistrationStore registrationStore = new RedisRegistrationStore(redis, NEAR_CACHE_SIZE, leaderElection);
         builder.setRegistrationStore(registrationStore);
 
         // TODO add support of public and private server key
-        builder.setSecurityRegistry(new RedisSecurityRegistry(jedis, null, null));
+        builder.setSecurityRegistry(new RedisSecurityRegistry(redis, SECURITY_CACHE_SIZE, null, null));
 
         // Create and start LWM2M server
         LeshanServer lwServer = builder.build();
 
         // Create Clustering support
-        RedisTokenHandler tokenHandler = new RedisTokenHandler(jedis, clusterInstanceId);
-        new RedisRequestResponseHandler(jedis, lwServer, lwServer.getClientRegistry(), tokenHandler,
-                lwServer.getObservationRegistry());
+        RedisTokenHandler tokenHandler = new RedisTokenHandler(redis, clusterInstanceId);
+        // the callers wait when the buffers are full
+        final RedisPublisher publisher = new RedisPublisher(redis.getPool(), publisherThreads, publisherCapacity,
+                publisherBatchSize, RedisPublisher.OverflowPolicy.BLOCK);
+        publisher.start();
+        final RedisRequestResponseHandler requestResponseHandler = new RedisRequestResponseHandler(redis, lwServer,
+                lwServer.getClientRegistry(), tokenHandler, lwServer.getObservationRegistry(), publisher);
+        final RedisClusterMembership membership = new RedisClusterMembership(redis, clusterInstanceId, leaderElection);
+        // the leader moves the queued requests of the instances which stopped without being drained
+        membership.addTimeoutListener(new RedisClusterMembership.TimeoutListener() {
+            @Override
+            public void memberTimedOut(String instanceUID, ConsistentHashRing ring) {
+                requestResponseHandler.reclaim(instanceUID, ring);
+            }
+        });
+        if (rebalance) {
+            // the endpoints move to their owner on the ring when an instance joins the cluster
+            membership.addListener(new RedisClusterMembership.Listener() {
+                @Override
+                public void ringChanged(ConsistentHashRing ring) {
+                    requestResponseHandler.rebalance(ring);
+                }
+            });
+        }
         lwServer.getClientRegistry().addListener(tokenHandler);
-        lwServer.getClientRegistry().addListener(new RedisRegistrationEventPublisher(jedis));
+        lwServer.getClientRegistry().addListener(new RedisRegistrationEventPublisher(redis.getPool()));
 
         // Start Jetty & Leshan
+        leaderElection.start();
+        membership.start();
+        tokenHandler.start();
         lwServer.start();
+
+        // hand the work of this instance over to the other ones on shutdown
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                requestResponseHandler.drain(membership);
+                publisher.stop();
+                membership.stop();
+                leaderElection.stop();
+            }
+        }, "Leshan cluster drain"));
     }
 }
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded local cache of values stored in Redis, keyed by their Redis key.
+ * <p>
+ * The size of an entry is the size of its serialized value, the least recently used entries are evicted when the
+ * cache exceeds its maximum size.
+ * <p>
+ * To avoid caching a value read before a concurrent invalidation, a load must first reserve a version of the entry
+ * with {@link #reserve(byte[])}: the value read is only stored if the entry was not invalidated meanwhile.
+ */
+class NearCache {
+
+    private static class Entry {
+        final Object value; // null while the value is loading
+        final long version;
+        final int size;
+
+        Entry(Object value, long version, int size) {
+            this.value = value;
+            this.version = version;
+            this.size = size;
+        }
+    }
+
+    private final long maxSize;
+
+    // in access order, the eldest is the least recently used
+    private final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long lastVersion;
+
+    /**
+     * @param maxSize the maximum size of the cached values in bytes
+     */
+    NearCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the cached value or <code>null</code> if the value is not cached
+     */
+    synchronized Object get(byte[] key) {
+        Entry entry = entries.get(ByteBuffer.wrap(key));
+        if (entry == null || entry.value == null) {
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Reserves an entry before loading its value.
+     *
+     * @return the version to use to store the value loaded
+     */
+    synchronized long reserve(byte[] key) {
+        long version = ++lastVersion;
+        replace(ByteBuffer.wrap(key), new Entry(null, version, key.length));
+        return version;
+    }
+
+    /**
+     * Stores a loaded value (<code>null</code> if there is no value), unless the entry was invalidated or reserved again since <code>version</code> was
+     * reserved.
+     */
+    synchronized void put(byte[] key, long version, Object value, int valueSize) {
+        ByteBuffer k = ByteBuffer.wrap(key);
+        Entry entry = entries.get(k);
+        if (entry != null && entry.version == version && entry.value == null) {
+            if (value == null) {
+                // nothing to cache
+                entries.remove(k);
+                size -= entry.size;
+            } else {
+                replace(k, new Entry(value, version, key.length + valueSize));
+            }
+        }
+    }
+
+    synchronized void invalidate(byte[] key) {
+        Entry removed = entries.remove(ByteBuffer.wrap(key));
+        if (removed != null) {
+            size -= removed.size;
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    synchronized int count() {
+        return entries.size();
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    private void replace(ByteBuffer key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            size -= previous.size;
+        }
+        size += entry.size;
+
+        // evict the least recently used entries
+        Iterator<Map.Entry<ByteBuffer, Entry>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            size -= eldest.size;
+        }
+    }
+}
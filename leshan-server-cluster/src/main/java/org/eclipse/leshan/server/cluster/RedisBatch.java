@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.Pool;
+
+/**
+ * Sends commands on keys of different hash slots with one pipeline per Redis node: a single round trip with a single
+ * Redis server.
+ */
+class RedisBatch implements AutoCloseable {
+
+    private final RedisConnectionProvider provider;
+    private final Map<Pool<Jedis>, Jedis> connections = new IdentityHashMap<>();
+    private final Map<Pool<Jedis>, Pipeline> pipelines = new IdentityHashMap<>();
+
+    RedisBatch(RedisConnectionProvider provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * @return the pipeline of the node serving the given key, the commands must only access this key.
+     */
+    Pipeline on(byte[] key) {
+        Pool<Jedis> pool = provider.getPool(key);
+        Pipeline pipeline = pipelines.get(pool);
+        if (pipeline == null) {
+            Jedis j = pool.getResource();
+            connections.put(pool, j);
+            pipeline = j.pipelined();
+            pipelines.put(pool, pipeline);
+        }
+        return pipeline;
+    }
+
+    /**
+     * Sends the commands and waits for their responses.
+     */
+    void sync() {
+        for (Pipeline pipeline : pipelines.values()) {
+            pipeline.sync();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Jedis j : connections.values()) {
+            j.close();
+        }
+        connections.clear();
+        pipelines.clear();
+    }
+}
@@ -17,8 +17,9 @@ package org.eclipse.leshan.server.cluster;
 
 import static org.eclipse.leshan.util.Charsets.UTF_8;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
@@ -29,6 +30,8 @@ import org.eclipse.californium.scandium.util.ByteArrayUtils;
 import org.eclipse.leshan.server.Startable;
 import org.eclipse.leshan.server.Stoppable;
 import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientFilter;
+import org.eclipse.leshan.server.client.ClientPage;
 import org.eclipse.leshan.server.client.ClientRegistry;
 import org.eclipse.leshan.server.client.ClientRegistryListener;
 import org.eclipse.leshan.server.client.ClientUpdate;
@@ -87,24 +90,35 @@ public class RedisClientRegistry implements ClientRegistry, Startable, Stoppable
 
     @Override
     public Collection<Client> allClients() {
+        Collection<Client> list = new ArrayList<>();
+        ClientPage page = null;
+        do {
+            page = getClients(page == null ? null : page.getNextCursor(), 100, null);
+            list.addAll(page.getClients());
+        } while (!page.isLast());
+        return list;
+    }
+
+    @Override
+    public ClientPage getClients(String cursor, int pageSize, ClientFilter filter) {
+        Validate.isTrue(pageSize > 0, "pageSize must be positive");
         try (Jedis j = pool.getResource()) {
-            ScanParams params = new ScanParams().match(EP_CLIENT + "*").count(100);
-            Collection<Client> list = new LinkedList<>();
-            String cursor = "0";
-            do {
-                ScanResult<byte[]> res = j.scan(cursor.getBytes(), params);
-                for (byte[] key : res.getResult()) {
-                    byte[] element = j.get(key);
+            // the cursor is the Redis SCAN one
+            ScanParams params = new ScanParams().match(EP_CLIENT + "*").count(pageSize);
+            ScanResult<byte[]> res = j.scan((cursor == null ? "0" : cursor).getBytes(), params);
+            Collection<Client> list = new ArrayList<>();
+            if (!res.getResult().isEmpty()) {
+                for (byte[] element : j.mget(res.getResult().toArray(new byte[][] {}))) {
                     if (element != null) {
                         Client c = deserialize(element);
-                        if (c.isAlive()) {
+                        if (c.isAlive() && (filter == null || filter.accept(c))) {
                             list.add(c);
                         }
                     }
                 }
-                cursor = res.getStringCursor();
-            } while (!"0".equals(cursor));
-            return list;
+            }
+            String nextCursor = res.getStringCursor();
+            return new ClientPage(list, "0".equals(nextCursor) ? null : nextCursor);
         }
     }
 
@@ -241,6 +255,17 @@ public class RedisClientRegistry implements ClientRegistry, Startable, Stoppable
         }
     }
 
+    @Override
+    public Client findByAddress(InetSocketAddress address) {
+        // no address index is maintained by this registry
+        for (Client c : allClients()) {
+            if (address.getPort() == c.getPort() && address.getAddress().equals(c.getAddress())) {
+                return c;
+            }
+        }
+        return null;
+    }
+
     private byte[] toRegKey(String registrationId) {
         return (REG_EP + registrationId).getBytes(UTF_8);
     }
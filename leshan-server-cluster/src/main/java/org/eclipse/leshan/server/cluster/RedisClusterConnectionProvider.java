@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.eclipse.leshan.server.Startable;
+import org.eclipse.leshan.server.Stoppable;
+import org.eclipse.leshan.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisSlotBasedConnectionHandler;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.Pool;
+
+/**
+ * Provides the connections of a Redis Cluster: a key is sent to the master node serving its hash slot.</br>
+ * The slot map is discovered from the given nodes and refreshed periodically once started, so the keys moved by a
+ * resharding are found again after the next refresh.
+ */
+public class RedisClusterConnectionProvider implements RedisConnectionProvider, Startable, Stoppable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RedisClusterConnectionProvider.class);
+
+    private static final int SLOT_COUNT = 16384;
+    private static final long REFRESH_PERIOD = TimeUnit.SECONDS.toMillis(10);
+
+    private final SlotHandler handler;
+    private final ScheduledExecutorService schedExecutor = Executors
+            .newSingleThreadScheduledExecutor(new NamedThreadFactory("Redis cluster slots refresh"));
+
+    /**
+     * @param nodes some nodes of the cluster, the other ones are discovered
+     * @param poolConfig the configuration of the pool of each node
+     * @param timeout the connection and read timeout in milliseconds
+     */
+    public RedisClusterConnectionProvider(Set<HostAndPort> nodes, GenericObjectPoolConfig poolConfig, int timeout) {
+        this.handler = new SlotHandler(nodes, poolConfig, timeout);
+    }
+
+    @Override
+    public Pool<Jedis> getPool() {
+        return getPool(0);
+    }
+
+    @Override
+    public Pool<Jedis> getPool(byte[] key) {
+        return getPool(JedisClusterCRC16.getSlot(key));
+    }
+
+    @Override
+    public Collection<Pool<Jedis>> getPools() {
+        // the masters in the order of their first slot, this order is kept until the next resharding
+        Map<Pool<Jedis>, Boolean> pools = new IdentityHashMap<>();
+        List<Pool<Jedis>> result = new ArrayList<>();
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            Pool<Jedis> pool = handler.getSlotPool(slot);
+            if (pool != null && pools.put(pool, Boolean.TRUE) == null) {
+                result.add(pool);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private Pool<Jedis> getPool(int slot) {
+        Pool<Jedis> pool = handler.getSlotPool(slot);
+        if (pool == null) {
+            // the slot map may be outdated
+            handler.renewSlotCache();
+            pool = handler.getSlotPool(slot);
+            if (pool == null) {
+                throw new IllegalStateException("No Redis node serves the hash slot " + slot);
+            }
+        }
+        return pool;
+    }
+
+    @Override
+    public void start() {
+        schedExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.renewSlotCache();
+                } catch (RuntimeException e) {
+                    LOG.warn("Unable to refresh the Redis cluster slots.", e);
+                }
+            }
+        }, REFRESH_PERIOD, REFRESH_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        schedExecutor.shutdownNow();
+        try {
+            schedExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            LOG.warn("Redis cluster slots refresh thread was interrupted.", e);
+        }
+        for (JedisPool pool : handler.getNodes().values()) {
+            pool.close();
+        }
+    }
+
+    /* Gives access to the pool of a slot */
+    private static class SlotHandler extends JedisSlotBasedConnectionHandler {
+
+        SlotHandler(Set<HostAndPort> nodes, GenericObjectPoolConfig poolConfig, int timeout) {
+            super(nodes, poolConfig, timeout);
+        }
+
+        JedisPool getSlotPool(int slot) {
+            return cache.getSlotPool(slot);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import static org.eclipse.leshan.util.Charsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.leshan.server.Startable;
+import org.eclipse.leshan.server.Stoppable;
+import org.eclipse.leshan.util.NamedThreadFactory;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * The registry of the live cluster instances.</br>
+ * Each instance sends a heartbeat by storing its UID in the {@code LESHAN_MEMBERS} sorted set, scored by the heartbeat
+ * time. An instance is a member while its last heartbeat is not older than the member timeout. The members are
+ * placed on a {@link ConsistentHashRing} refreshed on each heartbeat, so a key owner is found without any Redis
+ * request. The {@link Listener}s are notified when the members change, e.g. to rebalance the endpoints.
+ * <p>
+ * When a {@link RedisLeaderElection} is given, the leader also notifies the {@link TimeoutListener}s of the instances
+ * which stopped without leaving the cluster, e.g. to reclaim their work, then forgets them.
+ */
+public class RedisClusterMembership implements Startable, Stoppable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RedisClusterMembership.class);
+
+    private static final byte[] MEMBERS_KEY = "LESHAN_MEMBERS".getBytes(UTF_8);
+
+    /**
+     * Notified of the changes of the cluster members.
+     */
+    public interface Listener {
+
+        /**
+         * Called from the heartbeat thread when the ring of the members changed, except when this instance leaves.
+         */
+        void ringChanged(ConsistentHashRing ring);
+    }
+
+    /**
+     * Notified of the instances which stopped sending heartbeats without leaving the cluster.
+     */
+    public interface TimeoutListener {
+
+        /**
+         * Called from the heartbeat thread of the leader for each timed out instance, until every listener returned
+         * without exception: the instance is then forgotten.
+         *
+         * @param instanceUID the timed out instance
+         * @param ring the ring of the live members
+         */
+        void memberTimedOut(String instanceUID, ConsistentHashRing ring);
+    }
+
+    // KEYS: members key
+    // ARGV: instance UID, timeout score
+    // removes the instance only if it did not send a heartbeat since it timed out
+    private static final RedisScript FORGET = new RedisScript("" //
+            + "local score = redis.call('ZSCORE', KEYS[1], ARGV[1])\n" //
+            + "if score and tonumber(score) < tonumber(ARGV[2]) then\n" //
+            + "  return redis.call('ZREM', KEYS[1], ARGV[1])\n" //
+            + "end\n" //
+            + "return 0\n");
+
+    private final RedisConnectionProvider redis;
+    private final String instanceUID;
+    private final long heartbeatPeriod;
+    private final long memberTimeout;
+    private final RedisLeaderElection leaderElection;
+    private final ScheduledExecutorService schedExecutor = Executors
+            .newSingleThreadScheduledExecutor(new NamedThreadFactory("Redis cluster membership"));
+
+    private volatile boolean leaving = false;
+    private volatile ConsistentHashRing ring = new ConsistentHashRing(Collections.<String> emptyList());
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final List<TimeoutListener> timeoutListeners = new CopyOnWriteArrayList<>();
+
+    public RedisClusterMembership(RedisConnectionProvider redis, String instanceUID) {
+        this(redis, instanceUID, null);
+    }
+
+    /**
+     * @param leaderElection the election of the cluster instance notifying the {@link TimeoutListener}s, null if the
+     *        timed out instances are only forgotten
+     */
+    public RedisClusterMembership(RedisConnectionProvider redis, String instanceUID,
+            RedisLeaderElection leaderElection) {
+        this(redis, instanceUID, TimeUnit.SECONDS.toMillis(5), TimeUnit.SECONDS.toMillis(15), leaderElection);
+    }
+
+    public RedisClusterMembership(RedisConnectionProvider redis, String instanceUID, long heartbeatPeriod,
+            long memberTimeout) {
+        this(redis, instanceUID, heartbeatPeriod, memberTimeout, null);
+    }
+
+    /**
+     * @param redis the Redis connections
+     * @param instanceUID the unique identifier of this cluster instance
+     * @param heartbeatPeriod the delay in milliseconds between 2 heartbeats
+     * @param memberTimeout the delay in milliseconds without heartbeat after which an instance is no more a member
+     * @param leaderElection the election of the cluster instance notifying the {@link TimeoutListener}s, null if the
+     *        timed out instances are only forgotten
+     */
+    public RedisClusterMembership(RedisConnectionProvider redis, String instanceUID, long heartbeatPeriod,
+            long memberTimeout, RedisLeaderElection leaderElection) {
+        Validate.notNull(instanceUID);
+        Validate.isTrue(heartbeatPeriod > 0, "heartbeat period must be positive");
+        Validate.isTrue(memberTimeout > heartbeatPeriod, "member timeout must be greater than the heartbeat period");
+        this.redis = redis;
+        this.instanceUID = instanceUID;
+        this.heartbeatPeriod = heartbeatPeriod;
+        this.memberTimeout = memberTimeout;
+        this.leaderElection = leaderElection;
+    }
+
+    public String getInstanceUID() {
+        return instanceUID;
+    }
+
+    /**
+     * @return the ring of the members known at the last heartbeat.
+     */
+    public ConsistentHashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * @return the member owning the given endpoint or <code>null</code> if there is no member.
+     */
+    public String getOwner(String endpoint) {
+        return ring.getOwner(endpoint);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void addTimeoutListener(TimeoutListener listener) {
+        timeoutListeners.add(listener);
+    }
+
+    public void removeTimeoutListener(TimeoutListener listener) {
+        timeoutListeners.remove(listener);
+    }
+
+    @Override
+    public void start() {
+        schedExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    heartbeat();
+                } catch (RuntimeException e) {
+                    LOG.warn("Unable to send cluster heartbeat.", e);
+                }
+            }
+        }, 0, heartbeatPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes this instance from the cluster members: it is no more part of the ring, on this instance and on the
+     * other ones after their next heartbeat.
+     */
+    public void leave() {
+        leaving = true;
+        try (Jedis j = redis.getPool(MEMBERS_KEY).getResource()) {
+            j.zrem(MEMBERS_KEY, instanceUID.getBytes(UTF_8));
+        }
+        Set<String> members = new HashSet<>(ring.getMembers());
+        members.remove(instanceUID);
+        ring = new ConsistentHashRing(members);
+    }
+
+    @Override
+    public void stop() {
+        schedExecutor.shutdownNow();
+        try {
+            schedExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            LOG.warn("Cluster membership thread was interrupted.", e);
+        }
+        if (!leaving) {
+            try {
+                leave();
+            } catch (RuntimeException e) {
+                LOG.warn("Unable to leave the cluster.", e);
+            }
+        }
+    }
+
+    private void heartbeat() {
+        long now = System.currentTimeMillis();
+        Response<Set<byte[]>> members;
+        Response<Set<byte[]>> timedOut = null;
+        boolean reclaim = !leaving && leaderElection != null && leaderElection.isLeader()
+                && !timeoutListeners.isEmpty();
+        try (Jedis j = redis.getPool(MEMBERS_KEY).getResource()) {
+            Pipeline p = j.pipelined();
+            if (!leaving) {
+                p.zadd(MEMBERS_KEY, now, instanceUID.getBytes(UTF_8));
+            }
+            // forget the instances which stopped long ago
+            p.zremrangeByScore(MEMBERS_KEY, Double.NEGATIVE_INFINITY, now - 10 * memberTimeout);
+            members = p.zrangeByScore(MEMBERS_KEY, now - memberTimeout, Double.POSITIVE_INFINITY);
+            if (reclaim) {
+                timedOut = p.zrangeByScore(MEMBERS_KEY, "-inf".getBytes(UTF_8),
+                        ("(" + (now - memberTimeout)).getBytes(UTF_8));
+            }
+            p.sync();
+        }
+
+        Collection<String> uids = new ArrayList<>();
+        for (byte[] member : members.get()) {
+            uids.add(new String(member, UTF_8));
+        }
+        if (leaving) {
+            uids.remove(instanceUID);
+        }
+        if (!ring.getMembers().equals(new HashSet<>(uids))) {
+            LOG.info("Cluster members: {}", uids);
+            ring = new ConsistentHashRing(uids);
+            if (!leaving) {
+                for (Listener listener : listeners) {
+                    listener.ringChanged(ring);
+                }
+            }
+        }
+
+        if (timedOut != null) {
+            for (byte[] member : timedOut.get()) {
+                memberTimedOut(new String(member, UTF_8), now - memberTimeout);
+            }
+        }
+    }
+
+    private void memberTimedOut(String uid, long timeoutScore) {
+        LOG.info("Cluster instance {} timed out.", uid);
+        try {
+            for (TimeoutListener listener : timeoutListeners) {
+                listener.memberTimedOut(uid, ring);
+            }
+        } catch (RuntimeException e) {
+            // the instance is kept, so the listeners are notified again at the next heartbeat
+            LOG.warn(String.format("Unable to handle the timeout of cluster instance %s", uid), e);
+            return;
+        }
+        try (Jedis j = redis.getPool(MEMBERS_KEY).getResource()) {
+            FORGET.eval(j, Collections.singletonList(MEMBERS_KEY),
+                    Arrays.asList(uid.getBytes(UTF_8), Long.toString(timeoutScore).getBytes(UTF_8)));
+        }
+    }
+}
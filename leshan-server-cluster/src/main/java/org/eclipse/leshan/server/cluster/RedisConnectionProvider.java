@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import java.util.Collection;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+/**
+ * Provides the Redis connections, a single Redis server or the nodes of a Redis Cluster.</br>
+ * With a Redis Cluster, the keys of a command, a transaction or a script must belong to the same hash slot (see
+ * http://redis.io/topics/cluster-spec#keys-hash-tags).
+ */
+public interface RedisConnectionProvider {
+
+    /**
+     * @return the pool of any node, for the commands without key like PUBLISH or SUBSCRIBE.
+     */
+    Pool<Jedis> getPool();
+
+    /**
+     * @return the pool of the node serving the hash slot of the given key.
+     */
+    Pool<Jedis> getPool(byte[] key);
+
+    /**
+     * @return the pools of all the nodes serving hash slots, for the commands on the whole key space like SCAN.
+     */
+    Collection<Pool<Jedis>> getPools();
+}
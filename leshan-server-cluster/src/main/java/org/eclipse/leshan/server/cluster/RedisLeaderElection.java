@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import static org.eclipse.leshan.util.Charsets.UTF_8;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.leshan.server.Startable;
+import org.eclipse.leshan.server.Stoppable;
+import org.eclipse.leshan.util.NamedThreadFactory;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Elects one leader among the cluster instances, using a lease stored in Redis.</br>
+ * The leader is the instance whose UID is stored in the {@code LESHAN_LEADER} key. It renews the expiration of this key
+ * several times per lease period, so another instance takes the lead at most one lease period after the leader
+ * stopped renewing it. The lead is released immediately when the instance is stopped.
+ */
+public class RedisLeaderElection implements Startable, Stoppable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RedisLeaderElection.class);
+
+    private static final byte[] LEADER_KEY = "LESHAN_LEADER".getBytes(UTF_8);
+
+    // KEYS: leader key
+    // ARGV: instance UID, lease time in milliseconds
+    // returns 1 if the instance holds the lease, 0 otherwise
+    private static final RedisScript ACQUIRE = new RedisScript("" //
+            + "local leader = redis.call('GET', KEYS[1])\n" //
+            + "if not leader then redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2]) return 1 end\n" //
+            + "if leader == ARGV[1] then redis.call('PEXPIRE', KEYS[1], ARGV[2]) return 1 end\n" //
+            + "return 0\n");
+
+    // delete the lease only if it is still owned by this instance
+    private static final RedisScript RELEASE = new RedisScript(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end return 0");
+
+    private final RedisConnectionProvider redis;
+    private final byte[] instanceUID;
+    private final long leaseTime;
+    private final ScheduledExecutorService schedExecutor = Executors
+            .newSingleThreadScheduledExecutor(new NamedThreadFactory("Redis leader election"));
+
+    // local end of the lease held by this instance, 0 if it is not the leader
+    private volatile long leaseEnd = 0;
+
+    public RedisLeaderElection(RedisConnectionProvider redis, String instanceUID) {
+        this(redis, instanceUID, TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * @param redis the Redis connections
+     * @param instanceUID the unique identifier of this cluster instance
+     * @param leaseTime the lease period in milliseconds
+     */
+    public RedisLeaderElection(RedisConnectionProvider redis, String instanceUID, long leaseTime) {
+        Validate.notNull(instanceUID);
+        Validate.isTrue(leaseTime > 0, "lease time must be positive");
+        this.redis = redis;
+        this.instanceUID = instanceUID.getBytes(UTF_8);
+        this.leaseTime = leaseTime;
+    }
+
+    /**
+     * @return true if this instance currently holds the lease.
+     */
+    public boolean isLeader() {
+        return System.currentTimeMillis() < leaseEnd;
+    }
+
+    @Override
+    public void start() {
+        // renew the lease 3 times per period, so a slow round trip does not lose it
+        schedExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                renew();
+            }
+        }, 0, leaseTime / 3, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        schedExecutor.shutdownNow();
+        try {
+            schedExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            LOG.warn("Leader election thread was interrupted.", e);
+        }
+        if (leaseEnd != 0) {
+            leaseEnd = 0;
+            try (Jedis j = redis.getPool(LEADER_KEY).getResource()) {
+                RELEASE.eval(j, Collections.singletonList(LEADER_KEY), Collections.singletonList(instanceUID));
+            } catch (RuntimeException e) {
+                LOG.warn("Unable to release the leader lease.", e);
+            }
+        }
+    }
+
+    private void renew() {
+        // the lease starts before the request is sent, the local end is never after the Redis one
+        long start = System.currentTimeMillis();
+        try (Jedis j = redis.getPool(LEADER_KEY).getResource()) {
+            Object acquired = ACQUIRE.eval(j, Collections.singletonList(LEADER_KEY),
+                    Arrays.asList(instanceUID, Long.toString(leaseTime).getBytes(UTF_8)));
+            boolean wasLeader = leaseEnd != 0;
+            if (Long.valueOf(1).equals(acquired)) {
+                leaseEnd = start + leaseTime;
+                if (!wasLeader) {
+                    LOG.info("This instance is now the cluster leader.");
+                }
+            } else {
+                leaseEnd = 0;
+                if (wasLeader) {
+                    LOG.info("This instance is no more the cluster leader.");
+                }
+            }
+        } catch (RuntimeException e) {
+            // keep the lease until its end, it may be renewed next time
+            LOG.warn("Unable to renew the leader lease.", e);
+        }
+    }
+}
@@ -17,7 +17,7 @@ package org.eclipse.leshan.server.cluster;
 
 import static org.eclipse.leshan.util.Charsets.UTF_8;
 
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Random;
 
 import redis.clients.jedis.Jedis;
@@ -33,6 +33,10 @@ public class RedisLock {
 
     private static final Random RND = new Random();
 
+    // delete the lock only if it is still owned by the releaser
+    private static final RedisScript RELEASE = new RedisScript(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end return 0");
+
     /**
      * Acquires a lock for the given key.
      * 
@@ -67,9 +71,7 @@ public class RedisLock {
      */
     public static void release(Jedis j, byte[] lockKey, byte[] lockValue) {
         if (lockValue != null) {
-            if (Arrays.equals(j.get(lockKey), lockValue)) {
-                j.del(lockKey);
-            }
+            RELEASE.eval(j, Collections.singletonList(lockKey), Collections.singletonList(lockValue));
         }
     }
 
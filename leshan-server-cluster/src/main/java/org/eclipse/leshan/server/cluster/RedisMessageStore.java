@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import static org.eclipse.leshan.util.Charsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.server.cluster.serialization.DownlinkRequestSerDes;
+import org.eclipse.leshan.server.queue.MessageStore;
+import org.eclipse.leshan.server.queue.QueuedRequest;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonObject;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+/**
+ * A message store keeping the queued requests of each client in a Redis list ({@code EP#QUEUE#{<endpoint>}}), so any
+ * instance of the cluster can send them when the client wakes up.
+ * <p>
+ * {@link #retrieveFirst(String)} peeks the head of the list and {@link #deleteFirst(String)} only pops it if it is
+ * still the request retrieved by this instance (the retrieved requests are popped in order when several were
+ * retrieved at once): a request sent concurrently by another instance is not deleted by mistake.
+ */
+public class RedisMessageStore implements MessageStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RedisMessageStore.class);
+
+    private static final String EP_QUEUE = "EP#QUEUE#";
+
+    // KEYS: queue
+    // ARGV: expected head
+    // returns 1 if the head was popped
+    private static final RedisScript POP_IF_FIRST = new RedisScript("" //
+            + "if redis.call('LINDEX', KEYS[1], 0) ~= ARGV[1] then return 0 end\n" //
+            + "redis.call('LPOP', KEYS[1])\n" //
+            + "return 1\n");
+
+    // KEYS: queue
+    // returns the removed requests
+    private static final RedisScript REMOVE_ALL = new RedisScript("" //
+            + "local requests = redis.call('LRANGE', KEYS[1], 0, -1)\n" //
+            + "redis.call('DEL', KEYS[1])\n" //
+            + "return requests\n");
+
+    private final RedisConnectionProvider redis;
+
+    // the first requests of each queue last retrieved by this instance
+    private final ConcurrentMap<String, Queue<byte[]>> retrieved = new ConcurrentHashMap<>();
+
+    public RedisMessageStore(Pool<Jedis> pool) {
+        this(new RedisPoolConnectionProvider(pool));
+    }
+
+    public RedisMessageStore(RedisConnectionProvider redis) {
+        Validate.notNull(redis);
+        this.redis = redis;
+    }
+
+    private static byte[] toKey(String endpoint) {
+        return (EP_QUEUE + "{" + endpoint + "}").getBytes(UTF_8);
+    }
+
+    @Override
+    public void add(QueuedRequest entity) {
+        LOG.debug("Add entity {}", entity);
+        byte[] key = toKey(entity.getEndpoint());
+        try (Jedis j = redis.getPool(key).getResource()) {
+            j.rpush(key, serialize(entity));
+        }
+    }
+
+    /**
+     * Adds several requests at once, the requests are sent to each Redis node in a single pipeline.
+     */
+    public void addAll(Collection<QueuedRequest> entities) {
+        try (RedisBatch batch = new RedisBatch(redis)) {
+            for (QueuedRequest entity : entities) {
+                byte[] key = toKey(entity.getEndpoint());
+                batch.on(key).rpush(key, serialize(entity));
+            }
+            batch.sync();
+        }
+    }
+
+    @Override
+    public QueuedRequest retrieveFirst(String endpoint) {
+        LOG.trace("Retrieve first for endpoint {}", endpoint);
+        List<QueuedRequest> first = retrieveFirst(endpoint, 1);
+        return first.isEmpty() ? null : first.get(0);
+    }
+
+    @Override
+    public List<QueuedRequest> retrieveFirst(String endpoint, int count) {
+        LOG.trace("Retrieve first {} for endpoint {}", count, endpoint);
+        byte[] key = toKey(endpoint);
+        List<byte[]> first;
+        try (Jedis j = redis.getPool(key).getResource()) {
+            first = j.lrange(key, 0, count - 1);
+        }
+        if (first.isEmpty()) {
+            retrieved.remove(endpoint);
+            return Collections.emptyList();
+        }
+        retrieved.put(endpoint, new ConcurrentLinkedQueue<>(first));
+        List<QueuedRequest> result = new ArrayList<>(first.size());
+        for (byte[] request : first) {
+            result.add(deserialize(request));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isEmpty(String endpoint) {
+        LOG.trace("Checking for empty Queue {}", endpoint);
+        byte[] key = toKey(endpoint);
+        try (Jedis j = redis.getPool(key).getResource()) {
+            return !j.exists(key);
+        }
+    }
+
+    @Override
+    public void deleteFirst(String endpoint) {
+        LOG.debug("Delete first entity of endpoint {}", endpoint);
+        byte[] key = toKey(endpoint);
+        Queue<byte[]> heads = retrieved.get(endpoint);
+        byte[] first = heads == null ? null : heads.poll();
+        try (Jedis j = redis.getPool(key).getResource()) {
+            if (first == null) {
+                j.lpop(key);
+            } else if (!Long.valueOf(1).equals(
+                    POP_IF_FIRST.eval(j, Collections.singletonList(key), Collections.singletonList(first)))) {
+                LOG.debug("First entity of endpoint {} already deleted by another instance", endpoint);
+                retrieved.remove(endpoint);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<QueuedRequest> removeAll(String endpoint) {
+        LOG.debug("Emptying messages for client {}", endpoint);
+        byte[] key = toKey(endpoint);
+        retrieved.remove(endpoint);
+        List<byte[]> removed;
+        try (Jedis j = redis.getPool(key).getResource()) {
+            removed = (List<byte[]>) REMOVE_ALL.eval(j, Arrays.asList(key), Collections.<byte[]> emptyList());
+        }
+        List<QueuedRequest> result = new ArrayList<>(removed.size());
+        for (byte[] request : removed) {
+            result.add(deserialize(request));
+        }
+        return result;
+    }
+
+    @Override
+    public int getQueueSize(String endpoint) {
+        byte[] key = toKey(endpoint);
+        try (Jedis j = redis.getPool(key).getResource()) {
+            return j.llen(key).intValue();
+        }
+    }
+
+    /* *************** Serialization **************** */
+
+    private static byte[] serialize(QueuedRequest entity) {
+        JsonObject o = Json.object();
+        o.add("ep", entity.getEndpoint());
+        if (entity.getRequestTicket() != null) {
+            o.add("ticket", entity.getRequestTicket());
+        }
+        if (entity.getExpiration() > 0) {
+            o.add("exp", entity.getExpiration());
+        }
+        o.add("req", DownlinkRequestSerDes.jSerialize(entity.getDownlinkRequest()));
+        return o.toString().getBytes(UTF_8);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static QueuedRequest deserialize(byte[] data) {
+        JsonObject o = (JsonObject) Json.parse(new String(data, UTF_8));
+        return new RedisQueuedRequest(o.getString("ep", null), o.getString("ticket", null), o.getLong("exp", 0),
+                (DownlinkRequest<LwM2mResponse>) DownlinkRequestSerDes.deserialize((JsonObject) o.get("req")));
+    }
+
+    private static class RedisQueuedRequest implements QueuedRequest {
+
+        private final String endpoint;
+        private final String requestTicket;
+        private final long expiration;
+        private final DownlinkRequest<LwM2mResponse> downlinkRequest;
+
+        private RedisQueuedRequest(String endpoint, String requestTicket, long expiration,
+                DownlinkRequest<LwM2mResponse> downlinkRequest) {
+            this.endpoint = endpoint;
+            this.requestTicket = requestTicket;
+            this.expiration = expiration;
+            this.downlinkRequest = downlinkRequest;
+        }
+
+        @Override
+        public String getRequestTicket() {
+            return requestTicket;
+        }
+
+        @Override
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        @Override
+        public DownlinkRequest<LwM2mResponse> getDownlinkRequest() {
+            return downlinkRequest;
+        }
+
+        @Override
+        public long getExpiration() {
+            return expiration;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "RedisQueuedRequest [requestTicket=%s, downlinkRequest=%s, endpoint=%s, expiration=%d]",
+                    requestTicket, downlinkRequest, endpoint, expiration);
+        }
+    }
+}
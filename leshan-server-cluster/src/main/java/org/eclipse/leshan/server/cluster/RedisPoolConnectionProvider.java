@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.eclipse.leshan.util.Validate;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+/**
+ * Provides the connections of a single Redis server.
+ */
+public class RedisPoolConnectionProvider implements RedisConnectionProvider {
+
+    private final Pool<Jedis> pool;
+
+    public RedisPoolConnectionProvider(Pool<Jedis> pool) {
+        Validate.notNull(pool);
+        this.pool = pool;
+    }
+
+    @Override
+    public Pool<Jedis> getPool() {
+        return pool;
+    }
+
+    @Override
+    public Pool<Jedis> getPool(byte[] key) {
+        return pool;
+    }
+
+    @Override
+    public Collection<Pool<Jedis>> getPools() {
+        return Collections.singletonList(pool);
+    }
+}
@@ -0,0 +1,307 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.leshan.server.Startable;
+import org.eclipse.leshan.server.Stoppable;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.Pool;
+
+/**
+ * Publishes messages on Redis channels from a small number of threads.
+ * <p>
+ * Each publisher thread consumes a bounded ring buffer and sends the messages waiting in it in a single pipeline, so a
+ * burst of messages costs a few round trips instead of one connection and one round trip per message. The messages
+ * published with the same ordering key go through the same buffer, so they are published in order.
+ * <p>
+ * When a buffer is full, the {@link OverflowPolicy} decides whether the caller waits or a message is dropped.
+ */
+public class RedisPublisher implements Startable, Stoppable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RedisPublisher.class);
+
+    // Delay after which an idle publisher thread checks whether it must stop
+    private static final long POLL_TIMEOUT = 100; // ms
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int DEFAULT_BATCH_SIZE = 128;
+
+    /**
+     * What to do with a message published while its buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** The caller waits until there is room in the buffer */
+        BLOCK,
+        /** The new message is dropped */
+        DROP_NEWEST,
+        /** The oldest message of the buffer is dropped to make room for the new one */
+        DROP_OLDEST
+    }
+
+    private static class Message {
+        final String channel;
+        final String payload;
+        final long enqueued; // ns
+
+        Message(String channel, String payload) {
+            this.channel = channel;
+            this.payload = payload;
+            this.enqueued = System.nanoTime();
+        }
+    }
+
+    private final Pool<Jedis> pool;
+    private final ArrayBlockingQueue<Message>[] buffers;
+    private final int batchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final Thread[] publishers;
+
+    private volatile boolean running = false;
+
+    // metrics
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong(); // ns
+    private final AtomicLong maxLatency = new AtomicLong(); // ns
+
+    /**
+     * Creates a publisher with {@value #DEFAULT_THREADS} threads, buffers of {@value #DEFAULT_CAPACITY} messages and
+     * batches of {@value #DEFAULT_BATCH_SIZE} messages, the callers wait when a buffer is full.
+     *
+     * @param pool the Redis connection pool
+     */
+    public RedisPublisher(Pool<Jedis> pool) {
+        this(pool, DEFAULT_THREADS, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param pool the Redis connection pool
+     * @param threads the number of publisher threads
+     * @param capacity the maximum number of messages waiting in the buffer of each thread
+     * @param batchSize the maximum number of messages sent in a single pipeline
+     * @param overflowPolicy what to do when a buffer is full
+     */
+    @SuppressWarnings("unchecked")
+    public RedisPublisher(Pool<Jedis> pool, int threads, int capacity, int batchSize, OverflowPolicy overflowPolicy) {
+        Validate.notNull(pool);
+        Validate.isTrue(threads > 0);
+        Validate.isTrue(capacity > 0);
+        Validate.isTrue(batchSize > 0);
+        Validate.notNull(overflowPolicy);
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.overflowPolicy = overflowPolicy;
+        this.buffers = new ArrayBlockingQueue[threads];
+        this.publishers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            buffers[i] = new ArrayBlockingQueue<>(capacity);
+        }
+    }
+
+    /**
+     * Publishes a message asynchronously.
+     *
+     * @param channel the Redis channel
+     * @param orderingKey the messages with the same key are published in order, may be <code>null</code>
+     * @param message the message
+     * @return false if the message was dropped
+     */
+    public boolean publish(String channel, String orderingKey, String message) {
+        ArrayBlockingQueue<Message> buffer = buffers[orderingKey == null ? 0
+                : (orderingKey.hashCode() & Integer.MAX_VALUE) % buffers.length];
+        Message m = new Message(channel, message);
+        switch (overflowPolicy) {
+        case BLOCK:
+            try {
+                buffer.put(m);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+                return false;
+            }
+        case DROP_NEWEST:
+            if (buffer.offer(m)) {
+                return true;
+            }
+            dropped.incrementAndGet();
+            return false;
+        case DROP_OLDEST:
+            while (!buffer.offer(m)) {
+                if (buffer.poll() != null) {
+                    dropped.incrementAndGet();
+                }
+            }
+            return true;
+        default:
+            throw new IllegalStateException("Unsupported overflow policy " + overflowPolicy);
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (int i = 0; i < publishers.length; i++) {
+            final ArrayBlockingQueue<Message> buffer = buffers[i];
+            publishers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    consume(buffer);
+                }
+            }, "Redis publisher #" + i);
+            publishers[i].setDaemon(true);
+            publishers[i].start();
+        }
+    }
+
+    /**
+     * Stops the publisher threads once the messages waiting in the buffers are published.
+     */
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (Thread publisher : publishers) {
+            try {
+                publisher.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                LOG.warn("Redis publisher thread was interrupted.", e);
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void consume(ArrayBlockingQueue<Message> buffer) {
+        List<Message> batch = new ArrayList<>(batchSize);
+        while (running || !buffer.isEmpty()) {
+            try {
+                Message first = buffer.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                buffer.drainTo(batch, batchSize - 1);
+                send(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                failed.addAndGet(batch.size());
+                LOG.warn(String.format("Unable to publish %d messages.", batch.size()), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(List<Message> batch) {
+        try (Jedis j = pool.getResource()) {
+            Pipeline pipeline = j.pipelined();
+            for (Message m : batch) {
+                pipeline.publish(m.channel, m.payload);
+            }
+            pipeline.sync();
+        }
+
+        long now = System.nanoTime();
+        for (Message m : batch) {
+            long latency = now - m.enqueued;
+            totalLatency.addAndGet(latency);
+            long max = maxLatency.get();
+            while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+                max = maxLatency.get();
+            }
+        }
+        published.addAndGet(batch.size());
+        batches.incrementAndGet();
+    }
+
+    /* *************** Metrics **************** */
+
+    /**
+     * @return the number of messages waiting to be published
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ArrayBlockingQueue<Message> buffer : buffers) {
+            depth += buffer.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return the number of messages published
+     */
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    /**
+     * @return the number of messages dropped by the overflow policy
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of messages lost because Redis could not be reached
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of pipelines sent
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * @return the mean delay in microseconds between the call to {@link #publish} and the acknowledgment by Redis
+     */
+    public long getMeanPublishLatency() {
+        long count = published.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatency.get() / count);
+    }
+
+    /**
+     * @return the maximum delay in microseconds between the call to {@link #publish} and the acknowledgment by Redis
+     */
+    public long getMaxPublishLatency() {
+        return TimeUnit.NANOSECONDS.toMicros(maxLatency.get());
+    }
+}
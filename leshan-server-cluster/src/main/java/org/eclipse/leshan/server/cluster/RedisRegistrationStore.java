@@ -20,12 +20,14 @@ import static org.eclipse.leshan.util.Charsets.UTF_8;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -38,6 +40,8 @@ import org.eclipse.leshan.server.Stoppable;
 import org.eclipse.leshan.server.californium.CaliforniumRegistrationStore;
 import org.eclipse.leshan.server.californium.impl.CoapRequestBuilder;
 import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientFilter;
+import org.eclipse.leshan.server.client.ClientPage;
 import org.eclipse.leshan.server.client.ClientUpdate;
 import org.eclipse.leshan.server.cluster.serialization.ClientSerDes;
 import org.eclipse.leshan.server.cluster.serialization.ObservationSerDes;
@@ -47,231 +51,752 @@ import org.eclipse.leshan.util.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import redis.clients.jedis.BinaryJedisPubSub;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.ScanParams;
 import redis.clients.jedis.ScanResult;
 import redis.clients.util.Pool;
 
 /**
  * A RegistrationStore which stores registrations and observations in Redis.
+ * <p>
+ * The read-modify-write operations are Lua scripts executed atomically by the Redis server: no distributed lock is
+ * needed. A script which modifies a registration checks it was not changed since it was read, the operation is
+ * retried with the new value otherwise.
+ * <p>
+ * The keys of a registration and of its observations contain the endpoint as hash tag (e.g. {@code EP#REG#{ep}}), so
+ * they belong to the same Redis Cluster hash slot and a script can modify them atomically. The secondary indexes (by
+ * registration id, by address and by token) and the sharded expiration sets are stored in their own slots and
+ * updated after the scripts: their readers always check the registration or the observation they point to.
+ * <p>
+ * Registrations and observations can be kept in a local near cache. The scripts publish the keys they modify on the
+ * {@value #INVALIDATION_CHANNEL} channel, so each cluster instance evicts them from its cache. The cache is only used
+ * while this channel is listened.
+ * <p>
+ * The keys of a registration and of its observations expire a grace period after the registration itself, their TTL
+ * is refreshed on each update. Expired registrations are normally removed before by the cleaner, which claims them
+ * from sorted sets of expiration dates: each of them is removed and notified by one cluster instance only. When a
+ * {@link RedisLeaderElection} is given, only the cluster leader runs the cleaner.
+ * <p>
+ * The registrations and observations stored by the previous versions, without hash tags, are migrated to this layout
+ * when the store starts. Each of them is migrated by one cluster instance only, unless the device registered again
+ * meanwhile: the legacy keys are then deleted.
  */
 public class RedisRegistrationStore implements CaliforniumRegistrationStore, Startable, Stoppable {
 
     private static final Logger LOG = LoggerFactory.getLogger(RedisClientRegistry.class);
 
-    // Redis key prefixes
-    private static final String EP_REG = "EP#REG#";
-    private static final String REGID_EP = "REGID#EP#";
-    private static final String LOCK_EP = "LOCK#EP#";
-    private static final byte[] OBS_TKN = "OBS#TKN#".getBytes(UTF_8);
-    private static final String OBS_REGID = "OBS#REGID#";
-
-    private final Pool<Jedis> pool;
+    // Redis key prefixes, "{ep}" is the endpoint hash tag
+    private static final String EP_REG = "EP#REG#"; // {ep} -> registration
+    private static final String EP_REGID = "EP#REGID#"; // {ep} -> registration id
+    private static final String REGID_EP = "REGID#EP#"; // registration id -> endpoint
+    private static final String ADDR_EP = "ADDR#EP#"; // address -> endpoint
+    private static final String EXP_EP = "EXP#EP#"; // sorted sets used for registration expiration, one per shard
+    private static final String TKN_EP = "TKN#EP#"; // token -> endpoint
+    private static final String OBS = "OBS#"; // {ep} + one of the following suffixes
+    private static final String OBS_TKN = "#TKN#"; // token -> observation
+    private static final String OBS_REGID = "#REGID#"; // registration id -> tokens list
+    private static final String OBS_REGID_PATH = "#REGID#PATH#"; // secondary index (registration, path) -> tokens
+    private static final String OBS_REGID_PATHS = "#REGID#PATHS#"; // the paths observed by a registration
+
+    // Keys of the layout without hash tags, migrated when the store starts ("EP#REG#" + endpoint for registrations)
+    private static final String LEGACY_EXP_EP = "EXP#EP";
+    private static final String LEGACY_OBS_TKN = "OBS#TKN#";
+    private static final String LEGACY_OBS_REGID = "OBS#REGID#";
+    private static final String LEGACY_OBS_REGID_PATH = "OBS#REGID#PATH#";
+    private static final String LEGACY_OBS_REGID_PATHS = "OBS#REGID#PATHS#";
+
+    // Number of expiration sorted sets, they are spread over the Redis Cluster nodes
+    private static final int EXP_SHARDS = 16;
+
+    // Redis channel on which the modified keys are published
+    public static final String INVALIDATION_CHANNEL = "LESHAN_CACHE_INV";
+    private static final String PUBLISH = "redis.call('PUBLISH', '" + INVALIDATION_CHANNEL + "', ";
+
+    // Number of attempts of an operation which keeps conflicting with concurrent modifications
+    private static final int MAX_ATTEMPTS = 10;
+
+    // Delay after the registration expiration before Redis deletes its keys, if no cleaner removed them
+    private static final long KEY_GRACE_PERIOD = TimeUnit.MINUTES.toMillis(10);
+
+    // Delay during which expired registrations claimed by a cleaner are not visible to the other ones
+    private static final long CLEANER_CLAIM_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    /* *************** Lua scripts **************** */
+
+    // The observation keys of a registration are read before the scripts modifying them, so they are declared:
+    // KEYS[k]: observations list, KEYS[k + 1]: observed paths set, then the key of each token and of each path index
+    // ARGV[a]: number of tokens, ARGV[a + 1]: number of paths, then the tokens and the paths
+    private static final String OBSERVATIONS_FUNCTIONS = "" //
+            // checks the observations list and paths set were not modified since they were read
+            + "local function same_observations(k, a)\n" //
+            + "  local nbTokens = tonumber(ARGV[a])\n" //
+            + "  local tokens = redis.call('LRANGE', KEYS[k], 0, -1)\n" //
+            + "  if #tokens ~= nbTokens then return false end\n" //
+            + "  for i = 1, nbTokens do\n" //
+            + "    if tokens[i] ~= ARGV[a + 1 + i] then return false end\n" //
+            + "  end\n" //
+            + "  local nbPaths = tonumber(ARGV[a + 1])\n" //
+            + "  if redis.call('SCARD', KEYS[k + 1]) ~= nbPaths then return false end\n" //
+            + "  for i = 1, nbPaths do\n" //
+            + "    if redis.call('SISMEMBER', KEYS[k + 1], ARGV[a + 1 + nbTokens + i]) == 0 then return false end\n" //
+            + "  end\n" //
+            + "  return true\n" //
+            + "end\n" //
+            // appends the removed observations to the result table
+            + "local function remove_observations(k, a, result)\n" //
+            + "  local nbTokens = tonumber(ARGV[a])\n" //
+            + "  for i = 1, nbTokens do\n" //
+            + "    local key = KEYS[k + 1 + i]\n" //
+            + "    local o = redis.call('GET', key)\n" //
+            + "    if o then\n" //
+            + "      result[#result + 1] = o\n" //
+            + "      redis.call('DEL', key)\n" //
+            + "      " + PUBLISH + "key)\n" //
+            + "    end\n" //
+            + "  end\n" //
+            + "  for i = 1, tonumber(ARGV[a + 1]) do redis.call('DEL', KEYS[k + 1 + nbTokens + i]) end\n" //
+            + "  redis.call('DEL', KEYS[k], KEYS[k + 1])\n" //
+            + "end\n" //
+            // sets the expiration date of the observation keys, appends their tokens to the result table
+            + "local function expire_observations(k, a, at, result)\n" //
+            + "  local nbTokens = tonumber(ARGV[a])\n" //
+            + "  for i = 1, nbTokens do\n" //
+            + "    redis.call('PEXPIREAT', KEYS[k + 1 + i], at)\n" //
+            + "    result[#result + 1] = ARGV[a + 1 + i]\n" //
+            + "  end\n" //
+            + "  for i = 1, tonumber(ARGV[a + 1]) do redis.call('PEXPIREAT', KEYS[k + 1 + nbTokens + i], at) end\n" //
+            + "  redis.call('PEXPIREAT', KEYS[k], at)\n" //
+            + "  redis.call('PEXPIREAT', KEYS[k + 1], at)\n" //
+            + "end\n";
+
+    // KEYS: endpoint key, endpoint registration id key, observation keys of the previous registration (if any)
+    // ARGV: registration, expected previous registration (or empty), keys expiration, registration id, observation
+    // arguments of the previous registration (if any)
+    // returns {0} if the previous registration or its observations changed, {1, removed observations...} otherwise
+    private static final RedisScript REGISTER = new RedisScript(OBSERVATIONS_FUNCTIONS //
+            + "local previous = redis.call('GET', KEYS[1])\n" //
+            + "if (previous or '') ~= ARGV[2] then return {0} end\n" //
+            + "if previous and not same_observations(3, 5) then return {0} end\n" //
+            + "redis.call('SET', KEYS[1], ARGV[1])\n" //
+            + "redis.call('SET', KEYS[2], ARGV[4])\n" //
+            + "redis.call('PEXPIREAT', KEYS[1], ARGV[3])\n" //
+            + "redis.call('PEXPIREAT', KEYS[2], ARGV[3])\n" //
+            + PUBLISH + "KEYS[1])\n" //
+            + "local result = {1}\n" //
+            + "if previous then remove_observations(3, 5, result) end\n" //
+            + "return result\n");
+
+    // KEYS: endpoint key, endpoint registration id key, observation keys
+    // ARGV: expected registration, updated registration, keys expiration, observation arguments
+    // returns {0} if the registration or its observations changed, {1, tokens of the observations...} otherwise
+    private static final RedisScript UPDATE = new RedisScript(OBSERVATIONS_FUNCTIONS //
+            + "if redis.call('GET', KEYS[1]) ~= ARGV[1] then return {0} end\n" //
+            + "if not same_observations(3, 4) then return {0} end\n" //
+            + "redis.call('SET', KEYS[1], ARGV[2])\n" //
+            + "redis.call('PEXPIREAT', KEYS[1], ARGV[3])\n" //
+            + "redis.call('PEXPIREAT', KEYS[2], ARGV[3])\n" //
+            + PUBLISH + "KEYS[1])\n" //
+            + "local result = {1}\n" //
+            + "expire_observations(3, 4, ARGV[3], result)\n" //
+            + "return result\n");
+
+    // KEYS: endpoint key, endpoint registration id key, observation keys
+    // ARGV: expected registration, observation arguments
+    // returns {0} if the registration or its observations changed, {1, removed observations...} otherwise
+    private static final RedisScript DEREGISTER = new RedisScript(OBSERVATIONS_FUNCTIONS //
+            + "if redis.call('GET', KEYS[1]) ~= ARGV[1] then return {0} end\n" //
+            + "if not same_observations(3, 2) then return {0} end\n" //
+            + "redis.call('DEL', KEYS[1], KEYS[2])\n" //
+            + PUBLISH + "KEYS[1])\n" //
+            + "local result = {1}\n" //
+            + "remove_observations(3, 2, result)\n" //
+            + "return result\n");
+
+    // KEYS: endpoint registration id key, observation key, observations list, path index, observed paths set
+    // ARGV: registration id, observation, token, path
+    // returns {0} if the registration does not exist, {1, ttl of the keys[, replaced observation]} otherwise
+    private static final RedisScript ADD_OBSERVATION = new RedisScript("" //
+            + "if redis.call('GET', KEYS[1]) ~= ARGV[1] then return {0} end\n" //
+            + "local previous = redis.call('GETSET', KEYS[2], ARGV[2])\n" //
+            + PUBLISH + "KEYS[2])\n" //
+            // a replaced observation with the same token is already in the list
+            + "if previous then redis.call('LREM', KEYS[3], 0, ARGV[3]) end\n" //
+            + "redis.call('LPUSH', KEYS[3], ARGV[3])\n" //
+            + "redis.call('SADD', KEYS[4], ARGV[3])\n" //
+            + "redis.call('SADD', KEYS[5], ARGV[4])\n" //
+            // the observation keys expire with the registration ones
+            + "local ttl = redis.call('PTTL', KEYS[1])\n" //
+            + "if ttl > 0 then\n" //
+            + "  for i = 2, 5 do redis.call('PEXPIRE', KEYS[i], ttl) end\n" //
+            + "end\n" //
+            + "if previous then return {1, ttl, previous} end\n" //
+            + "return {1, ttl}\n");
+
+    // KEYS: observation key, observations list, path index, observed paths set
+    // ARGV: expected observation, token, path
+    // returns 0 if the observation changed, 1 otherwise
+    private static final RedisScript REMOVE_OBSERVATION = new RedisScript("" //
+            + "if redis.call('GET', KEYS[1]) ~= ARGV[1] then return 0 end\n" //
+            + "redis.call('DEL', KEYS[1])\n" //
+            + PUBLISH + "KEYS[1])\n" //
+            + "redis.call('LREM', KEYS[2], 0, ARGV[2])\n" //
+            + "redis.call('SREM', KEYS[3], ARGV[2])\n" //
+            + "if redis.call('SCARD', KEYS[3]) == 0 then redis.call('SREM', KEYS[4], ARGV[3]) end\n" //
+            + "return 1\n");
+
+    // KEYS: expiration set
+    // ARGV: current time, claim expiration, max number of endpoints
+    // returns the expired endpoints, which are hidden to the other cleaners until the claim expiration
+    private static final RedisScript CLAIM_EXPIRED = new RedisScript("" //
+            + "local endpoints = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[3])\n" //
+            + "for _, ep in ipairs(endpoints) do redis.call('ZADD', KEYS[1], ARGV[2], ep) end\n" //
+            + "return endpoints\n");
+
+    // KEYS: observation keys
+    // ARGV: observation arguments
+    // returns {0} if the observations changed, {1, removed observations...} otherwise
+    private static final RedisScript REMOVE_ALL_OBSERVATIONS = new RedisScript(OBSERVATIONS_FUNCTIONS //
+            + "if not same_observations(1, 1) then return {0} end\n" //
+            + "local result = {1}\n" //
+            + "remove_observations(1, 1, result)\n" //
+            + "return result\n");
+
+    // KEYS: key
+    // returns the value of the key (or nil), which is deleted
+    private static final RedisScript TAKE = new RedisScript("" //
+            + "local value = redis.call('GET', KEYS[1])\n" //
+            + "if value then redis.call('DEL', KEYS[1]) end\n" //
+            + "return value\n");
+
+    // deletes an index entry only if it still points to the given endpoint (sent in a pipeline, so as a string)
+    private static final String DELETE_INDEX = "if redis.call('GET', KEYS[1]) == ARGV[1] then "
+            + "return redis.call('DEL', KEYS[1]) end return 0";
+
+    private final RedisConnectionProvider redis;
+
+    // Only the leader cleans the expired registrations, null if every instance does
+    private final RedisLeaderElection leaderElection;
 
     // Listener use to notify when a registration expires
     private ExpirationListener expirationListener;
 
+    // Local cache of the registrations and observations, null if disabled
+    private final NearCache cache;
+    // Only used while the invalidations are received
+    private volatile boolean cacheActive = false;
+    private volatile boolean listening = false;
+    private volatile BinaryJedisPubSub invalidationListener;
+
     public RedisRegistrationStore(Pool<Jedis> p) {
-        this.pool = p;
+        this(p, 0);
+    }
+
+    /**
+     * @param p the Redis connection pool
+     * @param nearCacheSize the maximum size in bytes of the local cache of registrations and observations, 0 to
+     *        disable it
+     */
+    public RedisRegistrationStore(Pool<Jedis> p, long nearCacheSize) {
+        this(p, nearCacheSize, null);
+    }
+
+    /**
+     * @param p the Redis connection pool
+     * @param nearCacheSize the maximum size in bytes of the local cache of registrations and observations, 0 to
+     *        disable it
+     * @param leaderElection the election of the cluster instance cleaning the expired registrations, null if every
+     *        instance cleans them
+     */
+    public RedisRegistrationStore(Pool<Jedis> p, long nearCacheSize, RedisLeaderElection leaderElection) {
+        this(new RedisPoolConnectionProvider(p), nearCacheSize, leaderElection);
+    }
+
+    /**
+     * @param redis the Redis connections, a single server or a Redis Cluster
+     * @param nearCacheSize the maximum size in bytes of the local cache of registrations and observations, 0 to
+     *        disable it
+     * @param leaderElection the election of the cluster instance cleaning the expired registrations, null if every
+     *        instance cleans them
+     */
+    public RedisRegistrationStore(RedisConnectionProvider redis, long nearCacheSize,
+            RedisLeaderElection leaderElection) {
+        Validate.notNull(redis);
+        Validate.isTrue(nearCacheSize >= 0, "near cache size must not be negative");
+        this.redis = redis;
+        this.cache = nearCacheSize > 0 ? new NearCache(nearCacheSize) : null;
+        this.leaderElection = leaderElection;
     }
 
     /* *************** Redis Key utility function **************** */
 
-    private byte[] toKey(byte[] prefix, byte[] key) {
-        byte[] result = new byte[prefix.length + key.length];
-        System.arraycopy(prefix, 0, result, 0, prefix.length);
-        System.arraycopy(key, 0, result, prefix.length, key.length);
+    private static byte[] toKey(String prefix, byte[] key) {
+        byte[] bPrefix = prefix.getBytes(UTF_8);
+        byte[] result = new byte[bPrefix.length + key.length];
+        System.arraycopy(bPrefix, 0, result, 0, bPrefix.length);
+        System.arraycopy(key, 0, result, bPrefix.length, key.length);
         return result;
     }
 
-    private byte[] toKey(String prefix, String registrationID) {
-        return (prefix + registrationID).getBytes();
+    private static byte[] toKey(String prefix, String key) {
+        return (prefix + key).getBytes(UTF_8);
     }
 
-    private byte[] toLockKey(String endpoint) {
-        return toKey(LOCK_EP, endpoint);
+    /*
+     * The endpoint between braces is the hash tag of the keys of a registration. (An endpoint starting with '}' gives
+     * an empty tag: its keys are then spread over several slots, which is only supported by a single Redis server.)
+     */
+    private static String tag(String endpoint) {
+        return "{" + endpoint + "}";
     }
 
-    private byte[] toLockKey(byte[] endpoint) {
-        return toKey(LOCK_EP.getBytes(UTF_8), endpoint);
+    private static byte[] toEndpointKey(String endpoint) {
+        return toKey(EP_REG, tag(endpoint));
     }
 
-    /* *************** Leshan Registration API **************** */
+    private static byte[] toEndpointRegIdKey(String endpoint) {
+        return toKey(EP_REGID, tag(endpoint));
+    }
 
-    @Override
-    public Deregistration addRegistration(Client registration) {
-        try (Jedis j = pool.getResource()) {
-            byte[] lockValue = null;
-            byte[] lockKey = toLockKey(registration.getEndpoint());
+    private static byte[] toRegIdKey(String registrationId) {
+        return toKey(REGID_EP, registrationId);
+    }
 
-            try {
-                lockValue = RedisLock.acquire(j, lockKey);
+    private static byte[] toAddrKey(Client client) {
+        return toAddrKey(new InetSocketAddress(client.getAddress(), client.getPort()));
+    }
 
-                // add registration
-                byte[] k = toEndpointKey(registration.getEndpoint());
-                byte[] old = j.getSet(k, serializeReg(registration));
+    private static byte[] toAddrKey(InetSocketAddress address) {
+        return toKey(ADDR_EP, address.getAddress().getHostAddress() + ":" + address.getPort());
+    }
 
-                // add registration: secondary index
-                byte[] idx = toRegIdKey(registration.getRegistrationId());
-                j.set(idx, registration.getEndpoint().getBytes(UTF_8));
+    private static byte[] toExpirationKey(int shard) {
+        return toKey(EXP_EP, Integer.toString(shard));
+    }
 
-                if (old != null) {
-                    Client oldRegistration = deserializeReg(old);
-                    Collection<Observation> obsRemoved = unsafeRemoveAllObservations(j,
-                            oldRegistration.getRegistrationId());
-                    return new Deregistration(oldRegistration, obsRemoved);
-                }
+    private static byte[] toExpirationKey(String endpoint) {
+        return toExpirationKey((endpoint.hashCode() & Integer.MAX_VALUE) % EXP_SHARDS);
+    }
 
-                return null;
-            } finally {
-                RedisLock.release(j, lockKey, lockValue);
-            }
-        }
+    private static byte[] toTokenKey(byte[] token) {
+        return toKey(TKN_EP, token);
     }
 
-    @Override
-    public Client updateRegistration(ClientUpdate update) {
-        try (Jedis j = pool.getResource()) {
+    private static byte[] toObsKey(String endpoint, byte[] token) {
+        return toKey(OBS + tag(endpoint) + OBS_TKN, token);
+    }
 
-            // fetch the client ep by registration ID index
-            byte[] ep = j.get(toRegIdKey(update.getRegistrationId()));
-            if (ep == null) {
-                return null;
+    private static byte[] toObsListKey(String endpoint, String registrationId) {
+        return toKey(OBS + tag(endpoint) + OBS_REGID, registrationId);
+    }
+
+    private static byte[] toObsPathKey(String endpoint, String registrationId, String path) {
+        return toKey(OBS + tag(endpoint) + OBS_REGID_PATH, registrationId + "#" + new LwM2mPath(path));
+    }
+
+    private static byte[] toObsPathsKey(String endpoint, String registrationId) {
+        return toKey(OBS + tag(endpoint) + OBS_REGID_PATHS, registrationId);
+    }
+
+    /* The connection to the Redis node serving this key */
+    private Jedis connect(byte[] key) {
+        return redis.getPool(key).getResource();
+    }
+
+    /* *************** Leshan Registration API **************** */
+
+    @Override
+    public Deregistration addRegistration(Client registration) {
+        String endpoint = registration.getEndpoint();
+        byte[] epKey = toEndpointKey(endpoint);
+        byte[] data = serializeReg(registration);
+        long keysExpiration = registration.getExpirationTimeStamp() + KEY_GRACE_PERIOD;
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Client previous;
+            List<?> result;
+            try (Jedis j = connect(epKey)) {
+                byte[] previousData = j.get(epKey);
+                previous = previousData == null ? null : deserializeReg(previousData);
+
+                List<byte[]> keys = new ArrayList<>(Arrays.asList(epKey, toEndpointRegIdKey(endpoint)));
+                List<byte[]> args = new ArrayList<>(Arrays.asList(data,
+                        previousData == null ? new byte[0] : previousData, toBytes(keysExpiration),
+                        registration.getRegistrationId().getBytes(UTF_8)));
+                if (previous != null) {
+                    Pipeline p = j.pipelined();
+                    ObservationKeys observations = new ObservationKeys(p, endpoint, previous.getRegistrationId());
+                    p.sync();
+                    observations.appendTo(keys, args);
+                }
+                result = (List<?>) REGISTER.eval(j, keys, args);
+            }
+            if (!isApplied(result)) {
+                // the previous registration or its observations were modified meanwhile
+                continue;
+            }
+            invalidate(epKey);
+            Collection<Observation> obsRemoved = toObservations(result);
+
+            // update the secondary indexes
+            try (RedisBatch batch = new RedisBatch(redis)) {
+                indexRegistration(batch, registration, keysExpiration);
+                if (previous != null) {
+                    if (!previous.getRegistrationId().equals(registration.getRegistrationId())) {
+                        // the same registration id is indexed again above
+                        byte[] previousRegIdKey = toRegIdKey(previous.getRegistrationId());
+                        batch.on(previousRegIdKey).del(previousRegIdKey);
+                    }
+                    byte[] addrKey = toAddrKey(registration);
+                    byte[] previousAddrKey = toAddrKey(previous);
+                    if (!Arrays.equals(previousAddrKey, addrKey)) {
+                        deleteIndex(batch, previousAddrKey, endpoint);
+                    }
+                    deleteTokens(batch, obsRemoved);
+                }
+                batch.sync();
             }
 
-            // fetch the client
-            byte[] data = j.get(toEndpointKey(ep));
-            if (data == null) {
+            if (previous == null) {
                 return null;
             }
+            invalidate(toRegIdKey(previous.getRegistrationId()));
+            invalidateObservations(endpoint, obsRemoved);
+            return new Deregistration(previous, obsRemoved);
+        }
+        throw new IllegalStateException(
+                "Too many concurrent modifications of the registration of " + registration.getEndpoint());
+    }
 
-            Client r = deserializeReg(data);
-
-            byte[] lockValue = null;
-            byte[] lockKey = toLockKey(r.getEndpoint());
-            try {
-                lockValue = RedisLock.acquire(j, lockKey);
+    /**
+     * Adds a registration only if its endpoint has none.
+     *
+     * @return <code>false</code> if the endpoint has a registration
+     */
+    private boolean addRegistrationIfAbsent(Client registration) {
+        String endpoint = registration.getEndpoint();
+        byte[] epKey = toEndpointKey(endpoint);
+        long keysExpiration = registration.getExpirationTimeStamp() + KEY_GRACE_PERIOD;
+
+        List<?> result;
+        try (Jedis j = connect(epKey)) {
+            List<byte[]> keys = Arrays.asList(epKey, toEndpointRegIdKey(endpoint));
+            List<byte[]> args = Arrays.asList(serializeReg(registration), new byte[0], toBytes(keysExpiration),
+                    registration.getRegistrationId().getBytes(UTF_8));
+            result = (List<?>) REGISTER.eval(j, keys, args);
+        }
+        if (!isApplied(result)) {
+            return false;
+        }
+        invalidate(epKey);
+        try (RedisBatch batch = new RedisBatch(redis)) {
+            indexRegistration(batch, registration, keysExpiration);
+            batch.sync();
+        }
+        return true;
+    }
 
-                Client clientUpdated = update.updateClient(r);
+    /* Adds the secondary indexes of a new registration */
+    private static void indexRegistration(RedisBatch batch, Client registration, long keysExpiration) {
+        byte[] ep = registration.getEndpoint().getBytes(UTF_8);
+        byte[] regIdKey = toRegIdKey(registration.getRegistrationId());
+        batch.on(regIdKey).set(regIdKey, ep);
+        batch.on(regIdKey).pexpireAt(regIdKey, keysExpiration);
+        byte[] addrKey = toAddrKey(registration);
+        batch.on(addrKey).set(addrKey, ep);
+        batch.on(addrKey).pexpireAt(addrKey, keysExpiration);
+        byte[] expKey = toExpirationKey(registration.getEndpoint());
+        batch.on(expKey).zadd(expKey, registration.getExpirationTimeStamp(), ep);
+    }
 
-                // store the new client
-                j.set(toEndpointKey(clientUpdated.getEndpoint()), serializeReg(clientUpdated));
+    @Override
+    public Client updateRegistration(ClientUpdate update) {
+        // fetch the client ep by registration ID index
+        String endpoint = getEndpoint(update.getRegistrationId());
+        if (endpoint == null) {
+            return null;
+        }
+        byte[] ep = endpoint.getBytes(UTF_8);
+        byte[] epKey = toEndpointKey(endpoint);
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Client r;
+            Client clientUpdated;
+            List<?> result;
+            try (Jedis j = connect(epKey)) {
+                // fetch the client and its observation keys
+                Pipeline p = j.pipelined();
+                Response<byte[]> registrationData = p.get(epKey);
+                ObservationKeys observations = new ObservationKeys(p, endpoint, update.getRegistrationId());
+                p.sync();
+                byte[] data = registrationData.get();
+                if (data == null) {
+                    return null;
+                }
+                r = deserializeReg(data);
+                if (!r.getRegistrationId().equals(update.getRegistrationId())) {
+                    // registered again meanwhile
+                    return null;
+                }
 
-                return clientUpdated;
+                clientUpdated = update.updateClient(r);
 
-            } finally {
-                RedisLock.release(j, lockKey, lockValue);
+                List<byte[]> keys = new ArrayList<>(Arrays.asList(epKey, toEndpointRegIdKey(endpoint)));
+                List<byte[]> args = new ArrayList<>(Arrays.asList(data, serializeReg(clientUpdated),
+                        toBytes(clientUpdated.getExpirationTimeStamp() + KEY_GRACE_PERIOD)));
+                observations.appendTo(keys, args);
+                result = (List<?>) UPDATE.eval(j, keys, args);
+            }
+            if (!isApplied(result)) {
+                // the registration or its observations were modified meanwhile
+                continue;
+            }
+            invalidate(epKey);
+
+            // update the secondary indexes and their expiration
+            long keysExpiration = clientUpdated.getExpirationTimeStamp() + KEY_GRACE_PERIOD;
+            try (RedisBatch batch = new RedisBatch(redis)) {
+                byte[] expKey = toExpirationKey(endpoint);
+                batch.on(expKey).zadd(expKey, clientUpdated.getExpirationTimeStamp(), ep);
+                byte[] regIdKey = toRegIdKey(update.getRegistrationId());
+                batch.on(regIdKey).pexpireAt(regIdKey, keysExpiration);
+                byte[] addrKey = toAddrKey(clientUpdated);
+                byte[] previousAddrKey = toAddrKey(r);
+                if (!Arrays.equals(previousAddrKey, addrKey)) {
+                    batch.on(addrKey).set(addrKey, ep);
+                    deleteIndex(batch, previousAddrKey, endpoint);
+                }
+                batch.on(addrKey).pexpireAt(addrKey, keysExpiration);
+                for (Object token : result.subList(1, result.size())) {
+                    byte[] tokenKey = toTokenKey((byte[]) token);
+                    batch.on(tokenKey).pexpireAt(tokenKey, keysExpiration);
+                }
+                batch.sync();
             }
+            return clientUpdated;
         }
+        throw new IllegalStateException(
+                "Too many concurrent modifications of registration " + update.getRegistrationId());
     }
 
     @Override
     public Client getRegistration(String registrationId) {
-        try (Jedis j = pool.getResource()) {
-            byte[] ep = j.get(toRegIdKey(registrationId));
-            if (ep == null) {
-                return null;
-            }
-            byte[] data = j.get(toEndpointKey(ep));
-            if (data == null) {
-                return null;
+        String endpoint = getEndpoint(registrationId);
+        if (endpoint == null) {
+            return null;
+        }
+        byte[] epKey = toEndpointKey(endpoint);
+        Client r = cachedRegistration(epKey);
+        if (r == null) {
+            try (Jedis j = connect(epKey)) {
+                r = fetchRegistration(j, epKey);
             }
-
-            return deserializeReg(data);
         }
+        // the registration ID index is removed after the registration
+        return r != null && r.getRegistrationId().equals(registrationId) ? r : null;
     }
 
     @Override
     public Client getRegistrationByEndpoint(String endpoint) {
         Validate.notNull(endpoint);
-        try (Jedis j = pool.getResource()) {
-            byte[] data = j.get(toEndpointKey(endpoint));
-            if (data == null) {
-                return null;
+        byte[] epKey = toEndpointKey(endpoint);
+        Client r = cachedRegistration(epKey);
+        if (r == null) {
+            try (Jedis j = connect(epKey)) {
+                r = fetchRegistration(j, epKey);
             }
-            Client r = deserializeReg(data);
-            return r.isAlive() ? r : null;
         }
+        return r != null && r.isAlive() ? r : null;
     }
 
     @Override
     public Collection<Client> getRegistrationByAdress(InetSocketAddress address) {
-        // TODO Auto-generated method stub
-        return null;
+        Validate.notNull(address);
+        byte[] addrKey = toAddrKey(address);
+        byte[] ep;
+        try (Jedis j = connect(addrKey)) {
+            ep = j.get(addrKey);
+        }
+        if (ep == null) {
+            return Collections.emptyList();
+        }
+        byte[] epKey = toEndpointKey(new String(ep, UTF_8));
+        byte[] data;
+        try (Jedis j = connect(epKey)) {
+            data = j.get(epKey);
+        }
+        if (data == null) {
+            return Collections.emptyList();
+        }
+        Client r = deserializeReg(data);
+        // the index entry may be stale if the client moved to another address meanwhile
+        if (!r.isAlive() || r.getPort() != address.getPort() || !r.getAddress().equals(address.getAddress())) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(r);
     }
 
     @Override
     public Collection<Client> getAllRegistration() {
-        try (Jedis j = pool.getResource()) {
-            ScanParams params = new ScanParams().match(EP_REG + "*").count(100);
-            Collection<Client> list = new LinkedList<>();
-            String cursor = "0";
-            do {
-                ScanResult<byte[]> res = j.scan(cursor.getBytes(), params);
+        Collection<Client> list = new ArrayList<>();
+        ClientPage page = null;
+        do {
+            page = getRegistrations(page == null ? null : page.getNextCursor(), 100, null);
+            list.addAll(page.getClients());
+        } while (!page.isLast());
+        return list;
+    }
+
+    @Override
+    public ClientPage getRegistrations(String cursor, int pageSize, ClientFilter filter) {
+        // the cursor is the index of the Redis node and its SCAN cursor, each page costs one SCAN and one pipeline
+        int node = 0;
+        String scanCursor = cursor == null ? "0" : cursor;
+        int separator = scanCursor.indexOf(':');
+        if (separator >= 0) {
+            node = Integer.parseInt(scanCursor.substring(0, separator));
+            scanCursor = scanCursor.substring(separator + 1);
+        }
+
+        List<Pool<Jedis>> pools = new ArrayList<>(redis.getPools());
+        if (node >= pools.size()) {
+            // the cluster was resharded meanwhile
+            return new ClientPage(Collections.<Client> emptyList(), null);
+        }
+        try (Jedis j = pools.get(node).getResource()) {
+            ScanParams params = new ScanParams().match(EP_REG + "{*").count(pageSize);
+            ScanResult<byte[]> res = j.scan(scanCursor.getBytes(UTF_8), params);
+            Collection<Client> list = new ArrayList<>();
+            if (!res.getResult().isEmpty()) {
+                // the keys may belong to several slots: no MGET
+                Pipeline p = j.pipelined();
+                List<Response<byte[]>> elements = new ArrayList<>();
                 for (byte[] key : res.getResult()) {
-                    byte[] element = j.get(key);
-                    if (element != null) {
-                        Client c = deserializeReg(element);
-                        if (c.isAlive()) {
+                    elements.add(p.get(key));
+                }
+                p.sync();
+                for (Response<byte[]> element : elements) {
+                    if (element.get() != null) {
+                        Client c = deserializeReg(element.get());
+                        if (c.isAlive() && (filter == null || filter.accept(c))) {
                             list.add(c);
                         }
                     }
                 }
-                cursor = res.getStringCursor();
-            } while (!"0".equals(cursor));
-            return list;
+            }
+
+            String nextCursor = res.getStringCursor();
+            if ("0".equals(nextCursor)) {
+                // continue with the next node
+                node++;
+                if (node == pools.size()) {
+                    return new ClientPage(list, null);
+                }
+            }
+            return new ClientPage(list, node == 0 ? nextCursor : node + ":" + nextCursor);
         }
     }
 
     @Override
     public Deregistration removeRegistration(String registrationId) {
-        try (Jedis j = pool.getResource()) {
-
-            byte[] regKey = toRegIdKey(registrationId);
+        // fetch the client ep by registration ID index
+        String endpoint = getEndpoint(registrationId);
+        if (endpoint == null) {
+            return null;
+        }
+        byte[] epKey = toEndpointKey(endpoint);
 
-            // fetch the client ep by registration ID index
-            byte[] ep = j.get(regKey);
-            if (ep == null) {
-                return null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            byte[] data;
+            try (Jedis j = connect(epKey)) {
+                data = j.get(epKey);
             }
-
-            byte[] data = j.get(toEndpointKey(ep));
             if (data == null) {
                 return null;
             }
-
             Client r = deserializeReg(data);
-            deleteClient(j, r);
-            Collection<Observation> obsRemoved = unsafeRemoveAllObservations(j, r.getRegistrationId());
-            return new Deregistration(r, obsRemoved);
+            if (!r.getRegistrationId().equals(registrationId)) {
+                // registered again meanwhile
+                return null;
+            }
+
+            Collection<Observation> obsRemoved = deregister(r, data);
+            if (obsRemoved != null) {
+                return new Deregistration(r, obsRemoved);
+            }
+            // the registration was modified meanwhile
         }
+        throw new IllegalStateException("Too many concurrent modifications of registration " + registrationId);
     }
 
-    private void deleteClient(Jedis j, Client c) {
-        byte[] lockValue = null;
-        byte[] lockKey = toLockKey(c.getEndpoint());
-        try {
-            lockValue = RedisLock.acquire(j, lockKey);
-
-            // delete all entries
-            j.del(toRegIdKey(c.getRegistrationId()));
-            j.del(toEndpointKey(c.getEndpoint()));
-
-        } finally {
-            RedisLock.release(j, lockKey, lockValue);
+    /**
+     * Removes a registration and its observations if it is still stored as <code>data</code>.
+     *
+     * @return the observations removed or <code>null</code> if the registration or its observations were modified
+     *         meanwhile
+     */
+    private Collection<Observation> deregister(Client registration, byte[] data) {
+        String endpoint = registration.getEndpoint();
+        byte[] epKey = toEndpointKey(endpoint);
+        List<byte[]> keys = new ArrayList<>(Arrays.asList(epKey, toEndpointRegIdKey(endpoint)));
+        List<byte[]> args = new ArrayList<>(Collections.singletonList(data));
+
+        List<?> result;
+        try (Jedis j = connect(epKey)) {
+            Pipeline p = j.pipelined();
+            ObservationKeys observations = new ObservationKeys(p, endpoint, registration.getRegistrationId());
+            p.sync();
+            observations.appendTo(keys, args);
+            result = (List<?>) DEREGISTER.eval(j, keys, args);
+        }
+        if (!isApplied(result)) {
+            return null;
+        }
+        Collection<Observation> obsRemoved = toObservations(result);
+
+        // remove the secondary indexes
+        byte[] regIdKey = toRegIdKey(registration.getRegistrationId());
+        try (RedisBatch batch = new RedisBatch(redis)) {
+            batch.on(regIdKey).del(regIdKey);
+            deleteIndex(batch, toAddrKey(registration), endpoint);
+            byte[] expKey = toExpirationKey(endpoint);
+            batch.on(expKey).zrem(expKey, endpoint.getBytes(UTF_8));
+            deleteTokens(batch, obsRemoved);
+            batch.sync();
         }
+
+        invalidate(epKey);
+        invalidate(regIdKey);
+        invalidateObservations(endpoint, obsRemoved);
+        return obsRemoved;
     }
 
-    private byte[] toRegIdKey(String registrationId) {
-        return toKey(REGID_EP, registrationId);
+    /* The endpoint of a registration, from the registration ID index */
+    private String getEndpoint(String registrationId) {
+        byte[] regIdKey = toRegIdKey(registrationId);
+        // a registration ID always belongs to the same endpoint
+        byte[] ep = cacheActive ? (byte[]) cache.get(regIdKey) : null;
+        if (ep == null) {
+            try (Jedis j = connect(regIdKey)) {
+                ep = fetch(j, regIdKey);
+            }
+        }
+        return ep == null ? null : new String(ep, UTF_8);
     }
 
-    private byte[] toEndpointKey(String endpoint) {
-        return toKey(EP_REG, endpoint);
+    private static void deleteIndex(RedisBatch batch, byte[] indexKey, String endpoint) {
+        // the index keys are strings, but the token ones which are not deleted with this script
+        batch.on(indexKey).eval(DELETE_INDEX, Collections.singletonList(new String(indexKey, UTF_8)),
+                Collections.singletonList(endpoint));
     }
 
-    private byte[] toEndpointKey(byte[] endpoint) {
-        return toKey(EP_REG.getBytes(UTF_8), endpoint);
+    private void deleteTokens(RedisBatch batch, Collection<Observation> observations) {
+        for (Observation observation : observations) {
+            byte[] tokenKey = toTokenKey(observation.getId());
+            batch.on(tokenKey).del(tokenKey);
+        }
     }
 
     private byte[] serializeReg(Client client) {
@@ -292,31 +817,7 @@ public class RedisRegistrationStore implements CaliforniumRegistrationStore, Sta
 
     @Override
     public Observation removeObservation(String registrationId, byte[] observationId) {
-        try (Jedis j = pool.getResource()) {
-
-            // fetch the client ep by registration ID index
-            byte[] ep = j.get(toRegIdKey(registrationId));
-            if (ep == null) {
-                return null;
-            }
-
-            // remove observation
-            byte[] lockValue = null;
-            byte[] lockKey = toLockKey(ep);
-            try {
-                lockValue = RedisLock.acquire(j, lockKey);
-
-                Observation observation = build(get(observationId));
-                if (observation != null && registrationId.equals(observation.getRegistrationId())) {
-                    unsafeRemoveObservation(j, registrationId, observationId);
-                    return observation;
-                }
-                return null;
-
-            } finally {
-                RedisLock.release(j, lockKey, lockValue);
-            }
-        }
+        return removeObservation(registrationId, observationId, getEndpoint(observationId));
     }
 
     @Override
@@ -326,13 +827,43 @@ public class RedisRegistrationStore implements CaliforniumRegistrationStore, Sta
 
     @Override
     public Collection<Observation> getObservations(String registrationId) {
+        String endpoint = getEndpoint(registrationId);
+        if (endpoint == null) {
+            return Collections.emptyList();
+        }
+        byte[] listKey = toObsListKey(endpoint, registrationId);
+        try (Jedis j = connect(listKey)) {
+            return getObservations(j, endpoint, j.lrange(listKey, 0, -1));
+        }
+    }
+
+    @Override
+    public Collection<Observation> getObservations(String registrationId, LwM2mPath path) {
+        String endpoint = getEndpoint(registrationId);
+        if (endpoint == null) {
+            return Collections.emptyList();
+        }
+        byte[] pathKey = toObsPathKey(endpoint, registrationId, path.toString());
+        try (Jedis j = connect(pathKey)) {
+            return getObservations(j, endpoint, j.smembers(pathKey));
+        }
+    }
+
+    private Collection<Observation> getObservations(Jedis j, String endpoint, Collection<byte[]> tokens) {
         Collection<Observation> result = new ArrayList<>();
-        try (Jedis j = pool.getResource()) {
-            for (byte[] token : j.lrange(toKey(OBS_REGID, registrationId), 0, -1)) {
-                byte[] obs = j.get(toKey(OBS_TKN, token));
-                if (obs != null) {
-                    result.add(build(deserializeObs(obs)));
-                }
+        if (tokens.isEmpty()) {
+            return result;
+        }
+
+        // fetch all the observations in one round trip, they are in the slot of the endpoint
+        byte[][] keys = new byte[tokens.size()][];
+        int i = 0;
+        for (byte[] token : tokens) {
+            keys[i++] = toObsKey(endpoint, token);
+        }
+        for (byte[] obs : j.mget(keys)) {
+            if (obs != null) {
+                result.add(build(deserializeObs(obs)));
             }
         }
         return result;
@@ -340,24 +871,36 @@ public class RedisRegistrationStore implements CaliforniumRegistrationStore, Sta
 
     @Override
     public Collection<Observation> removeObservations(String registrationId) {
-        try (Jedis j = pool.getResource()) {
-            // check registration exists
-            Client registration = getRegistration(registrationId);
-            if (registration == null)
-                return Collections.emptyList();
-
-            // get endpoint and create lock
-            String endpoint = registration.getEndpoint();
-            byte[] lockValue = null;
-            byte[] lockKey = toKey(LOCK_EP, endpoint);
-            try {
-                lockValue = RedisLock.acquire(j, lockKey);
-
-                return unsafeRemoveAllObservations(j, registrationId);
-            } finally {
-                RedisLock.release(j, lockKey, lockValue);
+        String endpoint = getEndpoint(registrationId);
+        if (endpoint == null) {
+            return Collections.emptyList();
+        }
+        byte[] listKey = toObsListKey(endpoint, registrationId);
+        List<?> result = null;
+        try (Jedis j = connect(listKey)) {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS && (result == null || !isApplied(result)); attempt++) {
+                Pipeline p = j.pipelined();
+                ObservationKeys observations = new ObservationKeys(p, endpoint, registrationId);
+                p.sync();
+                List<byte[]> keys = new ArrayList<>();
+                List<byte[]> args = new ArrayList<>();
+                observations.appendTo(keys, args);
+                result = (List<?>) REMOVE_ALL_OBSERVATIONS.eval(j, keys, args);
             }
         }
+        if (!isApplied(result)) {
+            throw new IllegalStateException("Too many concurrent modifications of the observations of registration "
+                    + registrationId);
+        }
+        Collection<Observation> removed = toObservations(result);
+        if (!removed.isEmpty()) {
+            try (RedisBatch batch = new RedisBatch(redis)) {
+                deleteTokens(batch, removed);
+                batch.sync();
+            }
+        }
+        invalidateObservations(endpoint, removed);
+        return removed;
     }
 
     /* *************** Californium ObservationStore API **************** */
@@ -366,99 +909,150 @@ public class RedisRegistrationStore implements CaliforniumRegistrationStore, Sta
     public void add(org.eclipse.californium.core.observe.Observation obs) {
         String endpoint = this.validateObservation(obs);
 
-        try (Jedis j = pool.getResource()) {
-            byte[] lockValue = null;
-            byte[] lockKey = toKey(LOCK_EP, endpoint);
-            try {
-                lockValue = RedisLock.acquire(j, lockKey);
-
-                String registrationId = obs.getRequest().getUserContext().get(CTX_REGID);
-                if (!j.exists(toRegIdKey(registrationId)))
-                    throw new IllegalStateException("no registration for this Id");
-
-                byte[] previousValue = j.getSet(toKey(OBS_TKN, obs.getRequest().getToken()), serializeObs(obs));
-
-                // secondary index to get the list by registrationId
-                j.lpush(toKey(OBS_REGID, registrationId), obs.getRequest().getToken());
-
-                // log any collisions
-                if (previousValue != null && previousValue.length != 0) {
-                    org.eclipse.californium.core.observe.Observation previousObservation = deserializeObs(
-                            previousValue);
-                    LOG.warn(
-                            "Token collision ? observation from request [{}] will be replaced by observation from request [{}] ",
-                            previousObservation.getRequest(), obs.getRequest());
+        String registrationId = obs.getRequest().getUserContext().get(CTX_REGID);
+        String path = new LwM2mPath(extractPath(obs)).toString();
+        byte[] token = obs.getRequest().getToken();
+        byte[] obsKey = toObsKey(endpoint, token);
+
+        List<?> result;
+        try (Jedis j = connect(obsKey)) {
+            // store the observation and its secondary indexes (by registrationId and by registrationId and path)
+            List<byte[]> keys = Arrays.asList(toEndpointRegIdKey(endpoint), obsKey,
+                    toObsListKey(endpoint, registrationId), toObsPathKey(endpoint, registrationId, path),
+                    toObsPathsKey(endpoint, registrationId));
+            List<byte[]> args = Arrays.asList(registrationId.getBytes(UTF_8), serializeObs(obs), token,
+                    path.getBytes(UTF_8));
+
+            result = (List<?>) ADD_OBSERVATION.eval(j, keys, args);
+            if (!isApplied(result))
+                throw new IllegalStateException("no registration for this Id");
+            invalidate(obsKey);
+
+            // log any collisions
+            if (result.size() > 2) {
+                org.eclipse.californium.core.observe.Observation previousObservation = deserializeObs(
+                        (byte[]) result.get(2));
+                String previousRegId = extractRegistrationId(previousObservation);
+                String previousPath = extractPath(previousObservation);
+                if (!previousRegId.equals(registrationId)) {
+                    j.lrem(toObsListKey(endpoint, previousRegId), 0, token);
                 }
-            } finally {
-                RedisLock.release(j, lockKey, lockValue);
+                if (!previousRegId.equals(registrationId) || !new LwM2mPath(previousPath).toString().equals(path)) {
+                    j.srem(toObsPathKey(endpoint, previousRegId, previousPath), token);
+                }
+                LOG.warn(
+                        "Token collision ? observation from request [{}] will be replaced by observation from request [{}] ",
+                        previousObservation.getRequest(), obs.getRequest());
             }
         }
-    }
 
-    @Override
-    public void remove(byte[] token) {
-        try (Jedis j = pool.getResource()) {
-            byte[] tokenKey = toKey(OBS_TKN, token);
-
-            // fetch the observation by token
-            byte[] serializedObs = j.get(tokenKey);
-            if (serializedObs == null)
-                return;
-
-            org.eclipse.californium.core.observe.Observation obs = deserializeObs(serializedObs);
-            String registrationId = extractRegistrationId(obs);
-            Client registration = getRegistration(registrationId);
-            String endpoint = registration.getEndpoint();
-
-            byte[] lockValue = null;
-            byte[] lockKey = toKey(LOCK_EP, endpoint);
-            try {
-                lockValue = RedisLock.acquire(j, lockKey);
-
-                unsafeRemoveObservation(j, registrationId, token);
-            } finally {
-                RedisLock.release(j, lockKey, lockValue);
+        // index the observation by token, with the expiration of the observation keys
+        byte[] tokenKey = toTokenKey(token);
+        long ttl = (Long) result.get(1);
+        Response<byte[]> previousEndpoint;
+        try (Jedis j = connect(tokenKey)) {
+            Pipeline p = j.pipelined();
+            previousEndpoint = p.getSet(tokenKey, endpoint.getBytes(UTF_8));
+            if (ttl > 0) {
+                p.pexpire(tokenKey, ttl);
             }
+            p.sync();
+        }
+        invalidate(tokenKey);
+        if (previousEndpoint.get() != null && !endpoint.equals(new String(previousEndpoint.get(), UTF_8))) {
+            // the same token was used by another endpoint
+            Observation previous = removeObservationData(new String(previousEndpoint.get(), UTF_8), null, token);
+            LOG.warn("Token collision ? observation [{}] will be replaced by observation from request [{}] ",
+                    previous, obs.getRequest());
         }
+    }
 
+    @Override
+    public void remove(byte[] token) {
+        removeObservation(null, token, getEndpoint(token));
     }
 
     @Override
     public org.eclipse.californium.core.observe.Observation get(byte[] token) {
-        try (Jedis j = pool.getResource()) {
-            byte[] obs = j.get(toKey(OBS_TKN, token));
-            if (obs == null) {
-                return null;
-            } else {
-                return deserializeObs(obs);
+        String endpoint = getEndpoint(token);
+        if (endpoint == null) {
+            return null;
+        }
+        byte[] obsKey = toObsKey(endpoint, token);
+        // the serialized observation is cached as the Californium one is not immutable
+        byte[] obs = cacheActive ? (byte[]) cache.get(obsKey) : null;
+        if (obs == null) {
+            try (Jedis j = connect(obsKey)) {
+                obs = fetch(j, obsKey);
             }
         }
+        return obs == null ? null : deserializeObs(obs);
     }
 
     /* *************** Observation utility functions **************** */
 
-    private void unsafeRemoveObservation(Jedis j, String registrationId,
-            byte[] observationId) {
-        if (j.del(observationId) > 0L) {
-            j.lrem(toKey(OBS_REGID, registrationId), 0, observationId);
+    /* The endpoint of an observation, from the token index */
+    private String getEndpoint(byte[] token) {
+        byte[] tokenKey = toTokenKey(token);
+        byte[] ep = cacheActive ? (byte[]) cache.get(tokenKey) : null;
+        if (ep == null) {
+            try (Jedis j = connect(tokenKey)) {
+                ep = fetch(j, tokenKey);
+            }
+        }
+        return ep == null ? null : new String(ep, UTF_8);
+    }
+
+    /**
+     * Removes the observation with the given token and its token index, only if it belongs to the given registration
+     * when <code>registrationId</code> is not null.
+     */
+    private Observation removeObservation(String registrationId, byte[] token, String endpoint) {
+        if (endpoint == null) {
+            return null;
         }
+        Observation removed = removeObservationData(endpoint, registrationId, token);
+        if (removed != null) {
+            byte[] tokenKey = toTokenKey(token);
+            try (Jedis j = connect(tokenKey)) {
+                j.del(tokenKey);
+            }
+            invalidate(tokenKey);
+        }
+        return removed;
     }
 
-    private Collection<Observation> unsafeRemoveAllObservations(Jedis j, String registrationId) {
-        Collection<Observation> removed = new ArrayList<>();
-        byte[] regIdKey = toKey(OBS_REGID, registrationId);
+    /**
+     * Removes the observation with the given token from the keys of an endpoint, only if it belongs to the given
+     * registration when <code>registrationId</code> is not null.
+     */
+    private Observation removeObservationData(String endpoint, String registrationId, byte[] token) {
+        byte[] obsKey = toObsKey(endpoint, token);
+        try (Jedis j = connect(obsKey)) {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                // fetch the observation by token
+                byte[] data = j.get(obsKey);
+                if (data == null) {
+                    return null;
+                }
+                org.eclipse.californium.core.observe.Observation cfObs = deserializeObs(data);
+                String obsRegistrationId = extractRegistrationId(cfObs);
+                if (registrationId != null && !registrationId.equals(obsRegistrationId)) {
+                    return null;
+                }
 
-        // fetch all observations by token
-        for (byte[] token : j.lrange(regIdKey, 0, -1)) {
-            byte[] obs = j.get(toKey(OBS_TKN, token));
-            if (obs != null) {
-                removed.add(build(deserializeObs(obs)));
+                String path = new LwM2mPath(extractPath(cfObs)).toString();
+                List<byte[]> keys = Arrays.asList(obsKey, toObsListKey(endpoint, obsRegistrationId),
+                        toObsPathKey(endpoint, obsRegistrationId, path), toObsPathsKey(endpoint, obsRegistrationId));
+                List<byte[]> args = Arrays.asList(data, token, path.getBytes(UTF_8));
+                if (Long.valueOf(1).equals(REMOVE_OBSERVATION.eval(j, keys, args))) {
+                    invalidate(obsKey);
+                    return build(cfObs);
                 }
-            j.del(toKey(OBS_TKN, token));
+                // the observation was replaced meanwhile
+            }
         }
-        j.del(regIdKey);
-
-        return removed;
+        throw new IllegalStateException("Too many concurrent modifications of an observation");
     }
 
     @Override
@@ -474,6 +1068,11 @@ public class RedisRegistrationStore implements CaliforniumRegistrationStore, Sta
         return ObservationSerDes.deserialize(data);
     }
 
+    /* Retrieve the observed path from the request context */
+    private String extractPath(org.eclipse.californium.core.observe.Observation observation) {
+        return observation.getRequest().getUserContext().get(CoapRequestBuilder.CTX_LWM2M_PATH);
+    }
+
     /* Retrieve the registrationId from the request context */
     private String extractRegistrationId(org.eclipse.californium.core.observe.Observation observation) {
         return observation.getRequest().getUserContext().get(CoapRequestBuilder.CTX_REGID);
@@ -518,6 +1117,150 @@ public class RedisRegistrationStore implements CaliforniumRegistrationStore, Sta
         return endpoint;
     }
 
+    /* *************** Script utility functions **************** */
+
+    private static byte[] toBytes(long value) {
+        return Long.toString(value).getBytes(UTF_8);
+    }
+
+    /*
+     * The observation keys of a registration, read in a pipeline before a script which modifies them: the keys of a
+     * script must be declared, this script then checks they did not change meanwhile (see OBSERVATIONS_FUNCTIONS).
+     */
+    private static class ObservationKeys {
+        private final String endpoint;
+        private final String registrationId;
+        private final Response<List<byte[]>> tokens;
+        private final Response<Set<byte[]>> paths;
+
+        private ObservationKeys(Pipeline p, String endpoint, String registrationId) {
+            this.endpoint = endpoint;
+            this.registrationId = registrationId;
+            this.tokens = p.lrange(toObsListKey(endpoint, registrationId), 0, -1);
+            this.paths = p.smembers(toObsPathsKey(endpoint, registrationId));
+        }
+
+        /* Appends the KEYS and ARGV expected by the observations functions, once the pipeline is synced */
+        private void appendTo(List<byte[]> keys, List<byte[]> args) {
+            keys.add(toObsListKey(endpoint, registrationId));
+            keys.add(toObsPathsKey(endpoint, registrationId));
+            args.add(toBytes(tokens.get().size()));
+            args.add(toBytes(paths.get().size()));
+            for (byte[] token : tokens.get()) {
+                keys.add(toObsKey(endpoint, token));
+                args.add(token);
+            }
+            for (byte[] path : paths.get()) {
+                keys.add(toObsPathKey(endpoint, registrationId, new String(path, UTF_8)));
+                args.add(path);
+            }
+        }
+    }
+
+    /* The first element of a script result tells if the operation was applied */
+    private static boolean isApplied(List<?> result) {
+        return Long.valueOf(1).equals(result.get(0));
+    }
+
+    /* The observations removed by a script, after the status element */
+    private Collection<Observation> toObservations(List<?> result) {
+        Collection<Observation> observations = new ArrayList<>();
+        for (Object obs : result.subList(1, result.size())) {
+            observations.add(build(deserializeObs((byte[]) obs)));
+        }
+        return observations;
+    }
+
+    /* *************** Near cache **************** */
+
+    private Client cachedRegistration(byte[] epKey) {
+        return cacheActive ? (Client) cache.get(epKey) : null;
+    }
+
+    /* Gets a value from Redis, caching it if the cache is active */
+    private byte[] fetch(Jedis j, byte[] key) {
+        if (!cacheActive) {
+            return j.get(key);
+        }
+        long version = cache.reserve(key);
+        byte[] data = j.get(key);
+        cache.put(key, version, data, data == null ? 0 : data.length);
+        return data;
+    }
+
+    private Client fetchRegistration(Jedis j, byte[] epKey) {
+        if (!cacheActive) {
+            byte[] data = j.get(epKey);
+            return data == null ? null : deserializeReg(data);
+        }
+        long version = cache.reserve(epKey);
+        byte[] data = j.get(epKey);
+        Client r = data == null ? null : deserializeReg(data);
+        cache.put(epKey, version, r, data == null ? 0 : data.length);
+        return r;
+    }
+
+    private void invalidate(byte[] key) {
+        if (cache != null) {
+            cache.invalidate(key);
+        }
+    }
+
+    private void invalidateObservations(String endpoint, Collection<Observation> observations) {
+        for (Observation observation : observations) {
+            invalidate(toObsKey(endpoint, observation.getId()));
+            invalidate(toTokenKey(observation.getId()));
+        }
+    }
+
+    private void listenInvalidations() {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (listening) {
+                    invalidationListener = newInvalidationListener();
+                    try (Jedis j = redis.getPool().getResource()) {
+                        j.subscribe(invalidationListener, INVALIDATION_CHANNEL.getBytes(UTF_8));
+                    } catch (RuntimeException e) {
+                        LOG.warn("Redis SUBSCRIBE to cache invalidations interrupted.", e);
+                    }
+
+                    // invalidations may have been missed
+                    cacheActive = false;
+                    cache.clear();
+                    if (!listening) {
+                        return;
+                    }
+
+                    // wait & re-launch
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                    }
+                    LOG.warn("Relaunch Redis SUBSCRIBE to cache invalidations.");
+                }
+            }
+        }, String.format("Redis %s channel reader", INVALIDATION_CHANNEL));
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private BinaryJedisPubSub newInvalidationListener() {
+        return new BinaryJedisPubSub() {
+            @Override
+            public void onSubscribe(byte[] channel, int subscribedChannels) {
+                // start from an empty cache as invalidations were not received until now
+                cache.clear();
+                cacheActive = true;
+            }
+
+            @Override
+            public void onMessage(byte[] channel, byte[] key) {
+                cache.invalidate(key);
+            }
+        };
+    }
+
     /* *************** Expiration handling **************** */
 
     /**
@@ -525,8 +1268,16 @@ public class RedisRegistrationStore implements CaliforniumRegistrationStore, Sta
      */
     @Override
     public void start() {
-        // clean the registration list every minute
-        schedExecutor.scheduleAtFixedRate(new Cleaner(), 1, 1, TimeUnit.MINUTES);
+        // run before the first cleaning
+        schedExecutor.execute(new LegacyKeysMigration());
+
+        // only the expired registrations are read, so the cleaner can run often
+        schedExecutor.scheduleAtFixedRate(new Cleaner(), 10, 10, TimeUnit.SECONDS);
+
+        if (cache != null) {
+            listening = true;
+            listenInvalidations();
+        }
     }
 
     /**
@@ -534,6 +1285,12 @@ public class RedisRegistrationStore implements CaliforniumRegistrationStore, Sta
      */
     @Override
     public void stop() {
+        listening = false;
+        BinaryJedisPubSub listener = invalidationListener;
+        if (listener != null && listener.isSubscribed()) {
+            listener.unsubscribe();
+        }
+
         schedExecutor.shutdownNow();
         try {
             schedExecutor.awaitTermination(5, TimeUnit.SECONDS);
@@ -546,27 +1303,167 @@ public class RedisRegistrationStore implements CaliforniumRegistrationStore, Sta
 
     private class Cleaner implements Runnable {
 
+        private static final int BATCH_SIZE = 100;
+
         @Override
         public void run() {
+            if (leaderElection != null && !leaderElection.isLeader()) {
+                return;
+            }
+
+            for (int shard = 0; shard < EXP_SHARDS; shard++) {
+                try {
+                    clean(toExpirationKey(shard));
+                } catch (Exception e) {
+                    LOG.warn("Unexcepted Exception while registration cleaning", e);
+                }
+            }
+        }
+
+        private void clean(byte[] expKey) {
+            List<?> endpointsExpired;
+            do {
+                // only fetch the endpoints which should have expired and were not claimed by another cleaner
+                long now = System.currentTimeMillis();
+                try (Jedis j = connect(expKey)) {
+                    endpointsExpired = (List<?>) CLAIM_EXPIRED.eval(j, Collections.singletonList(expKey),
+                            Arrays.asList(toBytes(now), toBytes(now + CLEANER_CLAIM_TIMEOUT), toBytes(BATCH_SIZE)));
+                }
+                if (endpointsExpired.isEmpty()) {
+                    break;
+                }
+
+                // fetch all the expired registrations, in one round trip with a single Redis server
+                List<Response<byte[]>> data = new ArrayList<>();
+                try (RedisBatch batch = new RedisBatch(redis)) {
+                    for (Object ep : endpointsExpired) {
+                        byte[] epKey = toEndpointKey(new String((byte[]) ep, UTF_8));
+                        data.add(batch.on(epKey).get(epKey));
+                    }
+                    batch.sync();
+                }
 
-            try (Jedis j = pool.getResource()) {
-                ScanParams params = new ScanParams().match(EP_REG + "*").count(100);
-                String cursor = "0";
-                do {
-                    // TODO we probably need a lock here
-                    ScanResult<byte[]> res = j.scan(cursor.getBytes(), params);
-                    for (byte[] key : res.getResult()) {
-                        Client c = deserializeReg(j.get(key));
-                        if (!c.isAlive()) {
-                            deleteClient(j, c);
-                            expirationListener.registrationExpired(c, new ArrayList<Observation>());
+                for (int i = 0; i < endpointsExpired.size(); i++) {
+                    byte[] ep = (byte[]) endpointsExpired.get(i);
+                    byte[] registration = data.get(i).get();
+                    if (registration == null) {
+                        // registration already removed
+                        try (Jedis j = connect(expKey)) {
+                            j.zrem(expKey, ep);
                         }
+                        continue;
+                    }
+                    Client c = deserializeReg(registration);
+                    if (c.isAlive()) {
+                        // updated meanwhile
+                        try (Jedis j = connect(expKey)) {
+                            j.zadd(expKey, c.getExpirationTimeStamp(), ep);
+                        }
+                        continue;
+                    }
+                    // only removed if not updated or replaced since it was read
+                    Collection<Observation> obsRemoved = deregister(c, registration);
+                    if (obsRemoved != null && expirationListener != null) {
+                        expirationListener.registrationExpired(c, obsRemoved);
+                    }
+                }
+            } while (endpointsExpired.size() == BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Moves the registrations and observations stored without hash tags to the current key layout. The legacy keys are
+     * taken atomically, so each of them is migrated by one instance only.
+     */
+    private class LegacyKeysMigration implements Runnable {
+
+        @Override
+        public void run() {
+            int nbRegistrations = 0;
+            try {
+                for (Pool<Jedis> pool : redis.getPools()) {
+                    try (Jedis j = pool.getResource()) {
+                        // the current registration keys start with the hash tag
+                        ScanParams params = new ScanParams().match(EP_REG + "[^{]*").count(100);
+                        String cursor = ScanParams.SCAN_POINTER_START;
+                        do {
+                            ScanResult<byte[]> keys = j.scan(cursor.getBytes(UTF_8), params);
+                            for (byte[] key : keys.getResult()) {
+                                if (migrate(key)) {
+                                    nbRegistrations++;
+                                }
+                            }
+                            cursor = keys.getStringCursor();
+                        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
                     }
-                    cursor = res.getStringCursor();
-                } while (!"0".equals(cursor));
-            } catch (Exception e) {
-                LOG.warn("Unexcepted Exception while registration cleaning", e);
+                }
+                // the expiration dates are indexed again with the registrations
+                byte[] legacyExpKey = LEGACY_EXP_EP.getBytes(UTF_8);
+                try (Jedis j = connect(legacyExpKey)) {
+                    j.del(legacyExpKey);
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Unable to migrate the registrations stored with the legacy key layout", e);
+            }
+            if (nbRegistrations > 0) {
+                LOG.info("{} registrations migrated from the legacy key layout", nbRegistrations);
+            }
+        }
+
+        /* Migrates a legacy registration and its observations, returns false if it was not migrated */
+        private boolean migrate(byte[] legacyKey) {
+            byte[] data;
+            try (Jedis j = connect(legacyKey)) {
+                data = (byte[]) TAKE.eval(j, Collections.singletonList(legacyKey), Collections.<byte[]> emptyList());
+            }
+            if (data == null) {
+                // taken by another instance
+                return false;
+            }
+            Client registration = deserializeReg(data);
+            String registrationId = registration.getRegistrationId();
+            // a registration done since the upgrade is the newest one
+            boolean migrated = addRegistrationIfAbsent(registration);
+
+            byte[] listKey = toKey(LEGACY_OBS_REGID, registrationId);
+            byte[] pathsKey = toKey(LEGACY_OBS_REGID_PATHS, registrationId);
+            List<byte[]> tokens;
+            Set<byte[]> paths;
+            try (Jedis j = connect(listKey)) {
+                tokens = j.lrange(listKey, 0, -1);
+                j.del(listKey);
+            }
+            try (Jedis j = connect(pathsKey)) {
+                paths = j.smembers(pathsKey);
+                j.del(pathsKey);
+            }
+            for (byte[] path : paths) {
+                byte[] pathKey = toKey(LEGACY_OBS_REGID_PATH, registrationId + "#" + new String(path, UTF_8));
+                try (Jedis j = connect(pathKey)) {
+                    j.del(pathKey);
+                }
+            }
+            for (byte[] token : tokens) {
+                byte[] obsKey = toKey(LEGACY_OBS_TKN, token);
+                byte[] obs;
+                try (Jedis j = connect(obsKey)) {
+                    obs = (byte[]) TAKE.eval(j, Collections.singletonList(obsKey), Collections.<byte[]> emptyList());
+                }
+                if (obs != null && migrated) {
+                    try {
+                        add(deserializeObs(obs));
+                    } catch (RuntimeException e) {
+                        LOG.warn("Unable to migrate an observation of registration " + registrationId, e);
+                    }
+                }
+            }
+
+            if (!migrated) {
+                // its registration id and address index entries are ignored by their readers until they expire
+                LOG.debug("Legacy registration {} of {} dropped, the client registered again", registrationId,
+                        registration.getEndpoint());
             }
+            return migrated;
         }
     }
 
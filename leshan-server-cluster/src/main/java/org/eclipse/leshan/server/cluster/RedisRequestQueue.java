@@ -0,0 +1,349 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import static org.eclipse.leshan.util.Charsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.leshan.server.Startable;
+import org.eclipse.leshan.server.Stoppable;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * A reliable queue of request messages for one cluster instance, stored in a Redis list.</br>
+ * Producers push messages on the {@code LESHAN_REQ#Q#{<instanceUID>}} list (see {@link #enqueue(Jedis, String, String)}).
+ * The instance pops them by batches and keeps them in an in-flight sorted set, scored by their visibility deadline,
+ * until they are acknowledged. A message which is not acknowledged before its deadline is pushed back to the queue and
+ * delivered again, until the maximum number of deliveries is reached.
+ * <p>
+ * All the keys of a queue share the instance UID as hash tag, so they belong to the same Redis Cluster slot.
+ * <p>
+ * Delivery is at-least-once: a message may be delivered again if the instance stops before acknowledging it. Messages
+ * are identified by their content, so each of them must be unique (e.g. by containing a ticket).
+ * <p>
+ * The queue of an instance which stopped without handing its messages over can be opened by another instance, without
+ * consuming it, to move them to the live instances (see {@link #moveTo(String, String)}).
+ */
+public class RedisRequestQueue implements Startable, Stoppable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RedisRequestQueue.class);
+
+    private static final String QUEUE = "LESHAN_REQ#Q#";
+    private static final String PENDING = "LESHAN_REQ#PENDING#";
+    private static final String INFLIGHT = "LESHAN_REQ#INFLIGHT#";
+    private static final String DELIVERIES = "LESHAN_REQ#DELIVERIES#";
+
+    /** Blocking pop timeout, also the maximum delay to check the in-flight messages or to stop */
+    private static final int POP_TIMEOUT_SEC = 1;
+
+    // KEYS: queue, pending list, in-flight set
+    // ARGV: visibility deadline, batch size
+    // returns the popped messages, oldest first
+    private static final RedisScript CLAIM = new RedisScript("" //
+            + "local msgs = {}\n" //
+            + "local m = redis.call('RPOP', KEYS[2])\n" //
+            + "while m do msgs[#msgs + 1] = m m = redis.call('RPOP', KEYS[2]) end\n" //
+            + "while #msgs < tonumber(ARGV[2]) do\n" //
+            + "  m = redis.call('RPOP', KEYS[1])\n" //
+            + "  if not m then break end\n" //
+            + "  msgs[#msgs + 1] = m\n" //
+            + "end\n" //
+            + "for _, msg in ipairs(msgs) do redis.call('ZADD', KEYS[3], ARGV[1], msg) end\n" //
+            + "return msgs\n");
+
+    // KEYS: queue, in-flight set, deliveries hash
+    // ARGV: current time, max deliveries
+    // returns the messages dropped after too many deliveries
+    private static final RedisScript REDELIVER = new RedisScript("" //
+            + "local dropped = {}\n" //
+            + "for _, msg in ipairs(redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', ARGV[1])) do\n" //
+            + "  redis.call('ZREM', KEYS[2], msg)\n" //
+            + "  if redis.call('HINCRBY', KEYS[3], msg, 1) < tonumber(ARGV[2]) then\n" //
+            + "    redis.call('RPUSH', KEYS[1], msg)\n" //
+            + "  else\n" //
+            + "    redis.call('HDEL', KEYS[3], msg)\n" //
+            + "    dropped[#dropped + 1] = msg\n" //
+            + "  end\n" //
+            + "end\n" //
+            + "return dropped\n");
+
+    // KEYS: queue, pending list, in-flight set, deliveries hash
+    // ARGV: message
+    // returns 1 if the message was removed, 0 if it was not in the queue anymore
+    private static final RedisScript REMOVE = new RedisScript("" //
+            + "local removed = redis.call('LREM', KEYS[1], 0, ARGV[1]) + redis.call('LREM', KEYS[2], 0, ARGV[1])\n" //
+            + "  + redis.call('ZREM', KEYS[3], ARGV[1])\n" //
+            + "if removed == 0 then return 0 end\n" //
+            + "redis.call('HDEL', KEYS[4], ARGV[1])\n" //
+            + "return 1\n");
+
+    /**
+     * Receives the messages of the queue.
+     */
+    public interface Listener {
+
+        /**
+         * Called with a batch of messages, each of them must be acknowledged using {@link RedisRequestQueue#ack}.
+         */
+        void onMessages(List<String> messages);
+
+        /**
+         * Called when a message is dropped because it was not acknowledged after the maximum number of deliveries.
+         */
+        void onDropped(String message);
+    }
+
+    private final RedisConnectionProvider redis;
+    private final Listener listener;
+    private final int batchSize;
+    private final long visibilityTimeout;
+    private final int maxDeliveries;
+
+    private final byte[] queueKey;
+    private final byte[] pendingKey;
+    private final byte[] inflightKey;
+    private final byte[] deliveriesKey;
+
+    private volatile boolean running = false;
+    private Thread consumer;
+
+    /**
+     * Opens the queue of a cluster instance without consuming it: its messages can only be read and moved.
+     *
+     * @param redis the Redis connections
+     * @param instanceUID the cluster instance owning the queue
+     */
+    public RedisRequestQueue(RedisConnectionProvider redis, String instanceUID) {
+        Validate.notNull(instanceUID);
+        this.redis = redis;
+        this.listener = null;
+        this.batchSize = 0;
+        this.visibilityTimeout = 0;
+        this.maxDeliveries = 0;
+        this.queueKey = getQueueKey(instanceUID).getBytes(UTF_8);
+        this.pendingKey = (PENDING + tag(instanceUID)).getBytes(UTF_8);
+        this.inflightKey = (INFLIGHT + tag(instanceUID)).getBytes(UTF_8);
+        this.deliveriesKey = (DELIVERIES + tag(instanceUID)).getBytes(UTF_8);
+    }
+
+    /**
+     * @param redis the Redis connections
+     * @param instanceUID the cluster instance consuming the queue
+     * @param listener receives the messages
+     * @param batchSize the maximum number of messages popped at once
+     * @param visibilityTimeout the delay in milliseconds before a message which is not acknowledged is delivered again
+     * @param maxDeliveries the maximum number of deliveries of a message
+     */
+    public RedisRequestQueue(RedisConnectionProvider redis, String instanceUID, Listener listener, int batchSize,
+            long visibilityTimeout, int maxDeliveries) {
+        Validate.notNull(instanceUID);
+        Validate.notNull(listener);
+        Validate.isTrue(batchSize > 0);
+        Validate.isTrue(visibilityTimeout > 0);
+        Validate.isTrue(maxDeliveries > 0);
+        this.redis = redis;
+        this.listener = listener;
+        this.batchSize = batchSize;
+        this.visibilityTimeout = visibilityTimeout;
+        this.maxDeliveries = maxDeliveries;
+        this.queueKey = getQueueKey(instanceUID).getBytes(UTF_8);
+        this.pendingKey = (PENDING + tag(instanceUID)).getBytes(UTF_8);
+        this.inflightKey = (INFLIGHT + tag(instanceUID)).getBytes(UTF_8);
+        this.deliveriesKey = (DELIVERIES + tag(instanceUID)).getBytes(UTF_8);
+    }
+
+    /**
+     * @return the Redis list in which the requests for the given cluster instance are pushed.
+     */
+    public static String getQueueKey(String instanceUID) {
+        return QUEUE + tag(instanceUID);
+    }
+
+    private static String tag(String instanceUID) {
+        return "{" + instanceUID + "}";
+    }
+
+    /**
+     * Pushes a message in the queue of the given cluster instance.
+     *
+     * @param j a connection to the Redis node serving the queue key
+     */
+    public static void enqueue(Jedis j, String instanceUID, String message) {
+        j.lpush(getQueueKey(instanceUID), message);
+    }
+
+    /**
+     * Acknowledges messages: they will not be delivered again.
+     */
+    public void ack(Collection<String> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        byte[][] members = new byte[messages.size()][];
+        int i = 0;
+        for (String message : messages) {
+            members[i++] = message.getBytes(UTF_8);
+        }
+        try (Jedis j = connect()) {
+            Pipeline p = j.pipelined();
+            p.zrem(inflightKey, members);
+            p.hdel(deliveriesKey, members);
+            p.sync();
+        }
+    }
+
+    /**
+     * @return the messages of the queue which are not acknowledged yet, including the in-flight ones.
+     */
+    public List<String> getMessages() {
+        try (Jedis j = connect()) {
+            Pipeline p = j.pipelined();
+            Response<List<byte[]>> queued = p.lrange(queueKey, 0, -1);
+            Response<List<byte[]>> pending = p.lrange(pendingKey, 0, -1);
+            Response<Set<byte[]>> inflight = p.zrange(inflightKey, 0, -1);
+            p.sync();
+
+            List<String> messages = new ArrayList<>();
+            messages.addAll(toStrings(inflight.get()));
+            messages.addAll(toStrings(pending.get()));
+            messages.addAll(toStrings(queued.get()));
+            return messages;
+        }
+    }
+
+    /**
+     * Moves a message of this queue to the queue of another cluster instance. The queues may be served by different
+     * Redis nodes: the message is pushed before being removed, so it may be delivered twice but never lost.
+     */
+    public void moveTo(String message, String instanceUID) {
+        byte[] targetKey = getQueueKey(instanceUID).getBytes(UTF_8);
+        try (Jedis j = redis.getPool(targetKey).getResource()) {
+            j.lpush(targetKey, message.getBytes(UTF_8));
+        }
+        try (Jedis j = connect()) {
+            REMOVE.eval(j, Arrays.asList(queueKey, pendingKey, inflightKey, deliveriesKey),
+                    Collections.singletonList(message.getBytes(UTF_8)));
+        }
+    }
+
+    /* The connection to the Redis node serving the keys of this queue */
+    private Jedis connect() {
+        return redis.getPool(queueKey).getResource();
+    }
+
+    @Override
+    public synchronized void start() {
+        if (listener == null) {
+            throw new IllegalStateException("This queue is not consumed by this instance");
+        }
+        if (running) {
+            return;
+        }
+        running = true;
+        consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, String.format("Redis %s queue reader", new String(queueKey, UTF_8)));
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        if (consumer != null) {
+            try {
+                consumer.join(2000 * POP_TIMEOUT_SEC);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            consumer = null;
+        }
+    }
+
+    private void consume() {
+        long nextCheck = 0;
+        while (running) {
+            try (Jedis j = connect()) {
+                long now = System.currentTimeMillis();
+                if (now >= nextCheck) {
+                    redeliver(j, now);
+                    nextCheck = now + Math.max(visibilityTimeout / 2, 1);
+                }
+
+                List<String> messages = claim(j);
+                if (messages.isEmpty()) {
+                    // wait for a message, it is kept in the pending list until it is claimed
+                    if (j.brpoplpush(queueKey, pendingKey, POP_TIMEOUT_SEC) == null) {
+                        continue;
+                    }
+                    messages = claim(j);
+                }
+                if (!messages.isEmpty()) {
+                    listener.onMessages(messages);
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Unable to read request queue.", e);
+                // wait & retry
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException ie) {
+                }
+            }
+        }
+    }
+
+    private List<String> claim(Jedis j) {
+        byte[] deadline = Long.toString(System.currentTimeMillis() + visibilityTimeout).getBytes(UTF_8);
+        List<?> result = (List<?>) CLAIM.eval(j, Arrays.asList(queueKey, pendingKey, inflightKey),
+                Arrays.asList(deadline, Integer.toString(batchSize).getBytes(UTF_8)));
+        return toStrings(result);
+    }
+
+    private void redeliver(Jedis j, long now) {
+        List<?> result = (List<?>) REDELIVER.eval(j, Arrays.asList(queueKey, inflightKey, deliveriesKey),
+                Arrays.asList(Long.toString(now).getBytes(UTF_8), Integer.toString(maxDeliveries).getBytes(UTF_8)));
+        for (String message : toStrings(result)) {
+            LOG.warn("Request message dropped after {} deliveries: {}", maxDeliveries, message);
+            listener.onDropped(message);
+        }
+    }
+
+    private static List<String> toStrings(Collection<?> result) {
+        if (result.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> messages = new ArrayList<>(result.size());
+        for (Object message : result) {
+            messages.add(new String((byte[]) message, UTF_8));
+        }
+        return messages;
+    }
+}
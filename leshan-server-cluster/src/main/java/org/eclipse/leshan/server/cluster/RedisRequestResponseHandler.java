@@ -16,10 +16,15 @@
 package org.eclipse.leshan.server.cluster;
 
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.californium.core.Utils;
 import org.eclipse.leshan.core.node.LwM2mNode;
@@ -35,6 +40,7 @@ import org.eclipse.leshan.server.cluster.serialization.ResponseSerDes;
 import org.eclipse.leshan.server.observation.ObservationRegistry;
 import org.eclipse.leshan.server.observation.ObservationRegistryListener;
 import org.eclipse.leshan.server.response.ResponseListener;
+import org.eclipse.leshan.util.Hex;
 import org.eclipse.leshan.util.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,7 +56,19 @@ import redis.clients.util.Pool;
  * Handle Request/Response Redis API.</br>
  * Send LWM2M Request to a registered LWM2M client when JSON Request Message is received on redis {@code LESHAN_REQ}
  * channel.</br>
+ * A request can also be published on the {@code LESHAN_REQ#<instanceUID>} channel of the cluster instance responsible
+ * for its endpoint (the owner is stored in the {@code EP#UID#<endpoint>} key): it is then delivered to this instance
+ * only, instead of being received by every instance of the cluster.</br>
+ * For an at-least-once delivery, a request can be pushed in the {@code LESHAN_REQ#Q#<instanceUID>} list of the owner
+ * (see {@link RedisRequestQueue}): it is delivered again if the instance did not handle it in time.</br>
+ * When the instance is drained, its endpoints, queued requests and observations are handed over to the other members
+ * of the cluster. Optionally, when the members change, the endpoints whose owner on the {@link ConsistentHashRing} is
+ * another instance are handed over the same way (see {@link #rebalance(ConsistentHashRing)}). The queued requests of an
+ * instance which stopped without being drained are moved by the cluster leader (see {@link #reclaim}).</br>
  * Send JSON Response Message on redis {@code LESHAN_RESP} channel when LWM2M Response is received from LWM2M Client.
+ * The messages are published in batches by a {@link RedisPublisher}.</br>
+ * The requests are handled by a fixed number of threads: when their backlog is full, the thread reading the requests
+ * handles them itself, so it stops reading from Redis until the backlog is absorbed.
  */
 public class RedisRequestResponseHandler {
 
@@ -58,23 +76,52 @@ public class RedisRequestResponseHandler {
     private static final String REQUEST_CHANNEL = "LESHAN_REQ";
     private static final String RESPONSE_CHANNEL = "LESHAN_RESP";
 
+    private static final int QUEUE_BATCH_SIZE = 64;
+    private static final long QUEUE_VISIBILITY_TIMEOUT = 30000; // ms
+    private static final int QUEUE_MAX_DELIVERIES = 3;
+
+    private static final int REQUEST_THREADS = 4;
+    private static final int REQUEST_BACKLOG = 1024;
+
     private final LwM2mServer server;
+    private final RedisConnectionProvider redis;
     private final Pool<Jedis> pool;
+    private final RedisPublisher publisher;
     private final ClientRegistry clientRegistry;
     private final ExecutorService executorService;
     private final RedisTokenHandler tokenHandler;
     private final ObservationRegistry observationRegistry;
-    private final Map<KeyId, String> observatioIdToTicket = new ConcurrentHashMap<>();
+    private final Map<KeyId, ObservationTicket> observatioIdToTicket = new ConcurrentHashMap<>();
+    private final String instanceChannel;
+    private final RedisRequestQueue requestQueue;
 
     public RedisRequestResponseHandler(Pool<Jedis> p, LwM2mServer server, ClientRegistry clientRegistry,
             RedisTokenHandler tokenHandler, ObservationRegistry observationRegistry) {
+        this(new RedisPoolConnectionProvider(p), server, clientRegistry, tokenHandler, observationRegistry);
+    }
+
+    public RedisRequestResponseHandler(RedisConnectionProvider redis, LwM2mServer server,
+            ClientRegistry clientRegistry, RedisTokenHandler tokenHandler, ObservationRegistry observationRegistry) {
+        this(redis, server, clientRegistry, tokenHandler, observationRegistry, startedPublisher(redis));
+    }
+
+    /**
+     * @param publisher publishes the responses and notifications, it must be started
+     */
+    public RedisRequestResponseHandler(RedisConnectionProvider redis, LwM2mServer server,
+            ClientRegistry clientRegistry, RedisTokenHandler tokenHandler, ObservationRegistry observationRegistry,
+            RedisPublisher publisher) {
         // Listen LWM2M response
         this.server = server;
         this.clientRegistry = clientRegistry;
         this.observationRegistry = observationRegistry;
         this.tokenHandler = tokenHandler;
-        this.executorService = Executors.newCachedThreadPool(
-                new NamedThreadFactory(String.format("Redis %s channel writer", RESPONSE_CHANNEL)));
+        this.publisher = publisher;
+        this.instanceChannel = getRequestChannel(tokenHandler.getInstanceUID());
+        this.executorService = new ThreadPoolExecutor(REQUEST_THREADS, REQUEST_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(REQUEST_BACKLOG),
+                new NamedThreadFactory(String.format("Redis %s channel handler", REQUEST_CHANNEL)),
+                new ThreadPoolExecutor.CallerRunsPolicy());
 
         // Listen LWM2M notification from client
         this.observationRegistry.addListener(new ObservationRegistryListener() {
@@ -110,7 +157,9 @@ public class RedisRequestResponseHandler {
         });
 
         // Listen redis "send request" channel
-        this.pool = p;
+        // pub/sub messages are propagated to the whole cluster, any node will do
+        this.redis = redis;
+        this.pool = redis.getPool();
         new Thread(new Runnable() {
             @Override
             public void run() {
@@ -118,9 +167,9 @@ public class RedisRequestResponseHandler {
                     try (Jedis j = pool.getResource()) {
                         j.subscribe(new JedisPubSub() {
                             public void onMessage(String channel, final String message) {
-                                handleSendRequestMessage(message);
+                                handleSendRequestMessage(message, !REQUEST_CHANNEL.equals(channel));
                             };
-                        }, REQUEST_CHANNEL);
+                        }, REQUEST_CHANNEL, instanceChannel);
                     } catch (RuntimeException e) {
                         LOG.warn("Redis SUBSCRIBE interrupted.", e);
                     }
@@ -135,62 +184,103 @@ public class RedisRequestResponseHandler {
             }
         }, String.format("Redis %s channel reader", REQUEST_CHANNEL)).start();
 
-    }
+        // Consume the reliable request queue of this instance
+        this.requestQueue = new RedisRequestQueue(redis, tokenHandler.getInstanceUID(), new RedisRequestQueue.Listener() {
+            @Override
+            public void onMessages(List<String> messages) {
+                handleQueuedRequestMessages(messages);
+            }
 
-    private void handleResponse(String clientEndpoint, final String ticket, final LwM2mResponse response) {
-        executorService.submit(new Runnable() {
             @Override
-            public void run() {
-                try {
-                    sendResponse(ticket, response);
-                } catch (RuntimeException t) {
-                    LOG.error("Unable to send response.", t);
-                    sendError(ticket,
-                            String.format("Expected error while sending LWM2M response.(%s)", t.getMessage()));
-                }
+            public void onDropped(String message) {
+                handleDroppedRequestMessage(message);
             }
-        });
+        }, QUEUE_BATCH_SIZE, QUEUE_VISIBILITY_TIMEOUT, QUEUE_MAX_DELIVERIES);
+        this.requestQueue.start();
+
     }
 
-    private void handleNotification(final Observation observation, final LwM2mNode value) {
+    private static RedisPublisher startedPublisher(RedisConnectionProvider redis) {
+        RedisPublisher publisher = new RedisPublisher(redis.getPool());
+        publisher.start();
+        return publisher;
+    }
+
+    /**
+     * @return the publisher of the responses and notifications, which gives the metrics of the publication.
+     */
+    public RedisPublisher getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * @return the channel on which the requests for the endpoints owned by the given cluster instance can be published.
+     */
+    public static String getRequestChannel(String instanceUID) {
+        return REQUEST_CHANNEL + "#" + instanceUID;
+    }
+
+    // the responses are only serialized here, the publisher sends them to Redis
+
+    private void handleResponse(String clientEndpoint, String ticket, LwM2mResponse response) {
+        try {
+            sendResponse(clientEndpoint, ticket, response);
+        } catch (RuntimeException t) {
+            LOG.error("Unable to send response.", t);
+            sendError(ticket, String.format("Expected error while sending LWM2M response.(%s)", t.getMessage()));
+        }
+    }
+
+    private void handleNotification(Observation observation, LwM2mNode value) {
+        ObservationTicket observationTicket = observatioIdToTicket.get(new KeyId(observation.getId()));
+        String ticket = observationTicket == null ? null : observationTicket.ticket;
+        try {
+            sendNotification(ticket, value);
+        } catch (RuntimeException t) {
+            LOG.error("Unable to send Notification.", t);
+            sendError(ticket, String.format("Expected error while sending LWM2M Notification.(%s)", t.getMessage()));
+        }
+    }
+
+    private void handlerError(String clientEndpoint, String ticket, Exception exception) {
+        try {
+            sendError(ticket, exception.getMessage());
+        } catch (RuntimeException t) {
+            LOG.error("Unable to send error message.", t);
+        }
+    }
+
+    private void handleSendRequestMessage(final String message, final boolean routed) {
         executorService.submit(new Runnable() {
             @Override
             public void run() {
-                String ticket = observatioIdToTicket.get(new KeyId(observation.getId()));
-                try {
-                    sendNotification(ticket, value);
-                } catch (RuntimeException t) {
-                    LOG.error("Unable to send Notification.", t);
-                    sendError(ticket,
-                            String.format("Expected error while sending LWM2M Notification.(%s)", t.getMessage()));
-                }
+                sendRequest(message, routed);
             }
         });
     }
 
-    private void handlerError(String clientEndpoint, final String ticket, final Exception exception) {
+    private void handleQueuedRequestMessages(final List<String> messages) {
         executorService.submit(new Runnable() {
             @Override
             public void run() {
-                try {
-                    sendError(ticket, exception.getMessage());
-                } catch (RuntimeException t) {
-                    LOG.error("Unable to send error message.", t);
+                for (String message : messages) {
+                    sendRequest(message, true);
                 }
+                requestQueue.ack(messages);
             }
         });
     }
 
-    private void handleSendRequestMessage(final String message) {
-        executorService.submit(new Runnable() {
-            @Override
-            public void run() {
-                sendRequest(message);
-            }
-        });
+    private void handleDroppedRequestMessage(String message) {
+        try {
+            String ticket = ((JsonObject) Json.parse(message)).getString("ticket", null);
+            sendError(ticket, "Request not handled after several deliveries.");
+        } catch (RuntimeException t) {
+            LOG.error("Unable to send error message.", t);
+        }
     }
 
-    private void sendRequest(final String message) {
+    private void sendRequest(final String message, boolean routed) {
         // Parse JSON and extract ticket
         String ticket;
         JsonObject jMessage;
@@ -204,15 +294,29 @@ public class RedisRequestResponseHandler {
 
         // Now if an error occurred we can prevent message sender
         try {
+            // Observation handed over by a drained instance
+            if (routed && jMessage.get("obs") != null) {
+                byte[] observationId = Hex.decodeHex(jMessage.getString("obs", null).toCharArray());
+                observatioIdToTicket.put(new KeyId(observationId),
+                        new ObservationTicket(ticket, jMessage.getString("ep", null)));
+                return;
+            }
+
             // Check if we must handle this request
             String endpoint = jMessage.getString("ep", null);
-            if (!isResponsibleFor(endpoint))
+            if (!isResponsibleFor(endpoint, routed)) {
+                if (routed) {
+                    // the endpoint is now handled by another instance
+                    sendError(ticket, String.format("This instance is not responsible for endpoint %s.", endpoint));
+                }
                 return;
+            }
 
             // Get the registration for this endpoint
             Client destination = clientRegistry.get(endpoint);
             if (destination == null) {
                 sendError(ticket, String.format("No registration for this endpoint %s.", endpoint));
+                return;
             }
 
             // Deserialize Request
@@ -232,52 +336,167 @@ public class RedisRequestResponseHandler {
 
     }
 
-    private boolean isResponsibleFor(String endpoint) {
-        return tokenHandler.isResponsible(endpoint);
+    private boolean isResponsibleFor(String endpoint, boolean routed) {
+        if (routed) {
+            // the request was sent to this instance
+            return tokenHandler.isResponsible(endpoint);
+        }
+        // every instance receives the broadcasted requests, only query redis while the owned endpoints are not known
+        return tokenHandler.isLocallyResponsible(endpoint);
     }
 
     private void sendAck(String ticket) {
-        try (Jedis j = pool.getResource()) {
-            JsonObject m = Json.object();
-            m.add("ticket", ticket);
-            m.add("ack", true);
-            j.publish(RESPONSE_CHANNEL, m.toString());
-        }
+        JsonObject m = Json.object();
+        m.add("ticket", ticket);
+        m.add("ack", true);
+        publisher.publish(RESPONSE_CHANNEL, ticket, m.toString());
     }
 
     private void sendError(String ticket, String message) {
-        try (Jedis j = pool.getResource()) {
-            JsonObject m = Json.object();
-            m.add("ticket", ticket);
+        JsonObject m = Json.object();
+        m.add("ticket", ticket);
 
-            JsonObject err = Json.object();
-            err.add("errorMessage", message);
-
-            m.add("err", err);
-            j.publish(RESPONSE_CHANNEL, m.toString());
-        }
+        JsonObject err = Json.object();
+        err.add("errorMessage", message);
 
+        m.add("err", err);
+        publisher.publish(RESPONSE_CHANNEL, ticket, m.toString());
     }
 
     private void sendNotification(String ticket, LwM2mNode value) {
-        try (Jedis j = pool.getResource()) {
-            JsonObject m = Json.object();
-            m.add("ticket", ticket);
-            m.add("rep", ResponseSerDes.jSerialize(ObserveResponse.success(value)));
-            j.publish(RESPONSE_CHANNEL, m.toString());
-        }
+        JsonObject m = Json.object();
+        m.add("ticket", ticket);
+        m.add("rep", ResponseSerDes.jSerialize(ObserveResponse.success(value)));
+        publisher.publish(RESPONSE_CHANNEL, ticket, m.toString());
     }
 
-    private void sendResponse(String ticket, LwM2mResponse response) {
+    private void sendResponse(String endpoint, String ticket, LwM2mResponse response) {
         if (response instanceof ObserveResponse) {
             Observation observation = ((ObserveResponse) response).getObservation();
-            observatioIdToTicket.put(new KeyId(observation.getId()), ticket);
+            observatioIdToTicket.put(new KeyId(observation.getId()), new ObservationTicket(ticket, endpoint));
+        }
+        JsonObject m = Json.object();
+        m.add("ticket", ticket);
+        m.add("rep", ResponseSerDes.jSerialize(response));
+        publisher.publish(RESPONSE_CHANNEL, ticket, m.toString());
+    }
+
+    /**
+     * Removes this instance from the cluster and hands its work over to the new owners of its endpoints: the
+     * responsibility of the endpoints, the queued requests and the tickets of the observations.
+     */
+    public void drain(RedisClusterMembership membership) {
+        membership.leave();
+        requestQueue.stop();
+
+        ConsistentHashRing ring = membership.getRing();
+        for (String endpoint : tokenHandler.getOwnedEndpoints()) {
+            String owner = ring.getOwner(endpoint);
+            if (owner != null) {
+                tokenHandler.handOver(endpoint, owner);
+            }
+        }
+        handOverWork(ring, null);
+        LOG.info("Cluster instance {} drained.", tokenHandler.getInstanceUID());
+    }
+
+    /**
+     * Hands the endpoints owned by this instance whose owner on the ring is another member over to this member, with
+     * their queued requests and the tickets of their observations. It can be called when the cluster members change, so
+     * an instance joining the cluster takes its share of the endpoints. This is not done by default: the endpoints
+     * otherwise only move when an instance is drained.
+     * <p>
+     * A device keeps sending its registration updates to the instance chosen by the load balancer, which takes the
+     * endpoint back. A device using DTLS needs a new handshake with its new owner.
+     */
+    public void rebalance(ConsistentHashRing ring) {
+        String instanceUID = tokenHandler.getInstanceUID();
+        if (!ring.getMembers().contains(instanceUID)) {
+            // not a member yet, or leaving: drain() hands the endpoints over
+            return;
         }
-        try (Jedis j = pool.getResource()) {
-            JsonObject m = Json.object();
-            m.add("ticket", ticket);
-            m.add("rep", ResponseSerDes.jSerialize(response));
-            j.publish(RESPONSE_CHANNEL, m.toString());
+        Set<String> handedOver = new HashSet<>();
+        for (String endpoint : tokenHandler.getOwnedEndpoints()) {
+            String owner = ring.getOwner(endpoint);
+            if (!instanceUID.equals(owner) && tokenHandler.handOver(endpoint, owner)) {
+                handedOver.add(endpoint);
+            }
+        }
+        if (!handedOver.isEmpty()) {
+            handOverWork(ring, handedOver);
+            LOG.info("{} endpoints handed over to their owner on the ring", handedOver.size());
+        }
+    }
+
+    /**
+     * Moves the queued requests of a cluster instance which stopped without being drained to the owners of their
+     * endpoints on the ring, including the requests it was handling. It is called by the cluster leader when the
+     * instance times out (see {@link RedisClusterMembership.TimeoutListener}).
+     * <p>
+     * The requests are pushed to their new owner before being removed, so a request may be handled twice if the
+     * instance was only paused.
+     */
+    public void reclaim(String instanceUID, ConsistentHashRing ring) {
+        if (ring.getMembers().isEmpty()) {
+            throw new IllegalStateException("No live cluster instance to reclaim the requests of " + instanceUID);
+        }
+        int moved = moveQueuedRequests(new RedisRequestQueue(redis, instanceUID), ring, null);
+        if (moved > 0) {
+            LOG.info("{} queued requests of cluster instance {} reclaimed", moved, instanceUID);
+        }
+    }
+
+    /*
+     * Moves the queued requests and copies the observation tickets of the given endpoints (all of them if null) to
+     * their owner on the ring. The notifications are still published by this instance if they are received here.
+     */
+    private void handOverWork(ConsistentHashRing ring, Set<String> endpoints) {
+        moveQueuedRequests(requestQueue, ring, endpoints);
+
+        for (Map.Entry<KeyId, ObservationTicket> entry : observatioIdToTicket.entrySet()) {
+            String endpoint = entry.getValue().endpoint;
+            String owner = ring.getOwner(endpoint);
+            if (owner != null && (endpoints == null || endpoints.contains(endpoint))) {
+                JsonObject m = Json.object();
+                m.add("ticket", entry.getValue().ticket);
+                m.add("ep", endpoint);
+                m.add("obs", Hex.encodeHexString(entry.getKey().id));
+                try (Jedis j = redis.getPool(RedisRequestQueue.getQueueKey(owner).getBytes()).getResource()) {
+                    RedisRequestQueue.enqueue(j, owner, m.toString());
+                }
+            }
+        }
+    }
+
+    /*
+     * Moves the requests of the queue for the given endpoints (all of them if null) to their owner on the ring.
+     * Returns the number of moved requests.
+     */
+    private static int moveQueuedRequests(RedisRequestQueue queue, ConsistentHashRing ring, Set<String> endpoints) {
+        int moved = 0;
+        for (String message : queue.getMessages()) {
+            try {
+                String endpoint = ((JsonObject) Json.parse(message)).getString("ep", null);
+                String owner = ring.getOwner(endpoint);
+                if (owner != null && (endpoints == null || endpoints.contains(endpoint))) {
+                    queue.moveTo(message, owner);
+                    moved++;
+                }
+            } catch (RuntimeException t) {
+                LOG.warn(String.format("Unable to hand over request message %s", message), t);
+            }
+        }
+        return moved;
+    }
+
+    private static final class ObservationTicket {
+
+        private final String ticket;
+        private final String endpoint;
+
+        private ObservationTicket(String ticket, String endpoint) {
+            this.ticket = ticket;
+            this.endpoint = endpoint;
         }
     }
 
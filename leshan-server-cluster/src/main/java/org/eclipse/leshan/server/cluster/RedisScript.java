@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import static org.eclipse.leshan.util.Charsets.UTF_8;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * A Lua script executed atomically by the Redis server (see http://redis.io/commands/eval).
+ * <p>
+ * The script is invoked by its SHA1 digest and only sent to the server when it is not already in its script cache.
+ */
+public class RedisScript {
+
+    private final byte[] script;
+    private final byte[] sha1;
+
+    public RedisScript(String script) {
+        this.script = script.getBytes(UTF_8);
+        this.sha1 = sha1Hex(this.script);
+    }
+
+    /**
+     * Executes the script.
+     *
+     * @param j a Redis connection
+     * @param keys the keys accessed by the script (<code>KEYS</code> table)
+     * @param args the additional arguments (<code>ARGV</code> table)
+     * @return the script result: a <code>Long</code>, a <code>byte[]</code>, a <code>List</code> or <code>null</code>
+     */
+    public Object eval(Jedis j, List<byte[]> keys, List<byte[]> args) {
+        try {
+            return j.evalsha(sha1, keys, args);
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            // not in the server cache yet, EVAL loads it
+            return j.eval(script, keys, args);
+        }
+    }
+
+    private static byte[] sha1Hex(byte[] script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString().getBytes(UTF_8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+}
@@ -19,14 +19,23 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import org.eclipse.leshan.server.Startable;
+import org.eclipse.leshan.server.Stoppable;
 import org.eclipse.leshan.server.cluster.serialization.SecurityInfoSerDes;
 import org.eclipse.leshan.server.security.NonUniqueSecurityInfoException;
 import org.eclipse.leshan.server.security.SecurityInfo;
 import org.eclipse.leshan.server.security.SecurityRegistry;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import redis.clients.jedis.BinaryJedisPubSub;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.ScanParams;
 import redis.clients.jedis.ScanResult;
@@ -39,14 +48,48 @@ import redis.clients.util.Pool;
  * each node memory. Because they are static.
  * 
  * Security info are stored using the endpoint as primary key and a secondary index is created for psk-identity lookup.
+ * This index is split into several hashes ({@code PSKID#SEC#<shard>}), which are spread over the nodes of a Redis
+ * Cluster.
+ * 
+ * Security info can be kept in a local cache, by endpoint and by PSK identity, as they are read on every DTLS handshake
+ * and every registration request. The unknown endpoints and identities are cached for a short time too, so a flood of
+ * handshakes with unknown identities does not reach Redis. {@link #add(SecurityInfo)} and {@link #remove(String)}
+ * publish the modified entries on the {@value #INVALIDATION_CHANNEL} channel, so each cluster instance evicts them from
+ * its cache. The cache is only used while this channel is listened.
  */
-public class RedisSecurityRegistry implements SecurityRegistry {
+public class RedisSecurityRegistry implements SecurityRegistry, Startable, Stoppable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RedisSecurityRegistry.class);
 
     private static final String SEC_EP = "SEC#EP#";
 
-    private static final String PSKID_SEC = "PSKID#SEC";
+    private static final String PSKID_SEC = "PSKID#SEC#";
+
+    // The index of the previous versions, a single hash, still read when an identity is not found in the shards
+    private static final String LEGACY_PSKID_SEC = "PSKID#SEC";
+
+    private static final int PSKID_SHARDS = 64;
+
+    // Redis channel on which the modified cache entries are published
+    public static final String INVALIDATION_CHANNEL = "LESHAN_SEC_INV";
+
+    // Cache entries of the security info by PSK identity, they do not exist in Redis
+    private static final String CACHE_PSKID = "CACHE#PSKID#";
 
-    private final Pool<Jedis> pool;
+    // Time during which an unknown endpoint or identity is cached
+    private static final long NEGATIVE_CACHE_TTL = TimeUnit.SECONDS.toMillis(5);
+
+    // Size of the cache entry of an unknown endpoint or identity, in addition to its key
+    private static final int MISSING_SIZE = 16;
+
+    private final RedisConnectionProvider redis;
+
+    // Local cache of the security info, null if disabled
+    private final NearCache cache;
+    // Only used while the invalidations are received
+    private volatile boolean cacheActive = false;
+    private volatile boolean listening = false;
+    private volatile BinaryJedisPubSub invalidationListener;
 
     private PublicKey serverPublicKey = null;
 
@@ -58,22 +101,72 @@ public class RedisSecurityRegistry implements SecurityRegistry {
 
     public RedisSecurityRegistry(Pool<Jedis> pool, PrivateKey serverPrivateKey, X509Certificate[] serverX509CertChain,
             Certificate[] trustedCertificates) {
-        this.pool = pool;
+        this(new RedisPoolConnectionProvider(pool), serverPrivateKey, serverX509CertChain, trustedCertificates);
+    }
+
+    public RedisSecurityRegistry(Pool<Jedis> pool, PrivateKey serverPrivateKey, PublicKey serverPublicKey) {
+        this(new RedisPoolConnectionProvider(pool), serverPrivateKey, serverPublicKey);
+    }
+
+    public RedisSecurityRegistry(RedisConnectionProvider redis, PrivateKey serverPrivateKey,
+            X509Certificate[] serverX509CertChain, Certificate[] trustedCertificates) {
+        this(redis, 0, serverPrivateKey, serverX509CertChain, trustedCertificates);
+    }
+
+    public RedisSecurityRegistry(RedisConnectionProvider redis, PrivateKey serverPrivateKey,
+            PublicKey serverPublicKey) {
+        this(redis, 0, serverPrivateKey, serverPublicKey);
+    }
+
+    /**
+     * @param redis the Redis connections, a single server or a Redis Cluster
+     * @param cacheSize the maximum size in bytes of the local cache of security info, 0 to disable it
+     */
+    public RedisSecurityRegistry(RedisConnectionProvider redis, long cacheSize, PrivateKey serverPrivateKey,
+            X509Certificate[] serverX509CertChain, Certificate[] trustedCertificates) {
+        this(redis, cacheSize);
         this.serverPrivateKey = serverPrivateKey;
         this.serverX509CertChain = serverX509CertChain;
         this.trustedCertificates = trustedCertificates;
     }
 
-    public RedisSecurityRegistry(Pool<Jedis> pool, PrivateKey serverPrivateKey, PublicKey serverPublicKey) {
-        this.pool = pool;
+    /**
+     * @param redis the Redis connections, a single server or a Redis Cluster
+     * @param cacheSize the maximum size in bytes of the local cache of security info, 0 to disable it
+     */
+    public RedisSecurityRegistry(RedisConnectionProvider redis, long cacheSize, PrivateKey serverPrivateKey,
+            PublicKey serverPublicKey) {
+        this(redis, cacheSize);
         this.serverPrivateKey = serverPrivateKey;
         this.serverPublicKey = serverPublicKey;
     }
 
+    private RedisSecurityRegistry(RedisConnectionProvider redis, long cacheSize) {
+        Validate.notNull(redis);
+        Validate.isTrue(cacheSize >= 0, "cache size must not be negative");
+        this.redis = redis;
+        this.cache = cacheSize > 0 ? new NearCache(cacheSize) : null;
+    }
+
     @Override
     public SecurityInfo getByEndpoint(String endpoint) {
-        try (Jedis j = pool.getResource()) {
-            byte[] data = j.get((SEC_EP + endpoint).getBytes());
+        byte[] key = (SEC_EP + endpoint).getBytes();
+        if (!cacheActive) {
+            return fetchByEndpoint(key);
+        }
+        Object cached = cache.get(key);
+        if (isValid(cached)) {
+            return cached instanceof SecurityInfo ? (SecurityInfo) cached : null;
+        }
+        long version = cache.reserve(key);
+        SecurityInfo info = fetchByEndpoint(key);
+        cacheLoaded(key, version, info);
+        return info;
+    }
+
+    private SecurityInfo fetchByEndpoint(byte[] key) {
+        try (Jedis j = redis.getPool(key).getResource()) {
+            byte[] data = j.get(key);
             if (data == null) {
                 return null;
             } else {
@@ -84,67 +177,237 @@ public class RedisSecurityRegistry implements SecurityRegistry {
 
     @Override
     public SecurityInfo getByIdentity(String identity) {
-        try (Jedis j = pool.getResource()) {
-            String ep = j.hget(PSKID_SEC, identity);
-            if (ep == null) {
-                return null;
-            } else {
-                byte[] data = j.get((SEC_EP + ep).getBytes());
-                if (data == null) {
-                    return null;
-                } else {
-                    return deserialize(data);
-                }
+        if (!cacheActive) {
+            return fetchByIdentity(identity);
+        }
+        byte[] key = toCachedIdentityKey(identity);
+        Object cached = cache.get(key);
+        if (isValid(cached)) {
+            return cached instanceof SecurityInfo ? (SecurityInfo) cached : null;
+        }
+        long version = cache.reserve(key);
+        SecurityInfo info = fetchByIdentity(identity);
+        cacheLoaded(key, version, info);
+        return info;
+    }
+
+    private SecurityInfo fetchByIdentity(String identity) {
+        byte[] pskIdKey = toPskIdKey(identity);
+        String ep;
+        try (Jedis j = redis.getPool(pskIdKey).getResource()) {
+            ep = j.hget(new String(pskIdKey), identity);
+        }
+        if (ep == null) {
+            byte[] legacyKey = LEGACY_PSKID_SEC.getBytes();
+            try (Jedis j = redis.getPool(legacyKey).getResource()) {
+                ep = j.hget(LEGACY_PSKID_SEC, identity);
             }
         }
+        if (ep == null) {
+            return null;
+        } else {
+            return fetchByEndpoint((SEC_EP + ep).getBytes());
+        }
     }
 
     @Override
     public Collection<SecurityInfo> getAll() {
-        try (Jedis j = pool.getResource()) {
-            ScanParams params = new ScanParams().match(SEC_EP + "*").count(100);
-            Collection<SecurityInfo> list = new LinkedList<>();
-            String cursor = "0";
-            do {
-                ScanResult<byte[]> res = j.scan(cursor.getBytes(), params);
-                for (byte[] key : res.getResult()) {
-                    byte[] element = j.get(key);
-                    list.add(deserialize(element));
-                }
-                cursor = res.getStringCursor();
-            } while (!"0".equals(cursor));
-            return list;
+        Collection<SecurityInfo> list = new LinkedList<>();
+        for (Pool<Jedis> pool : redis.getPools()) {
+            try (Jedis j = pool.getResource()) {
+                ScanParams params = new ScanParams().match(SEC_EP + "*").count(100);
+                String cursor = "0";
+                do {
+                    ScanResult<byte[]> res = j.scan(cursor.getBytes(), params);
+                    for (byte[] key : res.getResult()) {
+                        byte[] element = j.get(key);
+                        if (element != null) {
+                            list.add(deserialize(element));
+                        }
+                    }
+                    cursor = res.getStringCursor();
+                } while (!"0".equals(cursor));
+            }
         }
+        return list;
     }
 
     @Override
     public SecurityInfo add(SecurityInfo info) throws NonUniqueSecurityInfoException {
         byte[] data = serialize(info);
-        try (Jedis j = pool.getResource()) {
-            j.set((SEC_EP + info.getEndpoint()).getBytes(), data);
-            if (info.getIdentity() != null) {
-                // populate the secondary index (security info by PSK id)
-                j.hset(PSKID_SEC.getBytes(), info.getIdentity().getBytes(), info.getEndpoint().getBytes());
+        byte[] key = (SEC_EP + info.getEndpoint()).getBytes();
+        byte[] previous;
+        try (Jedis j = redis.getPool(key).getResource()) {
+            previous = j.getSet(key, data);
+        }
+        if (info.getIdentity() != null) {
+            // populate the secondary index (security info by PSK id)
+            byte[] pskIdKey = toPskIdKey(info.getIdentity());
+            try (Jedis j = redis.getPool(pskIdKey).getResource()) {
+                j.hset(pskIdKey, info.getIdentity().getBytes(), info.getEndpoint().getBytes());
             }
-            return null;
         }
+
+        List<byte[]> modified = new ArrayList<>(3);
+        modified.add(key);
+        if (info.getIdentity() != null) {
+            modified.add(toCachedIdentityKey(info.getIdentity()));
+        }
+        if (previous != null) {
+            String previousIdentity = deserialize(previous).getIdentity();
+            if (previousIdentity != null && !previousIdentity.equals(info.getIdentity())) {
+                modified.add(toCachedIdentityKey(previousIdentity));
+            }
+        }
+        publishInvalidations(modified);
+        return null;
     }
 
     @Override
     public SecurityInfo remove(String endpoint) {
-        try (Jedis j = pool.getResource()) {
-            byte[] data = j.get((SEC_EP + endpoint).getBytes());
+        byte[] key = (SEC_EP + endpoint).getBytes();
+        byte[] data;
+        try (Jedis j = redis.getPool(key).getResource()) {
+            data = j.get(key);
+            if (data == null) {
+                return null;
+            }
+            j.del(key);
+        }
+
+        SecurityInfo info = deserialize(data);
+        if (info.getIdentity() != null) {
+            byte[] pskIdKey = toPskIdKey(info.getIdentity());
+            try (Jedis j = redis.getPool(pskIdKey).getResource()) {
+                j.hdel(pskIdKey, info.getIdentity().getBytes());
+            }
+            byte[] legacyKey = LEGACY_PSKID_SEC.getBytes();
+            try (Jedis j = redis.getPool(legacyKey).getResource()) {
+                j.hdel(legacyKey, info.getIdentity().getBytes());
+            }
+        }
+
+        List<byte[]> modified = new ArrayList<>(2);
+        modified.add(key);
+        if (info.getIdentity() != null) {
+            modified.add(toCachedIdentityKey(info.getIdentity()));
+        }
+        publishInvalidations(modified);
+        return info;
+    }
+
+    /* The shard of the PSK identity index containing this identity */
+    private static byte[] toPskIdKey(String identity) {
+        return (PSKID_SEC + (identity.hashCode() & Integer.MAX_VALUE) % PSKID_SHARDS).getBytes();
+    }
+
+    /* *************** Cache **************** */
 
-            if (data != null) {
-                SecurityInfo info = deserialize(data);
-                if (info.getIdentity() != null) {
-                    j.hdel(PSKID_SEC.getBytes(), info.getIdentity().getBytes());
+    /* The cached value of an unknown endpoint or identity */
+    private static class Missing {
+        final long expiration;
+
+        Missing(long expiration) {
+            this.expiration = expiration;
+        }
+    }
+
+    private static byte[] toCachedIdentityKey(String identity) {
+        return (CACHE_PSKID + identity).getBytes();
+    }
+
+    private static boolean isValid(Object cached) {
+        if (cached instanceof Missing) {
+            return ((Missing) cached).expiration > System.currentTimeMillis();
+        }
+        return cached != null;
+    }
+
+    private void cacheLoaded(byte[] key, long version, SecurityInfo info) {
+        if (info == null) {
+            cache.put(key, version, new Missing(System.currentTimeMillis() + NEGATIVE_CACHE_TTL), MISSING_SIZE);
+        } else {
+            cache.put(key, version, info, serialize(info).length);
+        }
+    }
+
+    private void publishInvalidations(List<byte[]> keys) {
+        if (cache != null) {
+            // the entries loaded concurrently by this instance are not cached
+            for (byte[] key : keys) {
+                cache.invalidate(key);
+            }
+        }
+        try (Jedis j = redis.getPool().getResource()) {
+            for (byte[] key : keys) {
+                j.publish(INVALIDATION_CHANNEL.getBytes(), key);
+            }
+        }
+    }
+
+    private void listenInvalidations() {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (listening) {
+                    invalidationListener = newInvalidationListener();
+                    try (Jedis j = redis.getPool().getResource()) {
+                        j.subscribe(invalidationListener, INVALIDATION_CHANNEL.getBytes());
+                    } catch (RuntimeException e) {
+                        LOG.warn("Redis SUBSCRIBE to security info invalidations interrupted.", e);
+                    }
+
+                    // invalidations may have been missed
+                    cacheActive = false;
+                    cache.clear();
+                    if (!listening) {
+                        return;
+                    }
+
+                    // wait & re-launch
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                    }
+                    LOG.warn("Relaunch Redis SUBSCRIBE to security info invalidations.");
                 }
-                j.del((SEC_EP + endpoint).getBytes());
-                return info;
             }
+        }, String.format("Redis %s channel reader", INVALIDATION_CHANNEL));
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private BinaryJedisPubSub newInvalidationListener() {
+        return new BinaryJedisPubSub() {
+            @Override
+            public void onSubscribe(byte[] channel, int subscribedChannels) {
+                // start from an empty cache as invalidations were not received until now
+                cache.clear();
+                cacheActive = true;
+            }
+
+            @Override
+            public void onMessage(byte[] channel, byte[] key) {
+                cache.invalidate(key);
+            }
+        };
+    }
+
+    @Override
+    public void start() {
+        if (cache != null) {
+            listening = true;
+            listenInvalidations();
+        }
+    }
+
+    @Override
+    public void stop() {
+        listening = false;
+        BinaryJedisPubSub listener = invalidationListener;
+        if (listener != null && listener.isSubscribed()) {
+            listener.unsubscribe();
         }
-        return null;
     }
 
     @Override
@@ -15,68 +15,288 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.cluster;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.eclipse.leshan.server.Startable;
+import org.eclipse.leshan.server.Stoppable;
 import org.eclipse.leshan.server.client.Client;
 import org.eclipse.leshan.server.client.ClientRegistryListener;
 import org.eclipse.leshan.server.client.ClientUpdate;
 import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonObject;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
 import redis.clients.util.Pool;
 
 /**
  * Only one cluster instance can be responsible of a given LWM2M client at a given moment. (This restriction is mainly
  * due to the DTLS session)</br>
  * This class store the couple Cluster instance / LwM2M client in a Redis Store.</br>
- * Each Cluster instance is identified by a unique UI and each device by its endpoint.
+ * Each Cluster instance is identified by a unique UI and each device by its endpoint.</br>
+ * Each instance also keeps the set of endpoints it is responsible for: a change of owner is published on the redis
+ * {@code LESHAN_OWNER} channel, so the previous owner knows it is no more responsible for this endpoint. This set is
+ * rebuilt from Redis each time the channel is (re)subscribed, Redis is queried until it is rebuilt.
  */
-public class RedisTokenHandler implements ClientRegistryListener {
+public class RedisTokenHandler implements ClientRegistryListener, Startable, Stoppable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RedisTokenHandler.class);
 
     private static final String EP_UID = "EP#UID#";
-    private final Pool<Jedis> pool;
+    private static final String OWNER_CHANNEL = "LESHAN_OWNER";
+
+    // KEYS: owner key
+    // ARGV: current owner, new owner
+    // returns 1 if the endpoint was still owned by the current owner, 0 otherwise
+    private static final RedisScript HAND_OVER = new RedisScript("" //
+            + "if redis.call('GET', KEYS[1]) ~= ARGV[1] then return 0 end\n" //
+            + "local ttl = redis.call('PTTL', KEYS[1])\n" //
+            + "redis.call('SET', KEYS[1], ARGV[2])\n" //
+            + "if ttl > 0 then redis.call('PEXPIRE', KEYS[1], ttl) end\n" //
+            + "return 1\n");
+    private final RedisConnectionProvider redis;
     private final String instanceUID;
 
+    // endpoints this instance is responsible for
+    private final Set<String> ownedEndpoints = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // true when ownedEndpoints contains all the endpoints owned by this instance
+    private volatile boolean warm = false;
+    private volatile boolean listening = false;
+    private volatile JedisPubSub ownerListener;
+
     public RedisTokenHandler(Pool<Jedis> j, String instanceUID) {
+        this(new RedisPoolConnectionProvider(j), instanceUID);
+    }
+
+    public RedisTokenHandler(RedisConnectionProvider redis, String instanceUID) {
         Validate.notNull(instanceUID);
         this.instanceUID = instanceUID;
-        this.pool = j;
+        this.redis = redis;
+    }
+
+    public String getInstanceUID() {
+        return instanceUID;
     }
 
     @Override
     public void registered(Client client) {
-        try (Jedis j = pool.getResource()) {
-            // create registration entry
-            byte[] k = (EP_UID + client.getEndpoint()).getBytes();
-            j.set(k, instanceUID.getBytes());
-            j.expire(k, client.getLifeTimeInSec().intValue());
-        }
+        takeOwnership(client);
     }
 
     @Override
     public void updated(ClientUpdate update, Client clientUpdated) {
-        try (Jedis j = pool.getResource()) {
-            // create registration entry
-            byte[] k = (EP_UID + clientUpdated.getEndpoint()).getBytes();
-            j.set(k, instanceUID.getBytes());
-            j.expire(k, clientUpdated.getLifeTimeInSec().intValue());
+        takeOwnership(clientUpdated);
+    }
+
+    private void takeOwnership(Client client) {
+        ownedEndpoints.add(client.getEndpoint());
+        // create registration entry
+        byte[] k = (EP_UID + client.getEndpoint()).getBytes();
+        try (Jedis j = redis.getPool(k).getResource()) {
+            byte[] previousOwner = j.getSet(k, instanceUID.getBytes());
+            j.expire(k, client.getLifeTimeInSec().intValue());
+
+            if (!Arrays.equals(previousOwner, instanceUID.getBytes())) {
+                // let the previous owner know
+                publishOwner(j, client.getEndpoint(), instanceUID);
+            }
         }
     }
 
+    /**
+     * Gives the responsibility of an endpoint owned by this instance to another one.
+     *
+     * @return true if the endpoint was handed over, false if this instance was no more responsible for it
+     */
+    public boolean handOver(String endpoint, String newOwner) {
+        ownedEndpoints.remove(endpoint);
+        byte[] k = (EP_UID + endpoint).getBytes();
+        try (Jedis j = redis.getPool(k).getResource()) {
+            Object result = HAND_OVER.eval(j, Collections.singletonList(k),
+                    Arrays.asList(instanceUID.getBytes(), newOwner.getBytes()));
+            if (!Long.valueOf(1).equals(result)) {
+                return false;
+            }
+            publishOwner(j, endpoint, newOwner);
+            return true;
+        }
+    }
+
+    private void publishOwner(Jedis j, String endpoint, String owner) {
+        JsonObject m = Json.object();
+        m.add("ep", endpoint);
+        m.add("uid", owner);
+        j.publish(OWNER_CHANNEL, m.toString());
+    }
+
+    /**
+     * @return a snapshot of the endpoints this instance is responsible for.
+     */
+    public Set<String> getOwnedEndpoints() {
+        return new HashSet<>(ownedEndpoints);
+    }
+
     @Override
     public void unregistered(Client client) {
-        try (Jedis j = pool.getResource()) {
-            // create registration entry
-            byte[] k = (EP_UID + client.getEndpoint()).getBytes();
+        ownedEndpoints.remove(client.getEndpoint());
+        // create registration entry
+        byte[] k = (EP_UID + client.getEndpoint()).getBytes();
+        try (Jedis j = redis.getPool(k).getResource()) {
             j.del(k);
         }
     }
 
+    /**
+     * @return true if this instance is responsible for this endpoint, without any request to Redis once the owned
+     *         endpoints are known.
+     */
+    public boolean isLocallyResponsible(String endpoint) {
+        if (ownedEndpoints.contains(endpoint)) {
+            return true;
+        }
+        if (warm) {
+            return false;
+        }
+        // the owned endpoints are being rebuilt
+        return isResponsible(endpoint);
+    }
+
     public boolean isResponsible(String endpoint) {
-        try (Jedis j = pool.getResource()) {
-            byte[] k = (EP_UID + endpoint).getBytes();
+        if (ownedEndpoints.contains(endpoint)) {
+            return true;
+        }
+
+        // the endpoint may have been registered before this instance was restarted
+        byte[] k = (EP_UID + endpoint).getBytes();
+        try (Jedis j = redis.getPool(k).getResource()) {
             byte[] data = j.get(k);
-            return data != null && Arrays.equals(data, instanceUID.getBytes());
+            if (data != null && Arrays.equals(data, instanceUID.getBytes())) {
+                ownedEndpoints.add(endpoint);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Start listening changes of owner.
+     */
+    @Override
+    public void start() {
+        listening = true;
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (listening) {
+                    ownerListener = new JedisPubSub() {
+                        @Override
+                        public void onSubscribe(String channel, int subscribedChannels) {
+                            // the changes of owner published from now are received after the rebuild
+                            loadOwnedEndpoints();
+                        }
+
+                        @Override
+                        public void onMessage(String channel, String message) {
+                            handleOwnerMessage(message);
+                        }
+                    };
+                    try (Jedis j = redis.getPool().getResource()) {
+                        j.subscribe(ownerListener, OWNER_CHANNEL);
+                    } catch (RuntimeException e) {
+                        LOG.warn("Redis SUBSCRIBE interrupted.", e);
+                    }
+                    if (!listening) {
+                        return;
+                    }
+
+                    // changes of owner may have been missed
+                    warm = false;
+                    ownedEndpoints.clear();
+
+                    // wait & re-launch
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                    }
+                    LOG.warn("Relaunch Redis SUBSCRIBE.");
+                }
+            }
+        }, String.format("Redis %s channel reader", OWNER_CHANNEL));
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public void stop() {
+        listening = false;
+        JedisPubSub listener = ownerListener;
+        if (listener != null && listener.isSubscribed()) {
+            listener.unsubscribe();
+        }
+    }
+
+    /**
+     * Rebuilds the set of owned endpoints from the owner keys of every Redis node.
+     */
+    private void loadOwnedEndpoints() {
+        try {
+            int nbEndpoints = 0;
+            for (Pool<Jedis> pool : redis.getPools()) {
+                try (Jedis j = pool.getResource()) {
+                    ScanParams params = new ScanParams().match(EP_UID + "*").count(1000);
+                    String cursor = ScanParams.SCAN_POINTER_START;
+                    do {
+                        ScanResult<String> keys = j.scan(cursor, params);
+                        Pipeline p = j.pipelined();
+                        List<Response<String>> owners = new ArrayList<>(keys.getResult().size());
+                        for (String key : keys.getResult()) {
+                            owners.add(p.get(key));
+                        }
+                        p.sync();
+                        for (int i = 0; i < owners.size(); i++) {
+                            if (instanceUID.equals(owners.get(i).get())) {
+                                ownedEndpoints.add(keys.getResult().get(i).substring(EP_UID.length()));
+                                nbEndpoints++;
+                            }
+                        }
+                        cursor = keys.getStringCursor();
+                    } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+                }
+            }
+            warm = true;
+            LOG.debug("{} endpoints owned by instance {}", nbEndpoints, instanceUID);
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to load the endpoints owned by this instance, Redis is queried instead", e);
+        }
+    }
+
+    private void handleOwnerMessage(String message) {
+        try {
+            JsonObject m = (JsonObject) Json.parse(message);
+            String endpoint = m.getString("ep", null);
+            if (instanceUID.equals(m.getString("uid", null))) {
+                // handed over by another instance
+                ownedEndpoints.add(endpoint);
+            } else {
+                ownedEndpoints.remove(endpoint);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn(String.format("Invalid owner message: %s", message), e);
         }
     }
 }
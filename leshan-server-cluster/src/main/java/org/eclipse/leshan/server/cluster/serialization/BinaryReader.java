@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster.serialization;
+
+import static org.eclipse.leshan.util.Charsets.UTF_8;
+
+import java.util.Arrays;
+
+/**
+ * Reads the binary format written by {@link BinaryWriter}.
+ */
+class BinaryReader {
+
+    private final byte[] data;
+    private int position;
+
+    BinaryReader(byte[] data) {
+        this.data = data;
+    }
+
+    int readByte() {
+        if (position >= data.length) {
+            throw new IllegalArgumentException("Unexpected end of data");
+        }
+        return data[position++] & 0xFF;
+    }
+
+    long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed variable length integer");
+    }
+
+    int readVarInt() {
+        long value = readVarLong();
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Integer value out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    long readZigZag() {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    byte[] readBytes() {
+        int length = readVarInt() - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > data.length - position) {
+            throw new IllegalArgumentException("Unexpected end of data");
+        }
+        byte[] value = Arrays.copyOfRange(data, position, position + length);
+        position += length;
+        return value;
+    }
+
+    String readString() {
+        byte[] value = readBytes();
+        return value == null ? null : new String(value, UTF_8);
+    }
+}
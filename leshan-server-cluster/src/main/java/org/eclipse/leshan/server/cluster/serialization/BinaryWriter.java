@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster.serialization;
+
+import static org.eclipse.leshan.util.Charsets.UTF_8;
+
+import java.util.Arrays;
+
+/**
+ * Writes the compact binary format shared by the serializers of this package.
+ * <p>
+ * Integers are written as variable length quantities (7 bits per byte, least significant group first), strings and
+ * byte arrays are prefixed with their length plus one, a zero length meaning <code>null</code>.
+ */
+class BinaryWriter {
+
+    private byte[] buffer;
+    private int size;
+
+    BinaryWriter(int initialCapacity) {
+        buffer = new byte[initialCapacity];
+    }
+
+    BinaryWriter writeByte(int value) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) value;
+        return this;
+    }
+
+    BinaryWriter writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+        return this;
+    }
+
+    /** Writes a signed value, small negative values are kept short using the zigzag encoding */
+    BinaryWriter writeZigZag(long value) {
+        return writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    BinaryWriter writeBytes(byte[] value) {
+        if (value == null) {
+            return writeVarLong(0);
+        }
+        writeVarLong(value.length + 1);
+        ensureCapacity(value.length);
+        System.arraycopy(value, 0, buffer, size, value.length);
+        size += value.length;
+        return this;
+    }
+
+    BinaryWriter writeString(String value) {
+        return writeBytes(value == null ? null : value.getBytes(UTF_8));
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    private void ensureCapacity(int length) {
+        if (size + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+        }
+    }
+}
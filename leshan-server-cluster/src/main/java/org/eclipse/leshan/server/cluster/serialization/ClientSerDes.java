@@ -15,7 +15,11 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.cluster.serialization;
 
+import static org.eclipse.leshan.util.Charsets.UTF_8;
+
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -30,10 +34,17 @@ import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonValue;
 
 /**
- * Functions for serialize and deserialize a Client in JSON.
+ * Functions for serialize and deserialize a Client in JSON or in a compact binary format.
+ * <p>
+ * The binary format starts with a version byte, {@link #deserialize(byte[])} also reads the JSON format used before.
  */
 public class ClientSerDes {
 
+    private static final int BINARY_V1 = 1;
+
+    private static final int FLAG_SMS = 1;
+    private static final int FLAG_ATTRIBUTES = 1 << 1;
+
     public static JsonObject jSerialize(Client c) {
         JsonObject o = Json.object();
         o.add("regDate", c.getRegistrationDate().getTime());
@@ -81,7 +92,35 @@ public class ClientSerDes {
     }
 
     public static byte[] bSerialize(Client c) {
-        return jSerialize(c).toString().getBytes();
+        BinaryWriter out = new BinaryWriter(256);
+        out.writeByte(BINARY_V1);
+
+        Map<String, String> addAttr = c.getAdditionalRegistrationAttributes();
+        int flags = (c.getSmsNumber() != null ? FLAG_SMS : 0) | (addAttr.isEmpty() ? 0 : FLAG_ATTRIBUTES);
+        out.writeByte(flags);
+
+        out.writeString(c.getRegistrationId());
+        out.writeString(c.getEndpoint());
+        out.writeBytes(c.getAddress().getAddress());
+        out.writeVarLong(c.getPort());
+        writeSocketAddress(out, c.getRegistrationEndpointAddress());
+        out.writeVarLong(c.getLifeTimeInSec());
+        if (c.getSmsNumber() != null) {
+            out.writeString(c.getSmsNumber());
+        }
+        out.writeString(c.getLwM2mVersion());
+        out.writeString(c.getBindingMode().name());
+        out.writeVarLong(c.getRegistrationDate().getTime());
+        out.writeVarLong(c.getLastUpdate().getTime());
+        LinkObjectSerDes.write(out, c.getObjectLinks());
+        if (!addAttr.isEmpty()) {
+            out.writeVarLong(addAttr.size());
+            for (Map.Entry<String, String> e : addAttr.entrySet()) {
+                out.writeString(e.getKey());
+                out.writeString(e.getValue());
+            }
+        }
+        return out.toByteArray();
     }
 
     public static Client deserialize(JsonObject jObj) {
@@ -128,6 +167,67 @@ public class ClientSerDes {
     }
 
     public static Client deserialize(byte[] data) {
-        return deserialize((JsonObject) Json.parse(new String(data)));
+        if (data.length > 0 && data[0] == '{') {
+            // JSON format
+            return deserialize((JsonObject) Json.parse(new String(data, UTF_8)));
+        }
+
+        BinaryReader in = new BinaryReader(data);
+        int version = in.readByte();
+        if (version != BINARY_V1) {
+            throw new IllegalArgumentException("Unsupported client format version: " + version);
+        }
+        int flags = in.readByte();
+
+        String regId = in.readString();
+        String ep = in.readString();
+        InetAddress address = toInetAddress(in.readBytes());
+        int port = in.readVarInt();
+        InetSocketAddress regAddress = readSocketAddress(in);
+        Client.Builder b = new Client.Builder(regId, ep, address, port, regAddress);
+        b.lifeTimeInSec(in.readVarLong());
+        if ((flags & FLAG_SMS) != 0) {
+            b.smsNumber(in.readString());
+        }
+        b.lwM2mVersion(in.readString());
+        b.bindingMode(BindingMode.valueOf(in.readString()));
+        b.registrationDate(new Date(in.readVarLong()));
+        b.lastUpdate(new Date(in.readVarLong()));
+        b.objectLinks(LinkObjectSerDes.read(in));
+        if ((flags & FLAG_ATTRIBUTES) != 0) {
+            int size = in.readVarInt();
+            Map<String, String> addAttr = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                addAttr.put(in.readString(), in.readString());
+            }
+            b.additionalRegistrationAttributes(addAttr);
+        }
+        return b.build();
+    }
+
+    private static void writeSocketAddress(BinaryWriter out, InetSocketAddress address) {
+        if (address.isUnresolved()) {
+            out.writeBytes(null).writeString(address.getHostString());
+        } else {
+            out.writeBytes(address.getAddress().getAddress());
+        }
+        out.writeVarLong(address.getPort());
+    }
+
+    private static InetSocketAddress readSocketAddress(BinaryReader in) {
+        byte[] ip = in.readBytes();
+        if (ip == null) {
+            String host = in.readString();
+            return InetSocketAddress.createUnresolved(host, in.readVarInt());
+        }
+        return new InetSocketAddress(toInetAddress(ip), in.readVarInt());
+    }
+
+    static InetAddress toInetAddress(byte[] ip) {
+        try {
+            return InetAddress.getByAddress(ip);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid IP address", e);
+        }
     }
 }
\ No newline at end of file
@@ -15,6 +15,8 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.cluster.serialization;
 
+import static org.eclipse.leshan.util.Charsets.UTF_8;
+
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.HashMap;
@@ -30,10 +32,20 @@ import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonValue;
 
 /**
- * Functions for serialize and deserialize a ClientUpdate in JSON.
+ * Functions for serialize and deserialize a ClientUpdate in JSON or in a compact binary format.
+ * <p>
+ * The binary format starts with a version byte, {@link #deserialize(byte[])} also reads the JSON format used before.
  */
 public class ClientUpdateSerDes {
 
+    private static final int BINARY_V1 = 1;
+
+    // optional fields
+    private static final int FLAG_LIFETIME = 1;
+    private static final int FLAG_SMS = 1 << 1;
+    private static final int FLAG_BINDING = 1 << 2;
+    private static final int FLAG_LINKS = 1 << 3;
+
     public static JsonObject jSerialize(ClientUpdate c) {
         JsonObject o = Json.object();
 
@@ -76,11 +88,37 @@ public class ClientUpdateSerDes {
     }
 
     public static byte[] bSerialize(ClientUpdate c) {
-        return jSerialize(c).toString().getBytes();
+        BinaryWriter out = new BinaryWriter(64);
+        out.writeByte(BINARY_V1);
+        int flags = (c.getLifeTimeInSec() != null ? FLAG_LIFETIME : 0) | (c.getSmsNumber() != null ? FLAG_SMS : 0)
+                | (c.getBindingMode() != null ? FLAG_BINDING : 0) | (c.getObjectLinks() != null ? FLAG_LINKS : 0);
+        out.writeByte(flags);
+
+        // mandatory fields
+        out.writeString(c.getRegistrationId());
+        out.writeBytes(c.getAddress().getAddress());
+        out.writeVarLong(c.getPort());
+
+        // optional fields
+        if (c.getLifeTimeInSec() != null)
+            out.writeVarLong(c.getLifeTimeInSec());
+        if (c.getSmsNumber() != null)
+            out.writeString(c.getSmsNumber());
+        if (c.getBindingMode() != null)
+            out.writeString(c.getBindingMode().name());
+        if (c.getObjectLinks() != null)
+            LinkObjectSerDes.write(out, c.getObjectLinks());
+
+        return out.toByteArray();
     }
 
     public static ClientUpdate deserialize(byte[] data) throws UnknownHostException {
-        JsonObject v = (JsonObject) Json.parse(new String(data));
+        if (data.length == 0 || data[0] != '{') {
+            return bDeserialize(data);
+        }
+
+        // JSON format
+        JsonObject v = (JsonObject) Json.parse(new String(data, UTF_8));
 
         // mandatory fields
         String regId = v.getString("regId", null);
@@ -126,4 +164,26 @@ public class ClientUpdateSerDes {
 
         return new ClientUpdate(regId, addr, port, lifetime, sms, b, linkObjs);
     }
-}
\ No newline at end of file
+
+    private static ClientUpdate bDeserialize(byte[] data) {
+        BinaryReader in = new BinaryReader(data);
+        int version = in.readByte();
+        if (version != BINARY_V1) {
+            throw new IllegalArgumentException("Unsupported client update format version: " + version);
+        }
+        int flags = in.readByte();
+
+        // mandatory fields
+        String regId = in.readString();
+        InetAddress addr = ClientSerDes.toInetAddress(in.readBytes());
+        int port = in.readVarInt();
+
+        // optional fields
+        Long lifetime = (flags & FLAG_LIFETIME) != 0 ? in.readVarLong() : null;
+        String sms = (flags & FLAG_SMS) != 0 ? in.readString() : null;
+        BindingMode b = (flags & FLAG_BINDING) != 0 ? BindingMode.valueOf(in.readString()) : null;
+        LinkObject[] linkObjs = (flags & FLAG_LINKS) != 0 ? LinkObjectSerDes.read(in) : null;
+
+        return new ClientUpdate(regId, addr, port, lifetime, sms, b, linkObjs);
+    }
+}
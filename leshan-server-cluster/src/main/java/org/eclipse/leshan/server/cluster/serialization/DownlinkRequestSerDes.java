@@ -53,7 +53,7 @@ public class DownlinkRequestSerDes {
             @Override
             public void visit(ObserveRequest request) {
                 o.add("kind", "observe");
-                if (request.getFormat() == null)
+                if (request.getFormat() != null)
                     o.add("contentFormat", request.getFormat().getCode());
             }
 
@@ -104,7 +104,7 @@ public class DownlinkRequestSerDes {
             @Override
             public void visit(ReadRequest request) {
                 o.add("kind", "read");
-                if (request.getFormat() == null)
+                if (request.getFormat() != null)
                     o.add("contentFormat", request.getFormat().getCode());
             }
         });
@@ -124,8 +124,9 @@ public class DownlinkRequestSerDes {
         String path = o.getString("path", null);
         switch (kind) {
         case "observe": {
-            int format = o.getInt("contentFormat", ContentFormat.TLV.getCode());
-            return new ObserveRequest(ContentFormat.fromCode(format), path);
+            // no content format means the default one of the client
+            JsonValue format = o.get("contentFormat");
+            return new ObserveRequest(format == null ? null : ContentFormat.fromCode(format.asInt()), path);
         }
         case "delete":
             return new DeleteRequest(path);
@@ -158,8 +159,9 @@ public class DownlinkRequestSerDes {
             return new WriteRequest(mode, ContentFormat.fromCode(format), path, node);
         }
         case "read": {
-            int format = o.getInt("contentFormat", ContentFormat.TLV.getCode());
-            return new ReadRequest(ContentFormat.fromCode(format), path);
+            // no content format means the default one of the client
+            JsonValue format = o.get("contentFormat");
+            return new ReadRequest(format == null ? null : ContentFormat.fromCode(format.asInt()), path);
         }
         default:
             throw new IllegalStateException("Invalid request missing kind attribute");
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster.serialization;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.leshan.LinkObject;
+
+/**
+ * Functions for serialize and deserialize object links in the binary format.
+ * <p>
+ * Links are compressed using a static dictionary: numeric URLs (e.g. <code>/3/0</code>) are written as integers and
+ * the usual attribute names and values as an index in the dictionary. The dictionary is part of the format, entries
+ * may only be appended to it.
+ */
+class LinkObjectSerDes {
+
+    private static final List<String> DICTIONARY = Arrays.asList("rt", "ct", "ver", "oma.lwm2m", "if", "obs", "pmin",
+            "pmax", "gt", "lt", "st", "title", "sz", "anchor", "rel");
+
+    private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<>();
+    static {
+        for (int i = 0; i < DICTIONARY.size(); i++) {
+            DICTIONARY_INDEX.put(DICTIONARY.get(i), i + 1);
+        }
+    }
+
+    // URL kinds
+    private static final int URL_STRING = 0;
+    private static final int URL_NUMERIC = 1;
+
+    // attribute value kinds
+    private static final int VALUE_STRING = 0;
+    private static final int VALUE_INTEGER = 1;
+
+    static void write(BinaryWriter out, LinkObject[] links) {
+        out.writeVarLong(links.length);
+        for (LinkObject link : links) {
+            writeUrl(out, link.getUrl());
+            out.writeVarLong(link.getAttributes().size());
+            for (Map.Entry<String, Object> e : link.getAttributes().entrySet()) {
+                writeDictionaryString(out, e.getKey());
+                if (e.getValue() instanceof Integer) {
+                    out.writeByte(VALUE_INTEGER).writeZigZag((int) e.getValue());
+                } else {
+                    out.writeByte(VALUE_STRING);
+                    writeDictionaryString(out, e.getValue().toString());
+                }
+            }
+        }
+    }
+
+    static LinkObject[] read(BinaryReader in) {
+        LinkObject[] links = new LinkObject[in.readVarInt()];
+        for (int i = 0; i < links.length; i++) {
+            String url = readUrl(in);
+            int size = in.readVarInt();
+            Map<String, Object> attributes = new HashMap<>();
+            for (int j = 0; j < size; j++) {
+                String name = readDictionaryString(in);
+                if (in.readByte() == VALUE_INTEGER) {
+                    attributes.put(name, (int) in.readZigZag());
+                } else {
+                    attributes.put(name, readDictionaryString(in));
+                }
+            }
+            links[i] = new LinkObject(url, attributes);
+        }
+        return links;
+    }
+
+    private static void writeUrl(BinaryWriter out, String url) {
+        int[] ids = toNumericPath(url);
+        if (ids == null) {
+            out.writeByte(URL_STRING).writeString(url);
+        } else {
+            out.writeByte(URL_NUMERIC).writeVarLong(ids.length);
+            for (int id : ids) {
+                out.writeVarLong(id);
+            }
+        }
+    }
+
+    private static String readUrl(BinaryReader in) {
+        if (in.readByte() == URL_STRING) {
+            return in.readString();
+        }
+        int length = in.readVarInt();
+        if (length == 0) {
+            return "/";
+        }
+        StringBuilder url = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            url.append('/').append(in.readVarInt());
+        }
+        return url.toString();
+    }
+
+    /* the integers of a URL like /3/0, null if the URL would not be rebuilt identically from them */
+    private static int[] toNumericPath(String url) {
+        if (url == null || !url.startsWith("/")) {
+            return null;
+        }
+        if (url.length() == 1) {
+            return new int[0];
+        }
+        String[] segments = url.substring(1).split("/", -1);
+        int[] ids = new int[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.isEmpty() || segment.length() > 9 || (segment.length() > 1 && segment.charAt(0) == '0')) {
+                return null;
+            }
+            for (char c : segment.toCharArray()) {
+                if (c < '0' || c > '9') {
+                    return null;
+                }
+            }
+            ids[i] = Integer.parseInt(segment);
+        }
+        return ids;
+    }
+
+    private static void writeDictionaryString(BinaryWriter out, String value) {
+        Integer index = DICTIONARY_INDEX.get(value);
+        if (index != null) {
+            out.writeVarLong(index);
+        } else {
+            out.writeVarLong(0).writeString(value);
+        }
+    }
+
+    private static String readDictionaryString(BinaryReader in) {
+        int index = in.readVarInt();
+        if (index == 0) {
+            return in.readString();
+        }
+        if (index > DICTIONARY.size()) {
+            throw new IllegalArgumentException("Unknown dictionary entry: " + index);
+        }
+        return DICTIONARY.get(index - 1);
+    }
+}
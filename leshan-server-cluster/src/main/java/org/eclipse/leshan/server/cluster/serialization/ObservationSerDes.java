@@ -15,6 +15,8 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.cluster.serialization;
 
+import static org.eclipse.leshan.util.Charsets.UTF_8;
+
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -33,17 +35,39 @@ import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonValue;
 
 /**
- * Functions for serializing and deserializing a Californium {@link Observation} in JSON.
+ * Functions for serializing and deserializing a Californium {@link Observation} in a compact binary format.
  * 
  * The embedded CoAP request is serialized using the Californium network serialization (see {@link UdpDataParser} and
- * {@link UdpDataSerializer}).
+ * {@link UdpDataSerializer}). The binary format starts with a version byte, {@link #deserialize(byte[])} also reads the
+ * JSON format used before.
  */
 public class ObservationSerDes {
 
     private static final DataSerializer serializer = new UdpDataSerializer();
     private static final DataParser parser = new UdpDataParser();
 
+    private static final int BINARY_V1 = 1;
+
+    private static final int FLAG_CONTEXT = 1;
+
     public static byte[] serialize(Observation obs) {
+        BinaryWriter out = new BinaryWriter(128);
+        out.writeByte(BINARY_V1);
+        Map<String, String> context = obs.getRequest().getUserContext();
+        out.writeByte(context != null ? FLAG_CONTEXT : 0);
+
+        out.writeBytes(serializer.serializeRequest(obs.getRequest()).bytes);
+        if (context != null) {
+            out.writeVarLong(context.size());
+            for (Entry<String, String> e : context.entrySet()) {
+                out.writeString(e.getKey());
+                out.writeString(e.getValue());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public static JsonObject jSerialize(Observation obs) {
         JsonObject o = Json.object();
 
         o.set("request", Hex.encodeHexString(serializer.serializeRequest(obs.getRequest()).bytes));
@@ -55,11 +79,16 @@ public class ObservationSerDes {
             }
             o.set("context", ctxObject);
         }
-        return o.toString().getBytes();
+        return o;
     }
 
     public static Observation deserialize(byte[] data) {
-        JsonObject v = (JsonObject) Json.parse(new String(data));
+        if (data.length == 0 || data[0] != '{') {
+            return bDeserialize(data);
+        }
+
+        // JSON format
+        JsonObject v = (JsonObject) Json.parse(new String(data, UTF_8));
 
         byte[] req = Hex.decodeHex(v.getString("request", null).toCharArray());
         Request request = (Request) parser.parseMessage(new RawData(req, null, 0));
@@ -78,4 +107,25 @@ public class ObservationSerDes {
         return new Observation(request, null);
     }
 
+    private static Observation bDeserialize(byte[] data) {
+        BinaryReader in = new BinaryReader(data);
+        int version = in.readByte();
+        if (version != BINARY_V1) {
+            throw new IllegalArgumentException("Unsupported observation format version: " + version);
+        }
+        int flags = in.readByte();
+
+        Request request = (Request) parser.parseMessage(new RawData(in.readBytes(), null, 0));
+        if ((flags & FLAG_CONTEXT) != 0) {
+            int size = in.readVarInt();
+            Map<String, String> context = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                context.put(in.readString(), in.readString());
+            }
+            request.setUserContext(context);
+        }
+
+        // TODO handle security context
+        return new Observation(request, null);
+    }
 }
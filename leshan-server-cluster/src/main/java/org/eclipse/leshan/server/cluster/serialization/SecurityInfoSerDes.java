@@ -15,6 +15,8 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.cluster.serialization;
 
+import static org.eclipse.leshan.util.Charsets.UTF_8;
+
 import java.math.BigInteger;
 import java.security.AlgorithmParameters;
 import java.security.KeyFactory;
@@ -37,11 +39,40 @@ import com.eclipsesource.json.Json;
 import com.eclipsesource.json.JsonObject;
 
 /**
- * Functions for serialize and deserialize security information in JSON for storage.
+ * Functions for serialize and deserialize security information for storage, in a compact binary format or in JSON.
+ * <p>
+ * The binary format starts with a version byte, {@link #deserialize(byte[])} also reads the JSON format used before.
  */
 public class SecurityInfoSerDes {
 
+    private static final int BINARY_V1 = 1;
+
+    // kind of security
+    private static final int PSK = 0;
+    private static final int RPK = 1;
+    private static final int X509 = 2;
+
     public static byte[] serialize(SecurityInfo s) {
+        BinaryWriter out = new BinaryWriter(128);
+        out.writeByte(BINARY_V1);
+        if (s.getPreSharedKey() != null) {
+            out.writeByte(PSK).writeString(s.getEndpoint());
+            out.writeString(s.getIdentity()).writeBytes(s.getPreSharedKey());
+        } else if (s.getRawPublicKey() != null) {
+            ECPublicKey ecPublicKey = (ECPublicKey) s.getRawPublicKey();
+            out.writeByte(RPK).writeString(s.getEndpoint());
+            out.writeBytes(toUnsignedBytes(ecPublicKey.getW().getAffineX()));
+            out.writeBytes(toUnsignedBytes(ecPublicKey.getW().getAffineY()));
+            out.writeString(curveName(ecPublicKey));
+        } else if (s.useX509Cert()) {
+            out.writeByte(X509).writeString(s.getEndpoint());
+        } else {
+            throw new IllegalArgumentException("Unsupported security info: " + s);
+        }
+        return out.toByteArray();
+    }
+
+    public static JsonObject jSerialize(SecurityInfo s) {
         JsonObject o = Json.object();
         o.set("ep", s.getEndpoint());
         if (s.getIdentity() != null) {
@@ -54,22 +85,13 @@ public class SecurityInfoSerDes {
             JsonObject rpk = new JsonObject();
             ECPublicKey ecPublicKey = (ECPublicKey) s.getRawPublicKey();
             // Get x coordinate
-            byte[] x = ecPublicKey.getW().getAffineX().toByteArray();
-            if (x[0] == 0)
-                x = Arrays.copyOfRange(x, 1, x.length);
-            rpk.add("x", Hex.encodeHexString(x));
+            rpk.add("x", Hex.encodeHexString(toUnsignedBytes(ecPublicKey.getW().getAffineX())));
 
             // Get Y coordinate
-            byte[] y = ecPublicKey.getW().getAffineY().toByteArray();
-            if (y[0] == 0)
-                y = Arrays.copyOfRange(y, 1, y.length);
-            rpk.add("y", Hex.encodeHexString(y));
+            rpk.add("y", Hex.encodeHexString(toUnsignedBytes(ecPublicKey.getW().getAffineY())));
 
             // Get Curves params
-            ecPublicKey.getParams();
-
-            // use only the first part as the curve name
-            rpk.add("params", ecPublicKey.getParams().toString().split(" ")[0]);
+            rpk.add("params", curveName(ecPublicKey));
             o.set("rpk", rpk);
         }
 
@@ -77,11 +99,16 @@ public class SecurityInfoSerDes {
             o.set("x509", true);
         }
 
-        return o.toString().getBytes();
+        return o;
     }
 
     public static SecurityInfo deserialize(byte[] data) {
-        JsonObject o = (JsonObject) Json.parse(new String(data));
+        if (data.length == 0 || data[0] != '{') {
+            return bDeserialize(data);
+        }
+
+        // JSON format
+        JsonObject o = (JsonObject) Json.parse(new String(data, UTF_8));
 
         SecurityInfo i = null;
         String ep = o.getString("ep", null);
@@ -92,25 +119,58 @@ public class SecurityInfoSerDes {
             i = SecurityInfo.newX509CertInfo(ep);
         } else {
             JsonObject rpk = (JsonObject) o.get("rpk");
-            PublicKey key;
-            try {
-                byte[] x = Hex.decodeHex(rpk.getString("x", null).toCharArray());
-                byte[] y = Hex.decodeHex(rpk.getString("y", null).toCharArray());
-                String params = rpk.getString("params", null);
-                AlgorithmParameters algoParameters = AlgorithmParameters.getInstance("EC");
-                algoParameters.init(new ECGenParameterSpec(params));
-                ECParameterSpec parameterSpec = algoParameters.getParameterSpec(ECParameterSpec.class);
-
-                KeySpec keySpec = new ECPublicKeySpec(new ECPoint(new BigInteger(x), new BigInteger(y)), parameterSpec);
-
-                key = KeyFactory.getInstance("EC").generatePublic(keySpec);
-            } catch (IllegalArgumentException | InvalidKeySpecException | NoSuchAlgorithmException
-                    | InvalidParameterSpecException e) {
-                throw new IllegalStateException("Invalid security info content", e);
-            }
-            i = SecurityInfo.newRawPublicKeyInfo(ep, key);
+            byte[] x = Hex.decodeHex(rpk.getString("x", null).toCharArray());
+            byte[] y = Hex.decodeHex(rpk.getString("y", null).toCharArray());
+            i = SecurityInfo.newRawPublicKeyInfo(ep, toPublicKey(x, y, rpk.getString("params", null)));
         }
         return i;
     }
 
+    private static SecurityInfo bDeserialize(byte[] data) {
+        BinaryReader in = new BinaryReader(data);
+        int version = in.readByte();
+        if (version != BINARY_V1) {
+            throw new IllegalArgumentException("Unsupported security info format version: " + version);
+        }
+        int kind = in.readByte();
+        String ep = in.readString();
+        switch (kind) {
+        case PSK:
+            return SecurityInfo.newPreSharedKeyInfo(ep, in.readString(), in.readBytes());
+        case RPK:
+            return SecurityInfo.newRawPublicKeyInfo(ep, toPublicKey(in.readBytes(), in.readBytes(), in.readString()));
+        case X509:
+            return SecurityInfo.newX509CertInfo(ep);
+        default:
+            throw new IllegalArgumentException("Unknown security info kind: " + kind);
+        }
+    }
+
+    private static byte[] toUnsignedBytes(BigInteger coordinate) {
+        byte[] bytes = coordinate.toByteArray();
+        if (bytes[0] == 0)
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        return bytes;
+    }
+
+    private static String curveName(ECPublicKey ecPublicKey) {
+        // use only the first part as the curve name
+        return ecPublicKey.getParams().toString().split(" ")[0];
+    }
+
+    private static PublicKey toPublicKey(byte[] x, byte[] y, String params) {
+        try {
+            AlgorithmParameters algoParameters = AlgorithmParameters.getInstance("EC");
+            algoParameters.init(new ECGenParameterSpec(params));
+            ECParameterSpec parameterSpec = algoParameters.getParameterSpec(ECParameterSpec.class);
+
+            KeySpec keySpec = new ECPublicKeySpec(new ECPoint(new BigInteger(x), new BigInteger(y)), parameterSpec);
+
+            return KeyFactory.getInstance("EC").generatePublic(keySpec);
+        } catch (IllegalArgumentException | InvalidKeySpecException | NoSuchAlgorithmException
+                | InvalidParameterSpecException e) {
+            throw new IllegalStateException("Invalid security info content", e);
+        }
+    }
+
 }
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+
+    @Test
+    public void empty_ring_has_no_owner() {
+        assertNull(new ConsistentHashRing(Collections.<String> emptyList()).getOwner("ep"));
+    }
+
+    @Test
+    public void keys_are_spread_over_members() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a", "b", "c"));
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            String owner = ring.getOwner("endpoint" + i);
+            Integer count = counts.get(owner);
+            counts.put(owner, count == null ? 1 : count + 1);
+        }
+
+        assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("unbalanced ring: " + counts, count > 500);
+        }
+    }
+
+    @Test
+    public void only_keys_of_removed_member_move() {
+        ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("a", "b", "c"));
+        ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("a", "b"));
+
+        for (int i = 0; i < 1000; i++) {
+            String key = "endpoint" + i;
+            String owner = before.getOwner(key);
+            if (!owner.equals("c")) {
+                assertEquals(owner, after.getOwner(key));
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class NearCacheTest {
+
+    private final NearCache cache = new NearCache(100);
+
+    @Test
+    public void cache_loaded_value() {
+        long version = cache.reserve(key("a"));
+        cache.put(key("a"), version, "value", 10);
+
+        assertEquals("value", cache.get(key("a")));
+        assertEquals(11, cache.size());
+    }
+
+    @Test
+    public void do_not_cache_value_invalidated_while_loading() {
+        long version = cache.reserve(key("a"));
+        cache.invalidate(key("a"));
+        cache.put(key("a"), version, "stale", 10);
+
+        assertNull(cache.get(key("a")));
+        assertEquals(0, cache.count());
+    }
+
+    @Test
+    public void do_not_cache_value_of_older_load() {
+        long first = cache.reserve(key("a"));
+        long second = cache.reserve(key("a"));
+        cache.put(key("a"), second, "new", 10);
+        cache.put(key("a"), first, "old", 10);
+
+        assertEquals("new", cache.get(key("a")));
+    }
+
+    @Test
+    public void missing_value_is_not_cached() {
+        long version = cache.reserve(key("a"));
+        cache.put(key("a"), version, null, 0);
+
+        assertEquals(0, cache.count());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evict_least_recently_used_entries() {
+        for (String k : new String[] { "a", "b", "c" }) {
+            cache.put(key(k), cache.reserve(key(k)), k, 39);
+        }
+        // a, b and c do not fit
+        assertNull(cache.get(key("a")));
+        assertEquals("b", cache.get(key("b")));
+
+        cache.put(key("d"), cache.reserve(key("d")), "d", 39);
+
+        // c was the least recently used
+        assertNull(cache.get(key("c")));
+        assertEquals("b", cache.get(key("b")));
+        assertEquals("d", cache.get(key("d")));
+        assertTrue(cache.size() <= 100);
+    }
+
+    private byte[] key(String key) {
+        return key.getBytes();
+    }
+}
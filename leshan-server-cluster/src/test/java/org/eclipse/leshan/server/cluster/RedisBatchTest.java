@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.Pool;
+
+public class RedisBatchTest {
+
+    /* A Redis node which counts the connections and the round trips, Redis is never reached */
+    private static class CountingPool extends Pool<Jedis> {
+        private int borrowed;
+        private int returned;
+        private int pipelines;
+        private int roundTrips;
+
+        @Override
+        public Jedis getResource() {
+            borrowed++;
+            return new Jedis() {
+                @Override
+                public Pipeline pipelined() {
+                    pipelines++;
+                    return new Pipeline() {
+                        @Override
+                        public void sync() {
+                            roundTrips++;
+                        }
+                    };
+                }
+
+                @Override
+                public void close() {
+                    returned++;
+                }
+            };
+        }
+    }
+
+    /* Two nodes: the keys starting with 'a' are served by the first one, the others by the second one */
+    private final CountingPool nodeA = new CountingPool();
+    private final CountingPool nodeB = new CountingPool();
+    private final RedisConnectionProvider provider = new RedisConnectionProvider() {
+        @Override
+        public Pool<Jedis> getPool() {
+            return nodeA;
+        }
+
+        @Override
+        public Pool<Jedis> getPool(byte[] key) {
+            return key[0] == 'a' ? nodeA : nodeB;
+        }
+
+        @Override
+        public Collection<Pool<Jedis>> getPools() {
+            return Arrays.<Pool<Jedis>> asList(nodeA, nodeB);
+        }
+    };
+
+    @Test
+    public void keys_of_a_single_node_are_sent_in_one_round_trip() {
+        try (RedisBatch batch = new RedisBatch(provider)) {
+            List<Pipeline> pipelines = new ArrayList<>();
+            for (String key : Arrays.asList("a1", "a2", "a3", "a4")) {
+                pipelines.add(batch.on(key.getBytes()));
+            }
+            batch.sync();
+
+            for (Pipeline pipeline : pipelines) {
+                assertSame(pipelines.get(0), pipeline);
+            }
+        }
+
+        assertEquals(1, nodeA.borrowed);
+        assertEquals(1, nodeA.pipelines);
+        assertEquals(1, nodeA.roundTrips);
+        assertEquals(1, nodeA.returned);
+        assertEquals(0, nodeB.borrowed);
+    }
+
+    @Test
+    public void keys_of_several_nodes_are_sent_in_one_round_trip_per_node() {
+        try (RedisBatch batch = new RedisBatch(provider)) {
+            Pipeline a = batch.on("a1".getBytes());
+            Pipeline b = batch.on("b1".getBytes());
+            assertNotSame(a, b);
+            assertSame(a, batch.on("a2".getBytes()));
+            assertSame(b, batch.on("b2".getBytes()));
+            assertSame(b, batch.on("b3".getBytes()));
+            batch.sync();
+        }
+
+        for (CountingPool node : Arrays.asList(nodeA, nodeB)) {
+            assertEquals(1, node.borrowed);
+            assertEquals(1, node.pipelines);
+            assertEquals(1, node.roundTrips);
+            assertEquals(1, node.returned);
+        }
+    }
+
+    @Test
+    public void closing_a_batch_returns_its_connections_without_round_trip() {
+        try (RedisBatch batch = new RedisBatch(provider)) {
+            batch.on("a1".getBytes());
+            batch.on("b1".getBytes());
+        }
+
+        for (CountingPool node : Arrays.asList(nodeA, nodeB)) {
+            assertEquals(0, node.roundTrips);
+            assertEquals(node.borrowed, node.returned);
+        }
+    }
+}
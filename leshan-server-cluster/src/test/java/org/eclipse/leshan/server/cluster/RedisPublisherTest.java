@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster;
+
+import static org.junit.Assert.*;
+
+import org.eclipse.leshan.server.cluster.RedisPublisher.OverflowPolicy;
+import org.junit.Test;
+
+import redis.clients.jedis.JedisPool;
+
+public class RedisPublisherTest {
+
+    // the publisher is not started, so Redis is never reached
+    private RedisPublisher publisher(OverflowPolicy policy) {
+        return new RedisPublisher(new JedisPool("localhost", 6379), 1, 2, 10, policy);
+    }
+
+    @Test
+    public void drop_newest_rejects_message_when_full() {
+        RedisPublisher publisher = publisher(OverflowPolicy.DROP_NEWEST);
+
+        assertTrue(publisher.publish("channel", "ticket", "m1"));
+        assertTrue(publisher.publish("channel", "ticket", "m2"));
+        assertFalse(publisher.publish("channel", "ticket", "m3"));
+
+        assertEquals(2, publisher.getQueueDepth());
+        assertEquals(1, publisher.getDroppedCount());
+    }
+
+    @Test
+    public void drop_oldest_accepts_message_when_full() {
+        RedisPublisher publisher = publisher(OverflowPolicy.DROP_OLDEST);
+
+        assertTrue(publisher.publish("channel", "ticket", "m1"));
+        assertTrue(publisher.publish("channel", "ticket", "m2"));
+        assertTrue(publisher.publish("channel", "ticket", "m3"));
+
+        assertEquals(2, publisher.getQueueDepth());
+        assertEquals(1, publisher.getDroppedCount());
+        assertEquals(0, publisher.getPublishedCount());
+    }
+}
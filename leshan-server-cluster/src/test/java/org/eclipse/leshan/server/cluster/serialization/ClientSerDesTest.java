@@ -15,7 +15,7 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.cluster.serialization;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 import java.net.Inet4Address;
 import java.net.InetSocketAddress;
@@ -51,4 +51,33 @@ public class ClientSerDesTest {
 
         assertEquals(c, c2);
     }
+
+    @Test
+    public void deserialize_json_format() throws Exception {
+        Map<String, String> addAttr = new HashMap<>();
+        addAttr.put("key", "value");
+        Client c = new Client.Builder("registrationId", "endpoint", Inet4Address.getByName("127.0.0.1"), 1,
+                new InetSocketAddress(212)).objectLinks(LinkObject.parse("</>;rt=\"oma.lwm2m\",</1/0>,</3/0>".getBytes()))
+                        .smsNumber("0123456789").additionalRegistrationAttributes(addAttr)
+                        .registrationDate(new Date(100L)).lastUpdate(new Date(101L)).build();
+
+        byte[] json = ClientSerDes.sSerialize(c).getBytes();
+        byte[] binary = ClientSerDes.bSerialize(c);
+
+        assertEquals(c, ClientSerDes.deserialize(json));
+        assertEquals(c, ClientSerDes.deserialize(binary));
+        assertTrue(binary.length < json.length / 2);
+    }
+
+    @Test
+    public void non_numeric_link_url_is_kept() throws Exception {
+        LinkObject[] objs = new LinkObject[] { new LinkObject("/lwm2m/03/0"), new LinkObject("/"),
+                new LinkObject("/3//0"), new LinkObject("/99999999999") };
+        Client c = new Client.Builder("registrationId", "endpoint", Inet4Address.getByName("127.0.0.1"), 1,
+                new InetSocketAddress(212)).objectLinks(objs).build();
+
+        Client c2 = ClientSerDes.deserialize(ClientSerDes.bSerialize(c));
+
+        assertArrayEquals(objs, c2.getObjectLinks());
+    }
 }
@@ -45,4 +45,13 @@ public class ClientUpdateSerDesTest {
 
         assertEquals(cu, cu2);
     }
+
+    @Test
+    public void deserialize_json_format() throws Exception {
+        ClientUpdate cu = new ClientUpdate("myId", Inet4Address.getByName("127.0.0.1"), 5683, null, "0123456789", null,
+                null);
+
+        assertEquals(cu, ClientUpdateSerDes.deserialize(ClientUpdateSerDes.sSerialize(cu).getBytes()));
+        assertEquals(cu, ClientUpdateSerDes.deserialize(ClientUpdateSerDes.bSerialize(cu)));
+    }
 }
@@ -43,6 +43,12 @@ public class DownlinkRequestSerDesTest {
         ser_and_des_are_equals(new ReadRequest(ContentFormat.TLV, 3, 0, 1));
     }
 
+    @Test
+    public void ser_and_des_read_request_without_format() throws Exception {
+        ser_and_des_are_equals(new ReadRequest(3, 0, 1));
+        ser_and_des_are_equals(new ObserveRequest(3, 0, 1));
+    }
+
     @Test
     public void ser_and_des_execute_request() throws Exception {
         ser_and_des_are_equals(new ExecuteRequest(3, 0, 1, "params"));
@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster.serialization;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.observe.Observation;
+import org.junit.Test;
+
+public class ObservationSerDesTest {
+
+    @Test
+    public void ser_and_des_are_equals() {
+        Observation obs = givenAnObservation();
+
+        Observation obs2 = ObservationSerDes.deserialize(ObservationSerDes.serialize(obs));
+
+        assertObservationEquals(obs, obs2);
+    }
+
+    @Test
+    public void deserialize_json_format() {
+        Observation obs = givenAnObservation();
+
+        byte[] json = ObservationSerDes.jSerialize(obs).toString().getBytes();
+        byte[] binary = ObservationSerDes.serialize(obs);
+
+        assertObservationEquals(obs, ObservationSerDes.deserialize(json));
+        assertTrue(binary.length < json.length);
+    }
+
+    private Observation givenAnObservation() {
+        Request request = Request.newGet();
+        request.setMID(12);
+        request.setToken(new byte[] { 1, 2, 3, 4 });
+        request.getOptions().setUriPath("3/0/1");
+        request.setObserve();
+
+        Map<String, String> context = new HashMap<>();
+        context.put("leshan-regId", "regId");
+        context.put("leshan-path", "/3/0/1");
+        request.setUserContext(context);
+        return new Observation(request, null);
+    }
+
+    private void assertObservationEquals(Observation expected, Observation actual) {
+        assertArrayEquals(expected.getRequest().getToken(), actual.getRequest().getToken());
+        assertEquals(expected.getRequest().getMID(), actual.getRequest().getMID());
+        assertEquals(expected.getRequest().getOptions().toString(), actual.getRequest().getOptions().toString());
+        assertEquals(expected.getRequest().getUserContext(), actual.getRequest().getUserContext());
+    }
+}
@@ -39,9 +39,11 @@ public class SecurityInfoSerDesTest {
         SecurityInfo si = SecurityInfo.newPreSharedKeyInfo("myendPoint", "pskIdentity",
                 Hex.decodeHex("deadbeef".toCharArray()));
 
-        byte[] data = SecurityInfoSerDes.serialize(si);
+        byte[] data = SecurityInfoSerDes.jSerialize(si).toString().getBytes();
         assertEquals("{\"ep\":\"myendPoint\",\"id\":\"pskIdentity\",\"psk\":\"deadbeef\"}", new String(data));
         assertEquals(si, SecurityInfoSerDes.deserialize(data));
+
+        assertEquals(si, SecurityInfoSerDes.deserialize(SecurityInfoSerDes.serialize(si)));
     }
 
     @Test
@@ -62,12 +64,20 @@ public class SecurityInfoSerDesTest {
         SecurityInfo si = SecurityInfo.newRawPublicKeyInfo("myendpoint",
                 KeyFactory.getInstance("EC").generatePublic(publicKeySpec));
 
-        byte[] data = SecurityInfoSerDes.serialize(si);
+        byte[] data = SecurityInfoSerDes.jSerialize(si).toString().getBytes();
 
         assertEquals(
                 "{\"ep\":\"myendpoint\",\"rpk\":{\"x\":\"89c048261979208666f2bfb188be1968fc9021c416ce12828c06f4e314c167b5\",\"y\":\"cbf1eb7587f08e01688d9ada4be859137ca49f79394bad9179326b3090967b68\",\"params\":\"secp256r1\"}}",
                 new String(data));
-        System.err.println(new String(SecurityInfoSerDes.serialize(SecurityInfoSerDes.deserialize(data))));
         assertEquals(si, SecurityInfoSerDes.deserialize(data));
+
+        assertEquals(si, SecurityInfoSerDes.deserialize(SecurityInfoSerDes.serialize(si)));
+    }
+
+    @Test
+    public void security_info_x509_ser_des_then_equal() {
+        SecurityInfo si = SecurityInfo.newX509CertInfo("myendpoint");
+
+        assertEquals(si, SecurityInfoSerDes.deserialize(SecurityInfoSerDes.serialize(si)));
     }
 }
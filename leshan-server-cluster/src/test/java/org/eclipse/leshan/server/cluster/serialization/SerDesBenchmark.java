@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.cluster.serialization;
+
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.observe.Observation;
+import org.eclipse.leshan.LinkObject;
+import org.eclipse.leshan.server.client.Client;
+
+/**
+ * Compares the size and the encoding/decoding time of the binary and JSON formats of the records stored in Redis.
+ * <p>
+ * This is a plain timing loop, not a JMH benchmark: the figures are only meant to compare the two formats on the same
+ * JVM. Run it from the test classpath, e.g.:
+ * 
+ * <pre>
+ * cd leshan-server-cluster
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+ *     org.eclipse.leshan.server.cluster.serialization.SerDesBenchmark [iterations]
+ * </pre>
+ */
+public class SerDesBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    // prevents the JIT from removing the benchmarked code
+    private static long sink;
+
+    private interface Operation {
+        void run();
+    }
+
+    public static void main(String[] args) throws UnknownHostException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        final Client client = givenAClient();
+        final byte[] clientJson = ClientSerDes.sSerialize(client).getBytes();
+        final byte[] clientBinary = ClientSerDes.bSerialize(client);
+
+        final Observation observation = givenAnObservation();
+        final byte[] observationJson = ObservationSerDes.jSerialize(observation).toString().getBytes();
+        final byte[] observationBinary = ObservationSerDes.serialize(observation);
+
+        System.out.println(String.format("%d iterations, best of %d rounds", iterations, ROUNDS));
+        System.out.println("| Record | Format | Size (bytes) | Encode (us) | Decode (us) |");
+        System.out.println("|---|---|---|---|---|");
+        print("client", "json", clientJson.length, iterations, new Operation() {
+            @Override
+            public void run() {
+                sink += ClientSerDes.sSerialize(client).getBytes().length;
+            }
+        }, new Operation() {
+            @Override
+            public void run() {
+                sink += ClientSerDes.deserialize(clientJson).getPort();
+            }
+        });
+        print("client", "binary", clientBinary.length, iterations, new Operation() {
+            @Override
+            public void run() {
+                sink += ClientSerDes.bSerialize(client).length;
+            }
+        }, new Operation() {
+            @Override
+            public void run() {
+                sink += ClientSerDes.deserialize(clientBinary).getPort();
+            }
+        });
+        print("observation", "json", observationJson.length, iterations, new Operation() {
+            @Override
+            public void run() {
+                sink += ObservationSerDes.jSerialize(observation).toString().getBytes().length;
+            }
+        }, new Operation() {
+            @Override
+            public void run() {
+                sink += ObservationSerDes.deserialize(observationJson).getRequest().getMID();
+            }
+        });
+        print("observation", "binary", observationBinary.length, iterations, new Operation() {
+            @Override
+            public void run() {
+                sink += ObservationSerDes.serialize(observation).length;
+            }
+        }, new Operation() {
+            @Override
+            public void run() {
+                sink += ObservationSerDes.deserialize(observationBinary).getRequest().getMID();
+            }
+        });
+        System.out.println("(" + sink + ")");
+    }
+
+    private static void print(String record, String format, int size, int iterations, Operation encode,
+            Operation decode) {
+        System.out.println(String.format("| %s | %s | %d | %.2f | %.2f |", record, format, size,
+                measure(encode, iterations), measure(decode, iterations)));
+    }
+
+    /**
+     * @return the best average time of an operation in microseconds, the first rounds warm up the JIT
+     */
+    private static double measure(Operation operation, int iterations) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                operation.run();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1000.0 / iterations;
+    }
+
+    /* A registration with the object links of a typical device */
+    static Client givenAClient() throws UnknownHostException {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("key", "value");
+        String links = "</>;rt=\"oma.lwm2m\",</1/0>,</2/0>,</2/1>,</2/2>,</3/0>,</4/0>,</5/0>,</6/0>";
+        return new Client.Builder("Fj3hv3tcJq", "urn:imei:359072062123456", Inet4Address.getByName("10.17.0.3"),
+                56830, new InetSocketAddress(5684)).objectLinks(LinkObject.parse(links.getBytes()))
+                        .lifeTimeInSec(86400L).additionalRegistrationAttributes(attributes)
+                        .registrationDate(new Date(100L)).lastUpdate(new Date(101L)).build();
+    }
+
+    /* An observation of a resource */
+    static Observation givenAnObservation() {
+        Request request = Request.newGet();
+        request.setMID(12);
+        request.setToken(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        request.getOptions().setUriPath("3/0/13");
+        request.setObserve();
+
+        Map<String, String> context = new HashMap<>();
+        context.put("leshan-regId", "Fj3hv3tcJq");
+        context.put("leshan-path", "/3/0/13");
+        request.setUserContext(context);
+        return new Observation(request, null);
+    }
+}
@@ -22,7 +22,6 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
 
 import org.eclipse.leshan.LinkObject;
@@ -31,16 +30,19 @@ import org.eclipse.leshan.util.Validate;
 
 /**
  * An immutable structure which represent a LW-M2M client registered on the server
+ * <p>
+ * A server may hold millions of registrations, so this class is kept compact: timestamps are stored as primitives and
+ * identical object links are shared between clients.
  */
 public class Client implements Serializable {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
     private static final long DEFAULT_LIFETIME_IN_SEC = 86400L;
 
     private static final String DEFAULT_LWM2M_VERSION = "1.0";
 
-    private final Date registrationDate;
+    private final long registrationDate;
 
     private final InetAddress address;
 
@@ -66,14 +68,12 @@ public class Client implements Serializable {
 
     private final String registrationId;
 
-    private final LinkObject[] objectLinks;
+    // shared with the other clients which registered the same links
+    private final ObjectLinks objectLinks;
 
     private final Map<String, String> additionalRegistrationAttributes;
 
-    /** The location where LWM2M objects are hosted on the device */
-    private final String rootPath;
-
-    private final Date lastUpdate;
+    private final long lastUpdate;
 
     protected Client(String registrationId, String endpoint, InetAddress address, int port, String lwM2mVersion,
             Long lifetimeInSec, String smsNumber, BindingMode bindingMode, LinkObject[] objectLinks,
@@ -94,27 +94,17 @@ public class Client implements Serializable {
         this.smsNumber = smsNumber;
         this.registrationEndpointAddress = registrationEndpointAddress;
 
-        this.objectLinks = objectLinks;
-        // extract the root objects path from the object links
-        String rootPath = "/";
-        if (objectLinks != null) {
-            for (LinkObject link : objectLinks) {
-                if (link != null && "oma.lwm2m".equals(link.getAttributes().get("rt"))) {
-                    rootPath = link.getUrl();
-                    break;
-                }
-            }
-        }
-        this.rootPath = rootPath;
+        this.objectLinks = ObjectLinks.intern(objectLinks);
 
         this.lifeTimeInSec = lifetimeInSec == null ? DEFAULT_LIFETIME_IN_SEC : lifetimeInSec;
         this.lwM2mVersion = lwM2mVersion == null ? DEFAULT_LWM2M_VERSION : lwM2mVersion;
         this.bindingMode = bindingMode == null ? BindingMode.U : bindingMode;
-        this.registrationDate = registrationDate == null ? new Date() : registrationDate;
-        this.lastUpdate = lastUpdate == null ? new Date() : lastUpdate;
+        long now = System.currentTimeMillis();
+        this.registrationDate = registrationDate == null ? now : registrationDate.getTime();
+        this.lastUpdate = lastUpdate == null ? now : lastUpdate.getTime();
         this.additionalRegistrationAttributes = additionalRegistrationAttributes == null
-                ? Collections.unmodifiableMap(new HashMap<String, String>())
-                : Collections.unmodifiableMap(additionalRegistrationAttributes);
+                || additionalRegistrationAttributes.isEmpty() ? Collections.<String, String> emptyMap()
+                        : Collections.unmodifiableMap(additionalRegistrationAttributes);
 
     }
 
@@ -123,7 +113,7 @@ public class Client implements Serializable {
     }
 
     public Date getRegistrationDate() {
-        return registrationDate;
+        return new Date(registrationDate);
     }
 
     /**
@@ -161,17 +151,22 @@ public class Client implements Serializable {
         return registrationEndpointAddress;
     }
 
+    /**
+     * @return a copy of the object links of the client.
+     */
     public LinkObject[] getObjectLinks() {
-        return objectLinks;
+        LinkObject[] links = objectLinks.getLinks();
+        return links == null ? null : links.clone();
     }
 
     public LinkObject[] getSortedObjectLinks() {
         // sort the list of objects
-        if (objectLinks == null) {
+        LinkObject[] links = objectLinks.getLinks();
+        if (links == null) {
             return null;
         }
 
-        LinkObject[] res = Arrays.copyOf(objectLinks, objectLinks.length);
+        LinkObject[] res = Arrays.copyOf(links, links.length);
 
         Arrays.sort(res, new Comparator<LinkObject>() {
 
@@ -241,7 +236,7 @@ public class Client implements Serializable {
      * @return the path where the objects are hosted on the device
      */
     public String getRootPath() {
-        return rootPath;
+        return objectLinks.getRootPath();
     }
 
     /**
@@ -254,11 +249,18 @@ public class Client implements Serializable {
     }
 
     public Date getLastUpdate() {
-        return lastUpdate;
+        return new Date(lastUpdate);
+    }
+
+    /**
+     * @return the time (in milliseconds) at which this registration expires if no update is received before.
+     */
+    public long getExpirationTimeStamp() {
+        return lastUpdate + lifeTimeInSec * 1000;
     }
 
     public boolean isAlive() {
-        return lastUpdate.getTime() + lifeTimeInSec * 1000 > System.currentTimeMillis();
+        return getExpirationTimeStamp() > System.currentTimeMillis();
     }
 
     public Map<String, String> getAdditionalRegistrationAttributes() {
@@ -273,8 +275,9 @@ public class Client implements Serializable {
     public String toString() {
         return String.format(
                 "Client [registrationDate=%s, address=%s, port=%s, registrationEndpoint=%s, lifeTimeInSec=%s, smsNumber=%s, lwM2mVersion=%s, bindingMode=%s, endpoint=%s, registrationId=%s, objectLinks=%s, lastUpdate=%s]",
-                registrationDate, address, port, registrationEndpointAddress, lifeTimeInSec, smsNumber, lwM2mVersion,
-                bindingMode, endpoint, registrationId, Arrays.toString(objectLinks), lastUpdate);
+                getRegistrationDate(), address, port, registrationEndpointAddress, lifeTimeInSec, smsNumber,
+                lwM2mVersion, bindingMode, endpoint, registrationId, Arrays.toString(objectLinks.getLinks()),
+                getLastUpdate());
     }
 
     /**
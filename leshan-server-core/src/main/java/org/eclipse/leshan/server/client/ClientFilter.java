@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.client;
+
+/**
+ * A filter used to select the clients returned by a {@link ClientRegistry} listing.
+ */
+public interface ClientFilter {
+
+    /**
+     * @param client a registered client
+     * @return <code>true</code> if the client must be part of the result.
+     */
+    boolean accept(Client client);
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.client;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator over the clients of a {@link ClientRegistry} which fetches them page by page, so only one page is kept
+ * in memory at a time.
+ * <p>
+ * As the registry is modified concurrently, a client registered or removed during the iteration may or may not be
+ * returned.
+ */
+public class ClientIterator implements Iterator<Client> {
+
+    private final ClientRegistry registry;
+    private final int pageSize;
+    private final ClientFilter filter;
+
+    private Iterator<Client> current = Collections.<Client> emptyList().iterator();
+    private String cursor;
+    private boolean lastPage = false;
+
+    /**
+     * @param registry the registry to iterate
+     * @param pageSize the number of clients fetched at once
+     * @param filter the filter to apply or <code>null</code> to get all the clients
+     */
+    public ClientIterator(ClientRegistry registry, int pageSize, ClientFilter filter) {
+        this.registry = registry;
+        this.pageSize = pageSize;
+        this.filter = filter;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext() && !lastPage) {
+            ClientPage page = registry.getClients(cursor, pageSize, filter);
+            current = page.getClients().iterator();
+            cursor = page.getNextCursor();
+            lastPage = page.isLast();
+        }
+        return current.hasNext();
+    }
+
+    @Override
+    public Client next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2013-2015 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.client;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * A page of registered clients, returned by {@link ClientRegistry#getClients(String, int, ClientFilter)}.
+ * <p>
+ * A page may contain fewer clients than requested, even none, when some clients are filtered out. Only a
+ * <code>null</code> cursor means that the last page was reached.
+ */
+public class ClientPage {
+
+    private final Collection<Client> clients;
+    private final String nextCursor;
+
+    public ClientPage(Collection<Client> clients, String nextCursor) {
+        this.clients = Collections.unmodifiableCollection(clients);
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @return the clients of this page.
+     */
+    public Collection<Client> getClients() {
+        return clients;
+    }
+
+    /**
+     * @return the cursor to use to get the next page or <code>null</code> if this page is the last one.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean isLast() {
+        return nextCursor == null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ClientPage [clients=%s, nextCursor=%s]", clients.size(), nextCursor);
+    }
+}
@@ -15,6 +15,7 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.client;
 
+import java.net.InetSocketAddress;
 import java.util.Collection;
 
 /**
@@ -32,11 +33,24 @@ public interface ClientRegistry {
 
     /**
      * Returns an unmodifiable list of all registered clients.
+     * <p>
+     * All the clients are loaded in memory, {@link #getClients(String, int, ClientFilter)} or a {@link ClientIterator}
+     * should be preferred for large fleets.
      * 
      * @return the registered clients
      */
     Collection<Client> allClients();
 
+    /**
+     * Returns a page of registered clients.
+     * 
+     * @param cursor the cursor returned with the previous page or <code>null</code> to get the first page.
+     * @param pageSize the maximum number of clients to visit for this page.
+     * @param filter the filter to apply or <code>null</code> to get all the clients.
+     * @return the page of clients with the cursor of the next page.
+     */
+    ClientPage getClients(String cursor, int pageSize, ClientFilter filter);
+
     /**
      * Adds a new listener to be notified with client registration events.
      * 
@@ -86,4 +100,12 @@ public interface ClientRegistry {
      * @return the matching client or <code>null</code> if not found
      */
     Client findByRegistrationId(String id);
+
+    /**
+     * Retrieves a registered client by the socket address it uses to communicate with the server.
+     * 
+     * @param address the client's peer address
+     * @return the matching client or <code>null</code> if not found
+     */
+    Client findByAddress(InetSocketAddress address);
 }
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.client;
+
+import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.leshan.LinkObject;
+
+/**
+ * An immutable set of object links shared by all the clients which registered the same links.
+ * <p>
+ * Devices of a same model usually register identical object links, keeping one instance per distinct set saves most
+ * of the memory used by a registration. Instances are only kept while a client references them.
+ * <p>
+ * The links are copied when interned, the array of the caller is never shared.
+ */
+final class ObjectLinks implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // the keys do not reference the instances, which can be collected once no client uses them
+    private static final ConcurrentMap<Key, InternedReference> pool = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<ObjectLinks> collected = new ReferenceQueue<>();
+
+    private final LinkObject[] links;
+
+    /** The location where LWM2M objects are hosted on the device */
+    private final String rootPath;
+
+    private final int hashCode;
+
+    private ObjectLinks(LinkObject[] links) {
+        this.links = links;
+        // extract the root objects path from the object links
+        String rootPath = "/";
+        if (links != null) {
+            for (LinkObject link : links) {
+                if (link != null && "oma.lwm2m".equals(link.getAttributes().get("rt"))) {
+                    rootPath = link.getUrl();
+                    break;
+                }
+            }
+        }
+        this.rootPath = rootPath;
+        this.hashCode = Arrays.hashCode(links);
+    }
+
+    /**
+     * Returns the shared instance for these links.
+     */
+    static ObjectLinks intern(LinkObject[] links) {
+        expungeCollected();
+
+        Key key = new Key(links);
+        while (true) {
+            InternedReference ref = pool.get(key);
+            if (ref != null) {
+                ObjectLinks shared = ref.get();
+                if (shared != null) {
+                    return shared;
+                }
+                // collected but not expunged yet
+                pool.remove(key, ref);
+            } else {
+                ObjectLinks candidate = new ObjectLinks(links == null ? null : links.clone());
+                Key ownKey = new Key(candidate.links);
+                if (pool.putIfAbsent(ownKey, new InternedReference(candidate, ownKey)) == null) {
+                    return candidate;
+                }
+            }
+        }
+    }
+
+    private static void expungeCollected() {
+        Reference<? extends ObjectLinks> ref;
+        while ((ref = collected.poll()) != null) {
+            InternedReference interned = (InternedReference) ref;
+            pool.remove(interned.key, interned);
+        }
+    }
+
+    private static class InternedReference extends WeakReference<ObjectLinks> {
+        private final Key key;
+
+        private InternedReference(ObjectLinks links, Key key) {
+            super(links, collected);
+            this.key = key;
+        }
+    }
+
+    private static class Key {
+        private final LinkObject[] links;
+        private final int hashCode;
+
+        private Key(LinkObject[] links) {
+            this.links = links;
+            this.hashCode = Arrays.hashCode(links);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return hashCode == other.hashCode && Arrays.equals(links, other.links);
+        }
+    }
+
+    /**
+     * @return the shared links, which must not be modified.
+     */
+    LinkObject[] getLinks() {
+        return links;
+    }
+
+    String getRootPath() {
+        return rootPath;
+    }
+
+    private Object readResolve() {
+        return intern(links);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof ObjectLinks))
+            return false;
+        ObjectLinks other = (ObjectLinks) obj;
+        return hashCode == other.hashCode && Arrays.equals(links, other.links);
+    }
+}
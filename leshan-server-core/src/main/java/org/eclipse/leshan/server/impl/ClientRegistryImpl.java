@@ -15,6 +15,7 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.impl;
 
+import java.net.InetSocketAddress;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -24,6 +25,8 @@ import org.eclipse.leshan.core.observation.Observation;
 import org.eclipse.leshan.server.Startable;
 import org.eclipse.leshan.server.Stoppable;
 import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientFilter;
+import org.eclipse.leshan.server.client.ClientPage;
 import org.eclipse.leshan.server.client.ClientRegistry;
 import org.eclipse.leshan.server.client.ClientRegistryListener;
 import org.eclipse.leshan.server.client.ClientUpdate;
@@ -65,6 +68,12 @@ public class ClientRegistryImpl implements ClientRegistry, Startable, Stoppable,
         return Collections.unmodifiableCollection(store.getAllRegistration());
     }
 
+    @Override
+    public ClientPage getClients(String cursor, int pageSize, ClientFilter filter) {
+        Validate.isTrue(pageSize > 0, "pageSize must be positive");
+        return store.getRegistrations(cursor, pageSize, filter);
+    }
+
     @Override
     public Client get(String endpoint) {
         return store.getRegistrationByEndpoint(endpoint);
@@ -124,6 +133,14 @@ public class ClientRegistryImpl implements ClientRegistry, Startable, Stoppable,
         return store.getRegistration(id);
     }
 
+    @Override
+    public Client findByAddress(InetSocketAddress address) {
+        Collection<Client> registrations = store.getRegistrationByAdress(address);
+        if (registrations == null || registrations.isEmpty())
+            return null;
+        return registrations.iterator().next();
+    }
+
     /**
      * start the registration manager, will start regular cleanup of dead registrations.
      */
@@ -48,6 +48,16 @@ public interface MessageStore {
      */
     QueuedRequest retrieveFirst(String endpoint);
 
+    /**
+     * Retrieves the first queue request entities from a given client's queue, without removing them.
+     *
+     * @param endpoint client's endpoint
+     * @param count the maximum number of entities to retrieve
+     * @return the first (at most <code>count</code>) entities in order of processing, an empty list if the queue is
+     *         empty.
+     */
+    List<QueuedRequest> retrieveFirst(String endpoint, int count);
+
     /**
      * checks whether there are any queued message for the given endpoint
      *
@@ -56,6 +66,14 @@ public interface MessageStore {
      */
     boolean isEmpty(String endpoint);
 
+    /**
+     * Returns the size of the queue for the given client.
+     *
+     * @param endpoint client's endpoint
+     * @return the number of queued requests
+     */
+    int getQueueSize(String endpoint);
+
     /**
      * Deletes the first request from message queue for the given client.
      *
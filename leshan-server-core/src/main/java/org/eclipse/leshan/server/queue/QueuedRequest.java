@@ -41,4 +41,9 @@ public interface QueuedRequest {
      * @return the actual downlink request which is to be send
      */
     DownlinkRequest<LwM2mResponse> getDownlinkRequest();
+
+    /**
+     * @return the time in milliseconds after which the request is not sent anymore, or 0 if it never expires
+     */
+    long getExpiration();
 }
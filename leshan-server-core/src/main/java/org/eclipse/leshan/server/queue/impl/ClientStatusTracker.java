@@ -57,6 +57,10 @@ public final class ClientStatusTracker {
         return transitState(endpoint, ClientState.RECEIVING, ClientState.REACHABLE);
     }
 
+    public boolean isClientReceiving(String endpoint) {
+        return clientStatus.get(endpoint) == ClientState.RECEIVING;
+    }
+
     public void clearClientState(String endpoint) {
         clientStatus.remove(endpoint);
     }
@@ -0,0 +1,820 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.queue.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.server.Startable;
+import org.eclipse.leshan.server.Stoppable;
+import org.eclipse.leshan.server.queue.MessageStore;
+import org.eclipse.leshan.server.queue.QueuedRequest;
+import org.eclipse.leshan.util.Charsets;
+import org.eclipse.leshan.util.NamedThreadFactory;
+import org.eclipse.leshan.util.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A message store persisting the queued requests in a directory, so they survive a restart of the server.
+ * <p>
+ * The requests of all the clients are appended to segment files, only the position of each request in the segments is
+ * kept in memory (16 bytes per request). Each record holds a status byte which is overwritten when the request is
+ * deleted, so a segment describes by itself which of its requests are still queued: a segment without queued requests
+ * is deleted, and a segment containing mostly deleted requests is compacted by copying its remaining requests at the
+ * end of the log. The order of the requests of a client is given by a sequence number stored in each record.
+ * <p>
+ * By default a request is synced to the disk before {@link #add(QueuedRequest)} returns, the concurrent additions
+ * sharing the same sync. With a sync interval, the requests are synced periodically instead and the requests added
+ * during the last interval may be lost on a crash. Deletions are synced periodically: a request deleted just before a
+ * crash may be delivered again.
+ * <p>
+ * The store must be started before use, this loads the requests persisted by a previous run.
+ */
+public class DiskMessageStore implements MessageStore, Startable, Stoppable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DiskMessageStore.class);
+
+    private static final int SEGMENT_MAGIC = 0x4C4D_5347; // "LMSG"
+    private static final byte VERSION = 2;
+    private static final int SEGMENT_HEADER_SIZE = 5;
+
+    private static final String SEGMENT_PREFIX = "queue-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // record status
+    private static final byte QUEUED = 1;
+    private static final byte DELETED = 2;
+
+    // status, payload length and payload CRC
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // Period of the compaction and of the sync of the deletions
+    private static final long MAINTENANCE_PERIOD = TimeUnit.SECONDS.toMillis(30);
+
+    // Size of the read buffer used to load a segment
+    private static final int LOAD_BUFFER_SIZE = 64 * 1024;
+
+    // A segment is compacted when less than this part of its content is still queued
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    /* A segment file */
+    private static class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        long size;
+        int queued; // number of queued requests
+        long queuedBytes; // size of their records
+        boolean dirty; // deletions not synced yet
+
+        Segment(int id, File file, FileChannel channel, long size) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    /* The requests of a client, ordered by sequence number */
+    private static class EndpointQueue {
+        long[] seqs = new long[2];
+        long[] locations = new long[2];
+        int head;
+        int size;
+
+        /**
+         * @return the previous location of this sequence number, -1 if it was not in the queue
+         */
+        long put(long seq, long location) {
+            int i = size - 1;
+            while (i >= 0 && seqs[head + i] > seq) {
+                i--;
+            }
+            if (i >= 0 && seqs[head + i] == seq) {
+                long previous = locations[head + i];
+                locations[head + i] = location;
+                return previous;
+            }
+            // insert after i, usually at the end
+            if (head + size == seqs.length) {
+                grow();
+            }
+            int index = head + i + 1;
+            System.arraycopy(seqs, index, seqs, index + 1, head + size - index);
+            System.arraycopy(locations, index, locations, index + 1, head + size - index);
+            seqs[index] = seq;
+            locations[index] = location;
+            size++;
+            return -1;
+        }
+
+        long location(int i) {
+            return locations[head + i];
+        }
+
+        void removeFirst() {
+            head++;
+            size--;
+            if (size == 0) {
+                head = 0;
+            }
+        }
+
+        private void grow() {
+            if (head > 0) {
+                // reuse the room of the removed requests
+                System.arraycopy(seqs, head, seqs, 0, size);
+                System.arraycopy(locations, head, locations, 0, size);
+                head = 0;
+                if (size < seqs.length) {
+                    return;
+                }
+            }
+            seqs = Arrays.copyOf(seqs, seqs.length * 2);
+            locations = Arrays.copyOf(locations, locations.length * 2);
+        }
+    }
+
+    /* A decoded record */
+    private static class Record {
+        final long seq;
+        final String endpoint;
+        final String ticket;
+        final long expiration;
+        final byte[] request;
+
+        Record(long seq, String endpoint, String ticket, long expiration, byte[] request) {
+            this.seq = seq;
+            this.endpoint = endpoint;
+            this.ticket = ticket;
+            this.expiration = expiration;
+            this.request = request;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final long syncInterval;
+
+    private final Map<String, EndpointQueue> queues = new HashMap<>();
+    private final SortedMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private long nextSeq;
+    private boolean started = false;
+
+    // group commit of the additions
+    private final Object syncLock = new Object();
+    private long appended; // number of records appended
+    private long synced; // number of records synced
+
+    private final ScheduledExecutorService schedExecutor = Executors
+            .newSingleThreadScheduledExecutor(new NamedThreadFactory("Queued requests maintenance"));
+
+    /**
+     * Creates a store syncing each addition, with segments of {@value #DEFAULT_SEGMENT_SIZE} bytes.
+     *
+     * @param directory the directory of the segment files
+     */
+    public DiskMessageStore(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, 0);
+    }
+
+    /**
+     * @param directory the directory of the segment files
+     * @param segmentSize the size in bytes from which a new segment is started
+     * @param syncInterval the period in milliseconds of the sync of the additions, 0 to sync each addition before it
+     *        returns
+     */
+    public DiskMessageStore(File directory, int segmentSize, long syncInterval) {
+        Validate.notNull(directory);
+        Validate.isTrue(segmentSize > SEGMENT_HEADER_SIZE, "segment size too small");
+        Validate.isTrue(syncInterval >= 0, "sync interval must not be negative");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+    }
+
+    /* *************** MessageStore **************** */
+
+    @Override
+    public void add(QueuedRequest entity) {
+        LOG.debug("Add entity {}", entity);
+        byte[] request = DownlinkRequestCodec.encode(entity.getDownlinkRequest());
+        long mark;
+        synchronized (this) {
+            checkStarted();
+            long seq = nextSeq++;
+            ByteBuffer record = encodeRecord(
+                    new Record(seq, entity.getEndpoint(), entity.getRequestTicket(), entity.getExpiration(), request));
+            long location = append(record);
+
+            EndpointQueue queue = queues.get(entity.getEndpoint());
+            if (queue == null) {
+                queue = new EndpointQueue();
+                queues.put(entity.getEndpoint(), queue);
+            }
+            queue.put(seq, location);
+            mark = ++appended;
+        }
+        if (syncInterval == 0) {
+            sync(mark);
+        }
+    }
+
+    @Override
+    public synchronized QueuedRequest retrieveFirst(String endpoint) {
+        LOG.trace("Retrieve first for endpoint {}", endpoint);
+        checkStarted();
+        EndpointQueue queue = queues.get(endpoint);
+        if (queue == null) {
+            return null;
+        }
+        return toQueuedRequest(read(queue.location(0)));
+    }
+
+    @Override
+    public synchronized List<QueuedRequest> retrieveFirst(String endpoint, int count) {
+        LOG.trace("Retrieve first {} for endpoint {}", count, endpoint);
+        checkStarted();
+        EndpointQueue queue = queues.get(endpoint);
+        if (queue == null) {
+            return Collections.emptyList();
+        }
+        int size = Math.min(count, queue.size);
+        List<QueuedRequest> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(toQueuedRequest(read(queue.location(i))));
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized boolean isEmpty(String endpoint) {
+        LOG.trace("Checking for empty Queue {}", endpoint);
+        checkStarted();
+        return !queues.containsKey(endpoint);
+    }
+
+    @Override
+    public synchronized void deleteFirst(String endpoint) {
+        LOG.debug("Delete first entity of endpoint {}", endpoint);
+        checkStarted();
+        EndpointQueue queue = queues.get(endpoint);
+        if (queue != null) {
+            long location = queue.location(0);
+            queue.removeFirst();
+            if (queue.size == 0) {
+                queues.remove(endpoint);
+            }
+            markDeleted(location);
+        }
+    }
+
+    @Override
+    public synchronized List<QueuedRequest> removeAll(String endpoint) {
+        LOG.debug("Emptying messages for client {}", endpoint);
+        checkStarted();
+        EndpointQueue queue = queues.remove(endpoint);
+        if (queue == null) {
+            return Collections.emptyList();
+        }
+        List<QueuedRequest> removed = new ArrayList<>(queue.size);
+        for (int i = 0; i < queue.size; i++) {
+            try {
+                removed.add(toQueuedRequest(read(queue.location(i))));
+            } catch (RuntimeException e) {
+                LOG.warn("Unable to read a queued request of {}", endpoint, e);
+            }
+        }
+        for (int i = 0; i < queue.size; i++) {
+            markDeleted(queue.location(i));
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized int getQueueSize(String endpoint) {
+        EndpointQueue queue = queues.get(endpoint);
+        return queue == null ? 0 : queue.size;
+    }
+
+    private void checkStarted() {
+        if (!started) {
+            throw new IllegalStateException("Message store is not started");
+        }
+    }
+
+    private QueuedRequest toQueuedRequest(Record record) {
+        @SuppressWarnings("unchecked")
+        DownlinkRequest<LwM2mResponse> request = (DownlinkRequest<LwM2mResponse>) DownlinkRequestCodec
+                .decode(record.request);
+        return new QueuedRequestSender.QueuedRequestImpl(record.endpoint, request, record.ticket, record.expiration);
+    }
+
+    /* *************** Segments **************** */
+
+    private static long location(int segment, long offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private long append(ByteBuffer record) {
+        try {
+            if (active.size + record.remaining() > segmentSize && active.size > SEGMENT_HEADER_SIZE) {
+                roll();
+            }
+            long offset = active.size;
+            int length = record.remaining();
+            write(active.channel, record, offset);
+            active.size += length;
+            active.queued++;
+            active.queuedBytes += length;
+            return location(active.id, offset);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write in queued requests segment " + active.file, e);
+        }
+    }
+
+    private Record read(long location) {
+        Segment segment = segments.get((int) (location >>> 32));
+        long offset = location & 0xFFFFFFFFL;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            read(segment.channel, header, offset);
+            header.flip();
+            header.get(); // status
+            ByteBuffer payload = ByteBuffer.allocate(header.getInt());
+            read(segment.channel, payload, offset + RECORD_HEADER_SIZE);
+            payload.flip();
+            return decodePayload(payload);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read in queued requests segment " + segment.file, e);
+        }
+    }
+
+    private void markDeleted(long location) {
+        Segment segment = segments.get((int) (location >>> 32));
+        long offset = location & 0xFFFFFFFFL;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            read(segment.channel, header, offset);
+            int length = RECORD_HEADER_SIZE + header.getInt(1);
+            write(segment.channel, ByteBuffer.wrap(new byte[] { DELETED }), offset);
+            segment.dirty = true;
+            segment.queued--;
+            segment.queuedBytes -= length;
+        } catch (IOException e) {
+            LOG.error("Unable to delete a request in queued requests segment {}", segment.file, e);
+            return;
+        }
+        if (segment.queued == 0 && active != null && segment != active) {
+            deleteSegment(segment);
+        }
+    }
+
+    private void roll() throws IOException {
+        active.channel.force(false);
+        active = createSegment(active.id + 1);
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        File file = new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        @SuppressWarnings("resource")
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        header.putInt(SEGMENT_MAGIC).put(VERSION).flip();
+        write(channel, header, 0);
+        Segment segment = new Segment(id, file, channel, SEGMENT_HEADER_SIZE);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment.id);
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close {}", segment.file, e);
+        }
+        if (!segment.file.delete()) {
+            LOG.warn("Unable to delete {}", segment.file);
+        }
+        LOG.debug("Queued requests segment {} deleted", segment.file);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+            position += read;
+        }
+    }
+
+    /* *************** Sync **************** */
+
+    /*
+     * Syncs the active segment unless a concurrent sync already covered the given record: the threads waiting for the
+     * sync in progress share the next one.
+     */
+    private void sync(long mark) {
+        synchronized (syncLock) {
+            if (synced >= mark) {
+                return;
+            }
+            long target;
+            FileChannel channel;
+            synchronized (this) {
+                if (!started) {
+                    return;
+                }
+                target = appended;
+                channel = active.channel;
+            }
+            try {
+                // the previous segments were synced when rolled
+                channel.force(false);
+                synced = target;
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to sync queued requests", e);
+            }
+        }
+    }
+
+    private synchronized void syncDeletions() {
+        for (Segment segment : segments.values()) {
+            if (segment.dirty) {
+                try {
+                    segment.channel.force(false);
+                    segment.dirty = false;
+                } catch (IOException e) {
+                    LOG.warn("Unable to sync {}", segment.file, e);
+                }
+            }
+        }
+    }
+
+    /* *************** Compaction **************** */
+
+    /**
+     * Copies the queued requests of the segments containing mostly deleted requests at the end of the log, then
+     * deletes these segments.
+     */
+    synchronized void compact() {
+        if (!started) {
+            return;
+        }
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment != active && segment.queuedBytes < (segment.size - SEGMENT_HEADER_SIZE) * COMPACTION_THRESHOLD) {
+                try {
+                    compact(segment);
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Unable to compact {}", segment.file, e);
+                }
+            }
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        int moved = 0;
+        long offset = SEGMENT_HEADER_SIZE;
+        while (offset < segment.size && segment.queued > 0) {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            read(segment.channel, header, offset);
+            header.flip();
+            byte status = header.get();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (status == QUEUED) {
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                read(segment.channel, payload, offset + RECORD_HEADER_SIZE);
+                payload.flip();
+                Record record = decodePayload(payload.duplicate());
+
+                ByteBuffer copy = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+                copy.put(QUEUED).putInt(length).putInt(crc).put(payload).flip();
+                long location = append(copy);
+                EndpointQueue queue = queues.get(record.endpoint);
+                if (queue != null) {
+                    queue.put(record.seq, location);
+                }
+                segment.queued--;
+                segment.queuedBytes -= RECORD_HEADER_SIZE + length;
+                moved++;
+            }
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        // the copies must be on the disk before the originals disappear
+        active.channel.force(false);
+        deleteSegment(segment);
+        LOG.debug("{} queued requests moved out of {}", moved, segment.file);
+    }
+
+    /* *************** Loading **************** */
+
+    /**
+     * Loads the requests persisted in the directory and starts the maintenance of the segments.
+     */
+    @Override
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        try {
+            load();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to load queued requests from " + directory, e);
+        }
+        started = true;
+
+        schedExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    syncDeletions();
+                    compact();
+                } catch (RuntimeException e) {
+                    LOG.warn("Unexpected error during queued requests maintenance", e);
+                }
+            }
+        }, MAINTENANCE_PERIOD, MAINTENANCE_PERIOD, TimeUnit.MILLISECONDS);
+        if (syncInterval > 0) {
+            schedExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long mark;
+                        synchronized (DiskMessageStore.this) {
+                            mark = appended;
+                        }
+                        sync(mark);
+                    } catch (RuntimeException e) {
+                        LOG.warn("Unable to sync queued requests", e);
+                    }
+                }
+            }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void load() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create directory %s", directory));
+        }
+
+        int lastId = -1;
+        int nbRequests = 0;
+        for (Entry<Integer, File> file : listSegments().entrySet()) {
+            @SuppressWarnings("resource")
+            FileChannel channel = new RandomAccessFile(file.getValue(), "rw").getChannel();
+            Segment segment = new Segment(file.getKey(), file.getValue(), channel, channel.size());
+            // the id of an invalid segment is not reused either
+            lastId = segment.id;
+            if (!hasValidHeader(segment)) {
+                LOG.warn("Ignoring invalid queued requests segment {}, left unchanged", segment.file);
+                channel.close();
+                continue;
+            }
+            segments.put(segment.id, segment);
+            nbRequests += loadSegment(segment);
+        }
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment.queued == 0) {
+                deleteSegment(segment);
+            }
+        }
+        LOG.info("{} queued requests of {} clients loaded from {}", nbRequests, queues.size(), directory);
+
+        active = createSegment(lastId + 1);
+    }
+
+    /* An empty file is a segment created just before a crash: it is loaded without requests, then deleted */
+    private static boolean hasValidHeader(Segment segment) throws IOException {
+        if (segment.size == 0) {
+            return true;
+        }
+        if (segment.size < SEGMENT_HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        read(segment.channel, header, 0);
+        header.flip();
+        return header.getInt() == SEGMENT_MAGIC && header.get() == VERSION;
+    }
+
+    private int loadSegment(Segment segment) throws IOException {
+        // read through the channel, as a mapped file could not be truncated or deleted while the mapping is alive
+        segment.channel.position(SEGMENT_HEADER_SIZE);
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(segment.channel), LOAD_BUFFER_SIZE));
+
+        int nbRequests = 0;
+        CRC32 crc = new CRC32();
+        long offset = SEGMENT_HEADER_SIZE;
+        while (offset < segment.size) {
+            if (segment.size - offset < RECORD_HEADER_SIZE) {
+                truncate(segment, offset);
+                break;
+            }
+            byte status = in.readByte();
+            int length = in.readInt();
+            int expectedCrc = in.readInt();
+            if (length < 0 || length > segment.size - offset - RECORD_HEADER_SIZE
+                    || (status != QUEUED && status != DELETED)) {
+                truncate(segment, offset);
+                break;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            crc.reset();
+            crc.update(bytes);
+            if ((int) crc.getValue() != expectedCrc) {
+                truncate(segment, offset);
+                break;
+            }
+
+            if (status == QUEUED) {
+                Record record = decodePayload(ByteBuffer.wrap(bytes));
+                long location = location(segment.id, offset);
+                EndpointQueue queue = queues.get(record.endpoint);
+                if (queue == null) {
+                    queue = new EndpointQueue();
+                    queues.put(record.endpoint, queue);
+                }
+                segment.queued++;
+                segment.queuedBytes += RECORD_HEADER_SIZE + length;
+                long previous = queue.put(record.seq, location);
+                if (previous != -1) {
+                    // copy of a compaction interrupted before the deletion of the original segment
+                    queue.put(record.seq, previous);
+                    markDeleted(location);
+                } else {
+                    nbRequests++;
+                }
+                nextSeq = Math.max(nextSeq, record.seq + 1);
+            }
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        // the stream is not closed, it would close the channel
+        return nbRequests;
+    }
+
+    /* A record was not completely written before a crash, the end of the segment is dropped */
+    private void truncate(Segment segment, long size) throws IOException {
+        LOG.warn("Queued requests segment {} is truncated at {}", segment.file, size);
+        segment.channel.truncate(size);
+        segment.size = size;
+    }
+
+    private SortedMap<Integer, File> listSegments() {
+        SortedMap<Integer, File> result = new TreeMap<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        result.put(Integer.parseInt(
+                                name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())),
+                                file);
+                    } catch (NumberFormatException e) {
+                        LOG.warn("Ignoring unexpected file {}", file);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Syncs and closes the segment files.
+     */
+    @Override
+    public void stop() {
+        schedExecutor.shutdownNow();
+        try {
+            schedExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            LOG.warn("Queued requests maintenance thread was interrupted.", e);
+        }
+
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+            started = false;
+            for (Segment segment : segments.values()) {
+                try {
+                    segment.channel.force(false);
+                    segment.channel.close();
+                } catch (IOException e) {
+                    LOG.warn("Unable to close {}", segment.file, e);
+                }
+            }
+            segments.clear();
+            queues.clear();
+            active = null;
+        }
+    }
+
+    /* *************** Encoding **************** */
+
+    private static ByteBuffer encodeRecord(Record record) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(RECORD_HEADER_SIZE + 32 + record.request.length);
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            // header, filled once the payload is written
+            out.write(new byte[RECORD_HEADER_SIZE]);
+            out.writeLong(record.seq);
+            writeString(out, record.endpoint);
+            writeString(out, record.ticket);
+            out.writeLong(record.expiration);
+            out.write(record.request);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+        int length = buf.remaining() - RECORD_HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), RECORD_HEADER_SIZE, length);
+        buf.put(QUEUED).putInt(length).putInt((int) crc.getValue());
+        buf.rewind();
+        return buf;
+    }
+
+    private static Record decodePayload(ByteBuffer buf) {
+        long seq = buf.getLong();
+        String endpoint = readString(buf);
+        String ticket = readString(buf);
+        long expiration = buf.getLong();
+        byte[] request = new byte[buf.remaining()];
+        buf.get(request);
+        return new Record(seq, endpoint, ticket, expiration, request);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(Charsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,537 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.queue.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.eclipse.leshan.ObserveSpec;
+import org.eclipse.leshan.core.model.ResourceModel.Type;
+import org.eclipse.leshan.core.node.LwM2mMultipleResource;
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mObject;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.eclipse.leshan.core.node.ObjectLink;
+import org.eclipse.leshan.core.request.BootstrapDeleteRequest;
+import org.eclipse.leshan.core.request.BootstrapFinishRequest;
+import org.eclipse.leshan.core.request.BootstrapWriteRequest;
+import org.eclipse.leshan.core.request.ContentFormat;
+import org.eclipse.leshan.core.request.CreateRequest;
+import org.eclipse.leshan.core.request.DeleteRequest;
+import org.eclipse.leshan.core.request.DiscoverRequest;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.DownlinkRequestVisitor;
+import org.eclipse.leshan.core.request.ExecuteRequest;
+import org.eclipse.leshan.core.request.ObserveRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.request.WriteAttributesRequest;
+import org.eclipse.leshan.core.request.WriteRequest;
+import org.eclipse.leshan.core.request.WriteRequest.Mode;
+import org.eclipse.leshan.util.Charsets;
+
+/**
+ * Encodes the LWM2M requests sent to a client in a compact binary format, to store them in a persistent queue.
+ * <p>
+ * A request is written as a version byte, a kind byte, its path and the fields of its kind. Integers are written as
+ * variable length quantities, strings and byte arrays are prefixed with their length plus one (0 meaning
+ * <code>null</code>). Bootstrap requests are not supported as they are never queued.
+ */
+public class DownlinkRequestCodec {
+
+    private static final byte VERSION = 1;
+
+    // request kinds
+    private static final byte READ = 1;
+    private static final byte DISCOVER = 2;
+    private static final byte WRITE = 3;
+    private static final byte WRITE_ATTRIBUTES = 4;
+    private static final byte EXECUTE = 5;
+    private static final byte CREATE = 6;
+    private static final byte DELETE = 7;
+    private static final byte OBSERVE = 8;
+
+    // node kinds
+    private static final byte OBJECT = 1;
+    private static final byte INSTANCE = 2;
+    private static final byte SINGLE_RESOURCE = 3;
+    private static final byte MULTIPLE_RESOURCE = 4;
+
+    // observe spec fields
+    private static final int MIN_PERIOD = 1;
+    private static final int MAX_PERIOD = 1 << 1;
+    private static final int GREATER_THAN = 1 << 2;
+    private static final int LESS_THAN = 1 << 3;
+    private static final int STEP = 1 << 4;
+    private static final int CANCEL = 1 << 5;
+
+    private static final Type[] TYPES = Type.values();
+
+    private DownlinkRequestCodec() {
+    }
+
+    public static byte[] encode(DownlinkRequest<?> request) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            request.accept(new DownlinkRequestVisitor() {
+
+                @Override
+                public void visit(ReadRequest request) {
+                    header(READ, request);
+                    writeFormat(out, request.getFormat());
+                }
+
+                @Override
+                public void visit(DiscoverRequest request) {
+                    header(DISCOVER, request);
+                }
+
+                @Override
+                public void visit(WriteRequest request) {
+                    header(WRITE, request);
+                    writeFormat(out, request.getContentFormat());
+                    writeVarLong(out, request.isPartialUpdateRequest() ? 1 : 0);
+                    writeNode(out, request.getNode());
+                }
+
+                @Override
+                public void visit(WriteAttributesRequest request) {
+                    header(WRITE_ATTRIBUTES, request);
+                    writeObserveSpec(out, request.getObserveSpec());
+                }
+
+                @Override
+                public void visit(ExecuteRequest request) {
+                    header(EXECUTE, request);
+                    writeString(out, request.getParameters());
+                }
+
+                @Override
+                public void visit(CreateRequest request) {
+                    header(CREATE, request);
+                    writeFormat(out, request.getContentFormat());
+                    Integer instanceId = request.getInstanceId();
+                    writeVarLong(out, instanceId == null ? 0 : instanceId + 1);
+                    writeVarLong(out, request.getResources().size());
+                    for (LwM2mResource resource : request.getResources()) {
+                        writeNode(out, resource);
+                    }
+                }
+
+                @Override
+                public void visit(DeleteRequest request) {
+                    header(DELETE, request);
+                }
+
+                @Override
+                public void visit(ObserveRequest request) {
+                    header(OBSERVE, request);
+                    writeFormat(out, request.getFormat());
+                    Map<String, String> context = request.getContext();
+                    writeVarLong(out, context == null ? 0 : context.size());
+                    if (context != null) {
+                        for (Entry<String, String> e : context.entrySet()) {
+                            writeString(out, e.getKey());
+                            writeString(out, e.getValue());
+                        }
+                    }
+                }
+
+                @Override
+                public void visit(BootstrapWriteRequest request) {
+                    throw new IllegalArgumentException("Bootstrap requests are not supported");
+                }
+
+                @Override
+                public void visit(BootstrapDeleteRequest request) {
+                    throw new IllegalArgumentException("Bootstrap requests are not supported");
+                }
+
+                @Override
+                public void visit(BootstrapFinishRequest request) {
+                    throw new IllegalArgumentException("Bootstrap requests are not supported");
+                }
+
+                private void header(byte kind, DownlinkRequest<?> request) {
+                    writeVarLong(out, kind);
+                    writeString(out, request.getPath().toString());
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the data is not a valid request
+     */
+    public static DownlinkRequest<?> decode(byte[] data) {
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Decodes the request from the current position of the buffer.
+     *
+     * @throws IllegalArgumentException if the data is not a valid request
+     */
+    public static DownlinkRequest<?> decode(ByteBuffer in) {
+        try {
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported request format version " + version);
+            }
+            int kind = readVarInt(in);
+            String path = readString(in);
+            switch (kind) {
+            case READ:
+                return new ReadRequest(readFormat(in), path);
+            case DISCOVER:
+                return new DiscoverRequest(path);
+            case WRITE: {
+                ContentFormat format = readFormat(in);
+                Mode mode = readVarInt(in) == 1 ? Mode.UPDATE : Mode.REPLACE;
+                return new WriteRequest(mode, format, path, readNode(in));
+            }
+            case WRITE_ATTRIBUTES:
+                return new WriteAttributesRequest(path, readObserveSpec(in));
+            case EXECUTE:
+                return new ExecuteRequest(path, readString(in));
+            case CREATE: {
+                ContentFormat format = readFormat(in);
+                int instanceId = readVarInt(in) - 1; // UNDEFINED if not assigned
+                int nbResources = readVarInt(in);
+                List<LwM2mResource> resources = new ArrayList<>(nbResources);
+                for (int i = 0; i < nbResources; i++) {
+                    resources.add((LwM2mResource) readNode(in));
+                }
+                return new CreateRequest(format, path, new LwM2mObjectInstance(instanceId, resources));
+            }
+            case DELETE:
+                return new DeleteRequest(path);
+            case OBSERVE: {
+                ContentFormat format = readFormat(in);
+                int size = readVarInt(in);
+                Map<String, String> context = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    context.put(readString(in), readString(in));
+                }
+                return new ObserveRequest(format, path, context);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown request kind " + kind);
+            }
+        } catch (BufferUnderflowException | ClassCastException e) {
+            throw new IllegalArgumentException("Invalid request data", e);
+        }
+    }
+
+    /* *************** Nodes **************** */
+
+    private static void writeNode(DataOutputStream out, LwM2mNode node) {
+        if (node instanceof LwM2mObject) {
+            writeVarLong(out, OBJECT);
+            writeVarLong(out, node.getId());
+            Map<Integer, LwM2mObjectInstance> instances = ((LwM2mObject) node).getInstances();
+            writeVarLong(out, instances.size());
+            for (LwM2mObjectInstance instance : instances.values()) {
+                writeNode(out, instance);
+            }
+        } else if (node instanceof LwM2mObjectInstance) {
+            writeVarLong(out, INSTANCE);
+            writeZigZag(out, node.getId()); // may be undefined (-1)
+            Map<Integer, LwM2mResource> resources = ((LwM2mObjectInstance) node).getResources();
+            writeVarLong(out, resources.size());
+            for (LwM2mResource resource : resources.values()) {
+                writeNode(out, resource);
+            }
+        } else if (node instanceof LwM2mResource) {
+            LwM2mResource resource = (LwM2mResource) node;
+            if (resource.isMultiInstances()) {
+                writeVarLong(out, MULTIPLE_RESOURCE);
+                writeVarLong(out, resource.getId());
+                writeVarLong(out, resource.getType().ordinal());
+                writeVarLong(out, resource.getValues().size());
+                for (Entry<Integer, ?> value : resource.getValues().entrySet()) {
+                    writeVarLong(out, value.getKey());
+                    writeValue(out, value.getValue(), resource.getType());
+                }
+            } else {
+                writeVarLong(out, SINGLE_RESOURCE);
+                writeVarLong(out, resource.getId());
+                writeVarLong(out, resource.getType().ordinal());
+                writeValue(out, resource.getValue(), resource.getType());
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported node " + node);
+        }
+    }
+
+    private static LwM2mNode readNode(ByteBuffer in) {
+        int kind = readVarInt(in);
+        switch (kind) {
+        case OBJECT: {
+            int id = readVarInt(in);
+            int size = readVarInt(in);
+            List<LwM2mObjectInstance> instances = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                instances.add((LwM2mObjectInstance) readNode(in));
+            }
+            return new LwM2mObject(id, instances);
+        }
+        case INSTANCE: {
+            int id = (int) readZigZag(in);
+            int size = readVarInt(in);
+            List<LwM2mResource> resources = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                resources.add((LwM2mResource) readNode(in));
+            }
+            return new LwM2mObjectInstance(id, resources);
+        }
+        case SINGLE_RESOURCE: {
+            int id = readVarInt(in);
+            Type type = readType(in);
+            return LwM2mSingleResource.newResource(id, readValue(in, type), type);
+        }
+        case MULTIPLE_RESOURCE: {
+            int id = readVarInt(in);
+            Type type = readType(in);
+            int size = readVarInt(in);
+            Map<Integer, Object> values = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                int valueId = readVarInt(in);
+                values.put(valueId, readValue(in, type));
+            }
+            return LwM2mMultipleResource.newResource(id, values, type);
+        }
+        default:
+            throw new IllegalArgumentException("Unknown node kind " + kind);
+        }
+    }
+
+    private static Type readType(ByteBuffer in) {
+        int ordinal = readVarInt(in);
+        if (ordinal >= TYPES.length) {
+            throw new IllegalArgumentException("Unknown resource type " + ordinal);
+        }
+        return TYPES[ordinal];
+    }
+
+    private static void writeValue(DataOutputStream out, Object value, Type type) {
+        try {
+            switch (type) {
+            case STRING:
+                writeString(out, (String) value);
+                break;
+            case INTEGER:
+                writeZigZag(out, (Long) value);
+                break;
+            case FLOAT:
+                out.writeDouble((Double) value);
+                break;
+            case BOOLEAN:
+                out.writeBoolean((Boolean) value);
+                break;
+            case OPAQUE:
+                writeBytes(out, (byte[]) value);
+                break;
+            case TIME:
+                writeZigZag(out, ((Date) value).getTime());
+                break;
+            case OBJLNK:
+                writeVarLong(out, ((ObjectLink) value).getObjectId());
+                writeVarLong(out, ((ObjectLink) value).getObjectInstanceId());
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported resource type " + type);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object readValue(ByteBuffer in, Type type) {
+        switch (type) {
+        case STRING:
+            return readString(in);
+        case INTEGER:
+            return readZigZag(in);
+        case FLOAT:
+            return in.getDouble();
+        case BOOLEAN:
+            return in.get() != 0;
+        case OPAQUE:
+            return readBytes(in);
+        case TIME:
+            return new Date(readZigZag(in));
+        case OBJLNK:
+            return new ObjectLink(readVarInt(in), readVarInt(in));
+        default:
+            throw new IllegalArgumentException("Unsupported resource type " + type);
+        }
+    }
+
+    /* *************** Attributes **************** */
+
+    private static void writeFormat(DataOutputStream out, ContentFormat format) {
+        writeVarLong(out, format == null ? 0 : format.getCode() + 1);
+    }
+
+    private static ContentFormat readFormat(ByteBuffer in) {
+        int code = readVarInt(in) - 1;
+        return code < 0 ? null : ContentFormat.fromCode(code);
+    }
+
+    private static void writeObserveSpec(DataOutputStream out, ObserveSpec spec) {
+        try {
+            int fields = (spec.getMinPeriod() != null ? MIN_PERIOD : 0) | (spec.getMaxPeriod() != null ? MAX_PERIOD : 0)
+                    | (spec.getGreaterThan() != null ? GREATER_THAN : 0) | (spec.getLessThan() != null ? LESS_THAN : 0)
+                    | (spec.getStep() != null ? STEP : 0) | (Boolean.TRUE.equals(spec.getCancel()) ? CANCEL : 0);
+            writeVarLong(out, fields);
+            if (spec.getMinPeriod() != null) {
+                writeVarLong(out, spec.getMinPeriod());
+            }
+            if (spec.getMaxPeriod() != null) {
+                writeVarLong(out, spec.getMaxPeriod());
+            }
+            if (spec.getGreaterThan() != null) {
+                out.writeFloat(spec.getGreaterThan());
+            }
+            if (spec.getLessThan() != null) {
+                out.writeFloat(spec.getLessThan());
+            }
+            if (spec.getStep() != null) {
+                out.writeFloat(spec.getStep());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ObserveSpec readObserveSpec(ByteBuffer in) {
+        int fields = readVarInt(in);
+        ObserveSpec.Builder builder = new ObserveSpec.Builder();
+        if ((fields & CANCEL) != 0) {
+            return builder.cancel().build();
+        }
+        if ((fields & MIN_PERIOD) != 0) {
+            builder.minPeriod(readVarInt(in));
+        }
+        if ((fields & MAX_PERIOD) != 0) {
+            builder.maxPeriod(readVarInt(in));
+        }
+        if ((fields & GREATER_THAN) != 0) {
+            builder.greaterThan(in.getFloat());
+        }
+        if ((fields & LESS_THAN) != 0) {
+            builder.lessThan(in.getFloat());
+        }
+        if ((fields & STEP) != 0) {
+            builder.step(in.getFloat());
+        }
+        return builder.build();
+    }
+
+    /* *************** Primitives **************** */
+
+    private static void writeVarLong(DataOutputStream out, long value) {
+        try {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeZigZag(DataOutputStream out, long value) {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) {
+        try {
+            if (value == null) {
+                writeVarLong(out, 0);
+            } else {
+                writeVarLong(out, value.length + 1);
+                out.write(value);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) {
+        writeBytes(out, value == null ? null : value.getBytes(Charsets.UTF_8));
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed variable length integer");
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        long value = readVarLong(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Integer value out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    private static long readZigZag(ByteBuffer in) {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IllegalArgumentException("Unexpected end of data");
+        }
+        byte[] value = new byte[length];
+        in.get(value);
+        return value;
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] value = readBytes(in);
+        return value == null ? null : new String(value, Charsets.UTF_8);
+    }
+}
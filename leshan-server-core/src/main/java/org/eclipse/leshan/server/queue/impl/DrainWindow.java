@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.queue.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+
+import org.eclipse.leshan.server.queue.QueuedRequest;
+
+/**
+ * The requests of a client queue which are sent without waiting for the previous responses.
+ * <p>
+ * The window mirrors the first requests of the queue, in order, identified by their ticket. A request stays in the
+ * window until it is completed and all the requests before it are completed too: only then it is removed from the
+ * window and from the head of the queue. A request which timed out stays in the window and is sent again when the
+ * client is back.
+ * <p>
+ * The number of requests in flight is limited by an adaptive limit: it is halved on each timeout and grows by one on
+ * each response, up to the maximum size of the window.
+ * <p>
+ * This class is not thread-safe, callers synchronize on the window instance.
+ */
+class DrainWindow {
+
+    private enum State {
+        IN_FLIGHT, COMPLETED, TIMED_OUT
+    }
+
+    private final int maxSize;
+    private final Map<String, State> requests = new LinkedHashMap<>();
+    private int limit;
+    private int inFlight;
+
+    /**
+     * @param maxSize the maximum number of requests in flight
+     */
+    DrainWindow(int maxSize) {
+        this.maxSize = maxSize;
+        this.limit = maxSize;
+    }
+
+    /**
+     * @return the number of requests to retrieve from the head of the queue to fill the window
+     */
+    int fetchSize() {
+        return requests.size() + Math.max(0, limit - inFlight);
+    }
+
+    /**
+     * Selects the requests to send, they are considered in flight once returned.
+     *
+     * @param first the first requests of the queue, see {@link #fetchSize()}
+     * @return the requests to send, in order
+     */
+    List<QueuedRequest> select(List<QueuedRequest> first) {
+        Iterator<Entry<String, State>> known = requests.entrySet().iterator();
+        int remaining = requests.size();
+        List<QueuedRequest> selected = new ArrayList<>();
+        for (QueuedRequest request : first) {
+            if (remaining-- > 0) {
+                Entry<String, State> entry = known.next();
+                if (!Objects.equals(entry.getKey(), request.getRequestTicket())) {
+                    // the queue was modified behind our back, nothing we sent is known to be still queued
+                    return resync(first);
+                }
+                if (entry.getValue() == State.TIMED_OUT && inFlight < limit) {
+                    entry.setValue(State.IN_FLIGHT);
+                    inFlight++;
+                    selected.add(request);
+                }
+            } else if (inFlight < limit) {
+                requests.put(request.getRequestTicket(), State.IN_FLIGHT);
+                inFlight++;
+                selected.add(request);
+            } else {
+                break;
+            }
+        }
+        return selected;
+    }
+
+    private List<QueuedRequest> resync(List<QueuedRequest> first) {
+        requests.clear();
+        inFlight = 0;
+        return select(first);
+    }
+
+    /**
+     * Completes a request, on a response or on an error.
+     *
+     * @param ticket the request ticket
+     * @param success <code>true</code> if a response was received, the limit grows in this case
+     * @return the number of requests to delete from the head of the queue, <code>0</code> if the request was not in
+     *         the window
+     */
+    int complete(String ticket, boolean success) {
+        State state = requests.get(ticket);
+        if (state == null || state == State.COMPLETED) {
+            return 0;
+        }
+        requests.put(ticket, State.COMPLETED);
+        if (state == State.IN_FLIGHT) {
+            inFlight--;
+        }
+        if (success && limit < maxSize) {
+            limit++;
+        }
+
+        int completed = 0;
+        Iterator<State> it = requests.values().iterator();
+        while (it.hasNext() && it.next() == State.COMPLETED) {
+            it.remove();
+            completed++;
+        }
+        return completed;
+    }
+
+    /**
+     * Marks a request as timed out, it will be sent again. The limit is halved.
+     *
+     * @param ticket the request ticket
+     */
+    void timeout(String ticket) {
+        if (requests.get(ticket) == State.IN_FLIGHT) {
+            requests.put(ticket, State.TIMED_OUT);
+            inFlight--;
+            limit = Math.max(1, limit / 2);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if this request was already sent
+     */
+    boolean contains(String ticket) {
+        return requests.containsKey(ticket);
+    }
+
+    /**
+     * @return <code>true</code> if a response was already received for this request
+     */
+    boolean isCompleted(String ticket) {
+        return requests.get(ticket) == State.COMPLETED;
+    }
+
+    /**
+     * @return <code>true</code> if no request is in flight
+     */
+    boolean isIdle() {
+        return inFlight == 0;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+}
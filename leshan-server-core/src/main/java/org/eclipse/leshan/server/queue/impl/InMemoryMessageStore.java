@@ -20,6 +20,7 @@ package org.eclipse.leshan.server.queue.impl;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
@@ -78,6 +79,21 @@ public class InMemoryMessageStore implements MessageStore {
         return null;
     }
 
+    @Override
+    public List<QueuedRequest> retrieveFirst(String endpoint, int count) {
+        LOG.trace("Retrieve first {} for endpoint {}", count, endpoint);
+        BlockingQueue<QueuedRequest> requests = requestQueueMap.get(endpoint);
+        if (requests == null) {
+            return Collections.emptyList();
+        }
+        List<QueuedRequest> result = new ArrayList<>(Math.min(count, requests.size()));
+        Iterator<QueuedRequest> it = requests.iterator();
+        while (result.size() < count && it.hasNext()) {
+            result.add(it.next());
+        }
+        return result;
+    }
+
     @Override
     public List<QueuedRequest> removeAll(String endpoint) {
         LOG.debug("Emptying messages for client {}", endpoint);
@@ -98,12 +114,7 @@ public class InMemoryMessageStore implements MessageStore {
         }
     }
 
-    /**
-     * Returns the size of the Queue for given endpoint.
-     * 
-     * @param endpoint client's endpoint
-     * @return list of queue request entities in order of processing.
-     */
+    @Override
     public int getQueueSize(String endpoint) {
         BlockingQueue<QueuedRequest> requests = requestQueueMap.get(endpoint);
         if (requests != null) {
@@ -16,9 +16,19 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.queue.impl;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -27,6 +37,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.eclipse.leshan.core.observation.Observation;
 import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.request.WriteRequest;
 import org.eclipse.leshan.core.request.exception.RequestCanceledException;
 import org.eclipse.leshan.core.request.exception.TimeoutException;
 import org.eclipse.leshan.core.response.ErrorCallback;
@@ -54,6 +66,22 @@ import org.slf4j.LoggerFactory;
  * This sender is a special implementation of a {@link LwM2mRequestSender} . This sender assumes the client is using "Q"
  * (queue) mode and processes the request using the internal queue, i.e. the request is enqueued first and then sent if
  * a client is back online.
+ * <p>
+ * When a client is back online, up to {@link Builder#setWindowSize(int)} queued requests are sent without waiting for
+ * the previous responses, so that more requests are delivered while the client is awake. The window never exceeds the
+ * CoAP NSTART of the clients ({@link Builder#setNstart(int)}) and shrinks when requests time out.
+ * <p>
+ * The queue of each client can be bounded ({@link Builder#setMaxQueueDepth(int)}), queued requests can expire
+ * ({@link Builder#setRequestTtl(long)}), and redundant requests can be coalesced
+ * ({@link Builder#setCoalescing(boolean)}): a read identical to a queued read is not queued, and a write replacing the
+ * value of a queued write makes the latter skipped. The tickets of the coalesced requests are answered with the
+ * response of the request which is sent.
+ * <p>
+ * The expiration of a request is stored with it in the {@link MessageStore}, so it also applies to the requests queued
+ * before a restart or by another instance. The coalescing state (the tickets answered by another request, the
+ * superseded writes and the index of the queued requests) is only kept in memory by this sender: the requests queued
+ * before a restart or by another instance are not coalesced, a superseded write is then sent before the write
+ * replacing it, and the tickets coalesced before a restart are not answered.
  */
 public class QueuedRequestSender implements LwM2mRequestSender, Stoppable {
     private static final Logger LOG = LoggerFactory.getLogger(QueuedRequestSender.class);
@@ -67,6 +95,12 @@ public class QueuedRequestSender implements LwM2mRequestSender, Stoppable {
     private final ObservationRegistry observationRegistry;
     private final ClientStatusTracker clientStatusTracker;
     private final Collection<ResponseListener> responseListeners = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<String, ClientQueue> queues = new ConcurrentHashMap<>();
+    private final int windowSize;
+    private final int maxQueueDepth;
+    private final long requestTtl;
+    private final boolean coalescing;
+    private final QueuePolicySender queuePolicySender = new QueuePolicySender();
 
     private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
 
@@ -80,6 +114,10 @@ public class QueuedRequestSender implements LwM2mRequestSender, Stoppable {
         this.clientRegistry = builder.clientRegistry;
         this.observationRegistry = builder.observationRegistry;
         this.delegateSender = builder.delegateSender;
+        this.windowSize = Math.min(builder.windowSize, builder.nstart);
+        this.maxQueueDepth = builder.maxQueueDepth;
+        this.requestTtl = builder.requestTtl;
+        this.coalescing = builder.coalescing;
 
         this.clientStatusTracker = new ClientStatusTracker();
 
@@ -126,8 +164,9 @@ public class QueuedRequestSender implements LwM2mRequestSender, Stoppable {
         try {
             // Check whether client is still known to ClientRegistry
             if (clientRegistry.get(endpoint) != null) {
-                QueuedRequest queuedRequest = new QueuedRequestImpl(endpoint, castedDownlinkRequest, requestTicket);
-                messageStore.add(queuedRequest);
+                if (!enqueue(destination, requestTicket, castedDownlinkRequest)) {
+                    return;
+                }
                 // If Client is reachable and this is the first message, we send it
                 // immediately.
                 if (clientStatusTracker.startClientReceiving(endpoint)) {
@@ -145,6 +184,73 @@ public class QueuedRequestSender implements LwM2mRequestSender, Stoppable {
         }
     }
 
+    /**
+     * Adds a request to the queue of the client, unless it is coalesced with a queued request or the queue is full.
+     *
+     * @return <code>true</code> if the request was added to the queue
+     */
+    private boolean enqueue(Client destination, String requestTicket, DownlinkRequest<LwM2mResponse> request) {
+        String endpoint = destination.getEndpoint();
+        ClientQueue queue = getQueue(endpoint);
+        synchronized (queue.window) {
+            DownlinkRequest<?> downlinkRequest = request;
+            QueuedRequest superseded = null;
+            if (coalescing && downlinkRequest instanceof ReadRequest) {
+                QueuedRequest read = queue.coalescer.findRead((ReadRequest) downlinkRequest, queue.window);
+                if (read != null) {
+                    LOG.debug("Request {} coalesced with queued request {}", requestTicket, read.getRequestTicket());
+                    queue.addCoalescedTickets(read.getRequestTicket(), Collections.singletonList(requestTicket));
+                    return false;
+                }
+            } else if (coalescing && downlinkRequest instanceof WriteRequest) {
+                superseded = queue.coalescer.findSupersededWrite((WriteRequest) downlinkRequest, queue.window);
+            }
+
+            if (superseded == null && maxQueueDepth < Integer.MAX_VALUE
+                    && countQueued(endpoint, queue) >= maxQueueDepth) {
+                String message = String.format("queue of client [%s] is full", endpoint);
+                LOG.debug(message);
+                processingExecutor.execute(new ResponseProcessingTask(destination, requestTicket, responseListeners,
+                        new RequestCanceledException(message)));
+                return false;
+            }
+
+            if (superseded != null) {
+                String supersededTicket = superseded.getRequestTicket();
+                LOG.debug("Queued request {} superseded by request {}", supersededTicket, requestTicket);
+                queue.supersededTickets.add(supersededTicket);
+                queue.expirations.remove(supersededTicket);
+                List<String> tickets = new ArrayList<>();
+                tickets.add(supersededTicket);
+                List<String> previous = queue.coalescedTickets.remove(supersededTicket);
+                if (previous != null) {
+                    tickets.addAll(previous);
+                }
+                queue.addCoalescedTickets(requestTicket, tickets);
+            }
+
+            long expiration = requestTtl > 0 ? System.currentTimeMillis() + requestTtl : 0;
+            QueuedRequest queued = new QueuedRequestImpl(endpoint, request, requestTicket, expiration);
+            if (expiration > 0) {
+                queue.expirations.put(requestTicket, expiration);
+            }
+            if (coalescing) {
+                queue.coalescer.add(queued);
+            }
+            messageStore.add(queued);
+            return true;
+        }
+    }
+
+    /**
+     * @return the number of queued requests which will be sent, the superseded and expired requests queued by this
+     *         sender are not counted
+     */
+    private int countQueued(String endpoint, ClientQueue queue) {
+        return messageStore.getQueueSize(endpoint) - queue.supersededTickets.size()
+                - queue.countExpired(System.currentTimeMillis());
+    }
+
     @Override
     public void addResponseListener(ResponseListener listener) {
         responseListeners.add(listener);
@@ -188,10 +294,24 @@ public class QueuedRequestSender implements LwM2mRequestSender, Stoppable {
 
             // It is better to notify the listener with a RequestCanceledException
             // for each queued message to keep the behavior consistent with CaliforniumLwM2mRequestSender.
+            ClientQueue queue = queues.remove(client.getEndpoint());
+            if (queue == null) {
+                queue = new ClientQueue(windowSize);
+            }
             List<QueuedRequest> removedMessages = messageStore.removeAll(client.getEndpoint());
-            for (QueuedRequest request : removedMessages) {
-                processingExecutor.execute(new ResponseProcessingTask(client, request.getRequestTicket(),
-                        responseListeners, new RequestCanceledException("Queued message cancelled")));
+            synchronized (queue.window) {
+                for (QueuedRequest request : removedMessages) {
+                    String requestTicket = request.getRequestTicket();
+                    // the response of this request was already processed, or it is answered with the request which
+                    // superseded it
+                    if (queue.window.isCompleted(requestTicket) || queue.supersededTickets.contains(requestTicket)) {
+                        continue;
+                    }
+                    List<String> coalesced = queue.coalescedTickets.remove(requestTicket);
+                    notifyError(client, requestTicket,
+                            coalesced == null ? Collections.<String> emptyList() : coalesced,
+                            new RequestCanceledException("Queued message cancelled"));
+                }
             }
         } finally {
             readWriteLock.writeLock().unlock();
@@ -221,7 +341,7 @@ public class QueuedRequestSender implements LwM2mRequestSender, Stoppable {
                 if (client != null && client.usesQueueMode()) {
                     LOG.debug("exception on sending the request: {}", requestTicket, exception);
                     if (exception instanceof TimeoutException) {
-                        timeout(client.getEndpoint());
+                        timeout(client.getEndpoint(), requestTicket);
                     } else {
                         processException(client, requestTicket, exception);
                     }
@@ -232,15 +352,19 @@ public class QueuedRequestSender implements LwM2mRequestSender, Stoppable {
 
     private void processResponse(Client client, String requestTicket, LwM2mResponse response) {
         LOG.debug("Received Response -> {}", requestTicket);
-        messageStore.deleteFirst(client.getEndpoint());
+        List<String> coalesced = complete(client.getEndpoint(), requestTicket, true);
         processingExecutor.execute(new ResponseProcessingTask(client, requestTicket, responseListeners, response));
+        for (String coalescedTicket : coalesced) {
+            processingExecutor
+                    .execute(new ResponseProcessingTask(client, coalescedTicket, responseListeners, response));
+        }
         processingExecutor.execute(newRequestSendingTask(client.getEndpoint()));
     }
 
     private void processException(Client client, String requestTicket, Exception exception) {
         LOG.debug("Received error response {}", requestTicket);
-        messageStore.deleteFirst(client.getEndpoint());
-        processingExecutor.execute(new ResponseProcessingTask(client, requestTicket, responseListeners, exception));
+        List<String> coalesced = complete(client.getEndpoint(), requestTicket, false);
+        notifyError(client, requestTicket, coalesced, exception);
         // If RequestCanceledException is thrown due to cancelPendingMessages call, then there
         // is no use processing next requests which would be removed in the next few moments.
         if (!(exception instanceof RequestCanceledException)) {
@@ -248,14 +372,98 @@ public class QueuedRequestSender implements LwM2mRequestSender, Stoppable {
         }
     }
 
-    private void timeout(String clientEndpoint) {
+    private void notifyError(Client client, String requestTicket, List<String> coalesced, Exception exception) {
+        processingExecutor.execute(new ResponseProcessingTask(client, requestTicket, responseListeners, exception));
+        for (String coalescedTicket : coalesced) {
+            processingExecutor
+                    .execute(new ResponseProcessingTask(client, coalescedTicket, responseListeners, exception));
+        }
+    }
+
+    /**
+     * Removes the completed requests from the head of the queue, responses can be received in any order.
+     *
+     * @return the tickets coalesced with this request
+     */
+    private List<String> complete(String clientEndpoint, String requestTicket, boolean success) {
+        ClientQueue queue = queues.get(clientEndpoint);
+        if (queue == null) {
+            return Collections.emptyList();
+        }
+        synchronized (queue.window) {
+            queue.expirations.remove(requestTicket);
+            queue.coalescer.remove(requestTicket);
+            int completed = queue.window.complete(requestTicket, success);
+            for (int i = 0; i < completed; i++) {
+                messageStore.deleteFirst(clientEndpoint);
+            }
+            List<String> coalesced = queue.coalescedTickets.remove(requestTicket);
+            return coalesced == null ? Collections.<String> emptyList() : coalesced;
+        }
+    }
+
+    private void timeout(String clientEndpoint, String requestTicket) {
         LOG.debug("Client {} timed out", clientEndpoint);
+        ClientQueue queue = queues.get(clientEndpoint);
+        if (queue != null) {
+            synchronized (queue.window) {
+                queue.window.timeout(requestTicket);
+                LOG.debug("Window of client {} reduced to {}", clientEndpoint, queue.window.getLimit());
+            }
+        }
         clientStatusTracker.setClientUnreachable(clientEndpoint);
     }
 
+    private ClientQueue getQueue(String clientEndpoint) {
+        ClientQueue queue = queues.get(clientEndpoint);
+        if (queue == null) {
+            ClientQueue newQueue = new ClientQueue(windowSize);
+            queue = queues.putIfAbsent(clientEndpoint, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue;
+    }
+
     private RequestSendingTask newRequestSendingTask(String clientEndpoint) {
-        return new RequestSendingTask(clientRegistry, delegateSender, clientStatusTracker, messageStore,
-                clientEndpoint);
+        return new RequestSendingTask(clientRegistry, queuePolicySender, clientStatusTracker, messageStore,
+                clientEndpoint, getQueue(clientEndpoint).window);
+    }
+
+    /**
+     * Skips the superseded and expired requests when they reach the head of the queue, the other requests are sent
+     * with the delegate sender.
+     */
+    private final class QueuePolicySender implements RequestSendingTask.QueuedRequestDispatcher {
+
+        @Override
+        public void send(Client destination, QueuedRequest request) {
+            String endpoint = destination.getEndpoint();
+            String requestTicket = request.getRequestTicket();
+            ClientQueue queue = getQueue(endpoint);
+            boolean superseded;
+            synchronized (queue.window) {
+                superseded = queue.supersededTickets.remove(requestTicket);
+            }
+            if (superseded) {
+                LOG.debug("Skipping superseded request {}", requestTicket);
+                complete(endpoint, requestTicket, false);
+                processingExecutor.execute(newRequestSendingTask(endpoint));
+                return;
+            }
+            // the expiration is stored with the request, it may have been queued before a restart
+            long expiration = request.getExpiration();
+            if (expiration > 0 && expiration <= System.currentTimeMillis()) {
+                LOG.debug("Queued request {} expired", requestTicket);
+                List<String> coalesced = complete(endpoint, requestTicket, false);
+                notifyError(destination, requestTicket, coalesced,
+                        new RequestCanceledException("Queued message expired"));
+                processingExecutor.execute(newRequestSendingTask(endpoint));
+                return;
+            }
+            delegateSender.send(destination, requestTicket, request.getDownlinkRequest());
+        }
     }
 
     private final class QueueModeObservationRegistryListener implements ObservationRegistryListener {
@@ -320,7 +528,55 @@ public class QueuedRequestSender implements LwM2mRequestSender, Stoppable {
         public void unregistered(Client client) {
             if (client.usesQueueMode()) {
                 clientStatusTracker.clearClientState(client.getEndpoint());
+                // the state of the queued requests is still needed to cancel them
+                if (messageStore.isEmpty(client.getEndpoint())) {
+                    queues.remove(client.getEndpoint());
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of the queue of a client, kept in memory. Callers synchronize on the window.
+     */
+    private static final class ClientQueue {
+        private final DrainWindow window;
+        private final RequestCoalescer coalescer = new RequestCoalescer();
+        // the tickets answered by the response of another request
+        private final Map<String, List<String>> coalescedTickets = new HashMap<>();
+        // the queued writes replaced by a later write, skipped when they reach the head of the queue
+        private final Set<String> supersededTickets = new HashSet<>();
+        // the expiration of the requests queued by this sender, in the order of the queue, to count the expired ones
+        private final Map<String, Long> expirations = new LinkedHashMap<>();
+
+        private ClientQueue(int windowSize) {
+            this.window = new DrainWindow(windowSize);
+        }
+
+        private void addCoalescedTickets(String requestTicket, List<String> tickets) {
+            List<String> coalesced = coalescedTickets.get(requestTicket);
+            if (coalesced == null) {
+                coalesced = new ArrayList<>();
+                coalescedTickets.put(requestTicket, coalesced);
+            }
+            coalesced.addAll(tickets);
+        }
+
+        /**
+         * @return the number of expired requests which are not sent yet
+         */
+        private int countExpired(long now) {
+            int expired = 0;
+            // all the requests have the same time to live: they expire in the order of the queue
+            for (Entry<String, Long> expiration : expirations.entrySet()) {
+                if (expiration.getValue() > now) {
+                    break;
+                }
+                if (!window.contains(expiration.getKey())) {
+                    expired++;
+                }
             }
+            return expired;
         }
     }
 
@@ -333,6 +589,11 @@ public class QueuedRequestSender implements LwM2mRequestSender, Stoppable {
         private LwM2mRequestSender delegateSender;
         private ClientRegistry clientRegistry;
         private ObservationRegistry observationRegistry;
+        private int windowSize = 1;
+        private int nstart = 1;
+        private int maxQueueDepth = Integer.MAX_VALUE;
+        private long requestTtl;
+        private boolean coalescing;
 
         public Builder setMessageStore(MessageStore messageStore) {
             this.messageStore = messageStore;
@@ -354,32 +615,94 @@ public class QueuedRequestSender implements LwM2mRequestSender, Stoppable {
             return this;
         }
 
+        /**
+         * Sets the maximum number of queued requests sent to a client without waiting for the previous responses. The
+         * default is 1: requests are sent one after another.
+         */
+        public Builder setWindowSize(int windowSize) {
+            this.windowSize = windowSize;
+            return this;
+        }
+
+        /**
+         * Sets the CoAP NSTART of the clients, the maximum number of simultaneous outstanding interactions they accept
+         * (see section 4.7 of RFC 7252). The window size never exceeds it. The default is 1, as in RFC 7252.
+         */
+        public Builder setNstart(int nstart) {
+            this.nstart = nstart;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of requests queued for a client, the requests sent to a client whose queue is full
+         * fail with a {@link RequestCanceledException}. The queue is not bounded by default.
+         */
+        public Builder setMaxQueueDepth(int maxQueueDepth) {
+            this.maxQueueDepth = maxQueueDepth;
+            return this;
+        }
+
+        /**
+         * Sets the time to live of the queued requests in milliseconds, a request which is still queued after this
+         * time is not sent and fails with a {@link RequestCanceledException}. The requests never expire by default
+         * (<code>0</code>).
+         * <p>
+         * The expiration is stored with each request in the {@link MessageStore}.
+         */
+        public Builder setRequestTtl(long requestTtl) {
+            this.requestTtl = requestTtl;
+            return this;
+        }
+
+        /**
+         * Enables the coalescing of redundant queued requests: reads identical to a queued read and writes replaced by
+         * a later write on the same path. Disabled by default.
+         * <p>
+         * The coalescing state is kept in memory: only the requests queued by this sender since its creation are
+         * coalesced.
+         */
+        public Builder setCoalescing(boolean coalescing) {
+            this.coalescing = coalescing;
+            return this;
+        }
+
         public QueuedRequestSender build() {
             Validate.notNull(messageStore, "messageStore cannot be null");
             Validate.notNull(delegateSender, "delegateSender cannot be null");
             Validate.notNull(clientRegistry, "clientRegistry cannot be null");
             Validate.notNull(observationRegistry, "observationRegistry cannot be null");
+            Validate.isTrue(windowSize > 0, "windowSize must be positive");
+            Validate.isTrue(nstart > 0, "nstart must be positive");
+            Validate.isTrue(maxQueueDepth > 0, "maxQueueDepth must be positive");
+            Validate.isTrue(requestTtl >= 0, "requestTtl cannot be negative");
 
             return new QueuedRequestSender(this);
         }
     }
 
     /**
-     * An instance of a queued request along with its meta data (endpoint and requestTicket).
+     * An instance of a queued request along with its meta data (endpoint, requestTicket and expiration).
      */
     static class QueuedRequestImpl implements QueuedRequest {
 
         private final DownlinkRequest<LwM2mResponse> downlinkRequest;
         private final String endpoint;
         private final String requestTicket;
+        private final long expiration;
 
-        private QueuedRequestImpl(String endpoint, DownlinkRequest<LwM2mResponse> downlinkRequest,
+        QueuedRequestImpl(String endpoint, DownlinkRequest<LwM2mResponse> downlinkRequest,
                 String requestTicket) {
+            this(endpoint, downlinkRequest, requestTicket, 0);
+        }
+
+        QueuedRequestImpl(String endpoint, DownlinkRequest<LwM2mResponse> downlinkRequest, String requestTicket,
+                long expiration) {
             Validate.notNull(endpoint, "endpoint may not be null");
             Validate.notNull(downlinkRequest, "request may not be null");
             this.downlinkRequest = downlinkRequest;
             this.endpoint = endpoint;
             this.requestTicket = requestTicket;
+            this.expiration = expiration;
         }
 
         @Override
@@ -402,11 +725,16 @@ public class QueuedRequestSender implements LwM2mRequestSender, Stoppable {
             return this.requestTicket;
         }
 
+        @Override
+        public long getExpiration() {
+            return expiration;
+        }
+
         @Override
         public String toString() {
             return new StringBuilder().append("QueuedRequestImpl [requestTicket=").append(requestTicket)
                     .append(", downlinkRequest=").append(downlinkRequest).append(", endpoint=" + endpoint)
-                    .append(", requestId=").append("]").toString();
+                    .append(", expiration=").append(expiration).append(", requestId=").append("]").toString();
         }
 
         @Override
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.queue.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.request.WriteRequest;
+import org.eclipse.leshan.server.queue.QueuedRequest;
+
+/**
+ * Finds the queued requests of a client which make a new request redundant.
+ * <p>
+ * Only the requests which are not sent yet are considered, and a request is never coalesced across a later request
+ * targeting an overlapping path: coalescing never changes the result seen by the requests queued in between.
+ * <p>
+ * The queued requests are indexed by path, so that a new request is checked without reading the queue: the index keeps
+ * the last request on each path and, for each path, the last request on this path or below it. The requests must be
+ * added in the order of the queue and removed once completed.
+ * <p>
+ * This class is not thread-safe, callers synchronize on the {@link DrainWindow} of the client.
+ */
+class RequestCoalescer {
+
+    private static class Entry {
+        private final QueuedRequest request;
+        private final long sequence;
+
+        private Entry(QueuedRequest request, long sequence) {
+            this.request = request;
+            this.sequence = sequence;
+        }
+    }
+
+    private long lastSequence;
+    private final Map<String, Entry> entries = new HashMap<>();
+    // the last request on each path
+    private final Map<String, Entry> lastRequests = new HashMap<>();
+    // the last read for each kind of read
+    private final Map<ReadRequest, Entry> lastReads = new HashMap<>();
+    // the sequence of the last request, and of the last request which is not a read, on each path
+    private final Map<String, Long> lastOn = new HashMap<>();
+    private final Map<String, Long> lastChangeOn = new HashMap<>();
+    // the sequence of the last request, and of the last request which is not a read, on each path or below it
+    private final Map<String, Long> lastBelow = new HashMap<>();
+    private final Map<String, Long> lastChangeBelow = new HashMap<>();
+
+    /**
+     * Adds a request at the end of the queue.
+     */
+    void add(QueuedRequest request) {
+        Entry entry = new Entry(request, ++lastSequence);
+        DownlinkRequest<?> downlinkRequest = request.getDownlinkRequest();
+        boolean read = downlinkRequest instanceof ReadRequest;
+        String path = downlinkRequest.getPath().toString();
+
+        entries.put(request.getRequestTicket(), entry);
+        lastRequests.put(path, entry);
+        lastOn.put(path, entry.sequence);
+        if (read) {
+            lastReads.put((ReadRequest) downlinkRequest, entry);
+        } else {
+            lastChangeOn.put(path, entry.sequence);
+        }
+        lastBelow.put(path, entry.sequence);
+        if (!read) {
+            lastChangeBelow.put(path, entry.sequence);
+        }
+        for (String parent : parents(path)) {
+            lastBelow.put(parent, entry.sequence);
+            if (!read) {
+                lastChangeBelow.put(parent, entry.sequence);
+            }
+        }
+    }
+
+    /**
+     * Removes a completed request.
+     */
+    void remove(String requestTicket) {
+        Entry entry = entries.remove(requestTicket);
+        if (entry == null) {
+            return;
+        }
+        if (entries.isEmpty()) {
+            clear();
+            return;
+        }
+        DownlinkRequest<?> downlinkRequest = entry.request.getDownlinkRequest();
+        String path = downlinkRequest.getPath().toString();
+        if (lastRequests.get(path) == entry) {
+            lastRequests.remove(path);
+        }
+        if (downlinkRequest instanceof ReadRequest && lastReads.get(downlinkRequest) == entry) {
+            lastReads.remove(downlinkRequest);
+        }
+        // the sequences of the completed requests are kept: they are older than any request which is not sent yet
+    }
+
+    void clear() {
+        entries.clear();
+        lastRequests.clear();
+        lastReads.clear();
+        lastOn.clear();
+        lastChangeOn.clear();
+        lastBelow.clear();
+        lastChangeBelow.clear();
+    }
+
+    /**
+     * Finds a queued read which will return the same result as the given read.
+     *
+     * @param read the new read request
+     * @param window the requests already sent
+     * @return the queued read whose response also answers the new read, or <code>null</code>
+     */
+    QueuedRequest findRead(ReadRequest read, DrainWindow window) {
+        Entry entry = lastReads.get(read);
+        if (entry == null || window.contains(entry.request.getRequestTicket())) {
+            return null;
+        }
+        String path = read.getPath().toString();
+        if (isAfter(lastChangeBelow.get(path), entry)) {
+            return null;
+        }
+        for (String parent : parents(path)) {
+            if (isAfter(lastChangeOn.get(parent), entry)) {
+                return null;
+            }
+        }
+        return entry.request;
+    }
+
+    /**
+     * Finds a queued write which is overridden by the given write.
+     *
+     * @param write the new write request
+     * @param window the requests already sent
+     * @return the queued write which does not need to be sent anymore, or <code>null</code>
+     */
+    QueuedRequest findSupersededWrite(WriteRequest write, DrainWindow window) {
+        // a partial update does not override the previous value
+        if (!write.isReplaceRequest()) {
+            return null;
+        }
+        String path = write.getPath().toString();
+        Entry entry = lastRequests.get(path);
+        if (entry == null || window.contains(entry.request.getRequestTicket())) {
+            return null;
+        }
+        DownlinkRequest<?> downlinkRequest = entry.request.getDownlinkRequest();
+        if (!(downlinkRequest instanceof WriteRequest)) {
+            return null;
+        }
+        if (isAfter(lastBelow.get(path), entry)) {
+            return null;
+        }
+        for (String parent : parents(path)) {
+            if (isAfter(lastOn.get(parent), entry)) {
+                return null;
+            }
+        }
+        return entry.request;
+    }
+
+    private static boolean isAfter(Long sequence, Entry entry) {
+        return sequence != null && sequence > entry.sequence;
+    }
+
+    /**
+     * @return the parents of the path, up to the root path
+     */
+    private static List<String> parents(String path) {
+        List<String> parents = new ArrayList<>(4);
+        int end = path.lastIndexOf('/');
+        while (end > 0) {
+            path = path.substring(0, end);
+            parents.add(path);
+            end = path.lastIndexOf('/');
+        }
+        if (!path.equals("/")) {
+            parents.add("/");
+        }
+        return parents;
+    }
+}
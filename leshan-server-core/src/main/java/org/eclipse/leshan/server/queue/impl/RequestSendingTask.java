@@ -16,45 +16,57 @@
  *******************************************************************************/
 package org.eclipse.leshan.server.queue.impl;
 
+import java.util.List;
+
 import org.eclipse.leshan.core.request.DownlinkRequest;
 import org.eclipse.leshan.core.response.LwM2mResponse;
 import org.eclipse.leshan.server.client.Client;
 import org.eclipse.leshan.server.client.ClientRegistry;
 import org.eclipse.leshan.server.queue.MessageStore;
 import org.eclipse.leshan.server.queue.QueuedRequest;
-import org.eclipse.leshan.server.request.LwM2mRequestSender;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Request sending task is a Runnable, which is responsible for the actual sending of a queue request. The queue request
- * is sent asynchronously; upon receiving a response or an error the message is removed from queue and a new task is
- * scheduled to process the next message from queue.
+ * Request sending task is a Runnable, which is responsible for the actual sending of queue requests. The queue requests
+ * are sent asynchronously, as many as the client {@link DrainWindow} allows; upon receiving a response or an error the
+ * message is removed from queue and a new task is scheduled to process the next messages from queue.
  */
 class RequestSendingTask implements Runnable {
+
+    /**
+     * Sends a queued request to its client.
+     */
+    interface QueuedRequestDispatcher {
+        void send(Client destination, QueuedRequest request);
+    }
+
     private static final Logger LOG = LoggerFactory.getLogger(RequestSendingTask.class);
     private final ClientRegistry clientRegistry;
-    private final LwM2mRequestSender requestSender;
+    private final QueuedRequestDispatcher dispatcher;
     private final String endpoint;
     private final MessageStore messageStore;
     private final ClientStatusTracker clientStatusTracker;
+    private final DrainWindow window;
 
     /**
      * Creates a new task which is responsible for sending a queue request.
      *
      * @param clientRegistry client registry
-     * @param delegateSender sender to perform send on (delegate)
+     * @param dispatcher sends the queued requests
      * @param clientStatusTracker tracks the status of the client
      * @param messageStore holds queued messages for the client
      * @param endpoint clients endpoint identifier
+     * @param window the requests of the client currently in flight
      */
-    public RequestSendingTask(ClientRegistry clientRegistry, LwM2mRequestSender delegateSender,
-            ClientStatusTracker clientStatusTracker, MessageStore messageStore, String endpoint) {
+    public RequestSendingTask(ClientRegistry clientRegistry, QueuedRequestDispatcher dispatcher,
+            ClientStatusTracker clientStatusTracker, MessageStore messageStore, String endpoint, DrainWindow window) {
         this.clientRegistry = clientRegistry;
-        this.requestSender = delegateSender;
+        this.dispatcher = dispatcher;
         this.clientStatusTracker = clientStatusTracker;
         this.endpoint = endpoint;
         this.messageStore = messageStore;
+        this.window = window;
     }
 
     @Override
@@ -68,21 +80,34 @@ class RequestSendingTask implements Runnable {
     }
 
     private void executeAction() {
-        QueuedRequest firstRequest = messageStore.retrieveFirst(endpoint);
+        List<QueuedRequest> requests;
+        synchronized (window) {
+            // responses to the requests still in flight after a timeout must not resume the sending
+            if (!clientStatusTracker.isClientReceiving(endpoint)) {
+                LOG.debug("Client {} is not receiving, requests are not sent", endpoint);
+                return;
+            }
+            requests = window.select(messageStore.retrieveFirst(endpoint, window.fetchSize()));
+            if (requests.isEmpty()) {
+                if (window.isIdle()) {
+                    LOG.debug("No more requests to send to client {}", endpoint);
+                    clientStatusTracker.stopClientReceiving(endpoint);
+                }
+                return;
+            }
+        }
 
-        if (firstRequest != null) {
-            DownlinkRequest<LwM2mResponse> downlinkRequest = firstRequest.getDownlinkRequest();
+        // send outside of the lock, the response of a request could be processed by this thread
+        for (QueuedRequest request : requests) {
+            DownlinkRequest<LwM2mResponse> downlinkRequest = request.getDownlinkRequest();
             LOG.debug("Sending request: {}", downlinkRequest);
-            Client client = clientRegistry.get(firstRequest.getEndpoint());
+            Client client = clientRegistry.get(request.getEndpoint());
             if (client == null) {
                 // client not registered anymore -> don't send this request
                 LOG.debug("Client {} not registered anymore: {}", endpoint, downlinkRequest);
-            } else {
-                requestSender.send(client, firstRequest.getRequestTicket(), downlinkRequest);
+                return;
             }
-        } else {
-            LOG.debug("No more requests to send to client {}", endpoint);
-            clientStatusTracker.stopClientReceiving(endpoint);
+            dispatcher.send(client, request);
         }
     }
 }
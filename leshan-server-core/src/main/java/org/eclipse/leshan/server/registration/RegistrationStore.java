@@ -18,8 +18,11 @@ package org.eclipse.leshan.server.registration;
 import java.net.InetSocketAddress;
 import java.util.Collection;
 
+import org.eclipse.leshan.core.node.LwM2mPath;
 import org.eclipse.leshan.core.observation.Observation;
 import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientFilter;
+import org.eclipse.leshan.server.client.ClientPage;
 import org.eclipse.leshan.server.client.ClientUpdate;
 
 /**
@@ -63,18 +66,30 @@ public interface RegistrationStore {
      * Get the registration by socket address.
      * 
      * @param address of the client registered.
-     * @return the registration or null if there is no client registered with this socket address.
+     * @return the registration or an empty collection if there is no client registered with this socket address.
      */
     Collection<Client> getRegistrationByAdress(InetSocketAddress address);
 
     /**
      * @return all registrations in this store.
-     * @Deprecated should be replaced by an iterator.
+     * @Deprecated should be replaced by {@link #getRegistrations(String, int, ClientFilter)}.
      */
-    // TODO Should be replaced by an iterator.
     @Deprecated
     Collection<Client> getAllRegistration();
 
+    /**
+     * Get a page of registrations.
+     * <p>
+     * At most <code>pageSize</code> registrations are visited, so a page may contain fewer registrations when a filter
+     * is used. The returned cursor is <code>null</code> when there is no more registrations to visit.
+     * 
+     * @param cursor the cursor returned with the previous page or <code>null</code> to start from the beginning.
+     * @param pageSize the maximum number of registrations to visit.
+     * @param filter the filter to apply or <code>null</code> to get all the registrations.
+     * @return the page of registrations.
+     */
+    ClientPage getRegistrations(String cursor, int pageSize, ClientFilter filter);
+
     /**
      * Remove the registration with the given registration Id
      * 
@@ -108,6 +123,14 @@ public interface RegistrationStore {
      */
     Collection<Observation> getObservations(String registrationId);
 
+    /**
+     * Get the observations of the given registrationId on the given path.
+     * <p>
+     * Implementations index observations by registration and path, so this does not visit the other observations of
+     * the registration.
+     */
+    Collection<Observation> getObservations(String registrationId, LwM2mPath path);
+
     /**
      * Remove all observations for the given registrationId
      */
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.client;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import org.eclipse.leshan.LinkObject;
+
+/**
+ * Measures the heap retained by each {@link Client} of a large registration set.
+ * <p>
+ * Each client gets its own address and endpoint, no additional attributes, and the object links of a typical device
+ * parsed separately, as the register resource does. The retained heap is read after forced garbage collections, so
+ * the figure is only indicative. It only uses the public API and can be run on older revisions to compare them. Run
+ * it from the test classpath, e.g.:
+ * 
+ * <pre>
+ * cd leshan-server-core
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -Xmx4g -XX:+UseParallelGC -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+ *     org.eclipse.leshan.server.client.ClientHeapBenchmark [registrations]
+ * </pre>
+ */
+public class ClientHeapBenchmark {
+
+    private static final String LINKS = "</>;rt=\"oma.lwm2m\",</1/0>,</2/0>,</2/1>,</2/2>,</3/0>,</4/0>,</5/0>,</6/0>";
+
+    public static void main(String[] args) throws UnknownHostException {
+        int nbRegistrations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        InetSocketAddress registrationEndpoint = new InetSocketAddress(5684);
+
+        long before = usedHeap();
+        Client[] registrations = new Client[nbRegistrations];
+        for (int i = 0; i < nbRegistrations; i++) {
+            InetAddress address = InetAddress.getByAddress(new byte[] { 10, (byte) (i >> 16), (byte) (i >> 8),
+                (byte) i });
+            registrations[i] = new Client.Builder("regId" + i, "urn:imei:" + (359072062000000L + i), address, 56830,
+                    registrationEndpoint).objectLinks(LinkObject.parse(LINKS.getBytes())).lifeTimeInSec(86400L)
+                            .build();
+        }
+        long after = usedHeap();
+
+        System.out.println(String.format("%d registrations: %.1f bytes per registration", registrations.length,
+                (double) (after - before) / registrations.length));
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            memory.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
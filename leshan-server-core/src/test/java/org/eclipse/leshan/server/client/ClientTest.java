@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.client;
+
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Date;
+
+import org.eclipse.leshan.LinkObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClientTest {
+
+    private static final String LINKS = "</lwm2m>;rt=\"oma.lwm2m\",</lwm2m/1/0>,</lwm2m/3/0>";
+
+    @Test
+    public void identical_object_links_are_shared() throws UnknownHostException {
+        Client c1 = givenAClient("ep1", LinkObject.parse(LINKS.getBytes()));
+        Client c2 = givenAClient("ep2", LinkObject.parse(LINKS.getBytes()));
+        Client c3 = givenAClient("ep3", LinkObject.parse("</1/0>".getBytes()));
+
+        Assert.assertArrayEquals(c1.getObjectLinks(), c2.getObjectLinks());
+        Assert.assertSame(ObjectLinks.intern(c1.getObjectLinks()), ObjectLinks.intern(c2.getObjectLinks()));
+        Assert.assertNotSame(ObjectLinks.intern(c1.getObjectLinks()), ObjectLinks.intern(c3.getObjectLinks()));
+        Assert.assertEquals("/lwm2m", c2.getRootPath());
+        Assert.assertEquals("/", c3.getRootPath());
+    }
+
+    @Test
+    public void object_links_are_not_shared_with_the_caller() throws UnknownHostException {
+        LinkObject[] links = LinkObject.parse(LINKS.getBytes());
+        Client c = givenAClient("ep", links);
+
+        // neither the array given at the creation nor the returned ones are used by the client
+        links[0] = new LinkObject("/modified");
+        c.getObjectLinks()[1] = new LinkObject("/modified");
+
+        Assert.assertArrayEquals(LinkObject.parse(LINKS.getBytes()), c.getObjectLinks());
+        Assert.assertArrayEquals(LinkObject.parse(LINKS.getBytes()),
+                givenAClient("ep2", LinkObject.parse(LINKS.getBytes())).getObjectLinks());
+    }
+
+    @Test
+    public void timestamps_are_preserved() throws UnknownHostException {
+        Client c = new Client.Builder("registrationId", "endpoint", Inet4Address.getByName("127.0.0.1"), 1,
+                new InetSocketAddress(212)).registrationDate(new Date(1000)).lastUpdate(new Date(2000))
+                        .lifeTimeInSec(10L).build();
+
+        Assert.assertEquals(new Date(1000), c.getRegistrationDate());
+        Assert.assertEquals(new Date(2000), c.getLastUpdate());
+        Assert.assertEquals(12000, c.getExpirationTimeStamp());
+        Assert.assertTrue(c.getAdditionalRegistrationAttributes().isEmpty());
+    }
+
+    private Client givenAClient(String endpoint, LinkObject[] links) throws UnknownHostException {
+        return new Client.Builder("regId-" + endpoint, endpoint, Inet4Address.getByName("127.0.0.1"), 1,
+                new InetSocketAddress(212)).objectLinks(links).build();
+    }
+}
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.queue.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.server.queue.QueuedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskMessageStoreTest {
+
+    private static final String ENDPOINT = "myEndpoint";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private DiskMessageStore store;
+
+    @Before
+    public void start() throws IOException {
+        directory = folder.newFolder("queue");
+        store = newStore();
+    }
+
+    @After
+    public void stop() {
+        store.stop();
+    }
+
+    private DiskMessageStore newStore() {
+        DiskMessageStore store = new DiskMessageStore(directory, 1024, 0);
+        store.start();
+        return store;
+    }
+
+    private void restart() {
+        store.stop();
+        store = newStore();
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static QueuedRequest request(String endpoint, int ticket) {
+        DownlinkRequest<LwM2mResponse> request = (DownlinkRequest) new ReadRequest(3, 0, ticket);
+        return new QueuedRequestSender.QueuedRequestImpl(endpoint, request, "" + ticket);
+    }
+
+    @Test
+    public void requests_are_retrieved_in_order() {
+        for (int i = 1; i <= 3; i++) {
+            store.add(request(ENDPOINT, i));
+        }
+
+        assertEquals(3, store.getQueueSize(ENDPOINT));
+        assertEquals("1", store.retrieveFirst(ENDPOINT).getRequestTicket());
+        assertEquals(new ReadRequest(3, 0, 1), store.retrieveFirst(ENDPOINT).getDownlinkRequest());
+        store.deleteFirst(ENDPOINT);
+        assertEquals("2", store.retrieveFirst(ENDPOINT).getRequestTicket());
+
+        List<QueuedRequest> removed = store.removeAll(ENDPOINT);
+        assertEquals(2, removed.size());
+        assertTrue(store.isEmpty(ENDPOINT));
+        assertNull(store.retrieveFirst(ENDPOINT));
+    }
+
+    @Test
+    public void requests_survive_restart() {
+        for (int i = 1; i <= 100; i++) {
+            store.add(request(i % 2 == 0 ? "even" : "odd", i));
+        }
+        store.deleteFirst("even");
+
+        restart();
+
+        assertEquals(49, store.getQueueSize("even"));
+        assertEquals(50, store.getQueueSize("odd"));
+        assertEquals("4", store.retrieveFirst("even").getRequestTicket());
+        assertEquals("1", store.retrieveFirst("odd").getRequestTicket());
+    }
+
+    @Test
+    public void delivered_segments_are_deleted() {
+        for (int i = 1; i <= 100; i++) {
+            store.add(request(ENDPOINT, i));
+        }
+        assertTrue(directory.listFiles().length > 1);
+
+        store.removeAll(ENDPOINT);
+
+        // only the active segment remains
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    @Test
+    public void compaction_keeps_order_of_remaining_requests() {
+        for (int i = 1; i <= 100; i++) {
+            store.add(request(i == 1 ? "sleeping" : ENDPOINT, i));
+        }
+        store.add(request("sleeping", 101));
+        for (int i = 2; i <= 100; i++) {
+            store.deleteFirst(ENDPOINT);
+        }
+
+        store.compact();
+        // the first request was moved to the active segment
+        assertEquals(1, directory.listFiles().length);
+
+        restart();
+        assertEquals(2, store.getQueueSize("sleeping"));
+        assertEquals("1", store.retrieveFirst("sleeping").getRequestTicket());
+        store.deleteFirst("sleeping");
+        assertEquals("101", store.retrieveFirst("sleeping").getRequestTicket());
+    }
+
+    @Test
+    public void truncated_record_is_ignored() throws IOException {
+        store.add(request(ENDPOINT, 1));
+        store.add(request(ENDPOINT, 2));
+        store.stop();
+
+        // simulate a crash while writing the last record
+        File segment = directory.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        store = newStore();
+        assertEquals(1, store.getQueueSize(ENDPOINT));
+        store.add(request(ENDPOINT, 3));
+        store.deleteFirst(ENDPOINT);
+        assertEquals("3", store.retrieveFirst(ENDPOINT).getRequestTicket());
+    }
+
+    @Test
+    public void invalid_segment_is_left_on_disk() throws IOException {
+        store.add(request(ENDPOINT, 1));
+        store.stop();
+
+        // a file which is not a segment of this store
+        File invalid = new File(directory, "queue-0000000100.log");
+        try (RandomAccessFile file = new RandomAccessFile(invalid, "rw")) {
+            file.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        }
+
+        store = newStore();
+        assertEquals(1, store.getQueueSize(ENDPOINT));
+        assertTrue(invalid.exists());
+        assertEquals(8, invalid.length());
+
+        // the new segments come after it
+        store.add(request(ENDPOINT, 2));
+        restart();
+        assertEquals(2, store.getQueueSize(ENDPOINT));
+        assertEquals(8, invalid.length());
+    }
+
+    @Test
+    public void segments_are_deleted_after_a_truncation() throws IOException {
+        store.add(request(ENDPOINT, 1));
+        store.add(request(ENDPOINT, 2));
+        store.stop();
+
+        // the segment is truncated to its header, then deleted as it has no request
+        File segment = directory.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(8);
+        }
+
+        store = newStore();
+        assertTrue(store.isEmpty(ENDPOINT));
+        assertFalse(segment.exists());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void store_must_be_started() {
+        new DiskMessageStore(directory).add(request(ENDPOINT, 1));
+    }
+}
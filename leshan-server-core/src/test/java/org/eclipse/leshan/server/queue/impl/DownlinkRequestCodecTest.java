@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.queue.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.leshan.ObserveSpec;
+import org.eclipse.leshan.core.node.LwM2mMultipleResource;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.eclipse.leshan.core.node.ObjectLink;
+import org.eclipse.leshan.core.request.ContentFormat;
+import org.eclipse.leshan.core.request.CreateRequest;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ExecuteRequest;
+import org.eclipse.leshan.core.request.ObserveRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.request.WriteAttributesRequest;
+import org.eclipse.leshan.core.request.WriteRequest;
+import org.eclipse.leshan.core.request.WriteRequest.Mode;
+import org.junit.Test;
+
+public class DownlinkRequestCodecTest {
+
+    private static DownlinkRequest<?> roundTrip(DownlinkRequest<?> request) {
+        return DownlinkRequestCodec.decode(DownlinkRequestCodec.encode(request));
+    }
+
+    @Test
+    public void read_request() {
+        ReadRequest request = new ReadRequest(ContentFormat.JSON, "/3/0/1");
+        assertEquals(request, roundTrip(request));
+
+        ReadRequest withoutFormat = new ReadRequest(3, 0);
+        assertEquals(withoutFormat, roundTrip(withoutFormat));
+    }
+
+    @Test
+    public void write_request() {
+        Map<Integer, Long> values = new HashMap<>();
+        values.put(0, 12L);
+        values.put(3, -5L);
+        LwM2mObjectInstance instance = new LwM2mObjectInstance(0, LwM2mSingleResource.newStringResource(0, "value"),
+                LwM2mSingleResource.newFloatResource(1, 3.5), LwM2mSingleResource.newBooleanResource(2, true),
+                LwM2mSingleResource.newDateResource(3, new Date(1469441325000L)),
+                LwM2mSingleResource.newObjectLinkResource(4, new ObjectLink(3, 0)),
+                LwM2mMultipleResource.newIntegerResource(5, values));
+        WriteRequest request = new WriteRequest(Mode.UPDATE, ContentFormat.TLV, "/1024/0", instance);
+
+        assertEquals(request, roundTrip(request));
+    }
+
+    @Test
+    public void write_attributes_request() {
+        WriteAttributesRequest request = new WriteAttributesRequest(3, 0, 1,
+                new ObserveSpec.Builder().minPeriod(10).maxPeriod(60).greaterThan(2.5f).build());
+        assertEquals(request, roundTrip(request));
+    }
+
+    @Test
+    public void execute_create_and_observe_requests() {
+        ExecuteRequest execute = new ExecuteRequest("/3/0/4", "param");
+        assertEquals(execute, roundTrip(execute));
+
+        CreateRequest create = new CreateRequest(1024, LwM2mSingleResource.newIntegerResource(1, 42));
+        assertEquals(create, roundTrip(create));
+
+        ObserveRequest observe = new ObserveRequest(ContentFormat.TLV, "/3/0",
+                Collections.singletonMap("key", "value"));
+        ObserveRequest decoded = (ObserveRequest) roundTrip(observe);
+        assertEquals(observe, decoded);
+        assertEquals(observe.getContext(), decoded.getContext());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncated_data_is_rejected() {
+        byte[] data = DownlinkRequestCodec.encode(new ExecuteRequest("/3/0/4", "param"));
+        DownlinkRequestCodec.decode(java.util.Arrays.copyOf(data, data.length - 2));
+    }
+}
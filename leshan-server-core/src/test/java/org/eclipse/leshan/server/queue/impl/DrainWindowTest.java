@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.queue.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.request.AbstractDownlinkRequest;
+import org.eclipse.leshan.core.request.DownlinkRequestVisitor;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.server.queue.QueuedRequest;
+import org.junit.Test;
+
+public class DrainWindowTest {
+
+    private static final String ENDPOINT = "myEndpoint";
+
+    private final List<QueuedRequest> queue = new ArrayList<>();
+
+    @Test
+    public void sends_up_to_the_window_size() {
+        fillQueue(5);
+        DrainWindow window = new DrainWindow(3);
+
+        assertEquals(tickets(1, 2, 3), select(window));
+        // the window is full
+        assertEquals(tickets(), select(window));
+        assertFalse(window.isIdle());
+    }
+
+    @Test
+    public void deletes_completed_requests_in_order() {
+        fillQueue(5);
+        DrainWindow window = new DrainWindow(3);
+        select(window);
+
+        // responses received out of order
+        assertEquals(0, window.complete("2", true));
+        assertEquals(0, window.complete("3", true));
+        assertEquals(3, window.complete("1", true));
+        deleteFirst(3);
+
+        assertEquals(tickets(4, 5), select(window));
+        assertEquals(0, window.complete("unknown", true));
+    }
+
+    @Test
+    public void completed_request_frees_a_slot() {
+        fillQueue(5);
+        DrainWindow window = new DrainWindow(2);
+        select(window);
+
+        // the first request is still in flight, the second one is kept until the first one completes
+        assertEquals(0, window.complete("2", true));
+        assertTrue(window.isCompleted("2"));
+        assertEquals(tickets(3), select(window));
+    }
+
+    @Test
+    public void timeout_shrinks_the_window_and_resends() {
+        fillQueue(10);
+        DrainWindow window = new DrainWindow(4);
+        select(window);
+
+        window.timeout("1");
+        assertEquals(2, window.getLimit());
+        window.timeout("2");
+        assertEquals(1, window.getLimit());
+        window.timeout("3");
+        window.timeout("4");
+        assertEquals(1, window.getLimit());
+        assertTrue(window.isIdle());
+
+        // client is back: the timed out requests are sent again, one at a time
+        assertEquals(tickets(1), select(window));
+        assertEquals(1, window.complete("1", true));
+        deleteFirst(1);
+        assertEquals(2, window.getLimit());
+        assertEquals(tickets(2, 3), select(window));
+    }
+
+    @Test
+    public void window_is_reset_when_queue_changed() {
+        fillQueue(3);
+        DrainWindow window = new DrainWindow(2);
+        select(window);
+
+        queue.clear();
+        fillQueue(3, 10);
+        assertEquals(tickets(10, 11), select(window));
+    }
+
+    private List<String> select(DrainWindow window) {
+        List<QueuedRequest> first = queue.subList(0, Math.min(queue.size(), window.fetchSize()));
+        List<String> tickets = new ArrayList<>();
+        for (QueuedRequest request : window.select(new ArrayList<>(first))) {
+            tickets.add(request.getRequestTicket());
+        }
+        return tickets;
+    }
+
+    private void deleteFirst(int count) {
+        queue.subList(0, count).clear();
+    }
+
+    private static List<String> tickets(int... ids) {
+        List<String> tickets = new ArrayList<>();
+        for (int id : ids) {
+            tickets.add(String.valueOf(id));
+        }
+        return tickets;
+    }
+
+    private void fillQueue(int size) {
+        fillQueue(size, 1);
+    }
+
+    private void fillQueue(int size, int firstTicket) {
+        for (int i = firstTicket; i < firstTicket + size; i++) {
+            queue.add(new QueuedRequestSender.QueuedRequestImpl(ENDPOINT,
+                    new AbstractDownlinkRequest<LwM2mResponse>(new LwM2mPath("3")) {
+                        @Override
+                        public void accept(DownlinkRequestVisitor visitor) {
+                            // Noop.
+                        }
+                    }, String.valueOf(i)));
+        }
+    }
+}
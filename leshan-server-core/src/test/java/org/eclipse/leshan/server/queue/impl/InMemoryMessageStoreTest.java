@@ -21,6 +21,8 @@ package org.eclipse.leshan.server.queue.impl;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.List;
+
 import org.eclipse.leshan.core.node.LwM2mPath;
 import org.eclipse.leshan.core.request.AbstractDownlinkRequest;
 import org.eclipse.leshan.core.request.DownlinkRequest;
@@ -103,6 +105,18 @@ public class InMemoryMessageStoreTest {
         Assert.assertEquals(store.retrieveFirst(ENDPOINT).getRequestTicket(), "2");
     }
 
+    @Test
+    public void retrieve_first_queued_requests() {
+        fillQueue(3);
+        List<QueuedRequest> first = store.retrieveFirst(ENDPOINT, 2);
+
+        Assert.assertEquals(2, first.size());
+        Assert.assertEquals("1", first.get(0).getRequestTicket());
+        Assert.assertEquals("2", first.get(1).getRequestTicket());
+        Assert.assertEquals(3, store.retrieveFirst(ENDPOINT, 5).size());
+        Assert.assertTrue(store.retrieveFirst("unknown", 5).isEmpty());
+    }
+
     /**
      * Method creates a new QueuedRequest. With requestTicketID as requestTicket
      * 
@@ -125,6 +139,11 @@ public class InMemoryMessageStoreTest {
                 return ENDPOINT;
             }
 
+            @Override
+            public long getExpiration() {
+                return 0;
+            }
+
             @Override
             public DownlinkRequest<LwM2mResponse> getDownlinkRequest() {
                 return new AbstractDownlinkRequest<LwM2mResponse>(new LwM2mPath("3")) {
@@ -0,0 +1,400 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.queue.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.leshan.core.observation.Observation;
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.request.WriteRequest;
+import org.eclipse.leshan.core.request.exception.RequestCanceledException;
+import org.eclipse.leshan.core.response.ErrorCallback;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ReadResponse;
+import org.eclipse.leshan.core.response.ResponseCallback;
+import org.eclipse.leshan.core.response.WriteResponse;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientFilter;
+import org.eclipse.leshan.server.client.ClientPage;
+import org.eclipse.leshan.server.client.ClientRegistry;
+import org.eclipse.leshan.server.client.ClientRegistryListener;
+import org.eclipse.leshan.server.client.ClientUpdate;
+import org.eclipse.leshan.server.observation.ObservationRegistry;
+import org.eclipse.leshan.server.observation.ObservationRegistryListener;
+import org.eclipse.leshan.server.request.LwM2mRequestSender;
+import org.eclipse.leshan.server.response.ResponseListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class QueuedRequestSenderTest {
+
+    private static final long TIMEOUT = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Client client;
+    private MockClientRegistry clientRegistry;
+    private MockRequestSender delegateSender;
+    private final ConcurrentMap<String, Object> results = new ConcurrentHashMap<>();
+    private QueuedRequestSender sender;
+
+    @Before
+    public void setup() throws Exception {
+        client = new Client.Builder("regId", "sleeping", InetAddress.getLoopbackAddress(), 5683,
+                new InetSocketAddress(5683)).bindingMode(BindingMode.UQ).build();
+        clientRegistry = new MockClientRegistry();
+        delegateSender = new MockRequestSender();
+    }
+
+    @After
+    public void stop() {
+        if (sender != null) {
+            sender.stop();
+        }
+    }
+
+    @Test
+    public void request_is_rejected_when_the_queue_is_full() throws InterruptedException {
+        sender = build(builder().setMaxQueueDepth(2));
+
+        sender.send(client, "1", new ReadRequest(3, 0));
+        sender.send(client, "2", new ReadRequest(3, 0));
+        sender.send(client, "3", new ReadRequest(5, 0));
+
+        assertTrue(waitForResult("3") instanceof RequestCanceledException);
+
+        wakeUp();
+        DownlinkRequestSent sent = delegateSender.next();
+        assertEquals("1", sent.ticket);
+        delegateSender.respond(sent.ticket, ReadResponse.notFound());
+        waitForResult("1");
+
+        // the queue has room again
+        sender.send(client, "4", new ReadRequest(5, 0));
+        delegateSender.respond(delegateSender.next().ticket, ReadResponse.notFound());
+        delegateSender.respond(delegateSender.next().ticket, ReadResponse.notFound());
+        waitForResult("2");
+        waitForResult("4");
+    }
+
+    @Test
+    public void expired_request_fails_and_leaves_room_in_the_queue() throws InterruptedException {
+        sender = build(builder().setMaxQueueDepth(1).setRequestTtl(100));
+
+        sender.send(client, "1", new ReadRequest(3, 0));
+        Thread.sleep(200);
+        // the expired request is not counted
+        sender.send(client, "2", new ReadRequest(5, 0));
+
+        wakeUp();
+        assertTrue(waitForResult("1") instanceof RequestCanceledException);
+        DownlinkRequestSent sent = delegateSender.next();
+        assertEquals("2", sent.ticket);
+        delegateSender.respond(sent.ticket, ReadResponse.notFound());
+        waitForResult("2");
+        assertNull(delegateSender.sent.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void coalesced_read_is_answered_with_the_response_of_the_queued_read() throws InterruptedException {
+        sender = build(builder().setCoalescing(true));
+
+        sender.send(client, "1", new ReadRequest(3, 0));
+        sender.send(client, "2", new ReadRequest(3, 0));
+
+        wakeUp();
+        DownlinkRequestSent sent = delegateSender.next();
+        assertEquals("1", sent.ticket);
+        LwM2mResponse response = ReadResponse.success(0, "Leshan");
+        delegateSender.respond(sent.ticket, response);
+
+        assertSame(response, waitForResult("1"));
+        assertSame(response, waitForResult("2"));
+        assertNull(delegateSender.sent.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void superseded_write_is_answered_with_the_response_of_the_later_write() throws InterruptedException {
+        sender = build(builder().setCoalescing(true));
+
+        sender.send(client, "1", new WriteRequest(3, 0, 14, "+01"));
+        sender.send(client, "2", new WriteRequest(3, 0, 14, "+02"));
+
+        wakeUp();
+        DownlinkRequestSent sent = delegateSender.next();
+        assertEquals("2", sent.ticket);
+        LwM2mResponse response = WriteResponse.success();
+        delegateSender.respond(sent.ticket, response);
+
+        assertSame(response, waitForResult("2"));
+        assertSame(response, waitForResult("1"));
+        assertNull(delegateSender.sent.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void request_queued_before_a_restart_expires() throws InterruptedException {
+        DiskMessageStore store = new DiskMessageStore(folder.getRoot());
+        store.start();
+        QueuedRequestSender previousSender = build(builder().setMessageStore(store).setRequestTtl(100));
+        previousSender.send(client, "1", new ReadRequest(3, 0));
+        previousSender.stop();
+        store.stop();
+
+        // the expiration was stored with the request
+        store = new DiskMessageStore(folder.getRoot());
+        store.start();
+        try {
+            sender = build(builder().setMessageStore(store).setRequestTtl(100));
+            Thread.sleep(200);
+
+            wakeUp();
+            assertTrue(waitForResult("1") instanceof RequestCanceledException);
+            assertNull(delegateSender.sent.poll(100, TimeUnit.MILLISECONDS));
+            assertEquals(0, store.getQueueSize(client.getEndpoint()));
+        } finally {
+            store.stop();
+        }
+    }
+
+    @Test
+    public void requests_are_coalesced_with_a_disk_store() throws InterruptedException {
+        DiskMessageStore store = new DiskMessageStore(folder.getRoot());
+        store.start();
+        try {
+            sender = build(builder().setMessageStore(store).setCoalescing(true));
+
+            sender.send(client, "1", new ReadRequest(3, 0));
+            sender.send(client, "2", new ReadRequest(3, 0));
+            assertEquals(1, store.getQueueSize(client.getEndpoint()));
+
+            wakeUp();
+            DownlinkRequestSent sent = delegateSender.next();
+            LwM2mResponse response = ReadResponse.success(0, "Leshan");
+            delegateSender.respond(sent.ticket, response);
+
+            assertSame(response, waitForResult("1"));
+            assertSame(response, waitForResult("2"));
+        } finally {
+            sender.stop();
+            sender = null;
+            store.stop();
+        }
+    }
+
+    private QueuedRequestSender.Builder builder() {
+        return QueuedRequestSender.builder().setMessageStore(new InMemoryMessageStore())
+                .setRequestSender(delegateSender).setClientRegistry(clientRegistry)
+                .setObservationRegistry(new MockObservationRegistry());
+    }
+
+    private QueuedRequestSender build(QueuedRequestSender.Builder builder) {
+        QueuedRequestSender sender = builder.build();
+        sender.addResponseListener(new ResponseListener() {
+            @Override
+            public void onResponse(Client client, String requestTicket, LwM2mResponse response) {
+                results.put(requestTicket, response);
+            }
+
+            @Override
+            public void onError(Client client, String requestTicket, Exception exception) {
+                results.put(requestTicket, exception);
+            }
+        });
+        return sender;
+    }
+
+    private void wakeUp() {
+        for (ClientRegistryListener listener : clientRegistry.listeners) {
+            listener.updated(null, client);
+        }
+    }
+
+    private Object waitForResult(String ticket) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (!results.containsKey(ticket) && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Object result = results.get(ticket);
+        assertTrue("no result for request " + ticket, result != null);
+        return result;
+    }
+
+    private static class DownlinkRequestSent {
+        private final String ticket;
+
+        private DownlinkRequestSent(String ticket) {
+            this.ticket = ticket;
+        }
+    }
+
+    private class MockRequestSender implements LwM2mRequestSender {
+
+        private final BlockingQueue<DownlinkRequestSent> sent = new LinkedBlockingQueue<>();
+        private final Collection<ResponseListener> listeners = new ConcurrentLinkedQueue<>();
+
+        private DownlinkRequestSent next() throws InterruptedException {
+            DownlinkRequestSent request = sent.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertTrue("no request sent", request != null);
+            return request;
+        }
+
+        private void respond(String ticket, LwM2mResponse response) {
+            for (ResponseListener listener : listeners) {
+                listener.onResponse(client, ticket, response);
+            }
+        }
+
+        @Override
+        public <T extends LwM2mResponse> void send(Client destination, String requestTicket,
+                DownlinkRequest<T> request) {
+            sent.add(new DownlinkRequestSent(requestTicket));
+        }
+
+        @Override
+        public <T extends LwM2mResponse> T send(Client destination, DownlinkRequest<T> request, Long timeout) {
+            return null;
+        }
+
+        @Override
+        public <T extends LwM2mResponse> void send(Client destination, DownlinkRequest<T> request,
+                ResponseCallback<T> responseCallback, ErrorCallback errorCallback) {
+        }
+
+        @Override
+        public void addResponseListener(ResponseListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeResponseListener(ResponseListener listener) {
+            listeners.remove(listener);
+        }
+
+        @Override
+        public void cancelPendingRequests(Client client) {
+        }
+    }
+
+    private class MockClientRegistry implements ClientRegistry {
+
+        private final Collection<ClientRegistryListener> listeners = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public Client get(String endpoint) {
+            return client.getEndpoint().equals(endpoint) ? client : null;
+        }
+
+        @Override
+        public Collection<Client> allClients() {
+            return Collections.singleton(client);
+        }
+
+        @Override
+        public ClientPage getClients(String cursor, int pageSize, ClientFilter filter) {
+            return null;
+        }
+
+        @Override
+        public void addListener(ClientRegistryListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(ClientRegistryListener listener) {
+            listeners.remove(listener);
+        }
+
+        @Override
+        public boolean registerClient(Client client) {
+            return false;
+        }
+
+        @Override
+        public Client updateClient(ClientUpdate update) {
+            return null;
+        }
+
+        @Override
+        public Client deregisterClient(String registrationId) {
+            return null;
+        }
+
+        @Override
+        public Client findByRegistrationId(String id) {
+            return client.getRegistrationId().equals(id) ? client : null;
+        }
+
+        @Override
+        public Client findByAddress(InetSocketAddress address) {
+            return null;
+        }
+    }
+
+    private static class MockObservationRegistry implements ObservationRegistry {
+
+        @Override
+        public void addObservation(Observation observation) {
+        }
+
+        @Override
+        public int cancelObservations(Client client) {
+            return 0;
+        }
+
+        @Override
+        public int cancelObservations(Client client, String resourcepath) {
+            return 0;
+        }
+
+        @Override
+        public void cancelObservation(Observation observation) {
+        }
+
+        @Override
+        public Set<Observation> getObservations(Client client) {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public void addListener(ObservationRegistryListener listener) {
+        }
+
+        @Override
+        public void removeListener(ObservationRegistryListener listener) {
+        }
+    }
+}
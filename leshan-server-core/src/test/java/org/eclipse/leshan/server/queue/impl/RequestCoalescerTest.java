@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Sierra Wireless and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *     Sierra Wireless - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.leshan.server.queue.impl;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.eclipse.leshan.core.request.ContentFormat;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ExecuteRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.request.WriteRequest;
+import org.eclipse.leshan.core.request.WriteRequest.Mode;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.server.queue.QueuedRequest;
+import org.junit.Test;
+
+public class RequestCoalescerTest {
+
+    private final List<QueuedRequest> queue = new ArrayList<>();
+    private final DrainWindow window = new DrainWindow(1);
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+
+    @Test
+    public void identical_read_is_coalesced() {
+        QueuedRequest read = enqueue(new ReadRequest(3, 0));
+        enqueue(new ReadRequest(5, 0));
+
+        assertSame(read, coalescer.findRead(new ReadRequest(3, 0), window));
+        assertNull(coalescer.findRead(new ReadRequest(3, 0, 1), window));
+        assertNull(coalescer.findRead(new ReadRequest(ContentFormat.JSON, 3, 0), window));
+    }
+
+    @Test
+    public void read_is_not_coalesced_across_a_write_on_the_same_path() {
+        enqueue(new ReadRequest(3, 0, 14));
+        enqueue(new WriteRequest(3, 0, 14, "+02"));
+
+        assertNull(coalescer.findRead(new ReadRequest(3, 0, 14), window));
+    }
+
+    @Test
+    public void read_is_not_coalesced_with_a_sent_read() {
+        enqueue(new ReadRequest(3, 0));
+        window.select(queue);
+
+        assertNull(coalescer.findRead(new ReadRequest(3, 0), window));
+    }
+
+    @Test
+    public void replacing_write_supersedes_previous_write() {
+        QueuedRequest write = enqueue(new WriteRequest(3, 0, 14, "+01"));
+        enqueue(new ReadRequest(5, 0));
+
+        assertSame(write, coalescer.findSupersededWrite(new WriteRequest(3, 0, 14, "+02"), window));
+        assertNull(coalescer.findSupersededWrite(new WriteRequest(3, 0, 15, "+02"), window));
+    }
+
+    @Test
+    public void write_does_not_supersede_across_a_request_on_the_same_path() {
+        enqueue(new WriteRequest(3, 0, 14, "+01"));
+        enqueue(new ExecuteRequest(3, 0, 4));
+        enqueue(new ReadRequest(3, 0));
+
+        assertNull(coalescer.findSupersededWrite(new WriteRequest(3, 0, 14, "+02"), window));
+    }
+
+    @Test
+    public void partial_update_does_not_supersede() {
+        enqueue(new WriteRequest(Mode.UPDATE, 3, 0, LwM2mSingleResource.newStringResource(14, "+01")));
+
+        assertNull(coalescer.findSupersededWrite(new WriteRequest(Mode.UPDATE, 3, 0, LwM2mSingleResource.newStringResource(14, "+02")), window));
+    }
+
+    @Test
+    public void read_is_not_coalesced_across_a_write_on_a_parent_or_child_path() {
+        enqueue(new ReadRequest(3, 0, 14));
+        enqueue(new WriteRequest(Mode.REPLACE, 3, 0, LwM2mSingleResource.newStringResource(14, "+01")));
+        enqueue(new ReadRequest(5, 0));
+        enqueue(new WriteRequest(5, 0, 1, "coap://localhost"));
+
+        assertNull(coalescer.findRead(new ReadRequest(3, 0, 14), window));
+        assertNull(coalescer.findRead(new ReadRequest(5, 0), window));
+    }
+
+    @Test
+    public void write_does_not_supersede_across_a_request_on_a_child_path() {
+        enqueue(new WriteRequest(Mode.REPLACE, 3, 0, LwM2mSingleResource.newStringResource(14, "+01")));
+        enqueue(new ReadRequest(3, 0, 14));
+
+        assertNull(coalescer.findSupersededWrite(
+                new WriteRequest(Mode.REPLACE, 3, 0, LwM2mSingleResource.newStringResource(14, "+02")), window));
+    }
+
+    @Test
+    public void completed_requests_are_not_coalesced() {
+        QueuedRequest read = enqueue(new ReadRequest(3, 0));
+        QueuedRequest write = enqueue(new WriteRequest(3, 0, 14, "+01"));
+        QueuedRequest other = enqueue(new ReadRequest(3, 0));
+
+        coalescer.remove(read.getRequestTicket());
+        coalescer.remove(write.getRequestTicket());
+
+        assertSame(other, coalescer.findRead(new ReadRequest(3, 0), window));
+        assertNull(coalescer.findSupersededWrite(new WriteRequest(3, 0, 14, "+02"), window));
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private QueuedRequest enqueue(DownlinkRequest<?> request) {
+        QueuedRequest queued = new QueuedRequestSender.QueuedRequestImpl("myEndpoint",
+                (DownlinkRequest) request, String.valueOf(queue.size() + 1));
+        queue.add(queued);
+        coalescer.add(queued);
+        return queued;
+    }
+}
@@ -16,7 +16,8 @@
 package org.eclipse.leshan.server.demo.servlet;
 
 import java.io.IOException;
-import java.util.Collection;
+import java.io.OutputStreamWriter;
+import java.util.Iterator;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -47,6 +48,7 @@ import org.eclipse.leshan.core.response.ReadResponse;
 import org.eclipse.leshan.core.response.WriteResponse;
 import org.eclipse.leshan.server.LwM2mServer;
 import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientIterator;
 import org.eclipse.leshan.server.demo.servlet.json.ClientSerializer;
 import org.eclipse.leshan.server.demo.servlet.json.LwM2mNodeDeserializer;
 import org.eclipse.leshan.server.demo.servlet.json.LwM2mNodeSerializer;
@@ -57,6 +59,7 @@ import org.slf4j.LoggerFactory;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * Service HTTP REST API calls.
@@ -69,6 +72,8 @@ public class ClientServlet extends HttpServlet {
 
     private static final long TIMEOUT = 5000; // ms
 
+    private static final int CLIENTS_PAGE_SIZE = 100;
+
     private static final long serialVersionUID = 1L;
 
     private final LwM2mServer server;
@@ -95,12 +100,18 @@ public class ClientServlet extends HttpServlet {
 
         // all registered clients
         if (req.getPathInfo() == null) {
-            Collection<Client> clients = server.getClientRegistry().allClients();
-
-            String json = this.gson.toJson(clients.toArray(new Client[] {}));
             resp.setContentType("application/json");
-            resp.getOutputStream().write(json.getBytes("UTF-8"));
             resp.setStatus(HttpServletResponse.SC_OK);
+
+            // stream the clients page by page rather than building the whole JSON array in memory
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(resp.getOutputStream(), "UTF-8"));
+            writer.beginArray();
+            Iterator<Client> clients = new ClientIterator(server.getClientRegistry(), CLIENTS_PAGE_SIZE, null);
+            while (clients.hasNext()) {
+                this.gson.toJson(clients.next(), Client.class, writer);
+            }
+            writer.endArray();
+            writer.flush();
             return;
         }
 